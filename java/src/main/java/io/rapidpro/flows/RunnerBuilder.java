@@ -3,12 +3,23 @@ package io.rapidpro.flows;
 import io.rapidpro.expressions.EvaluatorBuilder;
 import io.rapidpro.expressions.evaluator.Evaluator;
 import io.rapidpro.flows.definition.Flow;
+import io.rapidpro.flows.definition.FlowSet;
+import io.rapidpro.flows.runner.ActionSink;
+import io.rapidpro.flows.runner.AllocationProfiler;
+import io.rapidpro.flows.runner.FunnelAggregator;
 import io.rapidpro.flows.runner.Location;
+import io.rapidpro.flows.runner.RunExecutors;
 import io.rapidpro.flows.runner.Runner;
+import io.rapidpro.flows.runner.StepSink;
+import io.rapidpro.flows.runner.WebhookClient;
+import org.threeten.bp.Clock;
 import org.threeten.bp.Instant;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 /**
  * Builder for runner instances
@@ -23,10 +34,49 @@ public class RunnerBuilder {
 
     protected List<Flow> m_flows;
 
+    protected Map<String, Flow> m_flowMap;
+
+    protected AllocationProfiler m_allocationProfiler;
+
+    protected boolean m_lazyContext;
+
+    protected int m_maxSubflowDepth = Runner.DEFAULT_MAX_SUBFLOW_DEPTH;
+
+    protected boolean m_stepJournal;
+
+    protected StepSink m_stepSink;
+
+    protected ActionSink m_actionSink;
+
+    protected WebhookClient m_webhookClient;
+
+    protected Executor m_executor;
+
+    protected FunnelAggregator m_funnelAggregator;
+
+    protected Clock m_clock = Clock.systemUTC();
+
     public RunnerBuilder(List<Flow> flows) {
         m_flows = flows;
     }
 
+    /**
+     * Creates a builder for a runner which looks up flows in the given map, which may load flows on demand
+     * @param flows the map of flow UUIDs to flows
+     */
+    public RunnerBuilder(Map<String, Flow> flows) {
+        m_flowMap = flows;
+    }
+
+    /**
+     * Creates a builder for a runner of the flows in the given set. The runner gets its own copy of the set's flows so
+     * that flows started directly can still be added to it.
+     * @param flows the flow set
+     */
+    public RunnerBuilder(FlowSet flows) {
+        m_flowMap = new HashMap<>(flows.getFlowsByUuid());
+    }
+
     public RunnerBuilder() {
         m_flows = new ArrayList<>();
     }
@@ -46,6 +96,87 @@ public class RunnerBuilder {
         return this;
     }
 
+    /**
+     * Sets the clock used for the time of run starts and steps, and for the evaluation context if now hasn't been set
+     */
+    public RunnerBuilder withClock(Clock clock) {
+        m_clock = clock;
+        return this;
+    }
+
+    /**
+     * Enables allocation profiling of resume calls, which is a diagnostic mode with some overhead
+     */
+    public RunnerBuilder withAllocationProfiler(AllocationProfiler allocationProfiler) {
+        m_allocationProfiler = allocationProfiler;
+        return this;
+    }
+
+    /**
+     * Enables building of context variables on demand, i.e. only when a template resolves them
+     */
+    public RunnerBuilder withLazyContext() {
+        m_lazyContext = true;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of nested subflows a run can enter before it fails
+     */
+    public RunnerBuilder withMaxSubflowDepth(int maxSubflowDepth) {
+        m_maxSubflowDepth = maxSubflowDepth;
+        return this;
+    }
+
+    /**
+     * Enables the journal of completed steps on each run state. The journal keeps every step until the caller discards
+     * them, so it should only be enabled by callers which drain it.
+     */
+    public RunnerBuilder withStepJournal() {
+        m_stepJournal = true;
+        return this;
+    }
+
+    /**
+     * Sets a sink which will receive each step as soon as it's completed
+     */
+    public RunnerBuilder withStepSink(StepSink stepSink) {
+        m_stepSink = stepSink;
+        return this;
+    }
+
+    /**
+     * Sets a sink which will receive each action as soon as it's performed
+     */
+    public RunnerBuilder withActionSink(ActionSink actionSink) {
+        m_actionSink = actionSink;
+        return this;
+    }
+
+    /**
+     * Sets an aggregator which will count the contacts arriving at, leaving and waiting at each node
+     */
+    public RunnerBuilder withFunnelAggregator(FunnelAggregator funnelAggregator) {
+        m_funnelAggregator = funnelAggregator;
+        return this;
+    }
+
+    /**
+     * Sets the client used to make the calls of webhook rule sets
+     */
+    public RunnerBuilder withWebhookClient(WebhookClient webhookClient) {
+        m_webhookClient = webhookClient;
+        return this;
+    }
+
+    /**
+     * Sets the executor on which async and batch resumes are run, e.g. one from {@link RunExecutors}
+     */
+    public RunnerBuilder withExecutor(Executor executor) {
+        m_executor = executor;
+        return this;
+    }
+
     public Runner build() {
         if (m_templateEvaluator == null) {
             m_templateEvaluator = new EvaluatorBuilder()
@@ -63,6 +194,66 @@ public class RunnerBuilder {
             };
         }
 
-        return new Runner(m_templateEvaluator, m_locationResolver, m_now, m_flows);
+        return new Runner(this);
+    }
+
+    public Evaluator getTemplateEvaluator() {
+        return m_templateEvaluator;
+    }
+
+    public Location.Resolver getLocationResolver() {
+        return m_locationResolver;
+    }
+
+    public Instant getNow() {
+        return m_now;
+    }
+
+    /**
+     * Gets the map of flow UUIDs to flows which the runner will look up flows in. If this builder was given a list of
+     * flows, then each call returns a new map.
+     */
+    public Map<String, Flow> getFlows() {
+        return m_flowMap != null ? m_flowMap : Runner.buildFlowMap(m_flows);
+    }
+
+    public AllocationProfiler getAllocationProfiler() {
+        return m_allocationProfiler;
+    }
+
+    public boolean isLazyContext() {
+        return m_lazyContext;
+    }
+
+    public int getMaxSubflowDepth() {
+        return m_maxSubflowDepth;
+    }
+
+    public boolean isStepJournal() {
+        return m_stepJournal;
+    }
+
+    public StepSink getStepSink() {
+        return m_stepSink;
+    }
+
+    public ActionSink getActionSink() {
+        return m_actionSink;
+    }
+
+    public WebhookClient getWebhookClient() {
+        return m_webhookClient;
+    }
+
+    public Executor getExecutor() {
+        return m_executor;
+    }
+
+    public FunnelAggregator getFunnelAggregator() {
+        return m_funnelAggregator;
+    }
+
+    public Clock getClock() {
+        return m_clock;
     }
 }
@@ -63,6 +63,10 @@ public class ActionSet extends Flow.Node implements Flow.ConnectionStart {
         for (Action action : m_actions) {
             Action.Result result = action.execute(runner, run, input);
             step.addActionResult(result);
+
+            if (result.getPerformed() != null) {
+                runner.actionPerformed(run, step, result.getPerformed());
+            }
         }
 
         return m_destination;
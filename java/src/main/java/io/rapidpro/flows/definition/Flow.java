@@ -2,6 +2,10 @@ package io.rapidpro.flows.definition;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import io.rapidpro.flows.definition.actions.Action;
 import io.rapidpro.flows.definition.actions.message.MessageAction;
 import io.rapidpro.flows.runner.Input;
@@ -9,7 +13,14 @@ import io.rapidpro.flows.runner.RunState;
 import io.rapidpro.flows.runner.Runner;
 import io.rapidpro.flows.runner.Step;
 import io.rapidpro.flows.utils.JsonUtils;
-
+import io.rapidpro.flows.utils.StringPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
@@ -52,7 +63,27 @@ public class Flow {
 
     protected Map<String, Element> m_elementsByUuid = new HashMap<>();
 
-    protected JsonObject m_metadata;
+    protected String m_uuid;
+
+    protected String m_name;
+
+    protected int m_revision;
+
+    protected FlowAnalysis m_analysis;
+
+    protected LanguageDictionary m_languageDictionary;
+
+    protected Localization m_baseLocalization;
+
+    protected String[] m_valueKeys;
+
+    protected Map<String, Integer> m_valueOrdinals;
+
+    /**
+     * This flow's own instances of the strings which run states repeat, i.e. its UUID, rule set labels, value keys and
+     * categories, which is only written whilst the flow is loaded
+     */
+    protected Map<String, String> m_strings = new HashMap<>();
 
     /**
      * Creates a flow from a JSON flow definition
@@ -60,65 +91,242 @@ public class Flow {
      * @return the flow
      */
     public static Flow fromJson(String json) throws FlowParseException {
-        JsonObject obj = JsonUtils.getGson().fromJson(json, JsonObject.class);
+        return fromJson(new StringReader(json));
+    }
 
-        if (obj.has("version")) {
-            int version = obj.get("version").getAsInt();
-            if (!SPEC_VERSIONS.contains(version)) {
-                throw new FlowParseException("Unsupported flow spec version: " + version);
-            }
-        } else {
-            throw new FlowParseException("Missing flow spec version");
+    /**
+     * Creates a flow from a JSON flow definition, reading action sets and rule sets one at a time so that only one node
+     * is held as a JSON tree at once
+     * @param reader the reader
+     * @return the flow
+     */
+    public static Flow fromJson(Reader reader) throws FlowParseException {
+        JsonReader json = new JsonReader(reader);
+        json.setLenient(true);
+        try {
+            return fromJson(json);
+        } catch (IOException | IllegalStateException | UnsupportedOperationException | NumberFormatException | JsonParseException e) {
+            throw new FlowParseException("Unable to read flow JSON", e);
         }
+    }
 
-        Flow flow = new Flow();
-        flow.m_type = Flow.Type.fromCode(obj.get("flow_type").getAsString());
-        flow.m_baseLanguage = JsonUtils.getAsString(obj, "base_language");
-        flow.m_metadata = obj.getAsJsonObject("metadata");
+    /**
+     * Creates a flow from a UTF-8 encoded JSON flow definition
+     * @param in the input stream
+     * @return the flow
+     */
+    public static Flow fromJson(InputStream in) throws FlowParseException {
+        return fromJson(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
 
-        // keep an exhaustive record of all languages in our flow definition
-        Set<String> languages = new HashSet<>();
+    /**
+     * Creates a flow from a JSON flow definition which has already been parsed, e.g. as part of an export
+     * @param obj the JSON object
+     * @return the flow
+     */
+    public static Flow fromJson(JsonObject obj) throws FlowParseException {
+        Loader loader = new Loader();
+        try {
+            for (Map.Entry<String, JsonElement> entry : obj.entrySet()) {
+                String name = entry.getKey();
+                JsonElement value = entry.getValue();
+
+                if (value.isJsonNull()) {
+                    continue;
+                }
+
+                if (name.equals("action_sets")) {
+                    for (JsonElement node : value.getAsJsonArray()) {
+                        loader.addActionSet(node.getAsJsonObject());
+                    }
+                } else if (name.equals("rule_sets")) {
+                    for (JsonElement node : value.getAsJsonArray()) {
+                        loader.addRuleSet(node.getAsJsonObject());
+                    }
+                } else if (Loader.PROPERTIES.contains(name)) {
+                    loader.setProperty(name, value);
+                }
+            }
+            return loader.finish();
+        } catch (IllegalStateException | UnsupportedOperationException | NumberFormatException | JsonParseException e) {
+            throw new FlowParseException("Unable to read flow JSON", e);
+        }
+    }
+
+    /**
+     * Reads a flow from the next object in the given JSON reader
+     * @param json the JSON reader
+     * @return the flow
+     */
+    public static Flow fromJson(JsonReader json) throws IOException, FlowParseException {
+        JsonParser parser = new JsonParser();
+        Loader loader = new Loader();
 
-        DeserializationContext context = new DeserializationContext(new HashMap<String, Flow>());
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
 
-        for (JsonElement asElem : obj.get("action_sets").getAsJsonArray()) {
-            ActionSet actionSet = ActionSet.fromJson(asElem.getAsJsonObject(), context);
-            flow.m_elementsByUuid.put(actionSet.m_uuid, actionSet);
+            if (json.peek() == JsonToken.NULL) {
+                json.skipValue();
+                continue;
+            }
 
-            // see what translations are set on this actionset
-            for (Action action : actionSet.getActions()) {
-                if (action instanceof MessageAction) {
-                    languages.addAll(((MessageAction) action).getMsg().getLanguages());
+            if (name.equals("action_sets")) {
+                json.beginArray();
+                while (json.hasNext()) {
+                    loader.addActionSet(parser.parse(json).getAsJsonObject());
                 }
+                json.endArray();
+            } else if (name.equals("rule_sets")) {
+                json.beginArray();
+                while (json.hasNext()) {
+                    loader.addRuleSet(parser.parse(json).getAsJsonObject());
+                }
+                json.endArray();
+            } else if (Loader.PROPERTIES.contains(name)) {
+                loader.setProperty(name, parser.parse(json));
+            } else {
+                json.skipValue();
             }
         }
+        json.endObject();
+
+        return loader.finish();
+    }
+
+    /**
+     * Builds a flow from the parts of its definition, whether they're read from a stream or an already parsed object
+     */
+    protected static class Loader {
+
+        /**
+         * The top-level properties of a definition other than its nodes which we read
+         */
+        protected static final Set<String> PROPERTIES = new HashSet<>(Arrays.asList("version", "flow_type", "base_language", "entry", "metadata"));
 
-        for (JsonElement rsElem : obj.get("rule_sets").getAsJsonArray()) {
-            RuleSet ruleSet = RuleSet.fromJson(rsElem.getAsJsonObject(), context);
-            flow.m_elementsByUuid.put(ruleSet.m_uuid, ruleSet);
+        protected Flow m_flow = new Flow();
 
-            for (Rule rule : ruleSet.getRules()) {
-                flow.m_elementsByUuid.put(rule.getUuid(), rule);
-                languages.addAll(rule.getCategory().getLanguages());
+        protected Integer m_version;
+
+        protected boolean m_hasType;
+
+        protected String m_entryUuid;
+
+        // keep an exhaustive record of all languages in our flow definition
+        protected Set<String> m_languages = new HashSet<>();
+
+        protected DeserializationContext m_context = new DeserializationContext(new HashMap<String, Flow>());
+
+        protected List<String> m_valueKeys = new ArrayList<>();
+
+        public Loader() {
+            m_flow.m_valueOrdinals = new HashMap<>();
+        }
+
+        public void setProperty(String name, JsonElement value) throws FlowParseException {
+            switch (name) {
+                case "version":
+                    m_version = value.getAsInt();
+                    if (!SPEC_VERSIONS.contains(m_version)) {
+                        throw new FlowParseException("Unsupported flow spec version: " + m_version);
+                    }
+                    break;
+                case "flow_type":
+                    // types we don't know of are left null rather than rejected
+                    m_flow.m_type = Flow.Type.fromCode(value.getAsString());
+                    m_hasType = true;
+                    break;
+                case "base_language":
+                    m_flow.m_baseLanguage = value.getAsString();
+                    break;
+                case "entry":
+                    m_entryUuid = value.getAsString();
+                    break;
+                case "metadata":
+                    // only keep the metadata we use as the rest, e.g. notes, can be large
+                    JsonObject metadata = value.getAsJsonObject();
+                    m_flow.m_uuid = m_flow.canonicalize(JsonUtils.getAsString(metadata, "uuid"));
+                    m_flow.m_name = JsonUtils.getAsString(metadata, "name");
+                    m_flow.m_revision = metadata.has("revision") ? metadata.get("revision").getAsInt() : 0;
+                    break;
             }
         }
 
-        // lookup and set destination nodes
-        for (Map.Entry<ConnectionStart, String> entry : context.m_destinationsToSet.entrySet()) {
-            ConnectionStart start = entry.getKey();
-            start.setDestination((Node) flow.getElementByUuid(entry.getValue()));
+        public void addActionSet(JsonObject obj) throws FlowParseException {
+            m_flow.addActionSet(ActionSet.fromJson(obj, m_context), m_languages);
+        }
+
+        public void addRuleSet(JsonObject obj) throws FlowParseException {
+            m_flow.addRuleSet(RuleSet.fromJson(obj, m_context), m_languages, m_valueKeys);
+        }
+
+        public Flow finish() throws FlowParseException {
+            Flow flow = m_flow;
+
+            if (m_version == null) {
+                throw new FlowParseException("Missing flow spec version");
+            }
+            if (!m_hasType) {
+                throw new FlowParseException("Missing flow type");
+            }
+
+            // lookup and set destination nodes
+            for (Map.Entry<ConnectionStart, String> entry : m_context.m_destinationsToSet.entrySet()) {
+                ConnectionStart start = entry.getKey();
+                start.setDestination((Node) flow.getElementByUuid(entry.getValue()));
+            }
+
+            // only accept languages that are ISO 639-2 (alpha3)
+            flow.m_languages = new HashSet<>();
+            for (String language : m_languages) {
+                if (language.length() == 3) {
+                    flow.m_languages.add(language);
+                }
+            }
+
+            flow.m_languageDictionary = m_context.getLanguageDictionary();
+            flow.m_baseLocalization = new Localization(flow.m_languageDictionary, new String[] { flow.m_baseLanguage });
+            flow.m_valueKeys = m_valueKeys.toArray(new String[m_valueKeys.size()]);
+            flow.m_entry = m_entryUuid != null ? (Node) flow.getElementByUuid(m_entryUuid) : null;
+            flow.m_analysis = FlowAnalysis.analyze(flow);
+            return flow;
         }
+    }
 
-        // only accept languages that are ISO 639-2 (alpha3)
-        flow.m_languages = new HashSet<>();
-        for (String language : languages) {
-            if (language.length() == 3) {
-                flow.m_languages.add(language);
+    protected void addActionSet(ActionSet actionSet, Set<String> languages) {
+        m_elementsByUuid.put(actionSet.m_uuid, actionSet);
+
+        // see what translations are set on this actionset
+        for (Action action : actionSet.getActions()) {
+            if (action instanceof MessageAction) {
+                languages.addAll(((MessageAction) action).getMsg().getLanguages());
             }
         }
+    }
+
+    protected void addRuleSet(RuleSet ruleSet, Set<String> languages, List<String> valueKeys) {
+        m_elementsByUuid.put(ruleSet.m_uuid, ruleSet);
+
+        // labels and value keys are saved in every run state which passes through this rule set
+        ruleSet.m_label = canonicalize(ruleSet.m_label);
+        ruleSet.m_valueKey = canonicalize(ruleSet.m_valueKey);
+
+        // rule sets with the same label save to the same value so share an ordinal
+        Integer ordinal = m_valueOrdinals.get(ruleSet.getValueKey());
+        if (ordinal == null) {
+            ordinal = valueKeys.size();
+            m_valueOrdinals.put(ruleSet.getValueKey(), ordinal);
+            valueKeys.add(ruleSet.getValueKey());
+        }
+        ruleSet.m_valueOrdinal = ordinal;
+
+        for (Rule rule : ruleSet.getRules()) {
+            m_elementsByUuid.put(rule.getUuid(), rule);
+            languages.addAll(rule.getCategory().getLanguages());
 
-        flow.m_entry = flow.getElementByUuid(JsonUtils.getAsString(obj, "entry"));
-        return flow;
+            // categories are the most duplicated strings in run states so make ours canonical
+            rule.getCategory().canonicalizeIn(this);
+        }
     }
 
     /**
@@ -130,6 +338,8 @@ public class Flow {
 
         protected Map<ConnectionStart, String> m_destinationsToSet = new HashMap<>();
 
+        protected LanguageDictionary m_languageDictionary = new LanguageDictionary();
+
         public DeserializationContext(Map<String,Flow> flows) {
             m_flows = flows;
         }
@@ -146,6 +356,13 @@ public class Flow {
         public Flow getFlow(String flowUuid) {
             return m_flows.get(flowUuid);
         }
+
+        /**
+         * Gets the dictionary which the languages of translations are registered in
+         */
+        public LanguageDictionary getLanguageDictionary() {
+            return m_languageDictionary;
+        }
     }
 
     /**
@@ -229,16 +446,96 @@ public class Flow {
         return m_baseLanguage;
     }
 
+    /**
+     * Gets the dictionary of the languages of this flow's translations
+     */
+    public LanguageDictionary getLanguageDictionary() {
+        return m_languageDictionary;
+    }
+
+    /**
+     * Gets the localization which uses only this flow's base language
+     */
+    public Localization getBaseLocalization() {
+        return m_baseLocalization;
+    }
+
     public Node getEntry() {
         return m_entry;
     }
 
+    /**
+     * Gets the metadata of this flow which is retained after loading, i.e. its UUID, name and revision
+     */
     public JsonObject getMetadata() {
-        return m_metadata;
+        return JsonUtils.object("uuid", m_uuid, "name", m_name, "revision", m_revision);
     }
 
     public String getUuid() {
-        return m_metadata.get("uuid").getAsString();
+        return m_uuid;
+    }
+
+    public String getName() {
+        return m_name;
+    }
+
+    public int getRevision() {
+        return m_revision;
+    }
+
+    /**
+     * Gets the metadata about this flow and its nodes, where node metadata is computed when it's first queried
+     */
+    public FlowAnalysis getAnalysis() {
+        return m_analysis;
+    }
+
+    /**
+     * Gets the distinct keys of the values saved by this flow's rule sets, in the order they are defined
+     */
+    public String[] getValueKeys() {
+        return m_valueKeys;
+    }
+
+    /**
+     * Gets the position of the given value key in this flow's value keys
+     * @param key the value key
+     * @return the ordinal or -1 if no rule set in this flow saves a value with that key
+     */
+    public int getValueOrdinal(String key) {
+        Integer ordinal = m_valueOrdinals.get(key);
+        return ordinal != null ? ordinal : -1;
+    }
+
+    /**
+     * Gets this flow's instance of the given string if it has one, e.g. when deserializing the results of runs of this
+     * flow, so that they share the strings of the definition. Otherwise the string is interned in the shared pool.
+     * @param text the string, may be null
+     * @return the canonical instance
+     */
+    public String intern(String text) {
+        if (text == null) {
+            return null;
+        }
+        String canonical = m_strings.get(text);
+        return canonical != null ? canonical : StringPool.getShared().intern(text);
+    }
+
+    /**
+     * Gets this flow's instance of the given string, adding it if this is the first. Only called whilst loading.
+     * @param text the string, may be null
+     * @return the canonical instance
+     */
+    protected String canonicalize(String text) {
+        if (text == null) {
+            return null;
+        }
+        String canonical = m_strings.get(text);
+        if (canonical == null) {
+            m_strings.put(text, text);
+            canonical = text;
+        }
+        return canonical;
     }
 
     public <T extends Element> T getElementByUuid(String uuid) {
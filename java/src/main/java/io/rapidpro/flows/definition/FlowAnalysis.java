@@ -0,0 +1,419 @@
+package io.rapidpro.flows.definition;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.rapidpro.flows.definition.actions.Action;
+import io.rapidpro.flows.utils.FlowUtils;
+import io.rapidpro.flows.utils.JsonUtils;
+
+import java.util.*;
+
+/**
+ * Metadata about a flow so that the runner and other subsystems can skip work which a node doesn't need. Which
+ * subflows the flow can enter and whether it has loops which the runner could go round without waiting are computed
+ * when the flow is loaded. The metadata of each node is computed the first time any node is queried and then cached.
+ */
+public class FlowAnalysis {
+
+    protected Flow m_flow;
+
+    protected volatile Map<String, NodeInfo> m_nodeInfos;
+
+    protected Set<String> m_subflowUuids = new LinkedHashSet<>();
+
+    protected List<List<String>> m_nonPausingLoops = new ArrayList<>();
+
+    protected Set<String> m_nonPausingLoopNodes = new HashSet<>();
+
+    /**
+     * Analyzes the given flow, whose nodes and destinations must already be loaded
+     * @param flow the flow
+     * @return the analysis
+     */
+    public static FlowAnalysis analyze(Flow flow) {
+        FlowAnalysis analysis = new FlowAnalysis();
+        analysis.m_flow = flow;
+        Map<Flow.Node, List<Flow.Node>> successors = new HashMap<>();
+
+        for (Flow.Element element : flow.m_elementsByUuid.values()) {
+            if (element instanceof ActionSet) {
+                ActionSet actionSet = (ActionSet) element;
+                addEdge(successors, actionSet, actionSet.getDestination());
+            }
+            else if (element instanceof RuleSet) {
+                RuleSet ruleSet = (RuleSet) element;
+                for (Rule rule : ruleSet.getRules()) {
+                    addEdge(successors, ruleSet, rule.getDestination());
+                }
+
+                if (ruleSet.isSubflow() && ruleSet.getSubflowUuid() != null) {
+                    analysis.m_subflowUuids.add(ruleSet.getSubflowUuid());
+                }
+            }
+        }
+
+        analysis.findNonPausingLoops(successors);
+        analysis.m_subflowUuids = Collections.unmodifiableSet(analysis.m_subflowUuids);
+
+        return analysis;
+    }
+
+    /**
+     * Computes the metadata of every node
+     * @return the metadata by node UUID
+     */
+    protected Map<String, NodeInfo> analyzeNodes() {
+        Map<String, NodeInfo> nodeInfos = new HashMap<>();
+        Map<Flow.Node, List<Flow.Node>> predecessors = new HashMap<>();
+        Deque<Flow.Node> pausing = new ArrayDeque<>();
+
+        for (Flow.Element element : m_flow.m_elementsByUuid.values()) {
+            if (!(element instanceof Flow.Node)) {
+                continue;
+            }
+            Flow.Node node = (Flow.Node) element;
+            NodeInfo info = new NodeInfo(node.getUuid());
+            info.m_inNonPausingLoop = m_nonPausingLoopNodes.contains(node.getUuid());
+
+            if (node instanceof ActionSet) {
+                ActionSet actionSet = (ActionSet) node;
+                for (Action action : actionSet.getActions()) {
+                    addReferences(action.toJson(), info.m_references);
+                }
+                addEdge(predecessors, actionSet.getDestination(), node);
+            }
+            else if (node instanceof RuleSet) {
+                RuleSet ruleSet = (RuleSet) node;
+                if (ruleSet.getOperand() != null) {
+                    info.m_references.addAll(FlowUtils.getTemplateReferences(ruleSet.getOperand()));
+                }
+                if (ruleSet.getWebhook() != null) {
+                    info.m_references.addAll(FlowUtils.getTemplateReferences(ruleSet.getWebhook()));
+                }
+
+                // config (e.g. webhook settings) may also contain expressions
+                if (ruleSet.m_config != null) {
+                    addReferences(JsonUtils.getGson().toJsonTree(ruleSet.m_config), info.m_references);
+                }
+
+                for (Rule rule : ruleSet.getRules()) {
+                    Set<String> testReferences = new LinkedHashSet<>();
+                    addReferences(rule.getTest().toJson(), testReferences);
+                    if (!testReferences.isEmpty()) {
+                        info.m_constantTests = false;
+                        info.m_references.addAll(testReferences);
+                    }
+                    addEdge(predecessors, rule.getDestination(), node);
+                }
+
+                if (ruleSet.isSubflow() && ruleSet.getSubflowUuid() != null) {
+                    info.m_subflowUuids.add(ruleSet.getSubflowUuid());
+                }
+
+                // a subflow can always pause inside the child flow
+                if (ruleSet.isPause() || ruleSet.isSubflow()) {
+                    info.m_canReachPause = true;
+                    pausing.add(node);
+                }
+            }
+
+            nodeInfos.put(node.getUuid(), info);
+        }
+
+        // walk backwards from every pausing node to find all the nodes which can reach one
+        while (!pausing.isEmpty()) {
+            Flow.Node node = pausing.poll();
+            List<Flow.Node> sources = predecessors.get(node);
+            if (sources == null) {
+                continue;
+            }
+            for (Flow.Node source : sources) {
+                NodeInfo sourceInfo = nodeInfos.get(source.getUuid());
+                if (!sourceInfo.m_canReachPause) {
+                    sourceInfo.m_canReachPause = true;
+                    pausing.add(source);
+                }
+            }
+        }
+
+        for (NodeInfo info : nodeInfos.values()) {
+            info.freeze();
+        }
+        return nodeInfos;
+    }
+
+    /**
+     * Adds the references of every string in the given JSON, which is a conservative way of finding all templates
+     * in an action or test without each one having to declare them
+     */
+    protected static void addReferences(JsonElement elm, Set<String> references) {
+        if (elm == null || elm.isJsonNull()) {
+            return;
+        }
+        if (elm.isJsonPrimitive()) {
+            if (elm.getAsJsonPrimitive().isString()) {
+                String str = elm.getAsString();
+                if (str.indexOf('@') >= 0) {
+                    references.addAll(FlowUtils.getTemplateReferences(str));
+                }
+            }
+        }
+        else if (elm.isJsonArray()) {
+            for (JsonElement item : elm.getAsJsonArray()) {
+                addReferences(item, references);
+            }
+        }
+        else if (elm.isJsonObject()) {
+            for (Map.Entry<String, JsonElement> entry : ((JsonObject) elm).entrySet()) {
+                addReferences(entry.getValue(), references);
+            }
+        }
+    }
+
+    /**
+     * Adds an edge to a map of node to nodes, e.g. destination to its predecessors
+     */
+    protected static void addEdge(Map<Flow.Node, List<Flow.Node>> edges, Flow.Node from, Flow.Node to) {
+        if (from == null || to == null) {
+            return;
+        }
+        List<Flow.Node> tos = edges.get(from);
+        if (tos == null) {
+            tos = new ArrayList<>();
+            edges.put(from, tos);
+        }
+        tos.add(to);
+    }
+
+    /**
+     * Finds the strongly connected components of the graph of non-pausing nodes (Tarjan's algorithm), each of which
+     * contains at least one cycle that the runner could go round without waiting. Subflow rule sets don't count as
+     * pausing as the child flow may complete without waiting.
+     * @param successors the destinations of each node
+     */
+    protected void findNonPausingLoops(Map<Flow.Node, List<Flow.Node>> successors) {
+        Map<Flow.Node, int[]> indexes = new HashMap<>(); // node -> {index, lowlink}
+        Deque<Flow.Node> stack = new ArrayDeque<>();
+        Set<Flow.Node> onStack = new HashSet<>();
+
+        for (Flow.Node node : successors.keySet()) {
+            if (!indexes.containsKey(node) && !isPause(node)) {
+                strongConnect(node, successors, indexes, stack, onStack);
+            }
+        }
+
+        Collections.sort(m_nonPausingLoops, new Comparator<List<String>>() {
+            @Override
+            public int compare(List<String> loop1, List<String> loop2) {
+                return loop1.get(0).compareTo(loop2.get(0));
+            }
+        });
+        m_nonPausingLoops = Collections.unmodifiableList(m_nonPausingLoops);
+    }
+
+    protected void strongConnect(Flow.Node node, Map<Flow.Node, List<Flow.Node>> successors, Map<Flow.Node, int[]> indexes, Deque<Flow.Node> stack, Set<Flow.Node> onStack) {
+        int[] nodeIndex = new int[] { indexes.size(), indexes.size() };
+        indexes.put(node, nodeIndex);
+        stack.push(node);
+        onStack.add(node);
+
+        boolean selfLoop = false;
+        List<Flow.Node> destinations = successors.get(node);
+        if (destinations != null) {
+            for (Flow.Node destination : destinations) {
+                if (isPause(destination)) {
+                    continue;
+                }
+                if (destination.equals(node)) {
+                    selfLoop = true;
+                }
+                int[] destIndex = indexes.get(destination);
+                if (destIndex == null) {
+                    strongConnect(destination, successors, indexes, stack, onStack);
+                    nodeIndex[1] = Math.min(nodeIndex[1], indexes.get(destination)[1]);
+                } else if (onStack.contains(destination)) {
+                    nodeIndex[1] = Math.min(nodeIndex[1], destIndex[0]);
+                }
+            }
+        }
+
+        // this node is the root of a component so pop it off the stack
+        if (nodeIndex[1] == nodeIndex[0]) {
+            List<String> component = new ArrayList<>();
+            Flow.Node member;
+            do {
+                member = stack.pop();
+                onStack.remove(member);
+                component.add(member.getUuid());
+            } while (!member.equals(node));
+
+            if (component.size() > 1 || selfLoop) {
+                Collections.sort(component);
+                m_nonPausingLoopNodes.addAll(component);
+                m_nonPausingLoops.add(Collections.unmodifiableList(component));
+            }
+        }
+    }
+
+    protected static boolean isPause(Flow.Node node) {
+        return node instanceof RuleSet && ((RuleSet) node).isPause();
+    }
+
+    /**
+     * Gets the metadata for the given node, analyzing all the nodes of the flow if this is the first query
+     * @param nodeUuid the node UUID
+     * @return the metadata or null if the flow has no such node
+     */
+    public NodeInfo getNodeInfo(String nodeUuid) {
+        Map<String, NodeInfo> nodeInfos = m_nodeInfos;
+        if (nodeInfos == null) {
+            synchronized (this) {
+                nodeInfos = m_nodeInfos;
+                if (nodeInfos == null) {
+                    nodeInfos = analyzeNodes();
+                    m_nodeInfos = nodeInfos;
+                }
+            }
+        }
+        return nodeInfos.get(nodeUuid);
+    }
+
+    /**
+     * Gets the metadata for the given node
+     * @param node the node
+     * @return the metadata or null if the node isn't in this flow
+     */
+    public NodeInfo getNodeInfo(Flow.Node node) {
+        NodeInfo info = getNodeInfo(node.getUuid());
+        return info != null && m_flow.getElementByUuid(node.getUuid()) == node ? info : null;
+    }
+
+    /**
+     * Gets the UUIDs of all the flows which can be entered as subflows of this flow
+     */
+    public Set<String> getSubflowUuids() {
+        return m_subflowUuids;
+    }
+
+    /**
+     * Gets the groups of nodes which form cycles without a pausing rule set, i.e. where a run could loop forever. Each
+     * group is the sorted UUIDs of a strongly connected component of the non-pausing nodes.
+     */
+    public List<List<String>> getNonPausingLoops() {
+        return m_nonPausingLoops;
+    }
+
+    /**
+     * Gets whether this flow is proven to have no non-pausing loops, so the runner needn't check for them
+     */
+    public boolean isLoopSafe() {
+        return m_nonPausingLoops.isEmpty();
+    }
+
+    /**
+     * Gets whether the given node is on a cycle which doesn't include a pausing rule set
+     * @param nodeUuid the node UUID
+     * @return true if it's in one of the non-pausing loops
+     */
+    public boolean isInNonPausingLoop(String nodeUuid) {
+        return m_nonPausingLoopNodes.contains(nodeUuid);
+    }
+
+    /**
+     * Metadata about a single node
+     */
+    public static class NodeInfo {
+
+        protected String m_uuid;
+
+        protected boolean m_canReachPause;
+
+        protected boolean m_inNonPausingLoop;
+
+        protected Set<String> m_references = new LinkedHashSet<>();
+
+        protected Set<String> m_topLevelReferences;
+
+        protected boolean m_constantTests = true;
+
+        protected Set<String> m_subflowUuids = new LinkedHashSet<>();
+
+        public NodeInfo(String uuid) {
+            m_uuid = uuid;
+        }
+
+        protected void freeze() {
+            Set<String> topLevels = new LinkedHashSet<>();
+            for (String reference : m_references) {
+                int dot = reference.indexOf('.');
+                topLevels.add(dot < 0 ? reference : reference.substring(0, dot));
+            }
+            m_references = Collections.unmodifiableSet(m_references);
+            m_topLevelReferences = Collections.unmodifiableSet(topLevels);
+            m_subflowUuids = Collections.unmodifiableSet(m_subflowUuids);
+        }
+
+        public String getUuid() {
+            return m_uuid;
+        }
+
+        /**
+         * Gets whether a pause (a wait or a subflow) can be reached from this node, including the node itself
+         */
+        public boolean canReachPause() {
+            return m_canReachPause;
+        }
+
+        /**
+         * Gets whether this node is on a cycle which doesn't include a pausing rule set
+         */
+        public boolean isInNonPausingLoop() {
+            return m_inNonPausingLoop;
+        }
+
+        /**
+         * Gets all variables referenced by templates in this node, e.g. contact.name, flow.age.category
+         */
+        public Set<String> getReferences() {
+            return m_references;
+        }
+
+        /**
+         * Gets the top-level context variables referenced by templates in this node, e.g. contact, flow
+         */
+        public Set<String> getTopLevelReferences() {
+            return m_topLevelReferences;
+        }
+
+        /**
+         * Gets whether templates in this node reference the given top-level context variable
+         * @param variable the variable, e.g. "contact"
+         * @return true if it's referenced
+         */
+        public boolean references(String variable) {
+            return m_topLevelReferences.contains(variable);
+        }
+
+        /**
+         * Gets whether none of the tests of this node contain expressions. Always true for action sets.
+         */
+        public boolean hasConstantTests() {
+            return m_constantTests;
+        }
+
+        /**
+         * Gets the UUIDs of the flows which can be entered as subflows from this node
+         */
+        public Set<String> getSubflowUuids() {
+            return m_subflowUuids;
+        }
+
+        /**
+         * @see Object#toString()
+         */
+        @Override
+        public String toString() {
+            return "NodeInfo{uuid=\"" + m_uuid + "\", canReachPause=" + m_canReachPause + ", references=" + m_references + "}";
+        }
+    }
+}
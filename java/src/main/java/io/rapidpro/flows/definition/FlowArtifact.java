@@ -0,0 +1,438 @@
+package io.rapidpro.flows.definition;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import io.rapidpro.flows.utils.JsonUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * A compiled file of flow definitions which can be opened without parsing any flows. Flows are compiled to minimal
+ * JSON, i.e. only the fields the runner reads, and indexed by UUID. Opening an artifact maps the file and reads the
+ * index, and each flow is then parsed the first time it's needed.
+ *
+ * The file layout is a header (magic, format version, flow count, index offset), the flow definitions and then the
+ * index of UUID, checksum, offset and length for each flow.
+ */
+public class FlowArtifact implements Closeable {
+
+    /**
+     * Marks the start of an artifact file ("RPFA")
+     */
+    public static final int MAGIC = 0x52504641;
+
+    /**
+     * The version of the artifact file format, which is incremented whenever it changes
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    protected static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+
+    // the flow definition keys which are kept when compiling
+    protected static final Set<String> FLOW_KEYS = new HashSet<>(Arrays.asList("version", "flow_type", "base_language", "entry", "metadata", "action_sets", "rule_sets"));
+
+    // the flow metadata keys which are kept when compiling
+    protected static final Set<String> METADATA_KEYS = new HashSet<>(Arrays.asList("uuid", "name", "revision"));
+
+    // the node keys which are only used by editors
+    protected static final Set<String> EDITOR_KEYS = new HashSet<>(Arrays.asList("x", "y"));
+
+    protected RandomAccessFile m_file;
+
+    protected MappedByteBuffer m_buffer;
+
+    protected Map<String, Entry> m_index;
+
+    protected ConcurrentMap<String, Flow> m_loaded = new ConcurrentHashMap<>();
+
+    /**
+     * The location of a compiled flow in the file
+     */
+    protected static class Entry {
+
+        protected int m_checksum;
+
+        protected long m_offset;
+
+        protected int m_length;
+
+        protected Entry(int checksum, long offset, int length) {
+            m_checksum = checksum;
+            m_offset = offset;
+            m_length = length;
+        }
+    }
+
+    protected FlowArtifact(RandomAccessFile file, MappedByteBuffer buffer, Map<String, Entry> index) {
+        m_file = file;
+        m_buffer = buffer;
+        m_index = index;
+    }
+
+    /**
+     * Opens an artifact file. No flows are parsed until they are requested.
+     * @param file the file
+     * @return the artifact
+     */
+    public static FlowArtifact open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new FlowParseException("Invalid flow artifact size: " + channel.size());
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt(0) != MAGIC) {
+                throw new FlowParseException("Not a flow artifact: " + file);
+            }
+            int formatVersion = buffer.getInt(4);
+            if (formatVersion != FORMAT_VERSION) {
+                throw new FlowParseException("Unsupported flow artifact version: " + formatVersion);
+            }
+            int count = buffer.getInt(8);
+            long indexOffset = buffer.getLong(12);
+
+            ByteBuffer indexBuffer = buffer.duplicate();
+            indexBuffer.position((int) indexOffset);
+
+            Map<String, Entry> index = new LinkedHashMap<>(count * 2);
+            for (int f = 0; f < count; f++) {
+                byte[] uuid = new byte[indexBuffer.getShort() & 0xFFFF];
+                indexBuffer.get(uuid);
+                int checksum = indexBuffer.getInt();
+                long offset = indexBuffer.getLong();
+                int length = indexBuffer.getInt();
+                index.put(new String(uuid, StandardCharsets.UTF_8), new Entry(checksum, offset, length));
+            }
+
+            return new FlowArtifact(raf, buffer, index);
+        }
+        catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Compiles all the flows in a RapidPro export file to an artifact file, reading them one at a time. The artifact
+     * file is only replaced if every flow compiles.
+     * @param export the reader of the export JSON
+     * @param file the artifact file to create
+     * @return the number of flows compiled
+     */
+    public static int compileExport(Reader export, File file) throws IOException {
+        JsonReader json = new JsonReader(export);
+        json.setLenient(true);
+        JsonParser parser = new JsonParser();
+
+        try (Writer writer = new Writer(file)) {
+            json.beginObject();
+            while (json.hasNext()) {
+                if (json.nextName().equals("flows") && json.peek() == JsonToken.BEGIN_ARRAY) {
+                    json.beginArray();
+                    while (json.hasNext()) {
+                        writer.add(parser.parse(json).getAsJsonObject());
+                    }
+                    json.endArray();
+                } else {
+                    json.skipValue();
+                }
+            }
+            json.endObject();
+            writer.commit();
+            return writer.getCount();
+        }
+        catch (IllegalStateException | JsonParseException e) {
+            throw new FlowParseException("Unable to read flow export JSON", e);
+        }
+    }
+
+    /**
+     * Gets the UUIDs of all the flows in this artifact
+     */
+    public Set<String> getFlowUuids() {
+        return Collections.unmodifiableSet(m_index.keySet());
+    }
+
+    /**
+     * Gets a flow, parsing it if this is the first time it has been requested
+     * @param uuid the flow UUID
+     * @return the flow or null if this artifact doesn't contain it
+     */
+    public Flow getFlow(String uuid) {
+        Flow flow = m_loaded.get(uuid);
+        if (flow != null) {
+            return flow;
+        }
+
+        Entry entry = m_index.get(uuid);
+        if (entry == null) {
+            return null;
+        }
+
+        byte[] bytes = new byte[entry.m_length];
+        ByteBuffer buffer = m_buffer.duplicate();
+        buffer.position((int) entry.m_offset);
+        buffer.get(bytes);
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        if ((int) crc.getValue() != entry.m_checksum) {
+            throw new FlowParseException("Corrupt flow artifact entry for flow " + uuid);
+        }
+
+        flow = Flow.fromJson(new String(bytes, StandardCharsets.UTF_8));
+        Flow existing = m_loaded.putIfAbsent(uuid, flow);
+        return existing != null ? existing : flow;
+    }
+
+    /**
+     * Gets a map view of this artifact which parses flows as they're looked up, suitable for passing to a runner. Flows
+     * put in the map are kept in addition to those in the artifact.
+     * @return the map of UUIDs to flows
+     */
+    public Map<String, Flow> asMap() {
+        return new FlowMap();
+    }
+
+    /**
+     * Gets the number of flows which have been parsed so far
+     */
+    public int getLoadedCount() {
+        return m_loaded.size();
+    }
+
+    /**
+     * @see Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+        m_file.close();
+    }
+
+    /**
+     * Reduces a flow definition to the fields the runner reads
+     * @param definition the flow definition
+     * @return the reduced definition
+     */
+    protected static JsonObject minimize(JsonObject definition) {
+        JsonObject minimal = new JsonObject();
+        for (Map.Entry<String, JsonElement> entry : definition.entrySet()) {
+            String key = entry.getKey();
+            if (!FLOW_KEYS.contains(key)) {
+                continue;
+            }
+
+            JsonElement value = entry.getValue();
+            if (key.equals("metadata") && value.isJsonObject()) {
+                JsonObject metadata = new JsonObject();
+                for (Map.Entry<String, JsonElement> item : value.getAsJsonObject().entrySet()) {
+                    if (METADATA_KEYS.contains(item.getKey())) {
+                        metadata.add(item.getKey(), item.getValue());
+                    }
+                }
+                value = metadata;
+            } else if ((key.equals("action_sets") || key.equals("rule_sets")) && value.isJsonArray()) {
+                // copy the nodes rather than strip them in place as the definition belongs to the caller
+                JsonArray nodes = new JsonArray();
+                for (JsonElement node : value.getAsJsonArray()) {
+                    if (node.isJsonObject()) {
+                        JsonObject copy = new JsonObject();
+                        for (Map.Entry<String, JsonElement> item : node.getAsJsonObject().entrySet()) {
+                            if (!EDITOR_KEYS.contains(item.getKey())) {
+                                copy.add(item.getKey(), item.getValue());
+                            }
+                        }
+                        node = copy;
+                    }
+                    nodes.add(node);
+                }
+                value = nodes;
+            }
+            minimal.add(key, value);
+        }
+        return minimal;
+    }
+
+    /**
+     * Writes an artifact file, one flow at a time. Flows are written to a temporary file next to the artifact file,
+     * which only replaces it when the writer is committed, so a failure part way through leaves any existing artifact
+     * as it was.
+     */
+    public static class Writer implements Closeable {
+
+        protected File m_target;
+
+        protected File m_temp;
+
+        protected RandomAccessFile m_file;
+
+        protected FileChannel m_channel;
+
+        protected long m_position = HEADER_SIZE;
+
+        protected ByteArrayOutputStream m_index = new ByteArrayOutputStream();
+
+        protected Set<String> m_uuids = new HashSet<>();
+
+        protected boolean m_committed;
+
+        /**
+         * Creates a new writer which will replace the given file when it's committed
+         * @param file the artifact file
+         */
+        public Writer(File file) throws IOException {
+            m_target = file;
+            m_temp = new File(file.getPath() + ".tmp");
+            m_file = new RandomAccessFile(m_temp, "rw");
+            m_file.setLength(0);
+            m_channel = m_file.getChannel();
+        }
+
+        /**
+         * Compiles and adds a flow definition. The definition is checked by parsing it before it's written.
+         * @param definition the flow definition JSON
+         */
+        public void add(String definition) throws IOException {
+            add(JsonUtils.getGson().fromJson(definition, JsonObject.class));
+        }
+
+        /**
+         * Compiles and adds a flow definition. The definition is checked by parsing it before it's written.
+         * @param definition the flow definition JSON
+         */
+        public void add(JsonObject definition) throws IOException {
+            String json = JsonUtils.getGson().toJson(minimize(definition));
+            Flow flow = Flow.fromJson(json);
+
+            if (!m_uuids.add(flow.getUuid())) {
+                throw new FlowParseException("Duplicate flow UUID: " + flow.getUuid());
+            }
+
+            byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length);
+
+            writeFully(ByteBuffer.wrap(bytes), m_position);
+
+            DataOutputStream index = new DataOutputStream(m_index);
+            byte[] uuid = flow.getUuid().getBytes(StandardCharsets.UTF_8);
+            index.writeShort(uuid.length);
+            index.write(uuid);
+            index.writeInt((int) crc.getValue());
+            index.writeLong(m_position);
+            index.writeInt(bytes.length);
+
+            m_position += bytes.length;
+        }
+
+        /**
+         * Gets the number of flows added so far
+         */
+        public int getCount() {
+            return m_uuids.size();
+        }
+
+        /**
+         * Writes the index and header, forces them to disk and then atomically replaces the artifact file
+         */
+        public void commit() throws IOException {
+            if (m_committed || m_file == null) {
+                throw new IllegalStateException("Writer is already committed or closed");
+            }
+
+            writeFully(ByteBuffer.wrap(m_index.toByteArray()), m_position);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(m_uuids.size()).putLong(m_position);
+            header.flip();
+            writeFully(header, 0);
+
+            m_channel.force(true);
+            m_file.close();
+            m_file = null;
+
+            Files.move(m_temp.toPath(), m_target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            m_committed = true;
+        }
+
+        /**
+         * Closes the writer, discarding everything written if it hasn't been committed
+         */
+        @Override
+        public void close() throws IOException {
+            if (m_file != null) {
+                m_file.close();
+                m_file = null;
+            }
+            if (!m_committed) {
+                Files.deleteIfExists(m_temp.toPath());
+            }
+        }
+
+        protected void writeFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += m_channel.write(buffer, position);
+            }
+        }
+    }
+
+    /**
+     * Map view which loads flows from the artifact on demand
+     */
+    protected class FlowMap extends AbstractMap<String, Flow> {
+
+        protected ConcurrentMap<String, Flow> m_added = new ConcurrentHashMap<>();
+
+        @Override
+        public Flow get(Object key) {
+            Flow flow = m_added.get(key);
+            if (flow == null && key instanceof String) {
+                flow = getFlow((String) key);
+            }
+            return flow;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return m_added.containsKey(key) || m_index.containsKey(key);
+        }
+
+        @Override
+        public Flow put(String key, Flow value) {
+            Flow previous = get(key);
+            m_added.put(key, value);
+            return previous;
+        }
+
+        /**
+         * Iterating loads every flow so should be avoided
+         */
+        @Override
+        public Set<Map.Entry<String, Flow>> entrySet() {
+            Map<String, Flow> all = new LinkedHashMap<>();
+            for (String uuid : m_index.keySet()) {
+                all.put(uuid, getFlow(uuid));
+            }
+            all.putAll(m_added);
+            return Collections.unmodifiableMap(all).entrySet();
+        }
+    }
+}
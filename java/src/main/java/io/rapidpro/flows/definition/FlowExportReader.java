@@ -0,0 +1,116 @@
+package io.rapidpro.flows.definition;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the flows in a RapidPro export file one at a time, so that a large export never has to be held in memory. Other
+ * parts of the export, e.g. triggers and campaigns, are skipped.
+ */
+public class FlowExportReader implements Iterator<Flow>, Closeable {
+
+    protected JsonReader m_json;
+
+    protected boolean m_started;
+
+    protected boolean m_inFlows;
+
+    protected boolean m_finished;
+
+    /**
+     * Creates a new export reader
+     * @param reader the reader of the export JSON
+     */
+    public FlowExportReader(Reader reader) {
+        m_json = new JsonReader(reader);
+        m_json.setLenient(true);
+    }
+
+    /**
+     * @see Iterator#hasNext()
+     */
+    @Override
+    public boolean hasNext() {
+        try {
+            return advance();
+        } catch (IOException | IllegalStateException e) {
+            throw new FlowParseException("Unable to read flow export JSON", e);
+        }
+    }
+
+    /**
+     * @see Iterator#next()
+     */
+    @Override
+    public Flow next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        try {
+            return Flow.fromJson(m_json);
+        } catch (IOException | IllegalStateException | JsonParseException e) {
+            throw new FlowParseException("Unable to read flow JSON", e);
+        }
+    }
+
+    /**
+     * @see Iterator#remove()
+     */
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @see Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+        m_json.close();
+    }
+
+    /**
+     * Moves the reader to the start of the next flow object
+     * @return true if there is another flow
+     */
+    protected boolean advance() throws IOException {
+        if (m_finished) {
+            return false;
+        }
+
+        if (!m_started) {
+            m_json.beginObject();
+            m_started = true;
+        }
+
+        while (true) {
+            if (m_inFlows) {
+                if (m_json.hasNext()) {
+                    return true;
+                }
+                m_json.endArray();
+                m_inFlows = false;
+            }
+
+            if (!m_json.hasNext()) {
+                m_json.endObject();
+                m_finished = true;
+                return false;
+            }
+
+            if (m_json.nextName().equals("flows") && m_json.peek() == JsonToken.BEGIN_ARRAY) {
+                m_json.beginArray();
+                m_inFlows = true;
+            } else {
+                m_json.skipValue();
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package io.rapidpro.flows.definition;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Exception thrown when one or more flows in a bulk import are invalid
+ */
+public class FlowImportException extends FlowParseException {
+
+    protected List<String> m_problems;
+
+    public FlowImportException(List<String> problems) {
+        super("Unable to import flows:\n" + StringUtils.join(problems, "\n"));
+
+        m_problems = Collections.unmodifiableList(problems);
+    }
+
+    /**
+     * Gets a description of each invalid definition
+     */
+    public List<String> getProblems() {
+        return m_problems;
+    }
+}
@@ -0,0 +1,189 @@
+package io.rapidpro.flows.definition;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Imports many flow definitions at once, e.g. all the flows of an org, by parsing them in parallel on a fork-join pool
+ * and then checking the subflow references between them. An importer which creates its own pool should be closed when
+ * it's no longer needed.
+ */
+public class FlowImporter implements Closeable {
+
+    /**
+     * The number of definitions below which a task parses them itself rather than splitting further
+     */
+    protected static final int SPLIT_THRESHOLD = 8;
+
+    protected ForkJoinPool m_pool;
+
+    protected boolean m_ownsPool;
+
+    /**
+     * Creates an importer with its own pool with as many threads as there are processors, which is shut down when the
+     * importer is closed
+     */
+    public FlowImporter() {
+        this(new ForkJoinPool());
+        m_ownsPool = true;
+    }
+
+    /**
+     * Creates an importer which uses the given pool, which remains the caller's to shut down
+     * @param pool the fork-join pool
+     */
+    public FlowImporter(ForkJoinPool pool) {
+        m_pool = pool;
+    }
+
+    /**
+     * Imports the given flow definitions
+     * @param definitions the flow definition JSON strings
+     * @return the flow set
+     * @throws FlowImportException if any definition couldn't be parsed or two flows have the same UUID
+     */
+    public FlowSet importFlows(List<String> definitions) throws FlowImportException {
+        return doImport(definitions);
+    }
+
+    /**
+     * Imports the given already parsed flow definitions
+     * @param definitions the flow definition JSON objects
+     * @return the flow set
+     * @throws FlowImportException if any definition couldn't be parsed or two flows have the same UUID
+     */
+    public FlowSet importDefinitions(List<JsonObject> definitions) throws FlowImportException {
+        return doImport(definitions);
+    }
+
+    /**
+     * Imports the given definitions, which are each either a JSON string or object
+     */
+    protected FlowSet doImport(List<?> definitions) throws FlowImportException {
+        Flow[] flows = new Flow[definitions.size()];
+        String[] errors = new String[definitions.size()];
+
+        m_pool.invoke(new ParseTask(definitions, flows, errors, 0, definitions.size()));
+
+        List<String> problems = new ArrayList<>();
+        Map<String, Flow> flowsByUuid = new LinkedHashMap<>();
+        for (int f = 0; f < flows.length; f++) {
+            if (errors[f] != null) {
+                problems.add("Definition " + f + ": " + errors[f]);
+            } else if (flowsByUuid.put(flows[f].getUuid(), flows[f]) != null) {
+                problems.add("Definition " + f + ": duplicate flow UUID " + flows[f].getUuid());
+            }
+        }
+
+        if (!problems.isEmpty()) {
+            throw new FlowImportException(problems);
+        }
+
+        return new FlowSet(flowsByUuid);
+    }
+
+    /**
+     * Imports the flows in a RapidPro export file. Definitions are read one at a time as JSON trees and then turned into
+     * flows in parallel.
+     * @param export the reader of the export JSON
+     * @return the flow set
+     * @throws FlowImportException if any definition couldn't be parsed or two flows have the same UUID
+     */
+    public FlowSet importExport(Reader export) throws IOException, FlowImportException {
+        JsonReader json = new JsonReader(export);
+        json.setLenient(true);
+        JsonParser parser = new JsonParser();
+        List<JsonObject> definitions = new ArrayList<>();
+
+        try {
+            json.beginObject();
+            while (json.hasNext()) {
+                if (json.nextName().equals("flows") && json.peek() == JsonToken.BEGIN_ARRAY) {
+                    json.beginArray();
+                    while (json.hasNext()) {
+                        definitions.add(parser.parse(json).getAsJsonObject());
+                    }
+                    json.endArray();
+                } else {
+                    json.skipValue();
+                }
+            }
+            json.endObject();
+        }
+        catch (IllegalStateException | JsonParseException e) {
+            throw new FlowParseException("Unable to read flow export JSON", e);
+        }
+
+        return importDefinitions(definitions);
+    }
+
+    /**
+     * Shuts down the pool if this importer created it
+     */
+    @Override
+    public void close() {
+        if (m_ownsPool) {
+            m_pool.shutdown();
+        }
+    }
+
+    public ForkJoinPool getPool() {
+        return m_pool;
+    }
+
+    /**
+     * Parses a range of definitions, splitting it in half until it's small enough
+     */
+    protected static class ParseTask extends RecursiveAction {
+
+        protected List<?> m_definitions;
+
+        protected Flow[] m_flows;
+
+        protected String[] m_errors;
+
+        protected int m_from;
+
+        protected int m_to;
+
+        public ParseTask(List<?> definitions, Flow[] flows, String[] errors, int from, int to) {
+            m_definitions = definitions;
+            m_flows = flows;
+            m_errors = errors;
+            m_from = from;
+            m_to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (m_to - m_from <= SPLIT_THRESHOLD) {
+                for (int f = m_from; f < m_to; f++) {
+                    try {
+                        Object definition = m_definitions.get(f);
+                        if (definition instanceof JsonObject) {
+                            m_flows[f] = Flow.fromJson((JsonObject) definition);
+                        } else {
+                            m_flows[f] = Flow.fromJson((String) definition);
+                        }
+                    } catch (RuntimeException e) {
+                        m_errors[f] = String.valueOf(e.getMessage());
+                    }
+                }
+            } else {
+                int middle = (m_from + m_to) >>> 1;
+                invokeAll(new ParseTask(m_definitions, m_flows, m_errors, m_from, middle),
+                          new ParseTask(m_definitions, m_flows, m_errors, middle, m_to));
+            }
+        }
+    }
+}
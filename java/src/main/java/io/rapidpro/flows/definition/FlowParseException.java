@@ -8,4 +8,8 @@ public class FlowParseException extends RuntimeException {
     public FlowParseException(String message) {
         super(message);
     }
+
+    public FlowParseException(String message, Throwable cause) {
+        super(message, cause);
+    }
 }
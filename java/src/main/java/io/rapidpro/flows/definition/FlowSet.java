@@ -0,0 +1,145 @@
+package io.rapidpro.flows.definition;
+
+import java.util.*;
+
+/**
+ * An immutable set of flows, e.g. from a {@link FlowImporter} to pass to a {@link io.rapidpro.flows.RunnerBuilder},
+ * along with the subflow dependencies between them. Dependencies which aren't in the set and cycles of flows which
+ * enter each other as subflows are reported rather than rejected, as both only matter if a run actually reaches them.
+ */
+public class FlowSet {
+
+    protected Map<String, Flow> m_flows;
+
+    protected Map<String, Set<String>> m_missingSubflows = new LinkedHashMap<>();
+
+    protected List<List<String>> m_subflowCycles = new ArrayList<>();
+
+    /**
+     * Creates a flow set
+     * @param flows the flows by UUID
+     */
+    public FlowSet(Map<String, Flow> flows) {
+        m_flows = Collections.unmodifiableMap(new LinkedHashMap<>(flows));
+
+        for (Flow flow : m_flows.values()) {
+            for (String subflowUuid : flow.getAnalysis().getSubflowUuids()) {
+                if (!m_flows.containsKey(subflowUuid)) {
+                    Set<String> missing = m_missingSubflows.get(flow.getUuid());
+                    if (missing == null) {
+                        missing = new LinkedHashSet<>();
+                        m_missingSubflows.put(flow.getUuid(), missing);
+                    }
+                    missing.add(subflowUuid);
+                }
+            }
+        }
+
+        findSubflowCycles();
+
+        m_missingSubflows = Collections.unmodifiableMap(m_missingSubflows);
+        m_subflowCycles = Collections.unmodifiableList(m_subflowCycles);
+    }
+
+    /**
+     * Finds the strongly connected components of the subflow graph (Tarjan's algorithm), each of which is a group of
+     * flows that can enter each other as subflows
+     */
+    protected void findSubflowCycles() {
+        Map<String, int[]> indexes = new HashMap<>(); // flow uuid -> {index, lowlink}
+        Deque<String> stack = new ArrayDeque<>();
+        Set<String> onStack = new HashSet<>();
+
+        for (String flowUuid : m_flows.keySet()) {
+            if (!indexes.containsKey(flowUuid)) {
+                strongConnect(flowUuid, indexes, stack, onStack);
+            }
+        }
+    }
+
+    protected void strongConnect(String flowUuid, Map<String, int[]> indexes, Deque<String> stack, Set<String> onStack) {
+        int[] flowIndex = new int[] { indexes.size(), indexes.size() };
+        indexes.put(flowUuid, flowIndex);
+        stack.push(flowUuid);
+        onStack.add(flowUuid);
+
+        Set<String> subflowUuids = m_flows.get(flowUuid).getAnalysis().getSubflowUuids();
+        for (String subflowUuid : subflowUuids) {
+            if (!m_flows.containsKey(subflowUuid)) {
+                continue;
+            }
+            int[] subflowIndex = indexes.get(subflowUuid);
+            if (subflowIndex == null) {
+                strongConnect(subflowUuid, indexes, stack, onStack);
+                flowIndex[1] = Math.min(flowIndex[1], indexes.get(subflowUuid)[1]);
+            } else if (onStack.contains(subflowUuid)) {
+                flowIndex[1] = Math.min(flowIndex[1], subflowIndex[0]);
+            }
+        }
+
+        // this flow is the root of a component so pop it off the stack
+        if (flowIndex[1] == flowIndex[0]) {
+            List<String> component = new ArrayList<>();
+            String member;
+            do {
+                member = stack.pop();
+                onStack.remove(member);
+                component.add(member);
+            } while (!member.equals(flowUuid));
+
+            if (component.size() > 1 || subflowUuids.contains(flowUuid)) {
+                Collections.reverse(component);
+                m_subflowCycles.add(Collections.unmodifiableList(component));
+            }
+        }
+    }
+
+    /**
+     * Gets all the flows
+     */
+    public List<Flow> getFlows() {
+        return Collections.unmodifiableList(new ArrayList<>(m_flows.values()));
+    }
+
+    /**
+     * Gets a flow by its UUID
+     * @param uuid the flow UUID
+     * @return the flow or null if it's not in this set
+     */
+    public Flow getFlow(String uuid) {
+        return m_flows.get(uuid);
+    }
+
+    /**
+     * Gets the flows by their UUIDs
+     */
+    public Map<String, Flow> getFlowsByUuid() {
+        return m_flows;
+    }
+
+    public int size() {
+        return m_flows.size();
+    }
+
+    /**
+     * Gets the UUIDs of subflows which aren't in this set, by the UUID of the flow which references them
+     */
+    public Map<String, Set<String>> getMissingSubflows() {
+        return m_missingSubflows;
+    }
+
+    /**
+     * Gets the groups of flows which can enter each other as subflows, where runs are only stopped by the maximum
+     * subflow depth
+     */
+    public List<List<String>> getSubflowCycles() {
+        return m_subflowCycles;
+    }
+
+    /**
+     * Gets whether every subflow referenced by a flow in this set is also in this set
+     */
+    public boolean isComplete() {
+        return m_missingSubflows.isEmpty();
+    }
+}
@@ -0,0 +1,58 @@
+package io.rapidpro.flows.definition;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The languages of a flow, each given an ordinal as it's seen whilst the flow is parsed, so that translations can be
+ * looked up by ordinal. Once the flow is parsed, languages are only looked up and never added.
+ */
+public class LanguageDictionary {
+
+    protected Map<String, Integer> m_ordinals = new HashMap<>();
+
+    protected List<String> m_languages = new ArrayList<>();
+
+    /**
+     * Gets the ordinal of the given language, assigning one if it hasn't been seen before
+     * @param language the language code
+     * @return the ordinal
+     */
+    public int register(String language) {
+        Integer ordinal = m_ordinals.get(language);
+        if (ordinal == null) {
+            ordinal = m_languages.size();
+            m_languages.add(language);
+            m_ordinals.put(language, ordinal);
+        }
+        return ordinal;
+    }
+
+    /**
+     * Gets the ordinal of the given language without registering it
+     * @param language the language code
+     * @return the ordinal or -1 if the language isn't in this dictionary
+     */
+    public int getOrdinal(String language) {
+        Integer ordinal = language != null ? m_ordinals.get(language) : null;
+        return ordinal != null ? ordinal : -1;
+    }
+
+    /**
+     * Gets the language with the given ordinal
+     * @param ordinal the ordinal
+     * @return the language code
+     */
+    public String getLanguage(int ordinal) {
+        return m_languages.get(ordinal);
+    }
+
+    /**
+     * Gets the number of languages
+     */
+    public int size() {
+        return m_languages.size();
+    }
+}
@@ -0,0 +1,102 @@
+package io.rapidpro.flows.definition;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An ordered list of preferred languages, resolved once against a flow's language dictionary so that any number of
+ * that flow's texts can then be localized by ordinal without allocating. Languages which aren't in the dictionary have
+ * ordinal -1 and never match.
+ */
+public class Localization {
+
+    protected LanguageDictionary m_dictionary;
+
+    protected String[] m_languages;
+
+    protected String[] m_preferred;
+
+    protected int[] m_ordinals;
+
+    /**
+     * Creates a new localization which isn't resolved against any flow
+     * @param languages the languages in order of preference, where null or empty languages are ignored
+     */
+    public Localization(String... languages) {
+        this(null, languages);
+    }
+
+    /**
+     * Creates a new localization
+     * @param dictionary the language dictionary to resolve ordinals in, or null
+     * @param languages the languages in order of preference, where null or empty languages are ignored
+     */
+    public Localization(LanguageDictionary dictionary, String[] languages) {
+        m_dictionary = dictionary;
+        m_languages = languages;
+
+        List<String> preferred = new ArrayList<>(languages.length);
+        for (String language : languages) {
+            if (StringUtils.isNotEmpty(language) && !preferred.contains(language)) {
+                preferred.add(language);
+            }
+        }
+
+        m_preferred = preferred.toArray(new String[preferred.size()]);
+        m_ordinals = new int[m_preferred.length];
+        for (int o = 0; o < m_ordinals.length; o++) {
+            m_ordinals[o] = dictionary != null ? dictionary.getOrdinal(m_preferred[o]) : -1;
+        }
+    }
+
+    /**
+     * Checks whether this localization was created from the given run languages and dictionary, so that callers can
+     * cheaply check if a cached localization is still valid
+     * @param dictionary the language dictionary of the active flow
+     * @param contactLanguage the contact language
+     * @param orgLanguage the org primary language
+     * @param baseLanguage the flow base language
+     * @return true if this localization is for those languages
+     */
+    public boolean isFor(LanguageDictionary dictionary, String contactLanguage, String orgLanguage, String baseLanguage) {
+        return m_dictionary == dictionary && isFor(contactLanguage, orgLanguage, baseLanguage);
+    }
+
+    /**
+     * Checks whether this localization was created from the given run languages
+     * @param contactLanguage the contact language
+     * @param orgLanguage the org primary language
+     * @param baseLanguage the flow base language
+     * @return true if this localization is for those languages
+     */
+    public boolean isFor(String contactLanguage, String orgLanguage, String baseLanguage) {
+        return m_languages.length == 3
+                && StringUtils.equals(m_languages[0], contactLanguage)
+                && StringUtils.equals(m_languages[1], orgLanguage)
+                && StringUtils.equals(m_languages[2], baseLanguage);
+    }
+
+    /**
+     * Gets the language dictionary which ordinals were resolved in
+     * @return the dictionary or null
+     */
+    public LanguageDictionary getDictionary() {
+        return m_dictionary;
+    }
+
+    /**
+     * Gets the preferred languages in order of preference, without empty or repeated languages
+     */
+    public String[] getLanguages() {
+        return m_preferred;
+    }
+
+    /**
+     * Gets the ordinals of the preferred languages in order of preference, where -1 is a language not in the dictionary
+     */
+    public int[] getOrdinals() {
+        return m_ordinals;
+    }
+}
@@ -19,6 +19,8 @@ public class Rule extends Flow.Element implements Flow.ConnectionStart {
 
     protected Flow.Node m_destination;
 
+    protected int m_index = -1;
+
     /**
      * Creates a rule from the given JSON object
      * @param obj the JSON object
@@ -29,7 +31,7 @@ public class Rule extends Flow.Element implements Flow.ConnectionStart {
         Rule rule = new Rule();
         rule.m_uuid = obj.get("uuid").getAsString();
         rule.m_test = Test.fromJson(obj.get("test").getAsJsonObject(), context);
-        rule.m_category = TranslatableText.fromJson(obj.get("category"));
+        rule.m_category = TranslatableText.fromJson(obj.get("category"), context);
 
         String destinationUuid = JsonUtils.getAsString(obj, "destination");
         if (StringUtils.isNotEmpty(destinationUuid)) {
@@ -58,6 +60,14 @@ public class Rule extends Flow.Element implements Flow.ConnectionStart {
         return m_category;
     }
 
+    /**
+     * Gets the position of this rule in its rule set
+     * @return the index or -1 if this rule isn't part of a rule set
+     */
+    public int getIndex() {
+        return m_index;
+    }
+
     @Override
     public Flow.Node getDestination() {
         return m_destination;
@@ -12,13 +12,10 @@ import io.rapidpro.flows.runner.Runner;
 import io.rapidpro.flows.runner.Step;
 import io.rapidpro.flows.utils.JsonUtils;
 import io.rapidpro.flows.utils.Jsonizable;
-import org.apache.commons.lang3.tuple.ImmutablePair;
-import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -53,6 +50,14 @@ public class RuleSet extends Flow.Node {
 
     protected String m_operand;
 
+    protected String m_valueKey;
+
+    protected int m_valueOrdinal = -1;
+
+    protected String m_webhook;
+
+    protected String m_webhookAction;
+
     protected Map<String, Object> m_config;
 
     protected List<Rule> m_rules = new ArrayList<>();
@@ -86,11 +91,16 @@ public class RuleSet extends Flow.Node {
         set.m_uuid = obj.get("uuid").getAsString();
         set.m_rulesetType = Type.valueOf(obj.get("ruleset_type").getAsString().toUpperCase());
         set.m_label = obj.get("label").getAsString();
+        set.m_valueKey = set.m_label.toLowerCase().replaceAll("[^a-z0-9]+", "_");
         set.m_operand = obj.get("operand").getAsString();
+        set.m_webhook = JsonUtils.getAsString(obj, "webhook");
+        set.m_webhookAction = JsonUtils.getAsString(obj, "webhook_action");
         set.m_config = JsonUtils.getGson().fromJson(obj.get("config"), Map.class);
 
         for (JsonElement ruleElem : obj.get("rules").getAsJsonArray()) {
-            set.m_rules.add(Rule.fromJson(ruleElem.getAsJsonObject(), context));
+            Rule rule = Rule.fromJson(ruleElem.getAsJsonObject(), context);
+            rule.m_index = set.m_rules.size();
+            set.m_rules.add(rule);
         }
         return set;
     }
@@ -108,16 +118,25 @@ public class RuleSet extends Flow.Node {
 
         EvaluationContext context = run.buildContext(runner, input);
 
-        Pair<Rule, Test.Result> match = findMatchingRule(runner, run, context);
-        if (match == null) {
-            return null;
+        String operand = evaluateOperand(runner, context);
+
+        // find the first rule that matches
+        Rule rule = null;
+        Test.Result testResult = null;
+        for (Rule candidate : m_rules) {
+            testResult = candidate.matches(runner, run, context, operand);
+            if (testResult.isMatched()) {
+                rule = candidate;
+                break;
+            }
         }
 
-        Rule rule = match.getLeft();
-        Test.Result testResult = match.getRight();
+        if (rule == null) {
+            return null;
+        }
 
         // get category in the flow base language
-        String category = rule.getCategory().getLocalized(Collections.singletonList(run.getActiveFlow().getBaseLanguage()), "");
+        String category = rule.getCategory().getLocalized(run.getActiveFlow().getBaseLocalization(), "");
 
         String valueAsStr = Conversions.toString(testResult.getValue(), context);
 
@@ -130,13 +149,12 @@ public class RuleSet extends Flow.Node {
     }
 
     /**
-     * Runs through the rules to find the first one that matches
+     * Evaluates the operand which rules will be tested against
      * @param runner the flow runner
-     * @param run the current run state
      * @param context the evaluation context
-     * @return the matching rule and the test result
+     * @return the evaluated operand
      */
-    protected Pair<Rule, Test.Result> findMatchingRule(Runner runner, RunState run, EvaluationContext context) {
+    protected String evaluateOperand(Runner runner, EvaluationContext context) {
         String operand;
 
         // for form fields, construct operand as field expression
@@ -148,15 +166,7 @@ public class RuleSet extends Flow.Node {
             operand = m_operand;
         }
 
-        operand = runner.substituteVariables(operand, context).getOutput();
-
-        for (Rule rule : m_rules) {
-            Test.Result result = rule.matches(runner, run, context, operand);
-            if (result.isMatched()) {
-                return new ImmutablePair<>(rule, result);
-            }
-        }
-        return null;
+        return runner.substituteVariables(operand, context).getOutput();
     }
 
     public Type getRuleSetType() {
@@ -167,10 +177,40 @@ public class RuleSet extends Flow.Node {
         return m_label;
     }
 
+    /**
+     * Gets the key of the flow value which this rule set saves its result as, e.g. "Favorite Color" becomes
+     * "favorite_color"
+     */
+    public String getValueKey() {
+        return m_valueKey;
+    }
+
+    /**
+     * Gets the position of this rule set's value key in its flow's value keys
+     * @return the ordinal or -1 if this rule set isn't part of a flow
+     */
+    public int getValueOrdinal() {
+        return m_valueOrdinal;
+    }
+
     public String getOperand() {
         return m_operand;
     }
 
+    /**
+     * Gets the URL template of the webhook if this is a webhook rule set
+     */
+    public String getWebhook() {
+        return m_webhook;
+    }
+
+    /**
+     * Gets the HTTP method of the webhook, e.g. GET or POST
+     */
+    public String getWebhookAction() {
+        return m_webhookAction != null ? m_webhookAction : "POST";
+    }
+
     public List<Rule> getRules() {
         return m_rules;
     }
@@ -228,9 +268,9 @@ public class RuleSet extends Flow.Node {
             Flow flow = context.getFlow(flowUuid);
             return new Result(
                     (Rule) flow.getElementByUuid(obj.get("uuid").getAsString()),
-                    JsonUtils.getAsString(obj, "value"),
-                    JsonUtils.getAsString(obj, "category"),
-                    JsonUtils.getAsString(obj, "text"),
+                    flow.intern(JsonUtils.getAsString(obj, "value")),
+                    flow.intern(JsonUtils.getAsString(obj, "category")),
+                    flow.intern(JsonUtils.getAsString(obj, "text")),
                     JsonUtils.getAsString(obj, "media"),
                     flow
             );
@@ -10,27 +10,68 @@ import com.google.gson.stream.JsonToken;
 import com.google.gson.stream.JsonWriter;
 import io.rapidpro.flows.runner.RunState;
 import io.rapidpro.flows.utils.Jsonizable;
-import org.apache.commons.lang3.StringUtils;
 
 import java.io.IOException;
 import java.util.*;
 
 /**
- * Text that may be a single untranslated value or a translation map
+ * Text that may be a single untranslated value or a translation map. Translations are held in a pair of arrays sized to
+ * the translations, of language ordinals in the flow's language dictionary and of texts, rather than a map, as flows
+ * contain a lot of these.
  */
 @JsonAdapter(TranslatableText.JsonAdapter.class)
 public class TranslatableText implements Jsonizable {
 
+    protected static final int[] NO_ORDINALS = new int[0];
+
+    protected static final String[] NO_TRANSLATIONS = new String[0];
+
     protected String m_untranslated;
 
-    protected Map<String, String> m_translations;
+    /**
+     * The dictionary of the languages of the translations, or null if this text is untranslated
+     */
+    protected LanguageDictionary m_dictionary;
+
+    /**
+     * The language ordinals of the translations, or null if this text is untranslated
+     */
+    protected int[] m_ordinals;
+
+    /**
+     * The translations in the same order as their language ordinals, or null if this text is untranslated
+     */
+    protected String[] m_texts;
 
     public TranslatableText(String untranslated) {
         m_untranslated = untranslated;
     }
 
+    /**
+     * Constructs a translatable text which isn't part of a flow, so has its own language dictionary
+     * @param translations the map of languages to translations
+     */
     public TranslatableText(Map<String, String> translations) {
-        m_translations = translations;
+        this(translations, new LanguageDictionary());
+    }
+
+    /**
+     * Constructs a translatable text whose languages are registered in the given dictionary
+     * @param translations the map of languages to translations
+     * @param dictionary the language dictionary of the flow
+     */
+    public TranslatableText(Map<String, String> translations, LanguageDictionary dictionary) {
+        m_dictionary = dictionary;
+
+        m_ordinals = translations.isEmpty() ? NO_ORDINALS : new int[translations.size()];
+        m_texts = translations.isEmpty() ? NO_TRANSLATIONS : new String[translations.size()];
+
+        int t = 0;
+        for (Map.Entry<String, String> entry : translations.entrySet()) {
+            m_ordinals[t] = dictionary.register(entry.getKey());
+            m_texts[t] = entry.getValue();
+            t++;
+        }
     }
 
     /**
@@ -38,13 +79,32 @@ public class TranslatableText implements Jsonizable {
      * @param pairs alternating language name and translation, e.g. "eng", "Hello", "fra", "Bonjour"
      */
     public TranslatableText(String... pairs) {
-        m_translations = new HashMap<>();
+        this(toMap(pairs));
+    }
+
+    protected static Map<String, String> toMap(String... pairs) {
+        Map<String, String> translations = new HashMap<>();
         for (int p = 0; p < pairs.length; p += 2) {
-            this.m_translations.put(pairs[p], pairs[p + 1]);
+            translations.put(pairs[p], pairs[p + 1]);
         }
+        return translations;
     }
 
     public static TranslatableText fromJson(JsonElement elem) throws FlowParseException {
+        return fromJson(elem, new LanguageDictionary());
+    }
+
+    /**
+     * Creates a translatable text from JSON whilst parsing a flow
+     * @param elem the JSON element
+     * @param context the deserialization context of the flow, whose language dictionary is used
+     * @return the translatable text
+     */
+    public static TranslatableText fromJson(JsonElement elem, Flow.DeserializationContext context) throws FlowParseException {
+        return fromJson(elem, context.getLanguageDictionary());
+    }
+
+    protected static TranslatableText fromJson(JsonElement elem, LanguageDictionary dictionary) throws FlowParseException {
         if (elem.isJsonObject()) {
             JsonObject translationSet = elem.getAsJsonObject();
 
@@ -54,7 +114,7 @@ public class TranslatableText implements Jsonizable {
                     translations.put(prop.getKey(), prop.getValue().getAsString());
                 }
             }
-            return new TranslatableText(translations);
+            return new TranslatableText(translations, dictionary);
         }
         else if (elem.isJsonPrimitive()) {
             return new TranslatableText(elem.getAsString());
@@ -70,8 +130,8 @@ public class TranslatableText implements Jsonizable {
             return new JsonPrimitive(m_untranslated);
         } else {
             JsonObject obj = new JsonObject();
-            for (Map.Entry<String, String> entry : m_translations.entrySet()) {
-                obj.addProperty(entry.getKey(), entry.getValue());
+            for (int t = 0; t < m_texts.length; t++) {
+                obj.addProperty(m_dictionary.getLanguage(m_ordinals[t]), m_texts[t]);
             }
             return obj;
         }
@@ -97,38 +157,92 @@ public class TranslatableText implements Jsonizable {
      * @return the localized text
      */
     public String getLocalized(RunState run, String defaultText) {
-        List<String> preferredLanguages = new ArrayList<>();
-
-        if (StringUtils.isNotEmpty(run.getContact().getLanguage())) {
-            preferredLanguages.add(run.getContact().getLanguage());
-        }
-        preferredLanguages.add(run.getOrg().getPrimaryLanguage());
-        preferredLanguages.add(run.getActiveFlow().getBaseLanguage());
-
-        return getLocalized(preferredLanguages, defaultText);
+        return getLocalized(run.getLocalization(), defaultText);
     }
 
     public String getLocalized(List<String> preferredLangs, String defaultText) {
-        if (StringUtils.isEmpty(m_untranslated) && (m_translations == null || m_translations.isEmpty())) {
-            return defaultText;
-        }
+        return getLocalized(new Localization(preferredLangs.toArray(new String[preferredLangs.size()])), defaultText);
+    }
 
+    /**
+     * Gets the localized text for the given resolved language preferences
+     * @param localization the language preferences
+     * @param defaultText the default to return if there's no suitable translation
+     * @return the localized text
+     */
+    public String getLocalized(Localization localization, String defaultText) {
         if (m_untranslated != null) {
-            return m_untranslated;
+            return m_untranslated.isEmpty() ? defaultText : m_untranslated;
         }
 
-        for (String lang : preferredLangs) {
-            String localized = m_translations.get(lang);
-            if (localized != null) {
-                return localized;
+        if (m_texts != null) {
+            if (localization.getDictionary() == m_dictionary) {
+                for (int ordinal : localization.getOrdinals()) {
+                    String text = getTranslation(ordinal);
+                    if (text != null) {
+                        return text;
+                    }
+                }
+            } else {
+                // localization wasn't resolved against our dictionary so look up its languages in ours
+                for (String language : localization.getLanguages()) {
+                    String text = getTranslation(m_dictionary.getOrdinal(language));
+                    if (text != null) {
+                        return text;
+                    }
+                }
             }
         }
 
         return defaultText;
     }
 
+    /**
+     * Gets the translation for the given language ordinal
+     * @param ordinal the ordinal in our dictionary, or -1 for an unknown language
+     * @return the translation or null if there isn't one
+     */
+    protected String getTranslation(int ordinal) {
+        if (ordinal >= 0) {
+            for (int t = 0; t < m_ordinals.length; t++) {
+                if (m_ordinals[t] == ordinal) {
+                    return m_texts[t];
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replaces this text's strings with their canonical instances in the given flow, adding them if they're new
+     * @param flow the flow which this text belongs to
+     */
+    protected void canonicalizeIn(Flow flow) {
+        m_untranslated = flow.canonicalize(m_untranslated);
+        if (m_texts != null) {
+            for (int t = 0; t < m_texts.length; t++) {
+                m_texts[t] = flow.canonicalize(m_texts[t]);
+            }
+        }
+    }
+
+    /**
+     * Gets the translations as a map of language to text
+     * @return the translations or null if this text is untranslated
+     */
+    public Map<String, String> getTranslations() {
+        if (m_texts == null) {
+            return null;
+        }
+        Map<String, String> translations = new HashMap<>();
+        for (int t = 0; t < m_texts.length; t++) {
+            translations.put(m_dictionary.getLanguage(m_ordinals[t]), m_texts[t]);
+        }
+        return translations;
+    }
+
     public Set<String> getLanguages() {
-        return m_translations != null ? m_translations.keySet() : Collections.<String>emptySet();
+        return m_texts != null ? getTranslations().keySet() : Collections.<String>emptySet();
     }
 
     /**
@@ -141,9 +255,9 @@ public class TranslatableText implements Jsonizable {
                 out.value(text.m_untranslated);
             } else {
                 out.beginObject();
-                for (Map.Entry<String, String> entry : text.m_translations.entrySet()) {
-                    out.name(entry.getKey());
-                    out.value(entry.getValue());
+                for (int t = 0; t < text.m_texts.length; t++) {
+                    out.name(text.m_dictionary.getLanguage(text.m_ordinals[t]));
+                    out.value(text.m_texts[t]);
                 }
                 out.endObject();
             }
@@ -172,7 +286,7 @@ public class TranslatableText implements Jsonizable {
         if (m_untranslated != null) {
             return m_untranslated;
         } else {
-            return m_translations.toString();
+            return getTranslations().toString();
         }
     }
 
@@ -188,7 +302,10 @@ public class TranslatableText implements Jsonizable {
 
         if (m_untranslated != null ? !m_untranslated.equals(that.m_untranslated) : that.m_untranslated != null)
             return false;
-        return !(m_translations != null ? !m_translations.equals(that.m_translations) : that.m_translations != null);
+
+        // texts can have different dictionaries so compare by language
+        Map<String, String> translations = getTranslations();
+        return translations != null ? translations.equals(that.getTranslations()) : that.m_texts == null;
     }
 
     /**
@@ -197,7 +314,7 @@ public class TranslatableText implements Jsonizable {
     @Override
     public int hashCode() {
         int result = m_untranslated != null ? m_untranslated.hashCode() : 0;
-        result = 31 * result + (m_translations != null ? m_translations.hashCode() : 0);
+        result = 31 * result + (m_texts != null ? getTranslations().hashCode() : 0);
         return result;
     }
 }
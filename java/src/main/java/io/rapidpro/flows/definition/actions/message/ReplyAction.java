@@ -27,7 +27,7 @@ public class ReplyAction extends MessageAction {
      */
     public static ReplyAction fromJson(JsonElement elm, Flow.DeserializationContext context) throws FlowParseException {
         JsonObject obj = elm.getAsJsonObject();
-        return new ReplyAction(TranslatableText.fromJson(obj.get("msg")));
+        return new ReplyAction(TranslatableText.fromJson(obj.get("msg"), context));
     }
 
     @Override
@@ -40,7 +40,7 @@ public class SendAction extends MessageAction {
     public static SendAction fromJson(JsonElement elm, Flow.DeserializationContext context) throws FlowParseException {
         JsonObject obj = elm.getAsJsonObject();
         return new SendAction(
-                TranslatableText.fromJson(obj.get("msg")),
+                TranslatableText.fromJson(obj.get("msg"), context),
                 JsonUtils.fromJsonArray(obj.get("contacts").getAsJsonArray(), context, ContactRef.class),
                 JsonUtils.fromJsonArray(obj.get("groups").getAsJsonArray(), context, GroupRef.class),
                 JsonUtils.fromJsonArray(obj.get("variables").getAsJsonArray(), context, VariableRef.class)
@@ -31,7 +31,7 @@ public class InGroupTest extends Test {
         if (inGroup) {
             return new Result(true, m_group.getName());
         } else {
-            return new Result(false, null);
+            return Result.NO_MATCH;
         }
     }
 
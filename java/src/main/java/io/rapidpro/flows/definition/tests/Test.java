@@ -95,6 +95,15 @@ public abstract class Test implements Jsonizable {
         return tests;
     }
 
+    /**
+     * Checks whether the given template is constant, i.e. contains no expressions and so will always evaluate to itself
+     * @param template the template, e.g. "32" or "@contact.age"
+     * @return true if template is constant
+     */
+    public static boolean isConstantTemplate(String template) {
+        return template.indexOf('@') < 0;
+    }
+
     /**
      * Evaluates this test
      * @param runner the flow runner
@@ -109,7 +118,7 @@ public abstract class Test implements Jsonizable {
      * Holds the result of a test evaluation (matched + the value matched)
      */
     public static class Result {
-        public static Result NO_MATCH = new Result(false, null);
+        public static final Result NO_MATCH = new Result(false, null);
 
         protected boolean m_matched;
 
@@ -2,9 +2,11 @@ package io.rapidpro.flows.definition.tests.date;
 
 import io.rapidpro.expressions.EvaluatedTemplate;
 import io.rapidpro.expressions.EvaluationContext;
-import io.rapidpro.expressions.evaluator.Conversions;
+import io.rapidpro.expressions.dates.DateStyle;
 import io.rapidpro.flows.runner.Runner;
+import io.rapidpro.flows.utils.FlowUtils;
 import org.threeten.bp.LocalDate;
+import org.threeten.bp.ZoneId;
 
 /**
  * Base class for date tests which compare the input against a value
@@ -13,8 +15,14 @@ public abstract class DateComparisonTest extends DateTest {
 
     protected String m_test;
 
+    // whether the test value depends only on the current date, e.g. "@date.today" or "1/2/2015"
+    protected boolean m_cacheable;
+
+    protected volatile CachedDate m_cached;
+
     public DateComparisonTest(String test) {
         m_test = test;
+        m_cacheable = isDateOnlyTemplate(test);
     }
 
     /**
@@ -22,17 +30,55 @@ public abstract class DateComparisonTest extends DateTest {
      */
     @Override
     protected boolean evaluateForDate(Runner runner, EvaluationContext context, LocalDate input) {
+        LocalDate testVal = evaluateTest(runner, context);
+
+        return testVal != null && doComparison(input, testVal);
+    }
+
+    /**
+     * Evaluates the test value as a date, re-using the previous value if that was for the same day
+     * @param runner the flow runner
+     * @param context the evaluation context
+     * @return the date or null if test doesn't evaluate to a date
+     */
+    protected LocalDate evaluateTest(Runner runner, EvaluationContext context) {
+        if (!m_cacheable) {
+            return parseTest(runner, context);
+        }
+
+        // the date parser fills in missing years etc from the system date, so that is part of our key too
+        LocalDate contextToday = context.getNow().atZone(context.getTimezone()).toLocalDate();
+        LocalDate systemToday = LocalDate.now();
+
+        CachedDate cached = m_cached;
+        if (cached != null && cached.isFor(contextToday, systemToday, context.getTimezone(), context.getDateStyle())) {
+            return cached.m_value;
+        }
+
+        LocalDate value = parseTest(runner, context);
+        m_cached = new CachedDate(contextToday, systemToday, context.getTimezone(), context.getDateStyle(), value);
+        return value;
+    }
+
+    protected LocalDate parseTest(Runner runner, EvaluationContext context) {
         EvaluatedTemplate test = runner.substituteVariables(m_test, context);
 
         if (!test.hasErrors()) {
-            try {
-                LocalDate testVal = Conversions.toDate(test.getOutput(), context);
+            return tryParseDate(test.getOutput(), context);
+        }
+        return null;
+    }
 
-                return doComparison(input, testVal);
+    /**
+     * Checks whether a template only references date variables, and so always evaluates the same on the same day
+     */
+    protected static boolean isDateOnlyTemplate(String template) {
+        for (String reference : FlowUtils.getTemplateReferences(template)) {
+            if (!reference.equals("date") && !reference.startsWith("date.")) {
+                return false;
             }
-            catch (NumberFormatException ignored) {}
         }
-        return false;
+        return true;
     }
 
     protected abstract boolean doComparison(LocalDate input, LocalDate test);
@@ -40,4 +86,35 @@ public abstract class DateComparisonTest extends DateTest {
     public String getTest() {
         return m_test;
     }
+
+    /**
+     * An evaluated test value and the day, timezone and date style it was evaluated for
+     */
+    protected static class CachedDate {
+
+        protected LocalDate m_contextToday;
+
+        protected LocalDate m_systemToday;
+
+        protected ZoneId m_timezone;
+
+        protected DateStyle m_dateStyle;
+
+        protected LocalDate m_value;
+
+        public CachedDate(LocalDate contextToday, LocalDate systemToday, ZoneId timezone, DateStyle dateStyle, LocalDate value) {
+            m_contextToday = contextToday;
+            m_systemToday = systemToday;
+            m_timezone = timezone;
+            m_dateStyle = dateStyle;
+            m_value = value;
+        }
+
+        public boolean isFor(LocalDate contextToday, LocalDate systemToday, ZoneId timezone, DateStyle dateStyle) {
+            return m_contextToday.equals(contextToday)
+                    && m_systemToday.equals(systemToday)
+                    && m_timezone.equals(timezone)
+                    && m_dateStyle == dateStyle;
+        }
+    }
 }
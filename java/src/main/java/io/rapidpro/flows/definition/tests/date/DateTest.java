@@ -1,12 +1,12 @@
 package io.rapidpro.flows.definition.tests.date;
 
 import io.rapidpro.expressions.EvaluationContext;
-import io.rapidpro.expressions.EvaluationError;
-import io.rapidpro.expressions.evaluator.Conversions;
 import io.rapidpro.flows.definition.tests.Test;
 import io.rapidpro.flows.runner.RunState;
 import io.rapidpro.flows.runner.Runner;
 import org.threeten.bp.LocalDate;
+import org.threeten.bp.ZonedDateTime;
+import org.threeten.bp.temporal.Temporal;
 
 /**
  * Base class for tests that are date based
@@ -18,17 +18,32 @@ public abstract class DateTest extends Test {
      */
     @Override
     public Result evaluate(Runner runner, RunState run, EvaluationContext context, String text) {
-        try {
-            LocalDate date = Conversions.toDate(text, context);
-            if (evaluateForDate(runner, context, date)) {
-                return Result.match(date);
-            }
+        LocalDate date = tryParseDate(text, context);
+        if (date != null && evaluateForDate(runner, context, date)) {
+            return Result.match(date);
         }
-        catch (EvaluationError ignored) {}
 
         return Result.NO_MATCH;
     }
 
+    /**
+     * Parses a date from the given text, in the same way as Conversions.toDate but returning null rather than
+     * throwing an exception when there is no date
+     * @param text the text to parse
+     * @param context the evaluation context
+     * @return the date or null
+     */
+    protected static LocalDate tryParseDate(String text, EvaluationContext context) {
+        Temporal temporal = context.getDateParser().auto(text);
+
+        if (temporal instanceof LocalDate) {
+            return (LocalDate) temporal;
+        } else if (temporal instanceof ZonedDateTime) {
+            return ((ZonedDateTime) temporal).withZoneSameInstant(context.getTimezone()).toLocalDate();
+        }
+        return null;
+    }
+
     /**
      * Evaluates the test against the given decimal value. Subclasses must implement this.
      * @param runner the flow runner
@@ -2,7 +2,6 @@ package io.rapidpro.flows.definition.tests.numeric;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import io.rapidpro.expressions.EvaluatedTemplate;
 import io.rapidpro.expressions.EvaluationContext;
 import io.rapidpro.flows.definition.Flow;
 import io.rapidpro.flows.definition.FlowParseException;
@@ -23,9 +22,15 @@ public class BetweenTest extends NumericTest {
 
     protected String m_max;
 
+    protected Operand m_minOperand;
+
+    protected Operand m_maxOperand;
+
     public BetweenTest(String min, String max) {
         m_min = min;
         m_max = max;
+        m_minOperand = new Operand(min);
+        m_maxOperand = new Operand(max);
     }
 
     /**
@@ -41,24 +46,26 @@ public class BetweenTest extends NumericTest {
         return JsonUtils.object("type", TYPE, "min", m_min, "max", m_max);
     }
 
+    /**
+     * @see NumericTest#evaluateForLong(Runner, EvaluationContext, long)
+     */
+    @Override
+    protected boolean evaluateForLong(Runner runner, EvaluationContext context, long value) {
+        if (m_minOperand.isConstantLong() && m_maxOperand.isConstantLong()) {
+            return value >= m_minOperand.getLong() && value <= m_maxOperand.getLong();
+        }
+        return evaluateForDecimal(runner, context, BigDecimal.valueOf(value));
+    }
+
     /**
      * @see NumericTest#evaluateForDecimal(Runner, EvaluationContext, BigDecimal)
      */
     @Override
     protected boolean evaluateForDecimal(Runner runner, EvaluationContext context, BigDecimal decimal) {
-        EvaluatedTemplate min = runner.substituteVariables(m_min, context);
-        EvaluatedTemplate max = runner.substituteVariables(m_max, context);
+        BigDecimal minVal = m_minOperand.evaluate(runner, context);
+        BigDecimal maxVal = m_maxOperand.evaluate(runner, context);
 
-        if (!min.hasErrors() && !max.hasErrors()) {
-            try {
-                BigDecimal minVal = new BigDecimal(min.getOutput().trim());
-                BigDecimal maxVal = new BigDecimal(max.getOutput().trim());
-
-                return decimal.compareTo(minVal) >= 0 && decimal.compareTo(maxVal) <= 0;
-            }
-            catch (NumberFormatException ignored) {}
-        }
-        return false;
+        return minVal != null && maxVal != null && decimal.compareTo(minVal) >= 0 && decimal.compareTo(maxVal) <= 0;
     }
 
     public String getMin() {
@@ -40,4 +40,12 @@ public class LessThanTest extends NumericComparisonTest {
     protected boolean doComparison(BigDecimal input, BigDecimal test) {
         return input.compareTo(test) < 0;
     }
-}
+
+    /**
+     * @see NumericComparisonTest#doComparison(long, long)
+     */
+    @Override
+    protected boolean doComparison(long input, long test) {
+        return input < test;
+    }
+}
\ No newline at end of file
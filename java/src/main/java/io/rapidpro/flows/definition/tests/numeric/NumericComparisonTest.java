@@ -1,6 +1,5 @@
 package io.rapidpro.flows.definition.tests.numeric;
 
-import io.rapidpro.expressions.EvaluatedTemplate;
 import io.rapidpro.expressions.EvaluationContext;
 import io.rapidpro.flows.runner.Runner;
 
@@ -13,8 +12,22 @@ public abstract class NumericComparisonTest extends NumericTest {
 
     protected String m_test;
 
+    protected Operand m_operand;
+
     public NumericComparisonTest(String test) {
         m_test = test;
+        m_operand = new Operand(test);
+    }
+
+    /**
+     * @see NumericTest#evaluateForLong(Runner, EvaluationContext, long)
+     */
+    @Override
+    protected boolean evaluateForLong(Runner runner, EvaluationContext context, long input) {
+        if (m_operand.isConstantLong()) {
+            return doComparison(input, m_operand.getLong());
+        }
+        return evaluateForDecimal(runner, context, BigDecimal.valueOf(input));
     }
 
     /**
@@ -22,20 +35,15 @@ public abstract class NumericComparisonTest extends NumericTest {
      */
     @Override
     protected boolean evaluateForDecimal(Runner runner, EvaluationContext context, BigDecimal input) {
-        EvaluatedTemplate test = runner.substituteVariables(m_test, context);
-
-        if (!test.hasErrors()) {
-            try {
-                BigDecimal testVal = new BigDecimal(test.getOutput().trim());
-                return doComparison(input, testVal);
-            }
-            catch (NumberFormatException ignored) {}
-        }
-        return false;
+        BigDecimal testVal = m_operand.evaluate(runner, context);
+
+        return testVal != null && doComparison(input, testVal);
     }
 
     protected abstract boolean doComparison(BigDecimal input, BigDecimal test);
 
+    protected abstract boolean doComparison(long input, long test);
+
     public String getTest() {
         return m_test;
     }
@@ -1,43 +1,207 @@
 package io.rapidpro.flows.definition.tests.numeric;
 
+import io.rapidpro.expressions.EvaluatedTemplate;
 import io.rapidpro.expressions.EvaluationContext;
 import io.rapidpro.flows.definition.tests.Test;
 import io.rapidpro.flows.runner.RunState;
 import io.rapidpro.flows.runner.Runner;
 
 import java.math.BigDecimal;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Base class for tests that are numerical
  */
 public abstract class NumericTest extends Test {
 
+    /**
+     * Returned by {@link #tryExtractLong(String)} when the text isn't a number which fits in a long
+     */
+    protected static final long NOT_A_LONG = Long.MIN_VALUE;
+
+    /**
+     * Plain integers with up to this many digits are guaranteed to fit in a long
+     */
+    protected static final int MAX_LONG_DIGITS = 18;
+
     /**
      * A very flexible decimal parser
      * @param text the text to be parsed
      * @return the decimal value
+     * @throws NumberFormatException if the text can't be parsed
      */
     protected static BigDecimal extractDecimal(String text) {
-        // common substitutions
-        String originalText = text;
-        text = text.replace('l', '1').replace('o', '0').replace('O', '0');
-
-        try {
-            return new BigDecimal(text);
-        }
-        catch (NumberFormatException ex) {
-            // we only try this hard if we haven 't already substituted characters
-            if (originalText.equals(text)) {
-                // does this start with a number? just use that part if so
-                Matcher matcher = Pattern.compile("^(\\d+).*$").matcher(text);
-                if (matcher.matches()) {
-                    return new BigDecimal(matcher.group(1));
-                }
+        BigDecimal decimal = tryExtractDecimal(text);
+        if (decimal == null) {
+            throw new NumberFormatException("Can't extract decimal from " + text);
+        }
+        return decimal;
+    }
+
+    /**
+     * A very flexible decimal parser which doesn't throw exceptions. Common letter substitutions are made (l for 1, o
+     * for 0) and if that isn't needed, any leading digits are used when the whole text isn't a number.
+     * @param text the text to be parsed
+     * @return the decimal value or null if the text can't be parsed
+     */
+    protected static BigDecimal tryExtractDecimal(String text) {
+        String substituted = substituteDigits(text);
+
+        if (isDecimal(substituted)) {
+            return new BigDecimal(substituted);
+        }
+
+        // we only try this hard if we haven't already substituted characters
+        if (substituted.equals(text)) {
+            int digits = countLeadingDigits(text);
+            if (digits > 0) {
+                return new BigDecimal(text.substring(0, digits));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Equivalent to {@link #tryExtractDecimal(String)} for text which is a plain integer small enough to be held in
+     * a long, which avoids creating a decimal at all
+     * @param text the text to be parsed
+     * @return the long value or NOT_A_LONG if the text isn't a number or needs to be parsed as a decimal
+     */
+    protected static long tryExtractLong(String text) {
+        String substituted = substituteDigits(text);
+        int length = substituted.length();
+
+        if (isPlainInteger(substituted, length)) {
+            return parseLong(substituted, length);
+        }
+        if (isDecimal(substituted)) {
+            return NOT_A_LONG;
+        }
+
+        if (substituted.equals(text)) {
+            int digits = countLeadingDigits(text);
+            if (digits > 0 && digits <= MAX_LONG_DIGITS) {
+                return parseLong(text, digits);
+            }
+        }
+        return NOT_A_LONG;
+    }
+
+    /**
+     * Makes the common letter for digit substitutions, returning the same instance if there are none to make
+     */
+    protected static String substituteDigits(String text) {
+        return text.replace('l', '1').replace('o', '0').replace('O', '0');
+    }
+
+    /**
+     * Checks whether the text is a plain integer (optional sign and ASCII digits) short enough to fit in a long
+     */
+    protected static boolean isPlainInteger(String text, int length) {
+        int start = (length > 0 && (text.charAt(0) == '-' || text.charAt(0) == '+')) ? 1 : 0;
+        int digits = length - start;
+        if (digits < 1 || digits > MAX_LONG_DIGITS) {
+            return false;
+        }
+        for (int c = start; c < length; c++) {
+            char ch = text.charAt(c);
+            if (ch < '0' || ch > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses the first length characters of text which have already been checked by isPlainInteger
+     */
+    protected static long parseLong(String text, int length) {
+        boolean negative = text.charAt(0) == '-';
+        int start = (negative || text.charAt(0) == '+') ? 1 : 0;
+        long value = 0;
+        for (int c = start; c < length; c++) {
+            value = value * 10 + (text.charAt(c) - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Checks whether the text would be accepted by the BigDecimal string constructor, i.e. an optional sign, digits
+     * with an optional decimal point, and an optional exponent
+     */
+    protected static boolean isDecimal(String text) {
+        int length = text.length();
+        int c = 0;
+
+        if (c < length && (text.charAt(c) == '-' || text.charAt(c) == '+')) {
+            c++;
+        }
+
+        int digits = 0;
+        boolean point = false;
+        for (; c < length; c++) {
+            char ch = text.charAt(c);
+            if (Character.isDigit(ch)) {
+                digits++;
+            } else if (ch == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+
+        if (digits == 0) {
+            return false;
+        }
+        if (c == length) {
+            return true;
+        }
+
+        // what remains must be an exponent
+        char ch = text.charAt(c++);
+        if (ch != 'e' && ch != 'E') {
+            return false;
+        }
+        if (c < length && (text.charAt(c) == '-' || text.charAt(c) == '+')) {
+            c++;
+        }
+
+        // limit exponent digits so that it always fits in an int
+        int expDigits = length - c;
+        if (expDigits < 1 || expDigits > 9) {
+            return false;
+        }
+        for (; c < length; c++) {
+            if (!Character.isDigit(text.charAt(c))) {
+                return false;
             }
-            throw ex;
         }
+        return true;
+    }
+
+    /**
+     * Counts the ASCII digits at the start of the text, returning zero if the remainder contains a line terminator
+     * (which is how the ^(\d+).*$ pattern previously used here behaves)
+     */
+    protected static int countLeadingDigits(String text) {
+        int length = text.length();
+        int digits = 0;
+        while (digits < length && text.charAt(digits) >= '0' && text.charAt(digits) <= '9') {
+            digits++;
+        }
+        for (int c = digits; c < length; c++) {
+            char ch = text.charAt(c);
+            if (ch == '\n' || ch == '\r' || ch == '\u0085' || ch == '\u2028' || ch == '\u2029') {
+                return 0;
+            }
+        }
+        return digits;
+    }
+
+    /**
+     * Checks whether the character is a regex whitespace character (\s)
+     */
+    protected static boolean isWhitespace(char ch) {
+        return ch == ' ' || ch == '\t' || ch == '\n' || ch == '\u000b' || ch == '\f' || ch == '\r';
     }
 
     /**
@@ -45,22 +209,61 @@ public abstract class NumericTest extends Test {
      */
     @Override
     public Result evaluate(Runner runner, RunState run, EvaluationContext context, String text) {
-        text = text.replace(",", ""); // so that 1,234 is parsed as 1234
+        int length = text.length();
+        int pos = 0;
 
         // test every word in the message against our test
-        for (String word : Pattern.compile("\\s+").split(text)) {
-            try {
-                BigDecimal decimal = extractDecimal(word);
-                if (evaluateForDecimal(runner, context, decimal)) {
+        while (pos < length) {
+            while (pos < length && isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+            int start = pos;
+            boolean hasCommas = false;
+            while (pos < length && !isWhitespace(text.charAt(pos))) {
+                if (text.charAt(pos) == ',') {
+                    hasCommas = true;
+                }
+                pos++;
+            }
+            if (start == pos) {
+                break;
+            }
+
+            String word = text.substring(start, pos);
+            if (hasCommas) {
+                word = word.replace(",", ""); // so that 1,234 is parsed as 1234
+                if (word.isEmpty()) {
+                    continue;
+                }
+            }
+
+            long asLong = tryExtractLong(word);
+            if (asLong != NOT_A_LONG) {
+                if (evaluateForLong(runner, context, asLong)) {
+                    return Test.Result.match(BigDecimal.valueOf(asLong));
+                }
+            } else {
+                BigDecimal decimal = tryExtractDecimal(word);
+                if (decimal != null && evaluateForDecimal(runner, context, decimal)) {
                     return Test.Result.match(decimal);
                 }
             }
-            catch (NumberFormatException ignored) {}
         }
 
         return Result.NO_MATCH;
     }
 
+    /**
+     * Evaluates the test against the given integer value. Subclasses can override this to avoid creating a decimal.
+     * @param runner the flow runner
+     * @param context the evaluation context
+     * @param value the integer value
+     * @return the test result
+     */
+    protected boolean evaluateForLong(Runner runner, EvaluationContext context, long value) {
+        return evaluateForDecimal(runner, context, BigDecimal.valueOf(value));
+    }
+
     /**
      * Evaluates the test against the given decimal value. Subclasses must implement this.
      * @param runner the flow runner
@@ -69,4 +272,68 @@ public abstract class NumericTest extends Test {
      * @return the test result
      */
     protected abstract boolean evaluateForDecimal(Runner runner, EvaluationContext context, BigDecimal decimal);
+
+    /**
+     * Holds a numeric test argument (e.g. a comparison value) which is an expression or, if it's constant, its value
+     * which is parsed once
+     */
+    protected static class Operand {
+
+        protected String m_template;
+
+        protected boolean m_constant;
+
+        protected BigDecimal m_decimal;
+
+        protected long m_long = NOT_A_LONG;
+
+        public Operand(String template) {
+            m_template = template;
+            m_constant = Test.isConstantTemplate(template);
+
+            if (m_constant) {
+                String trimmed = template.trim();
+                if (isPlainInteger(trimmed, trimmed.length())) {
+                    m_long = parseLong(trimmed, trimmed.length());
+                    m_decimal = BigDecimal.valueOf(m_long);
+                } else if (isDecimal(trimmed)) {
+                    m_decimal = new BigDecimal(trimmed);
+                }
+            }
+        }
+
+        /**
+         * Evaluates this operand as a decimal
+         * @return the decimal value or null if it isn't a valid number
+         */
+        public BigDecimal evaluate(Runner runner, EvaluationContext context) {
+            if (m_constant) {
+                return m_decimal;
+            }
+
+            EvaluatedTemplate evaluated = runner.substituteVariables(m_template, context);
+            if (!evaluated.hasErrors()) {
+                String output = evaluated.getOutput().trim();
+                if (isDecimal(output)) {
+                    return new BigDecimal(output);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Gets whether this is a constant integer which can be compared as a long
+         */
+        public boolean isConstantLong() {
+            return m_long != NOT_A_LONG;
+        }
+
+        public long getLong() {
+            return m_long;
+        }
+
+        public String getTemplate() {
+            return m_template;
+        }
+    }
 }
@@ -33,7 +33,7 @@ public class ContainsAnyTest extends ContainsTest {
      */
     public static ContainsAnyTest fromJson(JsonElement elm, Flow.DeserializationContext context) throws FlowParseException {
         JsonObject obj = elm.getAsJsonObject();
-        return new ContainsAnyTest(TranslatableText.fromJson(obj.get("test")));
+        return new ContainsAnyTest(TranslatableText.fromJson(obj.get("test"), context));
     }
 
     @Override
@@ -34,7 +34,7 @@ public class ContainsTest extends TranslatableTest {
      */
     public static ContainsTest fromJson(JsonElement elm, Flow.DeserializationContext context) throws FlowParseException {
         JsonObject obj = elm.getAsJsonObject();
-        return new ContainsTest(TranslatableText.fromJson(obj.get("test")));
+        return new ContainsTest(TranslatableText.fromJson(obj.get("test"), context));
     }
 
     @Override
@@ -34,7 +34,7 @@ public class RegexTest extends TranslatableTest {
      */
     public static RegexTest fromJson(JsonElement elm, Flow.DeserializationContext context) throws FlowParseException {
         JsonObject obj = elm.getAsJsonObject();
-        return new RegexTest(TranslatableText.fromJson(obj.get("test")));
+        return new RegexTest(TranslatableText.fromJson(obj.get("test"), context));
     }
 
     @Override
@@ -27,7 +27,7 @@ public class StartsWithTest extends TranslatableTest {
      */
     public static StartsWithTest fromJson(JsonElement elm, Flow.DeserializationContext context) throws FlowParseException {
         JsonObject obj = elm.getAsJsonObject();
-        return new StartsWithTest(TranslatableText.fromJson(obj.get("test")));
+        return new StartsWithTest(TranslatableText.fromJson(obj.get("test"), context));
     }
 
     @Override
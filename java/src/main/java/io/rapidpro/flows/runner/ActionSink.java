@@ -0,0 +1,19 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.flows.definition.actions.Action;
+
+/**
+ * Receives each action as soon as it's performed, e.g. so that outgoing messages can be queued for sending whilst
+ * the rest of the flow is still being executed. Called on the thread of the runner, so implementations which do slow
+ * work should hand it off.
+ */
+public interface ActionSink {
+
+    /**
+     * Called when an action has been performed
+     * @param run the run state
+     * @param step the step of the action set containing the action
+     * @param action the action that was actually performed, e.g. a reply with its message evaluated
+     */
+    void onActionPerformed(RunState run, Step step, Action action);
+}
@@ -0,0 +1,241 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.flows.definition.Flow;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Diagnostic which records the bytes allocated by the runner on each resume, attributed to the nodes being visited.
+ * Relies on the per-thread allocation counters of the HotSpot ThreadMXBean and records nothing on platforms where
+ * those aren't available.
+ */
+public class AllocationProfiler {
+
+    protected com.sun.management.ThreadMXBean m_threadBean;
+
+    protected Map<String, NodeStats> m_nodeStats = new LinkedHashMap<>();
+
+    protected long m_resumeCount;
+
+    protected long m_resumeBytes;
+
+    public AllocationProfiler() {
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean hotspotBean = (com.sun.management.ThreadMXBean) bean;
+                if (hotspotBean.isThreadAllocatedMemorySupported()) {
+                    if (!hotspotBean.isThreadAllocatedMemoryEnabled()) {
+                        hotspotBean.setThreadAllocatedMemoryEnabled(true);
+                    }
+                    m_threadBean = hotspotBean;
+                }
+            }
+        } catch (LinkageError | UnsupportedOperationException | SecurityException ignored) {
+            // not available on this platform, e.g. Android
+        }
+    }
+
+    /**
+     * Gets whether allocations can be measured on this platform
+     */
+    public boolean isSupported() {
+        return m_threadBean != null;
+    }
+
+    /**
+     * Gets the number of bytes allocated so far by the current thread
+     * @return the allocated bytes or -1 if not supported
+     */
+    public long getAllocatedBytes() {
+        return m_threadBean != null ? m_threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    }
+
+    /**
+     * Records the bytes allocated since the given mark against a visit to a node
+     * @param flow the flow containing the node
+     * @param node the node being visited
+     * @param mark the allocated bytes when the visit began
+     */
+    public void recordNode(Flow flow, Flow.Node node, long mark) {
+        if (m_threadBean == null) {
+            return;
+        }
+
+        long bytes = getAllocatedBytes() - mark;
+
+        synchronized (this) {
+            NodeStats stats = m_nodeStats.get(node.getUuid());
+            if (stats == null) {
+                stats = new NodeStats(flow.getUuid(), node.getUuid());
+                m_nodeStats.put(node.getUuid(), stats);
+            }
+            stats.record(bytes);
+        }
+    }
+
+    /**
+     * Records the bytes allocated since the given mark against a single resume call
+     * @param mark the allocated bytes when the resume began
+     */
+    public void recordResume(long mark) {
+        if (m_threadBean == null) {
+            return;
+        }
+
+        long bytes = getAllocatedBytes() - mark;
+
+        synchronized (this) {
+            m_resumeCount++;
+            m_resumeBytes += bytes;
+        }
+    }
+
+    /**
+     * Gets the allocation statistics for the given node
+     * @param nodeUuid the node UUID
+     * @return the statistics or null if the node hasn't been visited
+     */
+    public synchronized NodeStats getNodeStats(String nodeUuid) {
+        return m_nodeStats.get(nodeUuid);
+    }
+
+    /**
+     * Gets the allocation statistics of all visited nodes, sorted by total bytes allocated (largest first)
+     */
+    public synchronized List<NodeStats> getAllNodeStats() {
+        List<NodeStats> all = new ArrayList<>(m_nodeStats.values());
+        Collections.sort(all, new Comparator<NodeStats>() {
+            @Override
+            public int compare(NodeStats s1, NodeStats s2) {
+                return Long.compare(s2.m_totalBytes, s1.m_totalBytes);
+            }
+        });
+        return all;
+    }
+
+    public synchronized long getResumeCount() {
+        return m_resumeCount;
+    }
+
+    public synchronized long getResumeBytes() {
+        return m_resumeBytes;
+    }
+
+    /**
+     * Gets the mean number of bytes allocated per resume call
+     */
+    public synchronized double getMeanBytesPerResume() {
+        return m_resumeCount > 0 ? (double) m_resumeBytes / m_resumeCount : 0;
+    }
+
+    /**
+     * Clears all recorded statistics
+     */
+    public synchronized void reset() {
+        m_nodeStats.clear();
+        m_resumeCount = 0;
+        m_resumeBytes = 0;
+    }
+
+    /**
+     * Generates a report in the same tabular format as the JMH GC profiler, i.e. a normalized allocation rate in bytes
+     * per operation, where an operation is a resume call or a visit to a node
+     * @return the report
+     */
+    public synchronized String toReport() {
+        List<String[]> rows = new ArrayList<>();
+        rows.add(new String[] {"Benchmark", "Mode", "Cnt", "Score", "Error", "Units"});
+        rows.add(new String[] {"Runner.resume:·gc.alloc.rate.norm", "avgt", String.valueOf(m_resumeCount), formatScore(getMeanBytesPerResume()), "", "B/op"});
+
+        for (NodeStats stats : getAllNodeStats()) {
+            String name = "Runner.visit[" + stats.m_nodeUuid + "]:·gc.alloc.rate.norm";
+            rows.add(new String[] {name, "avgt", String.valueOf(stats.m_visits), formatScore(stats.getMeanBytes()), "", "B/op"});
+        }
+
+        int[] widths = new int[6];
+        for (String[] row : rows) {
+            for (int c = 0; c < row.length; c++) {
+                widths[c] = Math.max(widths[c], row[c].length());
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String[] row : rows) {
+            sb.append(String.format("%-" + widths[0] + "s", row[0]));
+            for (int c = 1; c < row.length; c++) {
+                sb.append("  ").append(String.format("%" + widths[c] + "s", row[c]));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    protected static String formatScore(double score) {
+        return String.format(Locale.US, "%.3f", score);
+    }
+
+    /**
+     * Allocation statistics for a single node
+     */
+    public static class NodeStats {
+
+        protected String m_flowUuid;
+
+        protected String m_nodeUuid;
+
+        protected long m_visits;
+
+        protected long m_totalBytes;
+
+        protected long m_maxBytes;
+
+        public NodeStats(String flowUuid, String nodeUuid) {
+            m_flowUuid = flowUuid;
+            m_nodeUuid = nodeUuid;
+        }
+
+        protected void record(long bytes) {
+            m_visits++;
+            m_totalBytes += bytes;
+            m_maxBytes = Math.max(m_maxBytes, bytes);
+        }
+
+        public String getFlowUuid() {
+            return m_flowUuid;
+        }
+
+        public String getNodeUuid() {
+            return m_nodeUuid;
+        }
+
+        public long getVisits() {
+            return m_visits;
+        }
+
+        public long getTotalBytes() {
+            return m_totalBytes;
+        }
+
+        public long getMaxBytes() {
+            return m_maxBytes;
+        }
+
+        public double getMeanBytes() {
+            return m_visits > 0 ? (double) m_totalBytes / m_visits : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "NodeStats{node=\"" + m_nodeUuid + "\", visits=" + m_visits + ", totalBytes=" + m_totalBytes + "}";
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package io.rapidpro.flows.runner;
+
+import org.threeten.bp.Instant;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A compact columnar file format for exported results. Rows are written in groups and each group is stored column by
+ * column, with text columns dictionary encoded, since categories and values repeat across many runs, and time columns
+ * stored as deltas in milliseconds. Integers are written as variable length quantities.
+ *
+ * The file layout is a header (magic, format version, column names and types), then the row groups, each starting with
+ * its row count, and finally a zero row count.
+ */
+public class ColumnarResults {
+
+    /**
+     * Marks the start of a results file ("RPRC")
+     */
+    public static final int MAGIC = 0x52505243;
+
+    /**
+     * The version of the results file format, which is incremented whenever it changes
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    /**
+     * The default number of rows in each group
+     */
+    public static final int DEFAULT_ROW_GROUP_SIZE = 8192;
+
+    /**
+     * Writes a results file, buffering one row group at a time
+     */
+    public static class Writer implements ResultsExporter.Writer {
+
+        protected DataOutputStream m_out;
+
+        protected int m_rowGroupSize;
+
+        protected ResultsExporter.ColumnType[] m_types;
+
+        protected Object[][] m_rows;
+
+        protected int m_rowCount;
+
+        public Writer(OutputStream out) {
+            this(out, DEFAULT_ROW_GROUP_SIZE);
+        }
+
+        /**
+         * Creates a new writer
+         * @param out the output
+         * @param rowGroupSize the number of rows in each group
+         */
+        public Writer(OutputStream out, int rowGroupSize) {
+            m_out = new DataOutputStream(new BufferedOutputStream(out));
+            m_rowGroupSize = rowGroupSize;
+            m_rows = new Object[rowGroupSize][];
+        }
+
+        /**
+         * @see ResultsExporter.Writer#writeHeader(Map)
+         */
+        @Override
+        public void writeHeader(Map<String, ResultsExporter.ColumnType> columns) throws IOException {
+            m_types = columns.values().toArray(new ResultsExporter.ColumnType[columns.size()]);
+
+            m_out.writeInt(MAGIC);
+            m_out.writeInt(FORMAT_VERSION);
+            writeVarInt(m_out, columns.size());
+            for (Map.Entry<String, ResultsExporter.ColumnType> column : columns.entrySet()) {
+                writeString(m_out, column.getKey());
+                m_out.writeByte(column.getValue().ordinal());
+            }
+        }
+
+        /**
+         * @see ResultsExporter.Writer#writeRow(Object[])
+         */
+        @Override
+        public void writeRow(Object[] row) throws IOException {
+            m_rows[m_rowCount++] = row;
+            if (m_rowCount == m_rowGroupSize) {
+                writeRowGroup();
+            }
+        }
+
+        protected void writeRowGroup() throws IOException {
+            writeVarInt(m_out, m_rowCount);
+
+            for (int c = 0; c < m_types.length; c++) {
+                if (m_types[c] == ResultsExporter.ColumnType.TIME) {
+                    writeTimeColumn(c);
+                } else {
+                    writeTextColumn(c);
+                }
+            }
+
+            Arrays.fill(m_rows, 0, m_rowCount, null);
+            m_rowCount = 0;
+        }
+
+        protected void writeTextColumn(int column) throws IOException {
+            Map<String, Integer> dictionary = new LinkedHashMap<>();
+            int[] indexes = new int[m_rowCount];
+            for (int r = 0; r < m_rowCount; r++) {
+                Object value = m_rows[r][column];
+                if (value != null) {
+                    String text = value.toString();
+                    Integer index = dictionary.get(text);
+                    if (index == null) {
+                        index = dictionary.size() + 1;
+                        dictionary.put(text, index);
+                    }
+                    indexes[r] = index;
+                }
+            }
+
+            writeVarInt(m_out, dictionary.size());
+            for (String text : dictionary.keySet()) {
+                writeString(m_out, text);
+            }
+            for (int index : indexes) {
+                writeVarInt(m_out, index);
+            }
+        }
+
+        protected void writeTimeColumn(int column) throws IOException {
+            byte[] present = new byte[(m_rowCount + 7) / 8];
+            for (int r = 0; r < m_rowCount; r++) {
+                if (m_rows[r][column] != null) {
+                    present[r / 8] |= 1 << (r % 8);
+                }
+            }
+            m_out.write(present);
+
+            long previous = 0;
+            for (int r = 0; r < m_rowCount; r++) {
+                Instant time = (Instant) m_rows[r][column];
+                if (time != null) {
+                    long millis = time.toEpochMilli();
+                    long delta = millis - previous;
+                    writeVarLong(m_out, (delta << 1) ^ (delta >> 63));
+                    previous = millis;
+                }
+            }
+        }
+
+        /**
+         * Writes the last row group and the end marker, and closes the output
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                if (m_rowCount > 0) {
+                    writeRowGroup();
+                }
+                writeVarInt(m_out, 0);
+                m_out.flush();
+            }
+            finally {
+                m_out.close();
+            }
+        }
+    }
+
+    /**
+     * Reads a results file, decoding one row group at a time
+     */
+    public static class Reader implements Iterator<Object[]>, Closeable {
+
+        protected DataInputStream m_in;
+
+        protected Map<String, ResultsExporter.ColumnType> m_columns = new LinkedHashMap<>();
+
+        protected Object[][] m_rows = new Object[0][];
+
+        protected int m_next;
+
+        protected boolean m_finished;
+
+        public Reader(InputStream in) throws IOException {
+            m_in = new DataInputStream(new BufferedInputStream(in));
+
+            if (m_in.readInt() != MAGIC) {
+                throw new IOException("Not a results file");
+            }
+            int formatVersion = m_in.readInt();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported results file version: " + formatVersion);
+            }
+
+            int count = readVarInt(m_in);
+            for (int c = 0; c < count; c++) {
+                String name = readString(m_in);
+                m_columns.put(name, ResultsExporter.ColumnType.values()[m_in.readByte()]);
+            }
+        }
+
+        /**
+         * Gets the column names and types
+         */
+        public Map<String, ResultsExporter.ColumnType> getColumns() {
+            return Collections.unmodifiableMap(m_columns);
+        }
+
+        /**
+         * @see Iterator#hasNext()
+         */
+        @Override
+        public boolean hasNext() {
+            if (m_next < m_rows.length) {
+                return true;
+            }
+            if (m_finished) {
+                return false;
+            }
+            try {
+                readRowGroup();
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to read results file", e);
+            }
+            return m_next < m_rows.length;
+        }
+
+        /**
+         * @see Iterator#next()
+         */
+        @Override
+        public Object[] next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Object[] row = m_rows[m_next];
+            m_rows[m_next++] = null;
+            return row;
+        }
+
+        /**
+         * @see Iterator#remove()
+         */
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        protected void readRowGroup() throws IOException {
+            int rowCount = readVarInt(m_in);
+            if (rowCount == 0) {
+                m_finished = true;
+                m_rows = new Object[0][];
+                m_next = 0;
+                return;
+            }
+
+            Object[][] rows = new Object[rowCount][m_columns.size()];
+            int c = 0;
+            for (ResultsExporter.ColumnType type : m_columns.values()) {
+                if (type == ResultsExporter.ColumnType.TIME) {
+                    readTimeColumn(rows, c);
+                } else {
+                    readTextColumn(rows, c);
+                }
+                c++;
+            }
+            m_rows = rows;
+            m_next = 0;
+        }
+
+        protected void readTextColumn(Object[][] rows, int column) throws IOException {
+            String[] dictionary = new String[readVarInt(m_in)];
+            for (int d = 0; d < dictionary.length; d++) {
+                dictionary[d] = readString(m_in);
+            }
+            for (Object[] row : rows) {
+                int index = readVarInt(m_in);
+                row[column] = index > 0 ? dictionary[index - 1] : null;
+            }
+        }
+
+        protected void readTimeColumn(Object[][] rows, int column) throws IOException {
+            byte[] present = new byte[(rows.length + 7) / 8];
+            m_in.readFully(present);
+
+            long previous = 0;
+            for (int r = 0; r < rows.length; r++) {
+                if ((present[r / 8] & (1 << (r % 8))) != 0) {
+                    long zigzag = readVarLong(m_in);
+                    previous += (zigzag >>> 1) ^ -(zigzag & 1);
+                    rows[r][column] = Instant.ofEpochMilli(previous);
+                }
+            }
+        }
+
+        /**
+         * @see Closeable#close()
+         */
+        @Override
+        public void close() throws IOException {
+            m_in.close();
+        }
+    }
+
+    protected static void writeVarInt(DataOutput out, int value) throws IOException {
+        writeVarLong(out, value & 0xFFFFFFFFL);
+    }
+
+    protected static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    protected static int readVarInt(DataInput in) throws IOException {
+        return (int) readVarLong(in);
+    }
+
+    protected static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    protected static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    protected static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
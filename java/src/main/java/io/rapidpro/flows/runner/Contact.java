@@ -56,7 +56,7 @@ public class Contact implements Jsonizable {
                 JsonUtils.fromJsonArray(obj.get("urns").getAsJsonArray(), null, ContactUrn.class),
                 new LinkedHashSet<>(JsonUtils.fromJsonArray(obj.get("groups").getAsJsonArray(), null, String.class)),
                 JsonUtils.fromJsonObject(obj.get("fields").getAsJsonObject(), null, String.class),
-                JsonUtils.getAsString(obj, "language")
+                JsonUtils.getAsInternedString(obj, "language")
         );
     }
 
@@ -211,4 +211,74 @@ public class Contact implements Jsonizable {
 
         return context;
     }
+
+    /**
+     * Builds the evaluation context for this contact, deferring any items which are expensive to build until they
+     * are resolved
+     * @param run the current run state
+     * @param container the containing evaluation context
+     * @return the context
+     */
+    public Map<String, Object> buildLazyContext(RunState run, final EvaluationContext container) {
+        final Org org = run.getOrg();
+
+        LazyEvaluationContext.LazyMap context = new LazyEvaluationContext.LazyMap();
+        context.putDeferred("*", new LazyEvaluationContext.Deferred() {
+            @Override
+            public Object build() {
+                return getDisplay(org, false);
+            }
+        });
+        context.put("name", m_name);
+        context.putDeferred("first_name", new LazyEvaluationContext.Deferred() {
+            @Override
+            public Object build() {
+                return getFirstName(org);
+            }
+        });
+        context.putDeferred("tel_e164", new LazyEvaluationContext.Deferred() {
+            @Override
+            public Object build() {
+                return getUrnDisplay(org, ContactUrn.Scheme.TEL, true);
+            }
+        });
+        context.putDeferred("groups", new LazyEvaluationContext.Deferred() {
+            @Override
+            public Object build() {
+                return StringUtils.join(m_groups, ",");
+            }
+        });
+        context.put("uuid", m_uuid);
+        context.put("language", m_language);
+
+        // add all URNs
+        for (final ContactUrn.Scheme scheme : ContactUrn.Scheme.values()) {
+            context.putDeferred(scheme.name().toLowerCase(), new LazyEvaluationContext.Deferred() {
+                @Override
+                public Object build() {
+                    return getUrnDisplay(org, scheme, false);
+                }
+            });
+        }
+
+        // add all fields, creating them now as building the regular context would
+        for (Map.Entry<String, String> entry : m_fields.entrySet()) {
+            final String rawValue = entry.getValue();
+            Field field = run.getOrCreateField(entry.getKey());
+
+            if (field != null && field.getValueType().equals(Field.ValueType.DATETIME)) {
+                context.putDeferred(entry.getKey(), new LazyEvaluationContext.Deferred() {
+                    @Override
+                    public Object build() {
+                        ZonedDateTime asDatetime = Conversions.toDateTime(rawValue, container);
+                        return Conversions.toString(asDatetime, container);
+                    }
+                });
+            } else {
+                context.put(entry.getKey(), rawValue);
+            }
+        }
+
+        return context;
+    }
 }
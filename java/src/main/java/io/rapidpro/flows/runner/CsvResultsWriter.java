@@ -0,0 +1,78 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.expressions.utils.ExpressionUtils;
+import org.threeten.bp.Instant;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Writes exported results as CSV (RFC 4180), with times in the same ISO8601 format as serialized run states
+ */
+public class CsvResultsWriter implements ResultsExporter.Writer {
+
+    protected Writer m_out;
+
+    /**
+     * Creates a writer. The output should be buffered as it's written a field at a time.
+     * @param out the output
+     */
+    public CsvResultsWriter(Writer out) {
+        m_out = out;
+    }
+
+    /**
+     * @see ResultsExporter.Writer#writeHeader(Map)
+     */
+    @Override
+    public void writeHeader(Map<String, ResultsExporter.ColumnType> columns) throws IOException {
+        writeRow(columns.keySet().toArray());
+    }
+
+    /**
+     * @see ResultsExporter.Writer#writeRow(Object[])
+     */
+    @Override
+    public void writeRow(Object[] row) throws IOException {
+        for (int c = 0; c < row.length; c++) {
+            if (c > 0) {
+                m_out.write(',');
+            }
+            Object value = row[c];
+            if (value instanceof Instant) {
+                m_out.write(ExpressionUtils.formatJsonDate((Instant) value));
+            } else if (value != null) {
+                writeField(value.toString());
+            }
+        }
+        m_out.write("\r\n");
+    }
+
+    /**
+     * Writes a field, quoting it if it contains a separator, quote or line break
+     */
+    protected void writeField(String field) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < field.length() && !quote; i++) {
+            char ch = field.charAt(i);
+            quote = ch == ',' || ch == '"' || ch == '\r' || ch == '\n';
+        }
+
+        if (quote) {
+            m_out.write('"');
+            m_out.write(field.replace("\"", "\"\""));
+            m_out.write('"');
+        } else {
+            m_out.write(field);
+        }
+    }
+
+    /**
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+        m_out.close();
+    }
+}
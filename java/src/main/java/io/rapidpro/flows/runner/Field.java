@@ -72,8 +72,8 @@ public class Field implements Jsonizable {
     public static Field fromJson(JsonElement elm) {
         JsonObject obj = elm.getAsJsonObject();
         return new Field(
-                obj.get("key").getAsString(),
-                obj.get("label").getAsString(),
+                JsonUtils.getAsInternedString(obj, "key"),
+                JsonUtils.getAsInternedString(obj, "label"),
                 ValueType.fromCode(obj.get("value_type").getAsString())
         );
     }
@@ -0,0 +1,316 @@
+package io.rapidpro.flows.runner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threeten.bp.Clock;
+import org.threeten.bp.Duration;
+import org.threeten.bp.Instant;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Run scheduler which journals its deadlines to a local file, so that pending deadlines survive a restart. Opening a
+ * scheduler replays the journal and rewrites it with only the deadlines which are still pending. Any which passed
+ * whilst the scheduler was down fire on the first advance.
+ *
+ * A deadline is only removed from the journal after the listener has been notified of it, so a crash whilst notifying
+ * means it fires again after the restart, i.e. listeners should be idempotent.
+ *
+ * By default records are handed to the OS as they're appended but not forced to disk, which survives the process
+ * crashing but not the OS crashing or the power failing. To survive those, either enable forcing on every append with
+ * {@link #setForceOnAppend(boolean)}, which costs a disk sync per scheduled deadline, or call {@link #flush()}
+ * periodically to bound what can be lost.
+ *
+ * Each record is laid out as: length (int), CRC32 of the body (int), and then the body: type (byte), timer id (long),
+ * contact UUID and, for scheduled deadlines, flow UUID, node UUID, kind, arrived on and deadline.
+ */
+public class FileRunScheduler extends RunScheduler {
+
+    protected static Logger logger = LoggerFactory.getLogger(FileRunScheduler.class);
+
+    protected static final byte TYPE_SCHEDULE = 1;
+
+    protected static final byte TYPE_REMOVE = 2;
+
+    protected static final int HEADER_SIZE = 8;
+
+    protected static final int MIN_COMPACTION_RECORDS = 1024;
+
+    protected File m_file;
+
+    protected FileChannel m_channel;
+
+    protected Map<Long, Timer> m_firing = new HashMap<>();
+
+    protected int m_records;
+
+    protected boolean m_forceOnAppend;
+
+    /**
+     * Opens a scheduler which uses the system clock and the default tick, recovering any deadlines in the given file
+     * @param file the journal file
+     * @param timeouts the timeouts of flows and rulesets
+     * @param listener the listener notified when deadlines pass
+     */
+    public FileRunScheduler(File file, Timeouts timeouts, Listener listener) throws IOException {
+        this(file, timeouts, listener, Clock.systemUTC(), DEFAULT_TICK);
+    }
+
+    /**
+     * Opens a scheduler, recovering any deadlines in the given file
+     * @param file the journal file
+     * @param timeouts the timeouts of flows and rulesets
+     * @param listener the listener notified when deadlines pass
+     * @param clock the clock which deadlines are compared against
+     * @param tick the resolution of the wheel
+     */
+    public FileRunScheduler(File file, Timeouts timeouts, Listener listener, Clock clock, Duration tick) throws IOException {
+        super(timeouts, listener, clock, tick);
+
+        m_file = file;
+
+        synchronized (this) {
+            recover();
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the pending deadlines
+     */
+    public synchronized void compact() throws IOException {
+        File temp = new File(m_file.getPath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(temp, "rw")) {
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+            for (Timer timer : m_timersByContact.values()) {
+                write(channel, encodeSchedule(timer));
+            }
+            for (Timer timer : m_firing.values()) {
+                write(channel, encodeSchedule(timer));
+            }
+            channel.force(false);
+        }
+
+        if (m_channel != null) {
+            m_channel.close();
+        }
+        Files.move(temp.toPath(), m_file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        m_channel = new RandomAccessFile(m_file, "rw").getChannel();
+        m_channel.position(m_channel.size());
+        m_records = m_timersByContact.size() + m_firing.size();
+    }
+
+    /**
+     * Forces all appended records to be written to disk
+     */
+    public synchronized void flush() throws IOException {
+        if (m_channel != null) {
+            m_channel.force(false);
+        }
+    }
+
+    /**
+     * Stops the ticker thread and closes the journal
+     */
+    @Override
+    public void close() throws IOException {
+        super.close();
+
+        synchronized (this) {
+            if (m_channel != null) {
+                m_channel.force(false);
+                m_channel.close();
+                m_channel = null;
+            }
+        }
+    }
+
+    public File getFile() {
+        return m_file;
+    }
+
+    public boolean isForceOnAppend() {
+        return m_forceOnAppend;
+    }
+
+    /**
+     * Sets whether each record is forced to disk as it's appended, so that deadlines survive an OS crash or power
+     * failure as well as a process crash
+     * @param forceOnAppend true to force every append
+     */
+    public synchronized void setForceOnAppend(boolean forceOnAppend) {
+        m_forceOnAppend = forceOnAppend;
+    }
+
+    @Override
+    protected void onScheduled(Timer timer) {
+        append(encodeSchedule(timer));
+    }
+
+    @Override
+    protected void onRemoved(Timer timer) {
+        append(encodeRemove(timer));
+    }
+
+    @Override
+    protected void onDue(Timer timer) {
+        m_firing.put(timer.m_id, timer);
+    }
+
+    @Override
+    protected void onFired(Timer timer) {
+        m_firing.remove(timer.m_id);
+        append(encodeRemove(timer));
+    }
+
+    /**
+     * Replays the journal onto the wheel and then compacts it
+     */
+    protected void recover() throws IOException {
+        Map<Long, Timer> pending = new LinkedHashMap<>();
+
+        if (m_file.exists()) {
+            ByteBuffer buffer;
+            try (RandomAccessFile in = new RandomAccessFile(m_file, "r")) {
+                FileChannel channel = in.getChannel();
+                buffer = ByteBuffer.allocate((int) in.length());
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, buffer.position()) < 0) {
+                        break;
+                    }
+                }
+            }
+            buffer.flip();
+
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int offset = buffer.position();
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining() || checksum(buffer.array(), buffer.position(), length) != checksum) {
+                    logger.warn("Discarded partially written record at " + offset + " in " + m_file);
+                    break;
+                }
+
+                DataInputStream body = new DataInputStream(new ByteArrayInputStream(buffer.array(), buffer.position(), length));
+                byte type = body.readByte();
+                long id = body.readLong();
+                String contactUuid = body.readUTF();
+
+                if (type == TYPE_SCHEDULE) {
+                    String flowUuid = body.readUTF();
+                    String nodeUuid = body.readUTF();
+                    Kind kind = Kind.values()[body.readByte()];
+                    Instant arrivedOn = Instant.ofEpochSecond(body.readLong(), body.readInt());
+                    Instant time = Instant.ofEpochSecond(body.readLong(), body.readInt());
+                    pending.put(id, new Timer(id, new Deadline(contactUuid, flowUuid, nodeUuid, arrivedOn, kind, time), toTick(time)));
+                } else {
+                    pending.remove(id);
+                }
+
+                m_nextId = Math.max(m_nextId, id + 1);
+                buffer.position(buffer.position() + length);
+            }
+        }
+
+        // a later deadline for the same contact replaces an earlier one
+        for (Timer timer : pending.values()) {
+            Timer previous = m_timersByContact.put(timer.m_deadline.getContactUuid(), timer);
+            if (previous != null) {
+                unlink(previous);
+            }
+            link(timer);
+        }
+
+        compact();
+    }
+
+    /**
+     * Appends a record to the journal, compacting it when most of its records are no longer needed
+     */
+    protected void append(byte[] body) {
+        if (m_channel == null) {
+            throw new IllegalStateException("Scheduler is closed");
+        }
+
+        try {
+            write(m_channel, body);
+            if (m_forceOnAppend) {
+                m_channel.force(false);
+            }
+            m_records++;
+
+            int live = m_timersByContact.size() + m_firing.size();
+            if (m_records > MIN_COMPACTION_RECORDS && m_records > 2 * live) {
+                compact();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected void write(FileChannel channel, byte[] body) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + body.length);
+        record.putInt(body.length);
+        record.putInt(checksum(body, 0, body.length));
+        record.put(body);
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+    }
+
+    protected byte[] encodeSchedule(Timer timer) {
+        Deadline deadline = timer.m_deadline;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(TYPE_SCHEDULE);
+            out.writeLong(timer.m_id);
+            out.writeUTF(deadline.getContactUuid());
+            out.writeUTF(deadline.getFlowUuid());
+            out.writeUTF(deadline.getNodeUuid());
+            out.writeByte(deadline.getKind().ordinal());
+            out.writeLong(deadline.getArrivedOn().getEpochSecond());
+            out.writeInt(deadline.getArrivedOn().getNano());
+            out.writeLong(deadline.getTime().getEpochSecond());
+            out.writeInt(deadline.getTime().getNano());
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected byte[] encodeRemove(Timer timer) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(TYPE_REMOVE);
+            out.writeLong(timer.m_id);
+            out.writeUTF(timer.m_deadline.getContactUuid());
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,266 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.flows.definition.Flow;
+import io.rapidpro.flows.definition.RuleSet;
+
+import java.util.*;
+
+/**
+ * Map of the values saved in one flow level, which keeps values for the flow's own rule sets in an array indexed by
+ * value ordinal rather than in hash entries. Values with keys which the flow doesn't know about, e.g. from a run state
+ * saved against an older version of the flow, are kept in an overflow map. Iteration is in the order of the flow's
+ * rule sets, followed by any overflow values.
+ */
+public class FlowValues extends AbstractMap<String, Value> {
+
+    protected Flow m_flow;
+
+    protected Value[] m_values;
+
+    protected Map<String, Value> m_overflow;
+
+    protected int m_size;
+
+    protected int m_modCount;
+
+    /**
+     * Creates a new empty map for the given flow
+     * @param flow the flow (may be null in which case all values go in the overflow map)
+     */
+    public FlowValues(Flow flow) {
+        m_flow = flow;
+    }
+
+    /**
+     * Creates a new map for the given flow containing the given values
+     * @param flow the flow (may be null)
+     * @param values the values to copy
+     */
+    public FlowValues(Flow flow, Map<String, Value> values) {
+        this(flow);
+        putAll(values);
+    }
+
+    /**
+     * Saves the value of the given rule set, avoiding the key lookup if the rule set belongs to this map's flow
+     * @param ruleSet the rule set
+     * @param value the value
+     * @return the previous value or null
+     */
+    public Value put(RuleSet ruleSet, Value value) {
+        int ordinal = ruleSet.getValueOrdinal();
+        if (value != null && m_flow != null && ordinal >= 0 && ordinal < m_flow.getValueKeys().length && m_flow.getValueKeys()[ordinal] == ruleSet.getValueKey()) {
+            return putAt(ordinal, value);
+        }
+        return put(ruleSet.getValueKey(), value);
+    }
+
+    /**
+     * @see Map#get(Object)
+     */
+    @Override
+    public Value get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int ordinal = ordinal((String) key);
+        if (ordinal >= 0) {
+            return m_values != null ? m_values[ordinal] : null;
+        }
+        return m_overflow != null ? m_overflow.get(key) : null;
+    }
+
+    /**
+     * @see Map#containsKey(Object)
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @see Map#put(Object, Object)
+     */
+    @Override
+    public Value put(String key, Value value) {
+        if (value == null) {
+            return remove(key);
+        }
+        int ordinal = ordinal(key);
+        if (ordinal >= 0) {
+            return putAt(ordinal, value);
+        }
+        if (m_overflow == null) {
+            m_overflow = new LinkedHashMap<>();
+        }
+        Value previous = m_overflow.put(key, value);
+        if (previous == null) {
+            m_size++;
+            m_modCount++;
+        }
+        return previous;
+    }
+
+    /**
+     * @see Map#remove(Object)
+     */
+    @Override
+    public Value remove(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int ordinal = ordinal((String) key);
+        if (ordinal >= 0) {
+            return removeAt(ordinal);
+        }
+        Value previous = m_overflow != null ? m_overflow.remove(key) : null;
+        if (previous != null) {
+            m_size--;
+            m_modCount++;
+        }
+        return previous;
+    }
+
+    /**
+     * @see Map#clear()
+     */
+    @Override
+    public void clear() {
+        m_values = null;
+        m_overflow = null;
+        m_size = 0;
+        m_modCount++;
+    }
+
+    /**
+     * @see Map#size()
+     */
+    @Override
+    public int size() {
+        return m_size;
+    }
+
+    /**
+     * @see Map#entrySet()
+     */
+    @Override
+    public Set<Entry<String, Value>> entrySet() {
+        return new AbstractSet<Entry<String, Value>>() {
+            @Override
+            public Iterator<Entry<String, Value>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return m_size;
+            }
+        };
+    }
+
+    protected int ordinal(String key) {
+        return m_flow != null ? m_flow.getValueOrdinal(key) : -1;
+    }
+
+    protected Value putAt(int ordinal, Value value) {
+        if (m_values == null) {
+            // allocated on first write as many frames never save a value
+            m_values = new Value[m_flow.getValueKeys().length];
+        }
+        Value previous = m_values[ordinal];
+        m_values[ordinal] = value;
+        if (previous == null) {
+            m_size++;
+            m_modCount++;
+        }
+        return previous;
+    }
+
+    protected Value removeAt(int ordinal) {
+        Value previous = m_values != null ? m_values[ordinal] : null;
+        if (previous != null) {
+            m_values[ordinal] = null;
+            m_size--;
+            m_modCount++;
+        }
+        return previous;
+    }
+
+    /**
+     * Iterates over the array values and then the overflow values
+     */
+    protected class EntryIterator implements Iterator<Entry<String, Value>> {
+
+        protected int m_next = -1;
+
+        protected int m_current = -1;
+
+        protected Iterator<Entry<String, Value>> m_overflowIterator;
+
+        protected int m_expectedModCount = m_modCount;
+
+        public EntryIterator() {
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return m_next >= 0 || (m_overflow != null && overflowIterator().hasNext());
+        }
+
+        @Override
+        public Entry<String, Value> next() {
+            if (m_modCount != m_expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (m_next >= 0) {
+                m_current = m_next;
+                advance();
+                return new SimpleEntry<>(m_flow.getValueKeys()[m_current], m_values[m_current]);
+            }
+            if (m_overflow == null) {
+                throw new NoSuchElementException();
+            }
+            m_current = -1;
+            return overflowIterator().next();
+        }
+
+        @Override
+        public void remove() {
+            if (m_modCount != m_expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (m_current >= 0) {
+                removeAt(m_current);
+                m_current = -1;
+            } else if (m_overflowIterator != null) {
+                m_overflowIterator.remove();
+                m_size--;
+                m_modCount++;
+            } else {
+                throw new IllegalStateException();
+            }
+            m_expectedModCount = m_modCount;
+        }
+
+        protected void advance() {
+            int start = m_next + 1;
+            m_next = -1;
+            if (m_values != null) {
+                for (int o = start; o < m_values.length; o++) {
+                    if (m_values[o] != null) {
+                        m_next = o;
+                        break;
+                    }
+                }
+            }
+        }
+
+        protected Iterator<Entry<String, Value>> overflowIterator() {
+            if (m_overflowIterator == null) {
+                m_overflowIterator = m_overflow.entrySet().iterator();
+            }
+            return m_overflowIterator;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.flows.definition.Flow;
+import io.rapidpro.flows.definition.Rule;
+import io.rapidpro.flows.definition.RuleSet;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Live counts of how many contacts have arrived at, left or are waiting at each node, and which rules they took.
+ * Counters are striped across threads so that recording a step is a single uncontended atomic add and never takes a
+ * lock, and snapshots sum the stripes without blocking the runner.
+ *
+ * Waiting counts are the contacts which arrived but haven't yet left, so they're a gauge which isn't cleared by
+ * {@link #reset()}, and runs which were already waiting when the aggregator was created are never counted.
+ *
+ * Counts are kept by node UUID. If a flow is reloaded, each new instance of a node gets its own counters which are
+ * chained to those of the previous instances and summed with them, so a contact can arrive at one instance of a node
+ * and leave from another.
+ */
+public class FunnelAggregator {
+
+    protected static final int ARRIVED = 0;
+
+    protected static final int LEFT = 1;
+
+    protected static final int WAITING = 2;
+
+    protected static final int FIRST_RULE = 3;
+
+    // the number of longs in a cache line, which each stripe is padded to so stripes don't share lines
+    protected static final int LINE_LONGS = 8;
+
+    protected int m_stripeMask;
+
+    protected ConcurrentMap<String, ConcurrentMap<String, NodeCounters>> m_flows = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an aggregator with a stripe for each available processor
+     */
+    public FunnelAggregator() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an aggregator
+     * @param concurrency the expected number of threads running flows, rounded up to a power of two stripes
+     */
+    public FunnelAggregator(int concurrency) {
+        int stripes = 1;
+        while (stripes < concurrency) {
+            stripes <<= 1;
+        }
+        m_stripeMask = stripes - 1;
+    }
+
+    /**
+     * Records a contact arriving at a node
+     * @param flow the flow containing the node
+     * @param node the node
+     */
+    public void recordArrival(Flow flow, Flow.Node node) {
+        NodeCounters counters = getCounters(flow, node);
+        int stripe = stripe();
+        counters.add(stripe, ARRIVED, 1);
+        counters.add(stripe, WAITING, 1);
+    }
+
+    /**
+     * Records a contact leaving a node, i.e. a completed step, and the rule it took if the node is a rule set
+     * @param step the completed step
+     */
+    public void recordLeft(Step step) {
+        NodeCounters counters = getCounters(step.getFlow(), step.getNode());
+        int stripe = stripe();
+        counters.add(stripe, LEFT, 1);
+        counters.add(stripe, WAITING, -1);
+
+        RuleSet.Result result = step.getRuleResult();
+        if (result != null && result.getRule() != null) {
+            int rule = result.getRule().getIndex();
+            if (rule >= 0 && FIRST_RULE + rule < counters.m_counters) {
+                counters.add(stripe, FIRST_RULE + rule, 1);
+            }
+        }
+    }
+
+    /**
+     * Gets the current counts of every node which has been visited
+     * @return the counts
+     */
+    public List<NodeCounts> snapshot() {
+        return collect(null, false);
+    }
+
+    /**
+     * Gets the current counts of every node in the given flow which has been visited
+     * @param flowUuid the flow UUID
+     * @return the counts by node UUID
+     */
+    public Map<String, NodeCounts> snapshot(String flowUuid) {
+        Map<String, NodeCounts> byNode = new LinkedHashMap<>();
+        for (NodeCounts counts : collect(flowUuid, false)) {
+            byNode.put(counts.m_nodeUuid, counts);
+        }
+        return byNode;
+    }
+
+    /**
+     * Gets the counts of every node which has been visited and clears them, so each call returns the counts since
+     * the last. No increments are lost between the two.
+     * @return the counts
+     */
+    public List<NodeCounts> snapshotAndReset() {
+        return collect(null, true);
+    }
+
+    /**
+     * Clears the arrived, left and rule counts of all nodes
+     */
+    public void reset() {
+        collect(null, true);
+    }
+
+    protected List<NodeCounts> collect(String flowUuid, boolean reset) {
+        List<NodeCounts> all = new ArrayList<>();
+        for (Map.Entry<String, ConcurrentMap<String, NodeCounters>> flowEntry : m_flows.entrySet()) {
+            if (flowUuid != null && !flowUuid.equals(flowEntry.getKey())) {
+                continue;
+            }
+            for (Map.Entry<String, NodeCounters> nodeEntry : flowEntry.getValue().entrySet()) {
+                all.add(collect(flowEntry.getKey(), nodeEntry.getKey(), nodeEntry.getValue(), reset));
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Sums the counters of every instance of a node, where rules and categories are ordered as in the newest instance
+     */
+    protected NodeCounts collect(String flowUuid, String nodeUuid, NodeCounters newest, boolean reset) {
+        long arrived = 0, left = 0, waiting = 0;
+        Map<String, Long> rules = new LinkedHashMap<>();
+        Map<String, Long> categories = new LinkedHashMap<>();
+
+        for (NodeCounters counters = newest; counters != null; counters = counters.m_previous) {
+            arrived += counters.sum(ARRIVED, reset);
+            left += counters.sum(LEFT, reset);
+            waiting += counters.sum(WAITING, false);
+
+            if (counters.m_node instanceof RuleSet) {
+                List<Rule> ruleList = ((RuleSet) counters.m_node).getRules();
+                for (int r = 0; r < ruleList.size(); r++) {
+                    Rule rule = ruleList.get(r);
+                    long count = counters.sum(FIRST_RULE + r, reset);
+                    increment(rules, rule.getUuid(), count);
+
+                    String category = rule.getCategory().getLocalized(counters.m_flow.getBaseLocalization(), "");
+                    increment(categories, category, count);
+                }
+            }
+        }
+
+        return new NodeCounts(flowUuid, nodeUuid, arrived, left, Math.max(0, waiting), rules, categories);
+    }
+
+    protected static void increment(Map<String, Long> counts, String key, long delta) {
+        Long count = counts.get(key);
+        counts.put(key, (count != null ? count : 0) + delta);
+    }
+
+    protected NodeCounters getCounters(Flow flow, Flow.Node node) {
+        ConcurrentMap<String, NodeCounters> nodes = m_flows.get(flow.getUuid());
+        if (nodes == null) {
+            nodes = new ConcurrentHashMap<>();
+            ConcurrentMap<String, NodeCounters> existing = m_flows.putIfAbsent(flow.getUuid(), nodes);
+            if (existing != null) {
+                nodes = existing;
+            }
+        }
+
+        while (true) {
+            NodeCounters newest = nodes.get(node.getUuid());
+            for (NodeCounters counters = newest; counters != null; counters = counters.m_previous) {
+                if (counters.m_node == node) {
+                    return counters;
+                }
+            }
+
+            // first time we've seen this instance of the node, so chain its counters in front of any older instances
+            NodeCounters counters = new NodeCounters(flow, node, m_stripeMask + 1, newest);
+            if (newest == null ? nodes.putIfAbsent(node.getUuid(), counters) == null : nodes.replace(node.getUuid(), newest, counters)) {
+                return counters;
+            }
+        }
+    }
+
+    protected int stripe() {
+        return (int) Thread.currentThread().getId() & m_stripeMask;
+    }
+
+    /**
+     * The striped counters of a single instance of a node, laid out stripe by stripe
+     */
+    protected static class NodeCounters {
+
+        protected Flow m_flow;
+
+        protected Flow.Node m_node;
+
+        /**
+         * The counters of the previous instance of the node, if its flow has been reloaded
+         */
+        protected NodeCounters m_previous;
+
+        protected int m_counters;
+
+        protected int m_width;
+
+        protected AtomicLongArray m_cells;
+
+        protected NodeCounters(Flow flow, Flow.Node node, int stripes, NodeCounters previous) {
+            m_flow = flow;
+            m_node = node;
+            m_previous = previous;
+            m_counters = FIRST_RULE + (node instanceof RuleSet ? ((RuleSet) node).getRules().size() : 0);
+            m_width = ((m_counters + LINE_LONGS - 1) / LINE_LONGS) * LINE_LONGS;
+            m_cells = new AtomicLongArray(m_width * stripes);
+        }
+
+        protected void add(int stripe, int counter, long delta) {
+            m_cells.getAndAdd(stripe * m_width + counter, delta);
+        }
+
+        protected long sum(int counter, boolean reset) {
+            long total = 0;
+            for (int cell = counter; cell < m_cells.length(); cell += m_width) {
+                total += reset ? m_cells.getAndSet(cell, 0) : m_cells.get(cell);
+            }
+            return total;
+        }
+
+    }
+
+    /**
+     * A snapshot of the counts of a single node
+     */
+    public static class NodeCounts {
+
+        protected String m_flowUuid;
+
+        protected String m_nodeUuid;
+
+        protected long m_arrived;
+
+        protected long m_left;
+
+        protected long m_waiting;
+
+        protected Map<String, Long> m_ruleCounts;
+
+        protected Map<String, Long> m_categoryCounts;
+
+        public NodeCounts(String flowUuid, String nodeUuid, long arrived, long left, long waiting, Map<String, Long> ruleCounts, Map<String, Long> categoryCounts) {
+            m_flowUuid = flowUuid;
+            m_nodeUuid = nodeUuid;
+            m_arrived = arrived;
+            m_left = left;
+            m_waiting = waiting;
+            m_ruleCounts = Collections.unmodifiableMap(ruleCounts);
+            m_categoryCounts = Collections.unmodifiableMap(categoryCounts);
+        }
+
+        public String getFlowUuid() {
+            return m_flowUuid;
+        }
+
+        public String getNodeUuid() {
+            return m_nodeUuid;
+        }
+
+        public long getArrived() {
+            return m_arrived;
+        }
+
+        public long getLeft() {
+            return m_left;
+        }
+
+        public long getWaiting() {
+            return m_waiting;
+        }
+
+        /**
+         * Gets the number of times each rule was taken, by rule UUID
+         */
+        public Map<String, Long> getRuleCounts() {
+            return m_ruleCounts;
+        }
+
+        /**
+         * Gets the number of times each category was taken, by category name in the flow's base language
+         */
+        public Map<String, Long> getCategoryCounts() {
+            return m_categoryCounts;
+        }
+    }
+}
@@ -73,7 +73,7 @@ public class Input {
      * @param contactContext the contact context
      * @return the context
      */
-    public Map<String, Object> buildContext(EvaluationContext container, Map<String, String> contactContext) {
+    public Map<String, Object> buildContext(EvaluationContext container, Map<String, ?> contactContext) {
         Map<String, Object> context = new HashMap<>();
         String asText = getValueAsText(container);
 
@@ -0,0 +1,176 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.expressions.EvaluationContext;
+import io.rapidpro.expressions.EvaluationError;
+import io.rapidpro.expressions.dates.DateStyle;
+import org.threeten.bp.Instant;
+import org.threeten.bp.ZoneId;
+
+import java.util.*;
+
+/**
+ * An evaluation context whose variables can be deferred, i.e. only built when they are first resolved by the
+ * evaluator. Resolving a variable gives the same result as it would in a regular context built with all variables.
+ */
+public class LazyEvaluationContext extends EvaluationContext {
+
+    public LazyEvaluationContext(ZoneId timezone, DateStyle dateStyle, Instant now) {
+        super(new LazyMap(), timezone, dateStyle, now);
+    }
+
+    /**
+     * Adds a top-level variable which will be built when it's first resolved
+     * @param key the variable name
+     * @param deferred builds the variable value
+     */
+    public void putDeferred(String key, Deferred deferred) {
+        ((LazyMap) m_variables).putDeferred(key, deferred);
+    }
+
+    /**
+     * Overridden so that deferred maps only build the items which are resolved, rather than copying the whole map
+     * to lowercase its keys
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    protected Object resolveVariableInContainer(Map<String, Object> container, String path, String originalPath) {
+        if (!(container instanceof LazyMap)) {
+            return super.resolveVariableInContainer(container, path, originalPath);
+        }
+
+        String item, remainingPath;
+        int dot = path.indexOf('.');
+        if (dot >= 0) {
+            item = path.substring(0, dot);
+            remainingPath = path.substring(dot + 1);
+        } else {
+            item = path;
+            remainingPath = null;
+        }
+
+        LazyMap lazyContainer = (LazyMap) container;
+        String key = lazyContainer.findKey(item);
+        if (key == null) {
+            throw new EvaluationError("Undefined variable: " + originalPath);
+        }
+
+        Object value = lazyContainer.get(key);
+
+        if (remainingPath != null && value != null) {
+            if (!(value instanceof Map)) {
+                throw new EvaluationError("Undefined variable: " + originalPath);
+            }
+            return resolveVariableInContainer((Map<String, Object>) value, remainingPath, originalPath);
+        }
+
+        return coerceToSupportedType(value);
+    }
+
+    /**
+     * Builds the value of a deferred variable
+     */
+    public interface Deferred {
+        Object build();
+    }
+
+    /**
+     * A map whose values can be deferred. Looking up a key builds only that value, whilst iterating over the map
+     * builds all values.
+     */
+    public static class LazyMap extends AbstractMap<String, Object> {
+
+        protected Map<String, Object> m_values = new HashMap<>();
+
+        protected Map<String, Deferred> m_deferred = new HashMap<>();
+
+        /**
+         * Adds a value which will be built when it's first looked up
+         * @param key the key
+         * @param deferred builds the value
+         */
+        public void putDeferred(String key, Deferred deferred) {
+            m_values.remove(key);
+            m_deferred.put(key, deferred);
+        }
+
+        /**
+         * Finds the key which matches the given lowercase name, the same way a regular context matches names against
+         * the lowercase keys of a map
+         * @param name the lowercase name
+         * @return the key or null if there is no match
+         */
+        public String findKey(String name) {
+            if (containsKey(name)) {
+                return name;
+            }
+            for (String key : m_values.keySet()) {
+                if (key.toLowerCase().equals(name)) {
+                    return key;
+                }
+            }
+            for (String key : m_deferred.keySet()) {
+                if (key.toLowerCase().equals(name)) {
+                    return key;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Gets whether the value for the given key has been built (or wasn't deferred)
+         */
+        public boolean isBuilt(String key) {
+            return !m_deferred.containsKey(key);
+        }
+
+        @Override
+        public Object get(Object key) {
+            Deferred deferred = m_deferred.remove(key);
+            if (deferred != null) {
+                Object value = deferred.build();
+                m_values.put((String) key, value);
+                return value;
+            }
+            return m_values.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return m_values.containsKey(key) || m_deferred.containsKey(key);
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            m_deferred.remove(key);
+            return m_values.put(key, value);
+        }
+
+        @Override
+        public Object remove(Object key) {
+            Deferred deferred = m_deferred.remove(key);
+            if (deferred != null) {
+                return deferred.build();
+            }
+            return m_values.remove(key);
+        }
+
+        @Override
+        public int size() {
+            return m_values.size() + m_deferred.size();
+        }
+
+        @Override
+        public void clear() {
+            m_values.clear();
+            m_deferred.clear();
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            for (String key : new ArrayList<>(m_deferred.keySet())) {
+                get(key);
+            }
+            return m_values.entrySet();
+        }
+    }
+}
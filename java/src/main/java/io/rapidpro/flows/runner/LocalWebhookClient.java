@@ -0,0 +1,108 @@
+package io.rapidpro.flows.runner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * An in-process stand-in for a real webhook client which passes requests to handlers registered by URL, e.g. for
+ * testing flows with webhooks. Requests for URLs without a handler get a 404 response.
+ */
+public class LocalWebhookClient implements WebhookClient {
+
+    /**
+     * Handles requests for a URL
+     */
+    public interface Handler {
+        Response handle(Request request) throws Exception;
+    }
+
+    protected Map<String, Handler> m_handlers = new ConcurrentHashMap<>();
+
+    protected Executor m_executor;
+
+    protected List<Request> m_requests = Collections.synchronizedList(new ArrayList<Request>());
+
+    /**
+     * Creates a client which handles requests on the calling thread
+     */
+    public LocalWebhookClient() {
+        this(null);
+    }
+
+    /**
+     * Creates a client which handles requests using the given executor, like a real client would on its I/O threads
+     * @param executor the executor
+     */
+    public LocalWebhookClient(Executor executor) {
+        m_executor = executor;
+    }
+
+    /**
+     * Registers a handler for the given URL
+     * @param url the URL
+     * @param handler the handler
+     * @return this client
+     */
+    public LocalWebhookClient withHandler(String url, Handler handler) {
+        m_handlers.put(url, handler);
+        return this;
+    }
+
+    /**
+     * Registers a handler for the given URL which always returns the same response
+     * @param url the URL
+     * @param status the response status
+     * @param body the response body
+     * @return this client
+     */
+    public LocalWebhookClient withResponse(String url, final int status, final String body) {
+        return withHandler(url, new Handler() {
+            @Override
+            public Response handle(Request request) {
+                return new Response(status, body);
+            }
+        });
+    }
+
+    /**
+     * @see WebhookClient#call(Request, Callback)
+     */
+    @Override
+    public void call(final Request request, final Callback callback) {
+        m_requests.add(request);
+
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                Response response;
+                try {
+                    Handler handler = m_handlers.get(request.getUrl());
+                    response = handler != null ? handler.handle(request) : new Response(404, "");
+                } catch (Exception e) {
+                    callback.onFailure(e);
+                    return;
+                }
+                callback.onResponse(response);
+            }
+        };
+
+        if (m_executor != null) {
+            m_executor.execute(task);
+        } else {
+            task.run();
+        }
+    }
+
+    /**
+     * Gets all requests made so far
+     */
+    public List<Request> getRequests() {
+        synchronized (m_requests) {
+            return new ArrayList<>(m_requests);
+        }
+    }
+}
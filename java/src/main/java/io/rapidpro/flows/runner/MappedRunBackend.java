@@ -0,0 +1,766 @@
+package io.rapidpro.flows.runner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Run store backend which appends run states to memory-mapped segment files in a directory, so that waiting runs
+ * take up no heap. The latest record of each contact is found with an off-heap hash index, which is rebuilt by
+ * scanning the segments when the backend is opened. Records are checksummed and their length is written last, so a
+ * record which was only partially written before a crash is ignored. Superseded records are reclaimed by compacting
+ * the oldest segment, i.e. copying its live records to the newest segment and deleting it.
+ *
+ * Each record is laid out as: length (int), CRC32 of the body (int), and then the body: version (long), type (byte),
+ * key length (short), key (UTF-8) and value (UTF-8). Versions are taken from a counter which is recovered as the
+ * highest version in the segments.
+ */
+public class MappedRunBackend implements RunStore.Backend {
+
+    protected static Logger logger = LoggerFactory.getLogger(MappedRunBackend.class);
+
+    /**
+     * The default size of segment files
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The default fraction of dead bytes above which segments are compacted
+     */
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    protected static final int HEADER_SIZE = 8;
+
+    protected static final int BODY_PREFIX_SIZE = 11;
+
+    protected static final byte TYPE_PUT = 0;
+
+    protected static final byte TYPE_REMOVE = 1;
+
+    protected static final Pattern SEGMENT_FILE_NAME = Pattern.compile("segment-(\\d+)\\.dat");
+
+    protected File m_directory;
+
+    protected int m_segmentSize;
+
+    protected double m_compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    /**
+     * The open segments, oldest first, where the last is the one being appended to
+     */
+    protected List<Segment> m_segments = new ArrayList<>();
+
+    protected Map<Long, Segment> m_segmentsById = new HashMap<>();
+
+    protected Index m_index = new Index(1024);
+
+    protected long m_lastVersion;
+
+    protected ReadWriteLock m_lock = new ReentrantReadWriteLock();
+
+    protected ScheduledExecutorService m_compactor;
+
+    /**
+     * Opens a backend in the given directory with the default segment size, recovering any existing segments
+     * @param directory the directory
+     */
+    public MappedRunBackend(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens a backend in the given directory, recovering any existing segments
+     * @param directory the directory
+     * @param segmentSize the size of new segment files
+     */
+    public MappedRunBackend(File directory, int segmentSize) throws IOException {
+        m_directory = directory;
+        m_segmentSize = segmentSize;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+
+        recover();
+    }
+
+    /**
+     * @see RunStore.Backend#load(String)
+     */
+    @Override
+    public RunStore.Entry load(String contactUuid) {
+        byte[] key = encode(contactUuid);
+
+        m_lock.readLock().lock();
+        try {
+            long location = m_index.get(key, hash(key));
+            if (location == 0) {
+                return null;
+            }
+            return new RunStore.Entry(readVersion(location), new String(readValue(location), StandardCharsets.UTF_8));
+        }
+        finally {
+            m_lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @see RunStore.Backend#compareAndSet(String, long, String)
+     */
+    @Override
+    public long compareAndSet(String contactUuid, long expectedVersion, String json) {
+        byte[] key = encode(contactUuid);
+        long hash = hash(key);
+
+        m_lock.writeLock().lock();
+        try {
+            long current = m_index.get(key, hash);
+            long currentVersion = current != 0 ? readVersion(current) : 0;
+            if (currentVersion != expectedVersion) {
+                return 0;
+            }
+
+            long version = m_lastVersion + 1;
+            long location = append(TYPE_PUT, version, key, encode(json));
+            if (current != 0) {
+                markDead(current);
+            }
+            m_index.put(key, hash, location);
+            m_lastVersion = version;
+            return version;
+        }
+        finally {
+            m_lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @see RunStore.Backend#remove(String, long)
+     */
+    @Override
+    public boolean remove(String contactUuid, long expectedVersion) {
+        byte[] key = encode(contactUuid);
+        long hash = hash(key);
+
+        m_lock.writeLock().lock();
+        try {
+            long current = m_index.get(key, hash);
+            if (current == 0 || readVersion(current) != expectedVersion) {
+                return false;
+            }
+
+            // a tombstone is only needed until the older segments are compacted, so it's dead as soon as it's written
+            long location = append(TYPE_REMOVE, expectedVersion, key, new byte[0]);
+            markDead(current);
+            markDead(location);
+            m_index.remove(key, hash);
+            return true;
+        }
+        finally {
+            m_lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @see RunStore.Backend#size()
+     */
+    @Override
+    public int size() {
+        m_lock.readLock().lock();
+        try {
+            return m_index.size();
+        }
+        finally {
+            m_lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Compacts the oldest segments until the fraction of dead bytes is below the compaction threshold
+     * @return the number of segments compacted
+     */
+    public int compact() throws IOException {
+        int compacted = 0;
+        int maxCompactions;
+
+        m_lock.readLock().lock();
+        try {
+            maxCompactions = m_segments.size() - 1;
+        }
+        finally {
+            m_lock.readLock().unlock();
+        }
+
+        // compacting one segment at a time lets loads and saves proceed in between
+        while (compacted < maxCompactions) {
+            m_lock.writeLock().lock();
+            try {
+                if (m_segments.size() < 2 || getDeadFraction() < m_compactionThreshold) {
+                    break;
+                }
+                compactSegment(m_segments.get(0));
+                compacted++;
+            }
+            finally {
+                m_lock.writeLock().unlock();
+            }
+        }
+        return compacted;
+    }
+
+    /**
+     * Starts compacting in the background at the given interval
+     * @param interval the interval between compactions
+     * @param unit the unit of the interval
+     */
+    public synchronized void startCompaction(long interval, TimeUnit unit) {
+        if (m_compactor != null) {
+            return;
+        }
+
+        m_compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "mapped-run-backend-compactor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        m_compactor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (Exception e) {
+                    logger.error("Unable to compact segments in " + m_directory, e);
+                }
+            }
+        }, interval, interval, unit);
+    }
+
+    /**
+     * Forces all changes to be written to disk
+     */
+    public void flush() {
+        m_lock.readLock().lock();
+        try {
+            for (Segment segment : m_segments) {
+                segment.m_buffer.force();
+            }
+        }
+        finally {
+            m_lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stops background compaction and flushes all changes to disk. The backend can't be used after it's closed.
+     */
+    public void close() {
+        synchronized (this) {
+            if (m_compactor != null) {
+                m_compactor.shutdownNow();
+                m_compactor = null;
+            }
+        }
+
+        m_lock.writeLock().lock();
+        try {
+            for (Segment segment : m_segments) {
+                segment.m_buffer.force();
+            }
+            m_segments.clear();
+            m_segmentsById.clear();
+            m_index = new Index(1);
+        }
+        finally {
+            m_lock.writeLock().unlock();
+        }
+    }
+
+    public int getSegmentCount() {
+        m_lock.readLock().lock();
+        try {
+            return m_segments.size();
+        }
+        finally {
+            m_lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of bytes of records which have been superseded and are waiting to be compacted
+     */
+    public long getDeadBytes() {
+        m_lock.readLock().lock();
+        try {
+            long dead = 0;
+            for (Segment segment : m_segments) {
+                dead += segment.m_deadBytes;
+            }
+            return dead;
+        }
+        finally {
+            m_lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of bytes of live records
+     */
+    public long getLiveBytes() {
+        m_lock.readLock().lock();
+        try {
+            long live = 0;
+            for (Segment segment : m_segments) {
+                live += segment.m_position - segment.m_deadBytes;
+            }
+            return live;
+        }
+        finally {
+            m_lock.readLock().unlock();
+        }
+    }
+
+    public void setCompactionThreshold(double compactionThreshold) {
+        m_compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * Opens all existing segments in order and rebuilds the index from their records
+     */
+    protected void recover() throws IOException {
+        List<Long> ids = new ArrayList<>();
+        File[] files = m_directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher matcher = SEGMENT_FILE_NAME.matcher(file.getName());
+                if (matcher.matches()) {
+                    ids.add(Long.parseLong(matcher.group(1)));
+                }
+            }
+        }
+        Collections.sort(ids);
+
+        for (int s = 0; s < ids.size(); s++) {
+            Segment segment = openSegment(ids.get(s));
+            boolean complete = scan(segment);
+
+            // clear anything left by a partially written record so it can't be mistaken for one later
+            if (!complete) {
+                for (int b = segment.m_position; b < segment.m_buffer.capacity(); b++) {
+                    segment.m_buffer.put(b, (byte) 0);
+                }
+                logger.warn("Discarded partially written record at " + segment.m_position + " in " + segment.m_file);
+            }
+        }
+
+        if (m_segments.isEmpty()) {
+            openSegment(1);
+        }
+    }
+
+    /**
+     * Scans the records of the given segment into the index
+     * @return false if the scan stopped at a record which is invalid, rather than at the end of the records
+     */
+    protected boolean scan(Segment segment) {
+        ByteBuffer buffer = segment.m_buffer;
+        int offset = 0;
+
+        while (offset + HEADER_SIZE + BODY_PREFIX_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length == 0) {
+                break;
+            }
+            if (length < BODY_PREFIX_SIZE || offset + HEADER_SIZE + length > buffer.capacity() || buffer.getInt(offset + 4) != checksum(buffer, offset + HEADER_SIZE, length)) {
+                segment.m_position = offset;
+                return false;
+            }
+
+            long location = location(segment.m_id, offset);
+            byte[] key = readKey(location);
+            long hash = hash(key);
+
+            m_lastVersion = Math.max(m_lastVersion, readVersion(location));
+
+            long current = m_index.get(key, hash);
+            if (current != 0) {
+                markDead(current);
+            }
+
+            if (buffer.get(offset + 16) == TYPE_PUT) {
+                m_index.put(key, hash, location);
+            } else {
+                m_index.remove(key, hash);
+                markDead(location);
+            }
+
+            offset += HEADER_SIZE + length;
+        }
+
+        segment.m_position = offset;
+        return true;
+    }
+
+    /**
+     * Copies the live records of the given segment to the newest segment and then deletes it
+     */
+    protected void compactSegment(Segment segment) throws IOException {
+        ByteBuffer buffer = segment.m_buffer;
+        int offset = 0;
+
+        while (offset < segment.m_position) {
+            int length = buffer.getInt(offset);
+            long location = location(segment.m_id, offset);
+
+            if (buffer.get(offset + 16) == TYPE_PUT) {
+                byte[] key = readKey(location);
+                long hash = hash(key);
+
+                if (m_index.get(key, hash) == location) {
+                    long moved = append(TYPE_PUT, readVersion(location), key, readValue(location));
+                    m_index.put(key, hash, moved);
+                }
+            }
+
+            offset += HEADER_SIZE + length;
+        }
+
+        // copies must be on disk before the original is deleted
+        for (Segment other : m_segments) {
+            if (other != segment) {
+                other.m_buffer.force();
+            }
+        }
+
+        m_segments.remove(segment);
+        m_segmentsById.remove(segment.m_id);
+
+        if (!segment.m_file.delete()) {
+            throw new IOException("Unable to delete compacted segment " + segment.m_file);
+        }
+    }
+
+    /**
+     * Appends a record to the newest segment, starting a new segment if it doesn't fit
+     * @return the location of the record
+     */
+    protected long append(byte type, long version, byte[] key, byte[] value) {
+        int length = BODY_PREFIX_SIZE + key.length + value.length;
+        if (key.length > 0xFFFF || HEADER_SIZE + length > m_segmentSize) {
+            throw new IllegalArgumentException("Record of " + (HEADER_SIZE + length) + " bytes is too large for segments of " + m_segmentSize + " bytes");
+        }
+
+        Segment segment = m_segments.get(m_segments.size() - 1);
+        if (segment.m_position + HEADER_SIZE + length > segment.m_buffer.capacity()) {
+            try {
+                segment = openSegment(segment.m_id + 1);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        ByteBuffer body = ByteBuffer.allocate(length);
+        body.putLong(version);
+        body.put(type);
+        body.putShort((short) key.length);
+        body.put(key);
+        body.put(value);
+
+        CRC32 crc = new CRC32();
+        crc.update(body.array());
+
+        // write the length last so that a partially written record looks like the end of the segment
+        int offset = segment.m_position;
+        ByteBuffer buffer = segment.m_buffer.duplicate();
+        buffer.position(offset + HEADER_SIZE);
+        buffer.put(body.array());
+        buffer.putInt(offset + 4, (int) crc.getValue());
+        buffer.putInt(offset, length);
+
+        segment.m_position += HEADER_SIZE + length;
+        return location(segment.m_id, offset);
+    }
+
+    protected Segment openSegment(long id) throws IOException {
+        File file = new File(m_directory, String.format("segment-%08d.dat", id));
+
+        Segment segment = new Segment(id, file, m_segmentSize);
+        m_segments.add(segment);
+        m_segmentsById.put(id, segment);
+        return segment;
+    }
+
+    protected void markDead(long location) {
+        Segment segment = m_segmentsById.get(location >>> 32);
+        segment.m_deadBytes += HEADER_SIZE + segment.m_buffer.getInt(offset(location));
+    }
+
+    protected double getDeadFraction() {
+        long dead = 0, total = 0;
+        for (Segment segment : m_segments) {
+            dead += segment.m_deadBytes;
+            total += segment.m_position;
+        }
+        return total > 0 ? (double) dead / total : 0;
+    }
+
+    protected long readVersion(long location) {
+        return m_segmentsById.get(location >>> 32).m_buffer.getLong(offset(location) + 8);
+    }
+
+    protected byte[] readKey(long location) {
+        ByteBuffer buffer = m_segmentsById.get(location >>> 32).m_buffer.duplicate();
+        int offset = offset(location);
+        byte[] key = new byte[buffer.getShort(offset + 17) & 0xFFFF];
+        buffer.position(offset + HEADER_SIZE + BODY_PREFIX_SIZE);
+        buffer.get(key);
+        return key;
+    }
+
+    protected byte[] readValue(long location) {
+        ByteBuffer buffer = m_segmentsById.get(location >>> 32).m_buffer.duplicate();
+        int offset = offset(location);
+        int keyLength = buffer.getShort(offset + 17) & 0xFFFF;
+        byte[] value = new byte[buffer.getInt(offset) - BODY_PREFIX_SIZE - keyLength];
+        buffer.position(offset + HEADER_SIZE + BODY_PREFIX_SIZE + keyLength);
+        buffer.get(value);
+        return value;
+    }
+
+    protected boolean keyEquals(long location, byte[] key) {
+        ByteBuffer buffer = m_segmentsById.get(location >>> 32).m_buffer;
+        int offset = offset(location);
+        if ((buffer.getShort(offset + 17) & 0xFFFF) != key.length) {
+            return false;
+        }
+        int keyOffset = offset + HEADER_SIZE + BODY_PREFIX_SIZE;
+        for (int b = 0; b < key.length; b++) {
+            if (buffer.get(keyOffset + b) != key[b]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected static int checksum(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.get(bytes);
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    protected static long location(long segmentId, int offset) {
+        return (segmentId << 32) | offset;
+    }
+
+    protected static int offset(long location) {
+        return (int) location;
+    }
+
+    protected static byte[] encode(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a key
+     */
+    protected static long hash(byte[] key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            hash ^= (b & 0xFF);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * A segment file mapped into memory
+     */
+    protected static class Segment {
+
+        protected long m_id;
+
+        protected File m_file;
+
+        protected MappedByteBuffer m_buffer;
+
+        protected int m_position;
+
+        protected long m_deadBytes;
+
+        public Segment(long id, File file, int size) throws IOException {
+            m_id = id;
+            m_file = file;
+
+            // the mapping remains valid after the file is closed
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                if (raf.length() < size) {
+                    raf.setLength(size);
+                }
+                m_buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            }
+        }
+    }
+
+    /**
+     * Open-addressing hash table of record locations, which is stored in direct buffers so that it's off-heap. Each
+     * slot holds the hash of a key and the location of its record, and keys are compared by reading them from the
+     * segments.
+     */
+    protected class Index {
+
+        protected static final int SLOT_SIZE = 16;
+
+        protected static final int PAGE_BITS = 20;
+
+        protected static final long EMPTY = 0;
+
+        protected static final long DELETED = -1;
+
+        protected ByteBuffer[] m_pages;
+
+        protected int m_capacity;
+
+        protected int m_size;
+
+        protected int m_used;
+
+        public Index(int capacity) {
+            allocate(Math.max(Integer.highestOneBit(capacity - 1) << 1, 16));
+        }
+
+        public long get(byte[] key, long hash) {
+            int slot = find(key, hash);
+            return slot >= 0 ? getLocation(slot) : EMPTY;
+        }
+
+        public void put(byte[] key, long hash, long location) {
+            int slot = find(key, hash);
+            if (slot >= 0) {
+                setSlot(slot, hash, location);
+                return;
+            }
+
+            // keep load (including deleted slots) at or below a half so that probe sequences stay short
+            if ((m_used + 1) * 2L > m_capacity) {
+                resize(m_size * 4L > m_capacity ? m_capacity * 2 : m_capacity);
+            }
+            insert(hash, location);
+            m_size++;
+        }
+
+        public void remove(byte[] key, long hash) {
+            int slot = find(key, hash);
+            if (slot >= 0) {
+                setSlot(slot, hash, DELETED);
+                m_size--;
+            }
+        }
+
+        public int size() {
+            return m_size;
+        }
+
+        protected int find(byte[] key, long hash) {
+            int mask = m_capacity - 1;
+            int slot = spread(hash) & mask;
+
+            for (int probes = 0; probes < m_capacity; probes++) {
+                long location = getLocation(slot);
+                if (location == EMPTY) {
+                    return -1;
+                }
+                if (location != DELETED && getHash(slot) == hash && keyEquals(location, key)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        protected void insert(long hash, long location) {
+            int mask = m_capacity - 1;
+            int slot = spread(hash) & mask;
+
+            while (true) {
+                long existing = getLocation(slot);
+                if (existing == EMPTY || existing == DELETED) {
+                    if (existing == EMPTY) {
+                        m_used++;
+                    }
+                    setSlot(slot, hash, location);
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        protected void resize(int capacity) {
+            ByteBuffer[] oldPages = m_pages;
+            int oldCapacity = m_capacity;
+
+            allocate(capacity);
+
+            for (int slot = 0; slot < oldCapacity; slot++) {
+                ByteBuffer page = oldPages[slot >>> PAGE_BITS];
+                int position = (slot & ((1 << PAGE_BITS) - 1)) * SLOT_SIZE;
+                long location = page.getLong(position + 8);
+                if (location != EMPTY && location != DELETED) {
+                    insert(page.getLong(position), location);
+                }
+            }
+        }
+
+        protected void allocate(int capacity) {
+            int pageSlots = Math.min(capacity, 1 << PAGE_BITS);
+            m_pages = new ByteBuffer[capacity / pageSlots];
+            for (int p = 0; p < m_pages.length; p++) {
+                m_pages[p] = ByteBuffer.allocateDirect(pageSlots * SLOT_SIZE);
+            }
+            m_capacity = capacity;
+            m_used = 0;
+        }
+
+        protected long getHash(int slot) {
+            return m_pages[slot >>> PAGE_BITS].getLong((slot & ((1 << PAGE_BITS) - 1)) * SLOT_SIZE);
+        }
+
+        protected long getLocation(int slot) {
+            return m_pages[slot >>> PAGE_BITS].getLong((slot & ((1 << PAGE_BITS) - 1)) * SLOT_SIZE + 8);
+        }
+
+        protected void setSlot(int slot, long hash, long location) {
+            ByteBuffer page = m_pages[slot >>> PAGE_BITS];
+            int position = (slot & ((1 << PAGE_BITS) - 1)) * SLOT_SIZE;
+            page.putLong(position, hash);
+            page.putLong(position + 8, location);
+        }
+
+        protected int spread(long hash) {
+            return (int) (hash ^ (hash >>> 32));
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package io.rapidpro.flows.runner;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Run store backend which keeps run states on the heap
+ */
+public class MemoryRunBackend implements RunStore.Backend {
+
+    protected ConcurrentMap<String, RunStore.Entry> m_entries = new ConcurrentHashMap<>();
+
+    protected AtomicLong m_lastVersion = new AtomicLong();
+
+    /**
+     * @see RunStore.Backend#load(String)
+     */
+    @Override
+    public RunStore.Entry load(String contactUuid) {
+        return m_entries.get(contactUuid);
+    }
+
+    /**
+     * @see RunStore.Backend#compareAndSet(String, long, String)
+     */
+    @Override
+    public long compareAndSet(String contactUuid, long expectedVersion, String json) {
+        RunStore.Entry entry = new RunStore.Entry(m_lastVersion.incrementAndGet(), json);
+
+        if (expectedVersion == 0) {
+            return m_entries.putIfAbsent(contactUuid, entry) == null ? entry.getVersion() : 0;
+        }
+
+        RunStore.Entry current = m_entries.get(contactUuid);
+        if (current != null && current.getVersion() == expectedVersion && m_entries.replace(contactUuid, current, entry)) {
+            return entry.getVersion();
+        }
+        return 0;
+    }
+
+    /**
+     * @see RunStore.Backend#remove(String, long)
+     */
+    @Override
+    public boolean remove(String contactUuid, long expectedVersion) {
+        RunStore.Entry current = m_entries.get(contactUuid);
+        return current != null && current.getVersion() == expectedVersion && m_entries.remove(contactUuid, current);
+    }
+
+    /**
+     * @see RunStore.Backend#size()
+     */
+    @Override
+    public int size() {
+        return m_entries.size();
+    }
+}
@@ -33,8 +33,8 @@ public class Org implements Jsonizable {
     public static Org fromJson(JsonElement elm) {
         JsonObject obj = elm.getAsJsonObject();
         return new Org(
-                obj.get("country").getAsString(),
-                obj.get("primary_language").getAsString(),
+                JsonUtils.getAsInternedString(obj, "country"),
+                JsonUtils.getAsInternedString(obj, "primary_language"),
                 ZoneId.of(obj.get("timezone").getAsString()),
                 DateStyle.valueOf(obj.get("date_style").getAsString().toUpperCase()),
                 obj.get("anon").getAsBoolean()
@@ -0,0 +1,317 @@
+package io.rapidpro.flows.runner;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import io.rapidpro.expressions.utils.ExpressionUtils;
+import io.rapidpro.flows.definition.Flow;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Exports the results of a flow from serialized run states, one row per run with a group of value, category, text
+ * and time columns for each value saved by the flow's rule sets. Run states are read in batches which are decoded in
+ * parallel whilst the previous batch is written, so memory use depends on the batch size rather than the number of
+ * runs. Only the parts of each run state that are exported are decoded. An exporter which creates its own pool should
+ * be closed when it's no longer needed.
+ */
+public class ResultsExporter implements Closeable {
+
+    public enum ColumnType {
+        TEXT,
+        TIME
+    }
+
+    /**
+     * The default number of run states decoded at once
+     */
+    public static final int DEFAULT_BATCH_SIZE = 4096;
+
+    /**
+     * The number of run states below which a task decodes them itself rather than splitting further
+     */
+    protected static final int SPLIT_THRESHOLD = 64;
+
+    protected static final String[] VALUE_COLUMNS = {"value", "category", "text", "time"};
+
+    protected static final int FIXED_COLUMNS = 3;
+
+    protected Flow m_flow;
+
+    protected ForkJoinPool m_pool;
+
+    protected boolean m_ownsPool;
+
+    protected int m_batchSize;
+
+    protected Map<String, ColumnType> m_columns = new LinkedHashMap<>();
+
+    /**
+     * Receives the rows of an export
+     */
+    public interface Writer extends Closeable {
+
+        /**
+         * Called once before any rows are written
+         * @param columns the column names and types
+         */
+        void writeHeader(Map<String, ColumnType> columns) throws IOException;
+
+        /**
+         * Called for each run
+         * @param row the row values, which are strings, instants or null according to the column types
+         */
+        void writeRow(Object[] row) throws IOException;
+    }
+
+    /**
+     * Creates an exporter with its own pool with as many threads as there are processors, which is shut down when the
+     * exporter is closed
+     * @param flow the flow whose results are exported
+     */
+    public ResultsExporter(Flow flow) {
+        this(flow, new ForkJoinPool(), DEFAULT_BATCH_SIZE);
+        m_ownsPool = true;
+    }
+
+    /**
+     * Creates an exporter
+     * @param flow the flow whose results are exported
+     * @param pool the pool used to decode run states
+     * @param batchSize the number of run states decoded at once
+     */
+    public ResultsExporter(Flow flow, ForkJoinPool pool, int batchSize) {
+        m_flow = flow;
+        m_pool = pool;
+        m_batchSize = batchSize;
+
+        m_columns.put("contact", ColumnType.TEXT);
+        m_columns.put("started", ColumnType.TIME);
+        m_columns.put("state", ColumnType.TEXT);
+        for (String key : flow.getValueKeys()) {
+            for (String column : VALUE_COLUMNS) {
+                m_columns.put(key + "." + column, column.equals("time") ? ColumnType.TIME : ColumnType.TEXT);
+            }
+        }
+    }
+
+    /**
+     * Exports the given run states. The writer isn't closed.
+     * @param runStates the serialized run states
+     * @param writer the writer
+     * @return the number of rows written
+     */
+    public long export(Iterator<String> runStates, Writer writer) throws IOException {
+        writer.writeHeader(Collections.unmodifiableMap(m_columns));
+
+        long rows = 0;
+        DecodeTask previous = null;
+        while (runStates.hasNext() || previous != null) {
+            // start decoding the next batch before we write out the previous one
+            DecodeTask next = null;
+            if (runStates.hasNext()) {
+                List<String> batch = new ArrayList<>(m_batchSize);
+                while (runStates.hasNext() && batch.size() < m_batchSize) {
+                    batch.add(runStates.next());
+                }
+                next = new DecodeTask(batch, new Object[batch.size()][], new Exception[batch.size()], 0, batch.size());
+                m_pool.execute(next);
+            }
+
+            if (previous != null) {
+                previous.join();
+                for (int r = 0; r < previous.m_rows.length; r++) {
+                    if (previous.m_errors[r] != null) {
+                        throw new IllegalArgumentException("Unable to decode run state " + (rows + r), previous.m_errors[r]);
+                    }
+                    writer.writeRow(previous.m_rows[r]);
+                }
+                rows += previous.m_rows.length;
+            }
+            previous = next;
+        }
+        return rows;
+    }
+
+    /**
+     * Decodes the exported parts of a serialized run state
+     * @param json the run state JSON
+     * @return the row
+     */
+    protected Object[] decodeRow(String json) throws IOException {
+        Object[] row = new Object[m_columns.size()];
+        List<Object[]> frames = new ArrayList<>();
+        List<String> activeFlows = new ArrayList<>();
+
+        JsonReader reader = new JsonReader(new StringReader(json));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "contact":
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (reader.nextName().equals("uuid")) {
+                            row[0] = nextString(reader);
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                    break;
+                case "started":
+                    row[1] = nextTime(reader);
+                    break;
+                case "state":
+                    row[2] = nextString(reader);
+                    break;
+                case "active_flows":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        activeFlows.add(nextString(reader));
+                    }
+                    reader.endArray();
+                    break;
+                case "values":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        frames.add(decodeFrame(reader));
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        // use the values of the first level running this flow, leaving them empty if no level is running it
+        for (int f = 0; f < activeFlows.size() && f < frames.size(); f++) {
+            if (m_flow.getUuid().equals(activeFlows.get(f))) {
+                Object[] values = frames.get(f);
+                System.arraycopy(values, 0, row, FIXED_COLUMNS, values.length);
+                break;
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Decodes the values of a single level, ignoring those not saved by this flow
+     */
+    protected Object[] decodeFrame(JsonReader reader) throws IOException {
+        Object[] values = new Object[m_flow.getValueKeys().length * VALUE_COLUMNS.length];
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            int ordinal = m_flow.getValueOrdinal(reader.nextName());
+            if (ordinal < 0) {
+                reader.skipValue();
+                continue;
+            }
+
+            int base = ordinal * VALUE_COLUMNS.length;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "value":
+                        values[base] = nextString(reader);
+                        break;
+                    case "category":
+                        values[base + 1] = nextString(reader);
+                        break;
+                    case "text":
+                        values[base + 2] = nextString(reader);
+                        break;
+                    case "time":
+                        values[base + 3] = nextTime(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endObject();
+        return values;
+    }
+
+    protected static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    protected static Object nextTime(JsonReader reader) throws IOException {
+        String value = nextString(reader);
+        return value != null ? ExpressionUtils.parseJsonDate(value) : null;
+    }
+
+    /**
+     * Gets the column names and types
+     */
+    public Map<String, ColumnType> getColumns() {
+        return Collections.unmodifiableMap(m_columns);
+    }
+
+    /**
+     * Shuts down the pool if this exporter created it
+     */
+    @Override
+    public void close() {
+        if (m_ownsPool) {
+            m_pool.shutdown();
+        }
+    }
+
+    public ForkJoinPool getPool() {
+        return m_pool;
+    }
+
+    /**
+     * Decodes a range of a batch of run states, splitting it in half until it's small enough
+     */
+    protected class DecodeTask extends RecursiveAction {
+
+        protected List<String> m_runStates;
+
+        protected Object[][] m_rows;
+
+        protected Exception[] m_errors;
+
+        protected int m_from;
+
+        protected int m_to;
+
+        public DecodeTask(List<String> runStates, Object[][] rows, Exception[] errors, int from, int to) {
+            m_runStates = runStates;
+            m_rows = rows;
+            m_errors = errors;
+            m_from = from;
+            m_to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (m_to - m_from <= SPLIT_THRESHOLD) {
+                for (int r = m_from; r < m_to; r++) {
+                    try {
+                        m_rows[r] = decodeRow(m_runStates.get(r));
+                    } catch (IOException | RuntimeException e) {
+                        m_errors[r] = e;
+                    }
+                }
+            } else {
+                int middle = (m_from + m_to) >>> 1;
+                ForkJoinTask.invokeAll(new DecodeTask(m_runStates, m_rows, m_errors, m_from, middle),
+                                       new DecodeTask(m_runStates, m_rows, m_errors, middle, m_to));
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package io.rapidpro.flows.runner;
+
+/**
+ * Receives the outcome of an asynchronous resume
+ */
+public interface ResumeCallback {
+
+    /**
+     * Called when the run has been resumed, i.e. it's waiting for input or has completed
+     * @param run the run state
+     */
+    void onResumed(RunState run);
+
+    /**
+     * Called if resuming the run failed
+     * @param error the error, usually a {@link FlowRunException}
+     */
+    void onFailure(Throwable error);
+}
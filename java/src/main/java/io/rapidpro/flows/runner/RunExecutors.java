@@ -0,0 +1,55 @@
+package io.rapidpro.flows.runner;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Factory methods for executors to use for batch and async resumes. On JDK 21+ these can run each resume on its own
+ * virtual thread, so that blocking location lookups and webhook calls don't need a large pool of platform threads.
+ * Virtual threads are looked up reflectively so that this library remains compatible with Java 7.
+ */
+public class RunExecutors {
+
+    protected static Method s_newVirtualThreadPerTaskExecutor = findVirtualThreadFactoryMethod();
+
+    /**
+     * Gets whether this JVM supports virtual threads
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return s_newVirtualThreadPerTaskExecutor != null;
+    }
+
+    /**
+     * Creates an executor which runs each resume on a new virtual thread, or if this JVM doesn't support virtual
+     * threads, a cached pool of platform threads
+     * @return the executor which should be shutdown by the caller when no longer needed
+     */
+    public static ExecutorService newPerRunExecutor() {
+        if (s_newVirtualThreadPerTaskExecutor != null) {
+            try {
+                return (ExecutorService) s_newVirtualThreadPerTaskExecutor.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException("Unable to create virtual thread executor", e);
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Creates an executor with a fixed pool of platform threads
+     * @param threads the number of threads
+     * @return the executor which should be shutdown by the caller when no longer needed
+     */
+    public static ExecutorService newPlatformExecutor(int threads) {
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    protected static Method findVirtualThreadFactoryMethod() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package io.rapidpro.flows.runner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The future result of an asynchronous resume, which is completed through its callback methods. Resumes can't be
+ * cancelled once started.
+ */
+public class RunFuture implements Future<RunState>, ResumeCallback {
+
+    protected CountDownLatch m_done = new CountDownLatch(1);
+
+    protected volatile RunState m_run;
+
+    protected volatile Throwable m_error;
+
+    /**
+     * @see ResumeCallback#onResumed(RunState)
+     */
+    @Override
+    public void onResumed(RunState run) {
+        if (m_done.getCount() > 0) {
+            m_run = run;
+            m_done.countDown();
+        }
+    }
+
+    /**
+     * @see ResumeCallback#onFailure(Throwable)
+     */
+    @Override
+    public void onFailure(Throwable error) {
+        if (m_done.getCount() > 0) {
+            m_error = error;
+            m_done.countDown();
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return m_done.getCount() == 0;
+    }
+
+    @Override
+    public RunState get() throws InterruptedException, ExecutionException {
+        m_done.await();
+        return getResult();
+    }
+
+    @Override
+    public RunState get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!m_done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    protected RunState getResult() throws ExecutionException {
+        if (m_error != null) {
+            throw new ExecutionException(m_error);
+        }
+        return m_run;
+    }
+}
@@ -0,0 +1,154 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.flows.utils.JsonUtils;
+import org.threeten.bp.Clock;
+import org.threeten.bp.Instant;
+import org.threeten.bp.ZoneId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records runs so they can be replayed by a {@link RunReplayer}, e.g. to capture real conversations for use as
+ * performance regression tests. The runner must be built with this recorder's clock, which notes every time the
+ * runner reads it. Only synchronous starts and resumes are recorded, as readings are captured per thread.
+ */
+public class RunRecorder {
+
+    protected RecordingClock m_clock;
+
+    public RunRecorder() {
+        this(Clock.systemUTC());
+    }
+
+    /**
+     * Creates a recorder
+     * @param clock the clock which the recording clock reads from
+     */
+    public RunRecorder(Clock clock) {
+        m_clock = new RecordingClock(clock, new ThreadLocal<List<Instant>>());
+    }
+
+    /**
+     * Gets the clock which runners must be built with
+     */
+    public Clock getClock() {
+        return m_clock;
+    }
+
+    /**
+     * Starts a new run and its recording
+     * @param runner the runner, built with this recorder's clock
+     * @param org the org
+     * @param fields the contact fields
+     * @param contact the contact
+     * @param flowUuid the UUID of the flow to start
+     * @return the recording session
+     */
+    public Session start(Runner runner, Org org, List<Field> fields, Contact contact, String flowUuid) throws FlowRunException {
+        if (!m_clock.equals(runner.getClock())) {
+            throw new IllegalArgumentException("Runner must be built with the recorder's clock");
+        }
+
+        RunRecording recording = new RunRecording(flowUuid, org.toJson(), JsonUtils.toJsonArray(fields), contact.toJson());
+        Session session = new Session(runner, recording);
+
+        m_clock.begin();
+        try {
+            session.m_run = runner.start(org, fields, contact, flowUuid);
+        }
+        finally {
+            recording.m_events.add(RunRecording.Event.of(null, m_clock.end()));
+        }
+        return session;
+    }
+
+    /**
+     * A run which is being recorded
+     */
+    public class Session {
+
+        protected Runner m_runner;
+
+        protected RunRecording m_recording;
+
+        protected RunState m_run;
+
+        protected Session(Runner runner, RunRecording recording) {
+            m_runner = runner;
+            m_recording = recording;
+        }
+
+        /**
+         * Resumes the run with the given input
+         * @param input the input
+         * @return the run state
+         */
+        public RunState resume(Input input) throws FlowRunException {
+            m_clock.begin();
+            try {
+                return m_runner.resume(m_run, input);
+            }
+            finally {
+                m_recording.m_events.add(RunRecording.Event.of(input, m_clock.end()));
+            }
+        }
+
+        public RunState getRun() {
+            return m_run;
+        }
+
+        /**
+         * Gets the recording so far, including the current run state
+         */
+        public RunRecording getRecording() {
+            m_recording.m_finalState = m_run.toJsonString();
+            return m_recording;
+        }
+    }
+
+    /**
+     * Clock which notes its readings on threads which are recording
+     */
+    protected static class RecordingClock extends Clock {
+
+        protected Clock m_clock;
+
+        protected ThreadLocal<List<Instant>> m_readings;
+
+        protected RecordingClock(Clock clock, ThreadLocal<List<Instant>> readings) {
+            m_clock = clock;
+            m_readings = readings;
+        }
+
+        protected void begin() {
+            m_readings.set(new ArrayList<Instant>());
+        }
+
+        protected List<Instant> end() {
+            List<Instant> readings = m_readings.get();
+            m_readings.remove();
+            return readings;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return m_clock.getZone();
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return new RecordingClock(m_clock.withZone(zone), m_readings);
+        }
+
+        @Override
+        public Instant instant() {
+            Instant instant = m_clock.instant();
+            List<Instant> readings = m_readings.get();
+            if (readings != null) {
+                readings.add(instant);
+            }
+            return instant;
+        }
+    }
+}
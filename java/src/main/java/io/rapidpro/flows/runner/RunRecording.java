@@ -0,0 +1,232 @@
+package io.rapidpro.flows.runner;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.rapidpro.flows.utils.JsonUtils;
+import io.rapidpro.flows.utils.Jsonizable;
+import org.threeten.bp.Instant;
+import org.threeten.bp.LocalDate;
+import org.threeten.bp.ZonedDateTime;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A recording of a run made by a {@link RunRecorder}, i.e. the org, fields and contact it was started with, and the
+ * input and clock readings of each call to the runner, which is everything a {@link RunReplayer} needs to reproduce
+ * it exactly. Webhook calls aren't recorded, so runs which make them only replay identically if the replaying
+ * runner's webhook client gives the same responses.
+ */
+public class RunRecording implements Jsonizable {
+
+    protected String m_flowUuid;
+
+    protected JsonElement m_org;
+
+    protected JsonElement m_fields;
+
+    protected JsonElement m_contact;
+
+    protected List<Event> m_events = new ArrayList<>();
+
+    protected String m_finalState;
+
+    protected RunRecording(String flowUuid, JsonElement org, JsonElement fields, JsonElement contact) {
+        m_flowUuid = flowUuid;
+        m_org = org;
+        m_fields = fields;
+        m_contact = contact;
+    }
+
+    public static RunRecording fromJson(JsonElement elm) {
+        JsonObject obj = elm.getAsJsonObject();
+        RunRecording recording = new RunRecording(
+                obj.get("flow").getAsString(),
+                obj.get("org"),
+                obj.get("fields"),
+                obj.get("contact")
+        );
+        for (JsonElement event : obj.get("events").getAsJsonArray()) {
+            recording.m_events.add(Event.fromJson(event));
+        }
+        recording.m_finalState = JsonUtils.getAsString(obj, "final_state");
+        return recording;
+    }
+
+    @Override
+    public JsonElement toJson() {
+        return JsonUtils.object(
+                "flow", m_flowUuid,
+                "org", m_org,
+                "fields", m_fields,
+                "contact", m_contact,
+                "events", JsonUtils.toJsonArray(m_events),
+                "final_state", m_finalState
+        );
+    }
+
+    public String getFlowUuid() {
+        return m_flowUuid;
+    }
+
+    /**
+     * Gets the org as it was when the run was started
+     */
+    public Org getOrg() {
+        return Org.fromJson(m_org);
+    }
+
+    /**
+     * Gets the contact fields as they were when the run was started
+     */
+    public List<Field> getFields() {
+        return JsonUtils.fromJsonArray(m_fields.getAsJsonArray(), null, Field.class);
+    }
+
+    /**
+     * Gets the contact as it was when the run was started
+     */
+    public Contact getContact() {
+        return Contact.fromJson(m_contact);
+    }
+
+    /**
+     * Gets the calls to the runner, starting with the call which started the run
+     */
+    public List<Event> getEvents() {
+        return Collections.unmodifiableList(m_events);
+    }
+
+    /**
+     * Gets the serialized run state after the last event
+     * @return the run state JSON or null if it wasn't recorded
+     */
+    public String getFinalState() {
+        return m_finalState;
+    }
+
+    /**
+     * A single call to the runner
+     */
+    public static class Event implements Jsonizable {
+
+        protected String m_inputType;
+
+        protected String m_inputValue;
+
+        protected Instant m_inputTime;
+
+        protected List<Instant> m_clockReadings;
+
+        protected Event(String inputType, String inputValue, Instant inputTime, List<Instant> clockReadings) {
+            m_inputType = inputType;
+            m_inputValue = inputValue;
+            m_inputTime = inputTime;
+            m_clockReadings = clockReadings;
+        }
+
+        /**
+         * Creates an event
+         * @param input the input (null for the start of the run)
+         * @param clockReadings the values returned by the clock during the call
+         * @return the event
+         */
+        public static Event of(Input input, List<Instant> clockReadings) {
+            if (input == null) {
+                return new Event(null, null, null, clockReadings);
+            }
+
+            Object value = input.m_value;
+            String type;
+            if (value instanceof Input.MediaResource) {
+                type = "media";
+            } else if (value instanceof BigDecimal) {
+                type = "number";
+            } else if (value instanceof LocalDate) {
+                type = "date";
+            } else if (value instanceof ZonedDateTime) {
+                type = "datetime";
+            } else {
+                type = "text";
+            }
+            return new Event(type, value != null ? value.toString() : null, input.getTime(), clockReadings);
+        }
+
+        public static Event fromJson(JsonElement elm) {
+            JsonObject obj = elm.getAsJsonObject();
+            String inputTime = JsonUtils.getAsString(obj, "input_time");
+
+            List<Instant> clockReadings = new ArrayList<>();
+            for (JsonElement reading : obj.get("clock").getAsJsonArray()) {
+                clockReadings.add(Instant.parse(reading.getAsString()));
+            }
+
+            return new Event(
+                    JsonUtils.getAsString(obj, "input_type"),
+                    JsonUtils.getAsString(obj, "input_value"),
+                    inputTime != null ? Instant.parse(inputTime) : null,
+                    clockReadings
+            );
+        }
+
+        @Override
+        public JsonElement toJson() {
+            JsonArray clockReadings = new JsonArray();
+            for (Instant reading : m_clockReadings) {
+                clockReadings.add(JsonUtils.toJson(reading.toString()));
+            }
+
+            return JsonUtils.object(
+                    "input_type", m_inputType,
+                    "input_value", m_inputValue,
+                    "input_time", m_inputTime != null ? m_inputTime.toString() : null,
+                    "clock", clockReadings
+            );
+        }
+
+        /**
+         * Recreates the input of this event
+         * @return the input or null if this event is the start of the run
+         */
+        public Input toInput() {
+            if (m_inputType == null) {
+                return null;
+            }
+
+            Input input;
+            switch (m_inputType) {
+                case "media":
+                    int colon = m_inputValue.indexOf(':');
+                    input = Input.of(m_inputValue.substring(0, colon), m_inputValue.substring(colon + 1));
+                    break;
+                case "number":
+                    input = Input.of(new BigDecimal(m_inputValue));
+                    break;
+                case "date":
+                    input = Input.of(LocalDate.parse(m_inputValue));
+                    break;
+                case "datetime":
+                    input = Input.of(ZonedDateTime.parse(m_inputValue));
+                    break;
+                default:
+                    input = Input.of(m_inputValue);
+            }
+            input.m_time = m_inputTime;
+            return input;
+        }
+
+        /**
+         * Gets whether this event is the start of the run
+         */
+        public boolean isStart() {
+            return m_inputType == null;
+        }
+
+        public List<Instant> getClockReadings() {
+            return Collections.unmodifiableList(m_clockReadings);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.flows.RunnerBuilder;
+import org.threeten.bp.Clock;
+import org.threeten.bp.Instant;
+import org.threeten.bp.ZoneId;
+import org.threeten.bp.ZoneOffset;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Replays runs recorded by a {@link RunRecorder}, giving the runner the same clock readings so that the replayed run
+ * states are identical to the recorded ones. Can also time each call to the runner, to measure resume latency over
+ * captured traffic.
+ */
+public class RunReplayer {
+
+    protected ReplayClock m_clock = new ReplayClock(new ThreadLocal<Deque<Instant>>(), ZoneOffset.UTC);
+
+    protected Runner m_runner;
+
+    /**
+     * Creates a replayer. The builder should configure the runner the same way as the one which was recorded.
+     * @param builder the builder of the runner which replays runs
+     */
+    public RunReplayer(RunnerBuilder builder) {
+        m_runner = builder.withClock(m_clock).build();
+    }
+
+    /**
+     * Replays a recorded run
+     * @param recording the recording
+     * @return the run state after the last event
+     */
+    public RunState replay(RunRecording recording) throws FlowRunException {
+        return replay(recording, null);
+    }
+
+    /**
+     * Replays a recorded run and checks that it ends in the same state as the recording
+     * @param recording the recording
+     * @return whether the replayed run state is identical
+     */
+    public boolean verify(RunRecording recording) throws FlowRunException {
+        return replay(recording).toJsonString().equals(recording.getFinalState());
+    }
+
+    /**
+     * Replays the given recordings a number of times, timing each call to the runner
+     * @param recordings the recordings
+     * @param warmups the number of times to replay them before timing
+     * @param iterations the number of times to replay them whilst timing
+     * @return the timings
+     */
+    public Timings time(Collection<RunRecording> recordings, int warmups, int iterations) throws FlowRunException {
+        for (int w = 0; w < warmups; w++) {
+            for (RunRecording recording : recordings) {
+                replay(recording, null);
+            }
+        }
+
+        Timings timings = new Timings();
+        for (int i = 0; i < iterations; i++) {
+            for (RunRecording recording : recordings) {
+                replay(recording, timings);
+            }
+        }
+        return timings;
+    }
+
+    protected RunState replay(RunRecording recording, Timings timings) throws FlowRunException {
+        List<RunRecording.Event> events = recording.getEvents();
+        if (events.isEmpty() || !events.get(0).isStart()) {
+            throw new IllegalArgumentException("Recording doesn't start with the start of a run");
+        }
+
+        Org org = recording.getOrg();
+        List<Field> fields = recording.getFields();
+        Contact contact = recording.getContact();
+
+        m_clock.load(events.get(0).getClockReadings());
+        long start = System.nanoTime();
+        RunState run = m_runner.start(org, fields, contact, recording.getFlowUuid());
+        if (timings != null) {
+            timings.add(System.nanoTime() - start);
+        }
+        m_clock.finish();
+
+        for (RunRecording.Event event : events.subList(1, events.size())) {
+            Input input = event.toInput();
+
+            m_clock.load(event.getClockReadings());
+            start = System.nanoTime();
+            m_runner.resume(run, input);
+            if (timings != null) {
+                timings.add(System.nanoTime() - start);
+            }
+            m_clock.finish();
+        }
+        return run;
+    }
+
+    public Runner getRunner() {
+        return m_runner;
+    }
+
+    /**
+     * The latencies of replayed calls to the runner
+     */
+    public static class Timings {
+
+        protected long[] m_nanos = new long[1024];
+
+        protected int m_count;
+
+        protected boolean m_sorted;
+
+        protected void add(long nanos) {
+            if (m_count == m_nanos.length) {
+                m_nanos = Arrays.copyOf(m_nanos, m_count * 2);
+            }
+            m_nanos[m_count++] = nanos;
+            m_sorted = false;
+        }
+
+        /**
+         * Gets the number of timed calls
+         */
+        public int getCount() {
+            return m_count;
+        }
+
+        /**
+         * Gets the mean latency in nanoseconds
+         */
+        public double getMean() {
+            long total = 0;
+            for (int n = 0; n < m_count; n++) {
+                total += m_nanos[n];
+            }
+            return m_count > 0 ? (double) total / m_count : 0;
+        }
+
+        /**
+         * Gets a latency percentile in nanoseconds
+         * @param percentile the percentile, e.g. 99 for the 99th
+         * @return the latency
+         */
+        public long getPercentile(double percentile) {
+            if (m_count == 0) {
+                return 0;
+            }
+            if (!m_sorted) {
+                Arrays.sort(m_nanos, 0, m_count);
+                m_sorted = true;
+            }
+            int index = (int) Math.ceil(percentile / 100 * m_count) - 1;
+            return m_nanos[Math.max(0, Math.min(m_count - 1, index))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d calls: mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us",
+                    m_count, getMean() / 1000, getPercentile(50) / 1000.0, getPercentile(99) / 1000.0, getPercentile(100) / 1000.0);
+        }
+    }
+
+    /**
+     * Clock which returns the recorded readings of the current call on this thread
+     */
+    protected static class ReplayClock extends Clock {
+
+        protected ThreadLocal<Deque<Instant>> m_readings;
+
+        protected ZoneId m_zone;
+
+        protected ReplayClock(ThreadLocal<Deque<Instant>> readings, ZoneId zone) {
+            m_readings = readings;
+            m_zone = zone;
+        }
+
+        protected void load(List<Instant> readings) {
+            m_readings.set(new ArrayDeque<>(readings));
+        }
+
+        protected void finish() {
+            Deque<Instant> readings = m_readings.get();
+            m_readings.remove();
+            if (!readings.isEmpty()) {
+                throw new IllegalStateException("Replay diverged from recording: " + readings.size() + " clock readings weren't used");
+            }
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return m_zone;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return new ReplayClock(m_readings, zone);
+        }
+
+        @Override
+        public Instant instant() {
+            Deque<Instant> readings = m_readings.get();
+            if (readings == null || readings.isEmpty()) {
+                throw new IllegalStateException("Replay diverged from recording: clock read more times than recorded");
+            }
+            return readings.poll();
+        }
+    }
+}
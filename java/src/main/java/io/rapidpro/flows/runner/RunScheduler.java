@@ -0,0 +1,616 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.flows.definition.Flow;
+import io.rapidpro.flows.definition.RuleSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threeten.bp.Clock;
+import org.threeten.bp.Duration;
+import org.threeten.bp.Instant;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules the deadlines of waiting runs, i.e. when the wait at a ruleset times out or when the run expires, and
+ * notifies a listener when they pass so it can resume or expire the run. Deadlines are kept in a hierarchical timing
+ * wheel, so scheduling, cancelling and firing are all constant time regardless of how many runs are waiting.
+ *
+ * The wheel has 4 levels of 256 slots. A deadline within 256 ticks goes into a slot of the first level, one within
+ * 65,536 ticks into a slot of the second level and so on. Each time the first level wraps around, the next slot of
+ * the second level is cascaded down into the first, and likewise for the higher levels. Deadlines are rounded up to
+ * the next tick so they never fire early, and those which have already passed fire on the next advance.
+ *
+ * Each contact has at most one deadline, so scheduling a contact's run replaces any previous deadline. Deadlines only
+ * fire when the scheduler is advanced, either by calling {@link #advance()} or by starting its ticker thread.
+ */
+public class RunScheduler implements Closeable {
+
+    protected static Logger logger = LoggerFactory.getLogger(RunScheduler.class);
+
+    public static final Duration DEFAULT_TICK = Duration.ofMillis(100);
+
+    protected static final int LEVEL_BITS = 8;
+
+    protected static final int LEVEL_SIZE = 1 << LEVEL_BITS;
+
+    protected static final int LEVEL_MASK = LEVEL_SIZE - 1;
+
+    protected static final int NUM_LEVELS = 4;
+
+    protected static final long MAX_DELTA = (1L << (LEVEL_BITS * NUM_LEVELS)) - 1;
+
+    protected static final int OVERDUE = -1;
+
+    /**
+     * Why a deadline was scheduled
+     */
+    public enum Kind {
+        TIMEOUT,
+        EXPIRY
+    }
+
+    /**
+     * Listener notified when deadlines pass
+     */
+    public interface Listener {
+
+        /**
+         * Called on the advancing thread when a deadline has passed. The run may have been resumed since the deadline
+         * was scheduled without it being cancelled, so implementations should check that the run is still waiting at
+         * the deadline's node before acting on it.
+         * @param deadline the deadline
+         */
+        void onDeadline(Deadline deadline);
+    }
+
+    protected Timeouts m_timeouts;
+
+    protected Listener m_listener;
+
+    protected Clock m_clock;
+
+    protected long m_tickMillis;
+
+    protected Timer[][] m_slots = new Timer[NUM_LEVELS][LEVEL_SIZE];
+
+    protected Timer m_overdue;
+
+    protected Map<String, Timer> m_timersByContact = new HashMap<>();
+
+    protected long m_nextTick;
+
+    protected long m_nextId = 1;
+
+    protected ScheduledExecutorService m_ticker;
+
+    /**
+     * Creates a scheduler which uses the system clock and the default tick
+     * @param timeouts the timeouts of flows and rulesets
+     * @param listener the listener notified when deadlines pass
+     */
+    public RunScheduler(Timeouts timeouts, Listener listener) {
+        this(timeouts, listener, Clock.systemUTC(), DEFAULT_TICK);
+    }
+
+    /**
+     * Creates a scheduler
+     * @param timeouts the timeouts of flows and rulesets
+     * @param listener the listener notified when deadlines pass
+     * @param clock the clock which deadlines are compared against
+     * @param tick the resolution of the wheel
+     */
+    public RunScheduler(Timeouts timeouts, Listener listener, Clock clock, Duration tick) {
+        if (tick.toMillis() < 1) {
+            throw new IllegalArgumentException("Tick must be at least a millisecond");
+        }
+
+        m_timeouts = timeouts;
+        m_listener = listener;
+        m_clock = clock;
+        m_tickMillis = tick.toMillis();
+        m_nextTick = currentTick();
+    }
+
+    /**
+     * Schedules the deadline of the given run from its timeouts, replacing any previous deadline for its contact. If
+     * the run isn't waiting or there is no timeout for where it's waiting, then any previous deadline is cancelled.
+     * @param run the run state
+     * @return the deadline or null if none was scheduled
+     */
+    public Deadline schedule(RunState run) {
+        String contactUuid = run.getContact().getUuid();
+        Deadline deadline = m_timeouts.getDeadline(contactUuid, run);
+        if (deadline != null) {
+            schedule(deadline);
+        } else {
+            cancel(contactUuid);
+        }
+        return deadline;
+    }
+
+    /**
+     * Schedules the given deadline, replacing any previous deadline for its contact
+     * @param deadline the deadline
+     */
+    public synchronized void schedule(Deadline deadline) {
+        Timer previous = m_timersByContact.remove(deadline.getContactUuid());
+        if (previous != null) {
+            unlink(previous);
+            onRemoved(previous);
+        }
+
+        Timer timer = new Timer(m_nextId++, deadline, toTick(deadline.getTime()));
+        m_timersByContact.put(deadline.getContactUuid(), timer);
+        link(timer);
+        onScheduled(timer);
+    }
+
+    /**
+     * Cancels the deadline of the given contact's run, e.g. because it has been resumed or interrupted
+     * @param contactUuid the contact UUID
+     * @return whether there was a deadline to cancel
+     */
+    public synchronized boolean cancel(String contactUuid) {
+        Timer timer = m_timersByContact.remove(contactUuid);
+        if (timer == null) {
+            return false;
+        }
+        unlink(timer);
+        onRemoved(timer);
+        return true;
+    }
+
+    /**
+     * Gets the scheduled deadline of the given contact's run
+     * @param contactUuid the contact UUID
+     * @return the deadline or null if there is none
+     */
+    public synchronized Deadline getDeadline(String contactUuid) {
+        Timer timer = m_timersByContact.get(contactUuid);
+        return timer != null ? timer.m_deadline : null;
+    }
+
+    /**
+     * Gets the number of scheduled deadlines
+     */
+    public synchronized int size() {
+        return m_timersByContact.size();
+    }
+
+    /**
+     * Advances the wheel to the current time, notifying the listener of every deadline which has passed
+     * @return the number of deadlines which fired
+     */
+    public int advance() {
+        List<Timer> due = new ArrayList<>();
+
+        synchronized (this) {
+            long now = currentTick();
+
+            // deadlines which had already passed when they were scheduled
+            takeDue(m_overdue, due);
+            m_overdue = null;
+
+            // nothing can fire so there's no need to step through the ticks one by one
+            if (m_timersByContact.isEmpty()) {
+                m_nextTick = Math.max(m_nextTick, now + 1);
+            }
+
+            while (m_nextTick <= now) {
+                long tick = m_nextTick;
+                int index = (int) (tick & LEVEL_MASK);
+
+                // when a level wraps around, cascade the next slot of the level above
+                for (int level = 1; level < NUM_LEVELS && index == 0; level++) {
+                    index = (int) ((tick >>> (LEVEL_BITS * level)) & LEVEL_MASK);
+                    cascade(level, index);
+                }
+
+                int slot = (int) (tick & LEVEL_MASK);
+                takeDue(m_slots[0][slot], due);
+                m_slots[0][slot] = null;
+
+                m_nextTick = tick + 1;
+            }
+        }
+
+        for (Timer timer : due) {
+            try {
+                m_listener.onDeadline(timer.m_deadline);
+            } catch (Exception e) {
+                logger.error("Listener failed for deadline of contact " + timer.m_deadline.getContactUuid(), e);
+            }
+            synchronized (this) {
+                onFired(timer);
+            }
+        }
+        return due.size();
+    }
+
+    /**
+     * Starts a daemon thread which advances the wheel every tick
+     */
+    public synchronized void start() {
+        if (m_ticker != null) {
+            return;
+        }
+
+        m_ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "run-scheduler-ticker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        m_ticker.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    advance();
+                } catch (Exception e) {
+                    logger.error("Unable to advance run scheduler", e);
+                }
+            }
+        }, m_tickMillis, m_tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the ticker thread if it was started
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (m_ticker != null) {
+                m_ticker.shutdownNow();
+                m_ticker = null;
+            }
+        }
+    }
+
+    /**
+     * Called with the lock held when a timer is added to the wheel
+     */
+    protected void onScheduled(Timer timer) {
+    }
+
+    /**
+     * Called with the lock held when a timer is replaced or cancelled
+     */
+    protected void onRemoved(Timer timer) {
+    }
+
+    /**
+     * Called with the lock held when a timer is taken off the wheel because its deadline has passed
+     */
+    protected void onDue(Timer timer) {
+    }
+
+    /**
+     * Called with the lock held after the listener has been notified of a timer's deadline
+     */
+    protected void onFired(Timer timer) {
+    }
+
+    protected long currentTick() {
+        return m_clock.millis() / m_tickMillis;
+    }
+
+    /**
+     * Converts a time to the first tick at or after it
+     */
+    protected long toTick(Instant time) {
+        long millis = time.toEpochMilli();
+        return millis / m_tickMillis + (millis % m_tickMillis > 0 ? 1 : 0);
+    }
+
+    /**
+     * Adds a timer to the slot for its tick, relative to the next tick to be processed. Timers whose tick has already
+     * been processed go into the overdue list instead.
+     */
+    protected void link(Timer timer) {
+        long tick = timer.m_tick;
+        long delta = tick - m_nextTick;
+        int level = 0;
+        int slot = 0;
+
+        if (delta < 0) {
+            level = OVERDUE;
+        } else {
+            if (delta > MAX_DELTA) {
+                // will be cascaded back into the top level until it's within range
+                tick = m_nextTick + MAX_DELTA;
+                level = NUM_LEVELS - 1;
+            } else {
+                while (delta >= LEVEL_SIZE) {
+                    delta >>>= LEVEL_BITS;
+                    level++;
+                }
+            }
+            slot = (int) ((tick >>> (LEVEL_BITS * level)) & LEVEL_MASK);
+        }
+
+        Timer head = getHead(level, slot);
+        timer.m_level = level;
+        timer.m_slot = slot;
+        timer.m_prev = null;
+        timer.m_next = head;
+        if (head != null) {
+            head.m_prev = timer;
+        }
+        setHead(level, slot, timer);
+    }
+
+    protected void unlink(Timer timer) {
+        if (timer.m_prev != null) {
+            timer.m_prev.m_next = timer.m_next;
+        } else {
+            setHead(timer.m_level, timer.m_slot, timer.m_next);
+        }
+        if (timer.m_next != null) {
+            timer.m_next.m_prev = timer.m_prev;
+        }
+        timer.m_prev = timer.m_next = null;
+    }
+
+    protected Timer getHead(int level, int slot) {
+        return level == OVERDUE ? m_overdue : m_slots[level][slot];
+    }
+
+    protected void setHead(int level, int slot, Timer head) {
+        if (level == OVERDUE) {
+            m_overdue = head;
+        } else {
+            m_slots[level][slot] = head;
+        }
+    }
+
+    /**
+     * Takes every timer in the given list off the wheel and adds them to the due timers
+     */
+    protected void takeDue(Timer timer, List<Timer> due) {
+        while (timer != null) {
+            Timer next = timer.m_next;
+            timer.m_prev = timer.m_next = null;
+            m_timersByContact.remove(timer.m_deadline.getContactUuid());
+            onDue(timer);
+            due.add(timer);
+            timer = next;
+        }
+    }
+
+    /**
+     * Re-adds every timer in the given slot, moving them down to lower levels
+     */
+    protected void cascade(int level, int slot) {
+        Timer timer = m_slots[level][slot];
+        m_slots[level][slot] = null;
+        while (timer != null) {
+            Timer next = timer.m_next;
+            link(timer);
+            timer = next;
+        }
+    }
+
+    /**
+     * A scheduled deadline in the wheel
+     */
+    protected static class Timer {
+
+        protected long m_id;
+
+        protected Deadline m_deadline;
+
+        protected long m_tick;
+
+        protected int m_level;
+
+        protected int m_slot;
+
+        protected Timer m_prev;
+
+        protected Timer m_next;
+
+        protected Timer(long id, Deadline deadline, long tick) {
+            m_id = id;
+            m_deadline = deadline;
+            m_tick = tick;
+        }
+    }
+
+    /**
+     * The deadline of a contact's run waiting at a node
+     */
+    public static class Deadline {
+
+        protected String m_contactUuid;
+
+        protected String m_flowUuid;
+
+        protected String m_nodeUuid;
+
+        protected Instant m_arrivedOn;
+
+        protected Kind m_kind;
+
+        protected Instant m_time;
+
+        public Deadline(String contactUuid, String flowUuid, String nodeUuid, Instant arrivedOn, Kind kind, Instant time) {
+            m_contactUuid = contactUuid;
+            m_flowUuid = flowUuid;
+            m_nodeUuid = nodeUuid;
+            m_arrivedOn = arrivedOn;
+            m_kind = kind;
+            m_time = time;
+        }
+
+        public String getContactUuid() {
+            return m_contactUuid;
+        }
+
+        public String getFlowUuid() {
+            return m_flowUuid;
+        }
+
+        public String getNodeUuid() {
+            return m_nodeUuid;
+        }
+
+        /**
+         * Gets when the run arrived at the node it's waiting at
+         */
+        public Instant getArrivedOn() {
+            return m_arrivedOn;
+        }
+
+        public Kind getKind() {
+            return m_kind;
+        }
+
+        public Instant getTime() {
+            return m_time;
+        }
+
+        /**
+         * Gets whether the given run is still waiting where it was when this deadline was scheduled
+         * @param run the run state
+         * @return true if the run hasn't moved on
+         */
+        public boolean isCurrent(RunState run) {
+            Step step = Timeouts.getWaitingStep(run);
+            return step != null
+                    && step.getNode().getUuid().equals(m_nodeUuid)
+                    && step.getArrivedOn().equals(m_arrivedOn);
+        }
+
+        @Override
+        public String toString() {
+            return m_kind + " of " + m_contactUuid + " at " + m_nodeUuid + " on " + m_time;
+        }
+    }
+
+    /**
+     * The configured timeouts of waits at rulesets and expiries of flows. A run waiting at a ruleset with a timeout
+     * times out that long after it arrived there, and a run waiting in a flow with an expiry expires that long after
+     * it arrived at the wait, whichever is sooner.
+     */
+    public static class Timeouts {
+
+        protected Duration m_defaultExpiry;
+
+        protected Map<String, Duration> m_flowExpiries = new HashMap<>();
+
+        protected Map<String, Duration> m_ruleSetTimeouts = new HashMap<>();
+
+        /**
+         * Sets the expiry of flows which don't have their own
+         * @param expiry the expiry or null for none
+         * @return this
+         */
+        public Timeouts withDefaultExpiry(Duration expiry) {
+            m_defaultExpiry = expiry;
+            return this;
+        }
+
+        /**
+         * Sets the expiry of a flow
+         * @param flowUuid the flow UUID
+         * @param expiry the expiry
+         * @return this
+         */
+        public Timeouts withFlowExpiry(String flowUuid, Duration expiry) {
+            m_flowExpiries.put(flowUuid, expiry);
+            return this;
+        }
+
+        /**
+         * Sets the timeout of a ruleset
+         * @param ruleSetUuid the ruleset UUID
+         * @param timeout the timeout
+         * @return this
+         */
+        public Timeouts withRuleSetTimeout(String ruleSetUuid, Duration timeout) {
+            m_ruleSetTimeouts.put(ruleSetUuid, timeout);
+            return this;
+        }
+
+        /**
+         * Gets the expiry of the given flow
+         * @param flow the flow
+         * @return the expiry or null if it doesn't expire
+         */
+        public Duration getExpiry(Flow flow) {
+            Duration expiry = m_flowExpiries.get(flow.getUuid());
+            return expiry != null ? expiry : m_defaultExpiry;
+        }
+
+        /**
+         * Gets the timeout of the given ruleset
+         * @param ruleSet the ruleset
+         * @return the timeout or null if it doesn't time out
+         */
+        public Duration getTimeout(RuleSet ruleSet) {
+            return m_ruleSetTimeouts.get(ruleSet.getUuid());
+        }
+
+        /**
+         * Gets the deadline of the given run
+         * @param contactUuid the contact UUID
+         * @param run the run state
+         * @return the deadline or null if the run isn't waiting or there is no timeout where it's waiting
+         */
+        public Deadline getDeadline(String contactUuid, RunState run) {
+            Step step = getWaitingStep(run);
+            if (step == null) {
+                return null;
+            }
+
+            Duration expiry = getExpiry(step.getFlow());
+            Duration timeout = step.getNode() instanceof RuleSet ? getTimeout((RuleSet) step.getNode()) : null;
+
+            Kind kind;
+            Duration duration;
+            if (timeout != null && (expiry == null || timeout.compareTo(expiry) <= 0)) {
+                kind = Kind.TIMEOUT;
+                duration = timeout;
+            } else if (expiry != null) {
+                kind = Kind.EXPIRY;
+                duration = expiry;
+            } else {
+                return null;
+            }
+
+            Instant arrivedOn = step.getArrivedOn();
+            return new Deadline(contactUuid, step.getFlow().getUuid(), step.getNode().getUuid(), arrivedOn, kind, arrivedOn.plus(duration));
+        }
+
+        /**
+         * Gets the step where the given run is waiting for the contact. Runs waiting on a webhook call aren't waiting
+         * for the contact, so they have no deadline until the call returns.
+         * @param run the run state
+         * @return the step or null if the run isn't waiting for the contact
+         */
+        protected static Step getWaitingStep(RunState run) {
+            RunState.State state = run.getState();
+            if (state == RunState.State.IN_PROGRESS || state == RunState.State.COMPLETED || state == RunState.State.WAIT_WEBHOOK) {
+                return null;
+            }
+
+            List<Step> steps = run.getSteps();
+            if (steps.isEmpty()) {
+                return null;
+            }
+            Step step = steps.get(steps.size() - 1);
+            return step.isCompleted() ? null : step;
+        }
+    }
+}
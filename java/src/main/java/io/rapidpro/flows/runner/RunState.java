@@ -7,10 +7,14 @@ import io.rapidpro.expressions.EvaluationContext;
 import io.rapidpro.expressions.evaluator.Conversions;
 import io.rapidpro.expressions.utils.ExpressionUtils;
 import io.rapidpro.flows.definition.Flow;
+import io.rapidpro.flows.definition.FlowAnalysis;
+import io.rapidpro.flows.definition.LanguageDictionary;
+import io.rapidpro.flows.definition.Localization;
 import io.rapidpro.flows.definition.RuleSet;
 import io.rapidpro.flows.utils.FlowUtils;
 import io.rapidpro.flows.utils.JsonUtils;
 import io.rapidpro.flows.utils.Jsonizable;
+import io.rapidpro.flows.utils.StringPool;
 import org.apache.commons.lang3.StringUtils;
 import org.threeten.bp.Instant;
 import org.threeten.bp.LocalDate;
@@ -33,7 +37,8 @@ public class RunState implements Jsonizable {
         WAIT_MESSAGE,
         WAIT_PHOTO,
         WAIT_GPS,
-        WAIT_VIDEO
+        WAIT_VIDEO,
+        WAIT_WEBHOOK
     }
 
     protected Org m_org;
@@ -46,20 +51,57 @@ public class RunState implements Jsonizable {
 
     protected List<Step> m_steps;
 
-    protected List<Map<String, Value>> m_values;
-
     protected Map<String, String> m_extra;
 
     protected State m_state;
 
     protected Map<String,Flow> m_flows;
 
-    protected List<Flow> m_activeFlows;
-
-    protected List<Step> m_suspendedSteps;
+    /**
+     * One frame per subflow level, plus the frame of the most recently exited child (if any) so that its values can
+     * be accessed as @child
+     */
+    protected List<Frame> m_frames;
 
     protected int m_level;
 
+    protected StepJournal m_journal;
+
+    /**
+     * The action sink passed to the resume call in progress (if any)
+     */
+    protected ActionSink m_actionSink;
+
+    /**
+     * The version of this run state in a {@link RunStore}, or zero if it hasn't been stored
+     */
+    protected long m_version;
+
+    /**
+     * The webhook call the run is waiting on (if any)
+     */
+    protected WebhookClient.Request m_pendingWebhook;
+
+    /**
+     * The response to the webhook call, to be applied when the run continues
+     */
+    protected WebhookClient.Response m_webhookResponse;
+
+    /**
+     * The nodes visited so far by the current resume, if it's checking for loops
+     */
+    protected Set<Flow.Node> m_nodesVisited;
+
+    /**
+     * The node being visited by the resume in progress (if any), whose templates decide which variables contexts need
+     */
+    protected Flow.Node m_visiting;
+
+    /**
+     * The resolved language preferences, cached until the contact language or active flow changes
+     */
+    protected Localization m_localization;
+
     /**
      * Creates a run state for a new run by the given contact in the given flow
      * @param org the org
@@ -67,21 +109,30 @@ public class RunState implements Jsonizable {
      * @param contact the contact
      */
     public RunState(Org org, List<Field> fields, Contact contact, Map<String,Flow> flows) {
+        this(org, fields, contact, flows, Instant.now());
+    }
+
+    /**
+     * Creates a run state for a new run by the given contact in the given flow
+     * @param org the org
+     * @param fields the contact fields
+     * @param contact the contact
+     * @param started when the run was started
+     */
+    public RunState(Org org, List<Field> fields, Contact contact, Map<String,Flow> flows, Instant started) {
         this.m_org = org;
         this.m_fields = fields;
         this.m_contact = contact;
-        this.m_started = Instant.now();
+        this.m_started = started;
         this.m_steps = new ArrayList<>();
         this.m_extra = new HashMap<>();
         this.m_state = State.IN_PROGRESS;
         this.m_flows = flows;
         this.m_level = 0;
-        this.m_activeFlows = new ArrayList<>();
-        this.m_suspendedSteps = new ArrayList<>();
 
-        // our current level of values
-        this.m_values = new ArrayList<>();
-        this.m_values.add(new HashMap<String, Value>());
+        // our top-level frame whose flow is set when the run is started
+        this.m_frames = new ArrayList<>();
+        this.m_frames.add(new Frame(null));
     }
 
     public static Map<String,Flow> buildFlowMap(Flow flow) {
@@ -107,25 +158,48 @@ public class RunState implements Jsonizable {
                 flows
         );
 
-        // load up our active flows
-        List<String> flowUuids = JsonUtils.fromJsonArray(obj.get("active_flows").getAsJsonArray(), null, String.class);
-        List<Flow> activeFlows = new ArrayList<>();
-        for (String flowUuid : flowUuids) {
-            activeFlows.add(flows.get(flowUuid));
-        }
-
         run.m_started = ExpressionUtils.parseJsonDate(JsonUtils.getAsString(obj, "started"));
         run.m_steps = JsonUtils.fromJsonArray(obj.get("steps").getAsJsonArray(), context, Step.class);
-        run.m_values = JsonUtils.fromJsonObjectArray(obj.get("values").getAsJsonArray(), null, Value.class);
         run.m_extra = JsonUtils.fromJsonObject(obj.get("extra").getAsJsonObject(), null, String.class);
         run.m_state = State.valueOf(obj.get("state").getAsString().toUpperCase());
         run.m_level = obj.get("level").getAsInt();
-        run.m_suspendedSteps = JsonUtils.fromJsonArray(obj.get("suspended_steps").getAsJsonArray(), context, Step.class);
-        run.m_activeFlows = activeFlows;
+
+        // rebuild our frames from the active flows, values and suspended steps
+        List<String> flowUuids = JsonUtils.fromJsonArray(obj.get("active_flows").getAsJsonArray(), null, String.class);
+        JsonArray values = obj.get("values").getAsJsonArray();
+        List<Step> suspendedSteps = JsonUtils.fromJsonArray(obj.get("suspended_steps").getAsJsonArray(), context, Step.class);
+
+        // older run states may have values for dead levels below our child, which we can ignore
+        int numFrames = Math.max(flowUuids.size(), Math.min(values.size(), run.m_level + 2));
+
+        run.m_frames = new ArrayList<>(numFrames);
+        for (int f = 0; f < numFrames; f++) {
+            Frame frame = new Frame(f < flowUuids.size() ? flows.get(flowUuids.get(f)) : null);
+            if (f < values.size()) {
+                valuesFromJson(values.get(f).getAsJsonObject(), frame.m_flow, frame.m_values);
+            }
+            if (f < suspendedSteps.size()) {
+                frame.m_suspendedStep = suspendedSteps.get(f);
+            }
+            run.m_frames.add(frame);
+        }
 
         return run;
     }
 
+    /**
+     * Restores the values of a frame, using the strings of the frame's flow where they match
+     * @param obj the JSON object of value keys to values
+     * @param flow the flow of the frame, may be null
+     * @param values the values to add to
+     */
+    protected static void valuesFromJson(JsonObject obj, Flow flow, Map<String, Value> values) {
+        for (Map.Entry<String, JsonElement> entry : obj.entrySet()) {
+            String key = flow != null ? flow.intern(entry.getKey()) : StringPool.getShared().intern(entry.getKey());
+            values.put(key, Value.fromJson(entry.getValue(), flow));
+        }
+    }
+
     /**
      * Serializes this run state to JSON
      * @return the JSON
@@ -133,10 +207,19 @@ public class RunState implements Jsonizable {
     @Override
     public JsonElement toJson() {
 
-        // get a list of active flow uuids
+        // get a list of active flow uuids, suspended steps and the values of all live frames
         List<String> flowUuids = new ArrayList<>();
-        for (Flow flow : m_activeFlows) {
-            flowUuids.add(flow.getUuid());
+        List<Step> suspendedSteps = new ArrayList<>();
+        List<Map<String, Value>> values = new ArrayList<>();
+        for (int f = 0; f < m_frames.size(); f++) {
+            Frame frame = m_frames.get(f);
+            if (f <= m_level && frame.m_flow != null) {
+                flowUuids.add(frame.m_flow.getUuid());
+            }
+            if (f < m_level) {
+                suspendedSteps.add(frame.m_suspendedStep);
+            }
+            values.add(frame.m_values);
         }
 
         return JsonUtils.object(
@@ -145,11 +228,11 @@ public class RunState implements Jsonizable {
                 "contact", m_contact.toJson(),
                 "started", ExpressionUtils.formatJsonDate(m_started),
                 "steps", JsonUtils.toJsonArray(m_steps),
-                "values", toJsonObjectArray(m_values),
+                "values", toJsonObjectArray(values),
                 "extra", JsonUtils.toJsonObject(m_extra),
                 "state", m_state.name().toLowerCase(),
                 "active_flows", JsonUtils.toJsonArray(flowUuids),
-                "suspended_steps", JsonUtils.toJsonArray(m_suspendedSteps),
+                "suspended_steps", JsonUtils.toJsonArray(suspendedSteps),
                 "level", m_level
         );
     }
@@ -174,48 +257,165 @@ public class RunState implements Jsonizable {
     }
 
     /**
-     * Sets the active flow by pushing on to our list of flows
-     * @param activeFlow
+     * Sets the flow of the current frame
+     * @param activeFlow the flow
      */
     public void setActiveFlow(Flow activeFlow) {
-        this.m_activeFlows.add(activeFlow);
+        m_frames.get(m_level).setFlow(activeFlow);
     }
 
     /**
-     * Builds the top-level evaluation context (all variables, date information)
+     * Builds the top-level evaluation context (all variables, date information) for the node being visited
      * @param input the current input
      * @return the context
      */
     public EvaluationContext buildContext(Runner runner, Input input) {
+        return buildContext(runner, input, m_visiting);
+    }
+
+    /**
+     * Builds the top-level evaluation context for evaluating the templates of the given node. The contact, extra,
+     * flow, parent and child variables are left out if the node's templates never reference them.
+     * @param input the current input
+     * @param node the node or null to include all variables
+     * @return the context
+     */
+    public EvaluationContext buildContext(Runner runner, Input input, Flow.Node node) {
         // our concept of now may be overridden by the runner
-        Instant now = runner.getNow() != null ? runner.getNow() : Instant.now();
+        Instant now = runner.getNow() != null ? runner.getNow() : Instant.now(runner.getClock());
+
+        FlowAnalysis.NodeInfo info = node != null ? getActiveFlow().getAnalysis().getNodeInfo(node) : null;
+
+        if (runner.isLazyContext()) {
+            return buildLazyContext(now, input, info);
+        }
 
         EvaluationContext context = new EvaluationContext(new HashMap<String, Object>(), m_org.getTimezone(), m_org.getDateStyle(), now);
 
-        Map<String, String> contactContext = m_contact.buildContext(this, context);
+        boolean needsStep = input != null && references(info, "step");
+        Map<String, String> contactContext = needsStep || references(info, "contact") ? m_contact.buildContext(this, context) : null;
 
-        if (input != null) {
+        if (needsStep) {
             context.putVariable("step", input.buildContext(context, contactContext));
         }
 
         context.putVariable("date", buildDateContext(context));
-        context.putVariable("contact", contactContext);
-        context.putVariable("extra", m_extra);
-        context.putVariable("flow", buildFlowContext(getValues(), context));
+        if (references(info, "contact")) {
+            context.putVariable("contact", contactContext);
+        }
+        if (references(info, "extra")) {
+            context.putVariable("extra", m_extra);
+        }
+        if (references(info, "flow")) {
+            context.putVariable("flow", buildFlowContext(getValues(), context));
+        }
 
         // add the flow that was one level above us
-        if (m_level > 0) {
-            context.putVariable("parent", buildFlowContext(m_values.get(m_level - 1), context));
+        if (m_level > 0 && references(info, "parent")) {
+            context.putVariable("parent", buildFlowContext(m_frames.get(m_level - 1).m_values, context));
         }
 
         // if we have a child below us, add that context in too
-        if (m_values.size() > m_level + 1) {
-            context.putVariable("child", buildFlowContext(m_values.get(m_level + 1), context));
+        if (m_frames.size() > m_level + 1 && references(info, "child")) {
+            context.putVariable("child", buildFlowContext(m_frames.get(m_level + 1).m_values, context));
         }
 
         return context;
     }
 
+    /**
+     * Builds the top-level evaluation context with every variable deferred until it's resolved
+     * @param now the current time
+     * @param input the current input
+     * @param info the metadata of the node being visited or null to include all variables
+     * @return the context
+     */
+    protected EvaluationContext buildLazyContext(Instant now, final Input input, FlowAnalysis.NodeInfo info) {
+        final LazyEvaluationContext context = new LazyEvaluationContext(m_org.getTimezone(), m_org.getDateStyle(), now);
+
+        boolean needsStep = input != null && references(info, "step");
+        final Map<String, Object> contactContext = needsStep || references(info, "contact") ? m_contact.buildLazyContext(this, context) : null;
+
+        if (needsStep) {
+            context.putDeferred("step", new LazyEvaluationContext.Deferred() {
+                @Override
+                public Object build() {
+                    return input.buildContext(context, contactContext);
+                }
+            });
+        }
+
+        context.putDeferred("date", new LazyEvaluationContext.Deferred() {
+            @Override
+            public Object build() {
+                return buildDateContext(context);
+            }
+        });
+        if (references(info, "contact")) {
+            context.putVariable("contact", contactContext);
+        }
+        if (references(info, "extra")) {
+            context.putVariable("extra", m_extra);
+        }
+        if (references(info, "flow")) {
+            context.putVariable("flow", buildLazyFlowContext(getValues(), context));
+        }
+
+        // add the flow that was one level above us
+        if (m_level > 0 && references(info, "parent")) {
+            context.putVariable("parent", buildLazyFlowContext(m_frames.get(m_level - 1).m_values, context));
+        }
+
+        // if we have a child below us, add that context in too
+        if (m_frames.size() > m_level + 1 && references(info, "child")) {
+            context.putVariable("child", buildLazyFlowContext(m_frames.get(m_level + 1).m_values, context));
+        }
+
+        return context;
+    }
+
+    /**
+     * Gets whether a context needs the given top-level variable, which it always does if there's no node metadata
+     */
+    protected static boolean references(FlowAnalysis.NodeInfo info, String variable) {
+        return info == null || info.references(variable);
+    }
+
+    /**
+     * Builds up a flow context from a set of flow values, deferring each value's context and the joined list of all
+     * values until they are resolved. Values are captured now in case the flow values change.
+     */
+    private Map<String, Object> buildLazyFlowContext(Map<String, Value> flowValues, final EvaluationContext context) {
+        LazyEvaluationContext.LazyMap flowContext = new LazyEvaluationContext.LazyMap();
+        final String[] keys = new String[flowValues.size()];
+        final Value[] values = new Value[flowValues.size()];
+        int v = 0;
+        for (Map.Entry<String, Value> entry : flowValues.entrySet()) {
+            final Value value = entry.getValue();
+            keys[v] = entry.getKey();
+            values[v] = value;
+            v++;
+
+            flowContext.putDeferred(entry.getKey(), new LazyEvaluationContext.Deferred() {
+                @Override
+                public Object build() {
+                    return value.buildContext(context);
+                }
+            });
+        }
+        flowContext.putDeferred("*", new LazyEvaluationContext.Deferred() {
+            @Override
+            public Object build() {
+                List<String> joined = new ArrayList<>(keys.length);
+                for (int i = 0; i < keys.length; i++) {
+                    joined.add(keys[i] + ": " + values[i].getValue());
+                }
+                return StringUtils.join(joined, "\n");
+            }
+        });
+        return flowContext;
+    }
+
     /**
      * Builds up a flow context from a set of flow values
      */
@@ -237,35 +437,44 @@ public class RunState implements Jsonizable {
      * @param time the time from the input
      */
     public void updateValue(RuleSet ruleSet, RuleSet.Result result, Instant time) {
-        String key = ruleSet.getLabel().toLowerCase().replaceAll("[^a-z0-9]+", "_");
-        getValues().put(key, new Value(result.getValue(), result.getCategory(), result.getText(), time));
+        ((FlowValues) getValues()).put(ruleSet, new Value(result.getValue(), result.getCategory(), result.getText(), time));
     }
 
     /**
-     * Enters a subflow. Suspends the current step and pushes the provided
-     * flow on to our active flow list.
+     * Enters a subflow. Suspends the current step and pushes a new frame for
+     * the provided flow, replacing the frame of any previous child.
      * @param currentStep the step to suspend until completion of the subflow
      * @param flowUuid the flow start
      */
     public void enterSubflow(Step currentStep, String flowUuid) {
+        m_frames.get(m_level).m_suspendedStep = currentStep;
         m_level++;
-        m_suspendedSteps.add(currentStep);
-
-        setActiveFlow(m_flows.get(flowUuid));
-
-        // wipe any existing values at our new level
-        getValues().clear();
 
+        Frame frame = new Frame(m_flows.get(flowUuid));
+        if (m_frames.size() > m_level) {
+            m_frames.set(m_level, frame);
+        } else {
+            m_frames.add(frame);
+        }
     }
 
     /**
-     * Exits our current subflow, going back to the parent.
+     * Exits our current subflow, going back to the parent. The frame of the
+     * exited subflow is kept as our child frame.
      * @return the most recently suspended step
      */
     public Step exitSubflow() {
         m_level--;
-        m_activeFlows.remove(m_activeFlows.size() - 1);
-        return m_suspendedSteps.remove(m_suspendedSteps.size() - 1);
+
+        // any frame below our new child is no longer reachable
+        while (m_frames.size() > m_level + 2) {
+            m_frames.remove(m_frames.size() - 1);
+        }
+
+        Frame frame = m_frames.get(m_level);
+        Step suspended = frame.m_suspendedStep;
+        frame.m_suspendedStep = null;
+        return suspended;
     }
 
     /**
@@ -338,7 +547,37 @@ public class RunState implements Jsonizable {
     }
 
     public Flow getActiveFlow() {
-        return m_activeFlows.get(m_activeFlows.size() - 1);
+        return m_frames.get(m_level).m_flow;
+    }
+
+    /**
+     * Gets the languages to localize text in for this run, i.e. the contact's language, the org's primary language and
+     * then the active flow's base language
+     */
+    public Localization getLocalization() {
+        String contactLanguage = m_contact.getLanguage();
+        String orgLanguage = m_org.getPrimaryLanguage();
+        String baseLanguage = getActiveFlow().getBaseLanguage();
+        LanguageDictionary dictionary = getActiveFlow().getLanguageDictionary();
+
+        if (m_localization == null || !m_localization.isFor(dictionary, contactLanguage, orgLanguage, baseLanguage)) {
+            m_localization = new Localization(dictionary, new String[] { contactLanguage, orgLanguage, baseLanguage });
+        }
+        return m_localization;
+    }
+
+    /**
+     * Gets the current subflow level, where zero is the flow which was started
+     */
+    public int getLevel() {
+        return m_level;
+    }
+
+    /**
+     * Gets the frames of all active flows, i.e. from the flow which was started down to the current subflow
+     */
+    public List<Frame> getFrames() {
+        return Collections.unmodifiableList(m_frames.subList(0, m_level + 1));
     }
 
     public Instant getStarted() {
@@ -349,6 +588,29 @@ public class RunState implements Jsonizable {
         return m_steps;
     }
 
+    /**
+     * Gets the journal of all steps completed by this run since it was created or restored. Only kept if the runner
+     * was built with a step journal, as the journal holds every step until the caller discards them.
+     * @return the journal or null if the runner doesn't keep one
+     */
+    public StepJournal getJournal() {
+        return m_journal;
+    }
+
+    /**
+     * Gets the version of this run state in the run store it was loaded from, or zero if it hasn't been stored
+     */
+    public long getVersion() {
+        return m_version;
+    }
+
+    /**
+     * Gets the webhook call which must be made before the run can continue, if it's in the WAIT_WEBHOOK state
+     */
+    public WebhookClient.Request getPendingWebhook() {
+        return m_pendingWebhook;
+    }
+
     /**
      * Gets the completed steps, i.e. those where the contact left the node or a terminal node
      * @return the completed steps
@@ -378,10 +640,7 @@ public class RunState implements Jsonizable {
      * Get the values at the current flow level
      */
     public Map<String, Value> getValues() {
-        while (m_values.size() <= m_level) {
-            m_values.add(new HashMap<String, Value>());
-        }
-        return m_values.get(m_level);
+        return m_frames.get(m_level).m_values;
     }
 
     public Map<String, String> getExtra() {
@@ -395,4 +654,48 @@ public class RunState implements Jsonizable {
     public void setState(State state) {
         m_state = state;
     }
+
+    /**
+     * The state of a single subflow level
+     */
+    public static class Frame {
+
+        protected Flow m_flow;
+
+        protected Map<String, Value> m_values;
+
+        protected Step m_suspendedStep;
+
+        public Frame(Flow flow) {
+            m_flow = flow;
+            m_values = new FlowValues(flow);
+        }
+
+        /**
+         * Changes the flow of this frame, re-indexing any values already saved
+         * @param flow the flow
+         */
+        protected void setFlow(Flow flow) {
+            if (flow != m_flow) {
+                m_flow = flow;
+                m_values = new FlowValues(flow, m_values);
+            }
+        }
+
+        public Flow getFlow() {
+            return m_flow;
+        }
+
+        public Map<String, Value> getValues() {
+            return m_values;
+        }
+
+        /**
+         * Gets the step in this frame's flow which is suspended whilst a subflow runs
+         * @return the step or null if no subflow is running
+         */
+        public Step getSuspendedStep() {
+            return m_suspendedStep;
+        }
+    }
 }
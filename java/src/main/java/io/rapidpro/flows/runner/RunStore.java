@@ -0,0 +1,201 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.flows.definition.Flow;
+import io.rapidpro.flows.utils.JsonUtils;
+
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stores the current run state of each contact, keyed by contact UUID. Resumes for the same contact are serialized by
+ * striped locks, so resumes for different contacts can proceed in parallel, and stored run states are versioned so
+ * that a stale run state can never overwrite a newer one.
+ */
+public class RunStore {
+
+    /**
+     * The default number of lock stripes
+     */
+    public static final int DEFAULT_STRIPES = 64;
+
+    /**
+     * The storage used by a run store
+     */
+    public interface Backend {
+
+        /**
+         * Loads the entry for the given contact
+         * @param contactUuid the contact UUID
+         * @return the entry or null if there isn't one
+         */
+        Entry load(String contactUuid);
+
+        /**
+         * Stores a run state for the given contact if the version of its current entry is as expected. Versions are
+         * taken from a counter across all contacts, so a run stored after a remove never reuses a version which a
+         * stale run state could be holding.
+         * @param contactUuid the contact UUID
+         * @param expectedVersion the expected version, or zero if there should be no current entry
+         * @param json the serialized run state
+         * @return the new version of the entry, or zero if the run state wasn't stored
+         */
+        long compareAndSet(String contactUuid, long expectedVersion, String json);
+
+        /**
+         * Removes the entry for the given contact if its version is as expected
+         * @param contactUuid the contact UUID
+         * @param expectedVersion the expected version
+         * @return whether the entry was removed
+         */
+        boolean remove(String contactUuid, long expectedVersion);
+
+        /**
+         * Gets the number of entries
+         */
+        int size();
+    }
+
+    /**
+     * A versioned, serialized run state
+     */
+    public static class Entry {
+
+        protected long m_version;
+
+        protected String m_json;
+
+        public Entry(long version, String json) {
+            m_version = version;
+            m_json = json;
+        }
+
+        public long getVersion() {
+            return m_version;
+        }
+
+        public String getJson() {
+            return m_json;
+        }
+    }
+
+    protected Backend m_backend;
+
+    protected Map<String, Flow> m_flows;
+
+    protected Lock[] m_locks;
+
+    /**
+     * Creates a new run store with the default number of lock stripes
+     * @param backend the backend
+     * @param flows the flows which stored run states can be in
+     */
+    public RunStore(Backend backend, Map<String, Flow> flows) {
+        this(backend, flows, DEFAULT_STRIPES);
+    }
+
+    /**
+     * Creates a new run store
+     * @param backend the backend
+     * @param flows the flows which stored run states can be in
+     * @param stripes the number of lock stripes, which is rounded up to a power of two
+     */
+    public RunStore(Backend backend, Map<String, Flow> flows, int stripes) {
+        m_backend = backend;
+        m_flows = flows;
+
+        int size = Integer.highestOneBit(Math.max(stripes, 1) - 1) << 1;
+        m_locks = new Lock[Math.max(size, 1)];
+        for (int s = 0; s < m_locks.length; s++) {
+            m_locks[s] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Acquires the lock for the given contact, which must be held whilst its run state is loaded, resumed and saved
+     * @param contactUuid the contact UUID
+     * @return the acquired lock which the caller must release
+     */
+    public Lock lock(String contactUuid) {
+        Lock lock = getLock(contactUuid);
+        lock.lock();
+        return lock;
+    }
+
+    /**
+     * Gets the lock stripe for the given contact
+     * @param contactUuid the contact UUID
+     * @return the lock
+     */
+    public Lock getLock(String contactUuid) {
+        int hash = contactUuid.hashCode();
+        hash ^= (hash >>> 16);
+        return m_locks[hash & (m_locks.length - 1)];
+    }
+
+    /**
+     * Loads the run state of the given contact
+     * @param contactUuid the contact UUID
+     * @return the run state or null if the contact has no stored run
+     */
+    public RunState load(String contactUuid) {
+        Entry entry = m_backend.load(contactUuid);
+        if (entry == null) {
+            return null;
+        }
+
+        RunState run = RunState.fromJson(entry.getJson(), m_flows);
+        run.m_version = entry.getVersion();
+        return run;
+    }
+
+    /**
+     * Gets the version of the stored run state of the given contact
+     * @param contactUuid the contact UUID
+     * @return the version or zero if the contact has no stored run
+     */
+    public long getVersion(String contactUuid) {
+        Entry entry = m_backend.load(contactUuid);
+        return entry != null ? entry.getVersion() : 0;
+    }
+
+    /**
+     * Saves the given run state, or if it's completed, removes the stored run state of its contact
+     * @param run the run state
+     * @throws StaleRunStateException if the stored run state has been changed since the given one was loaded
+     */
+    public void save(RunState run) throws StaleRunStateException {
+        String contactUuid = run.getContact().getUuid();
+
+        if (run.getState() == RunState.State.COMPLETED) {
+            if (run.m_version > 0 && !m_backend.remove(contactUuid, run.m_version)) {
+                throw new StaleRunStateException(contactUuid, run.m_version);
+            }
+            run.m_version = 0;
+        }
+        else {
+            String json = JsonUtils.getGson().toJson(run.toJson());
+
+            long version = m_backend.compareAndSet(contactUuid, run.m_version, json);
+            if (version == 0) {
+                throw new StaleRunStateException(contactUuid, run.m_version);
+            }
+            run.m_version = version;
+        }
+    }
+
+    /**
+     * Gets the number of stored run states
+     */
+    public int size() {
+        return m_backend.size();
+    }
+
+    public Backend getBackend() {
+        return m_backend;
+    }
+
+    public int getStripes() {
+        return m_locks.length;
+    }
+}
@@ -1,20 +1,47 @@
 package io.rapidpro.flows.runner;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
 import io.rapidpro.expressions.EvaluatedTemplate;
 import io.rapidpro.expressions.EvaluationContext;
 import io.rapidpro.expressions.evaluator.Evaluator;
+import io.rapidpro.flows.RunnerBuilder;
 import io.rapidpro.flows.definition.Flow;
 import io.rapidpro.flows.definition.RuleSet;
+import io.rapidpro.flows.definition.actions.Action;
+import io.rapidpro.flows.utils.JsonUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.threeten.bp.Clock;
 import org.threeten.bp.Instant;
 
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Implementation of the flow runner
  */
 public class Runner {
 
+    /**
+     * The default maximum number of nested subflows a run can enter
+     */
+    public static final int DEFAULT_MAX_SUBFLOW_DEPTH = 25;
+
+    /**
+     * The key in @extra of the HTTP status of the last webhook call, or 0 if the call failed without one
+     */
+    public static final String WEBHOOK_STATUS_KEY = "webhook_status";
+
+    /**
+     * The key in @extra of the body of the last webhook response, or the error message if the call failed
+     */
+    public static final String WEBHOOK_RESPONSE_KEY = "webhook_response";
+
     protected Evaluator m_templateEvaluator;
 
     protected Location.Resolver m_locationResolver;
@@ -23,16 +50,65 @@ public class Runner {
 
     protected Map<String,Flow> m_flows;
 
+    protected AllocationProfiler m_allocationProfiler;
+
+    protected boolean m_lazyContext;
+
+    protected int m_maxSubflowDepth;
+
+    protected boolean m_stepJournal;
+
+    protected StepSink m_stepSink;
+
+    protected ActionSink m_actionSink;
+
+    protected WebhookClient m_webhookClient;
+
+    protected FunnelAggregator m_funnelAggregator;
+
+    protected Clock m_clock;
+
+    protected Executor m_executor;
+
     public Runner(Evaluator templateEvaluator, Location.Resolver locationResolver, Instant now, List<Flow> flows) {
         m_templateEvaluator = templateEvaluator;
         m_locationResolver = locationResolver;
         m_now = now;
+        m_flows = buildFlowMap(flows);
+        m_maxSubflowDepth = DEFAULT_MAX_SUBFLOW_DEPTH;
+        m_clock = Clock.systemUTC();
+    }
 
-        // create a map of flow uuid to flow
-        m_flows = new HashMap<>();
+    /**
+     * Creates a runner with the options of the given builder
+     * @param builder the builder
+     */
+    public Runner(RunnerBuilder builder) {
+        m_templateEvaluator = builder.getTemplateEvaluator();
+        m_locationResolver = builder.getLocationResolver();
+        m_now = builder.getNow();
+        m_flows = builder.getFlows();
+        m_allocationProfiler = builder.getAllocationProfiler();
+        m_lazyContext = builder.isLazyContext();
+        m_maxSubflowDepth = builder.getMaxSubflowDepth();
+        m_stepJournal = builder.isStepJournal();
+        m_stepSink = builder.getStepSink();
+        m_actionSink = builder.getActionSink();
+        m_webhookClient = builder.getWebhookClient();
+        m_executor = builder.getExecutor();
+        m_funnelAggregator = builder.getFunnelAggregator();
+        m_clock = builder.getClock();
+    }
+
+    /**
+     * Creates a map of flow uuid to flow
+     */
+    public static Map<String, Flow> buildFlowMap(List<Flow> flows) {
+        Map<String, Flow> flowMap = new HashMap<>();
         for (Flow flow : flows) {
-            m_flows.put(flow.getUuid(), flow);
+            flowMap.put(flow.getUuid(), flow);
         }
+        return flowMap;
     }
 
     /**
@@ -44,9 +120,22 @@ public class Runner {
      * @return the run state
      */
     public RunState start(Org org, List<Field> fields, Contact contact, String flowUuid) throws FlowRunException {
-        RunState run = new RunState(org, fields, contact, m_flows);
+        return start(org, fields, contact, flowUuid, null);
+    }
+
+    /**
+     * Starts a new run, passing performed actions to the given sink as they happen
+     * @param org the org
+     * @param fields the contact fields
+     * @param contact the contact
+     * @param flowUuid the id of the flow to start
+     * @param actionSink the action sink (may be null)
+     * @return the run state
+     */
+    public RunState start(Org org, List<Field> fields, Contact contact, String flowUuid, ActionSink actionSink) throws FlowRunException {
+        RunState run = new RunState(org, fields, contact, m_flows, Instant.now(m_clock));
         run.setActiveFlow(m_flows.get(flowUuid));
-        return resume(run, null);
+        return resume(run, null, actionSink);
     }
 
     /**
@@ -58,8 +147,93 @@ public class Runner {
      * @return the run state
      */
     public RunState start(Org org, List<Field> fields, Contact contact, Flow flow) throws FlowRunException {
+        return start(org, fields, contact, flow, null);
+    }
+
+    /**
+     * Starts a new run, passing performed actions to the given sink as they happen
+     * @param org the org
+     * @param fields the contact fields
+     * @param contact the contact
+     * @param flow the flow to start
+     * @param actionSink the action sink (may be null)
+     * @return the run state
+     */
+    public RunState start(Org org, List<Field> fields, Contact contact, Flow flow, ActionSink actionSink) throws FlowRunException {
         m_flows.put(flow.getUuid(), flow);
-        return start(org, fields, contact, flow.getUuid());
+        return start(org, fields, contact, flow.getUuid(), actionSink);
+    }
+
+    /**
+     * Starts a new run and saves it to the given store, replacing any existing run for the contact. The contact's lock
+     * is held throughout so this is atomic with respect to other starts and resumes for the same contact.
+     * @param store the run store
+     * @param org the org
+     * @param fields the contact fields
+     * @param contact the contact
+     * @param flowUuid the id of the flow to start
+     * @return the run state
+     */
+    public RunState start(RunStore store, Org org, List<Field> fields, Contact contact, String flowUuid) throws FlowRunException {
+        Lock lock = store.lock(contact.getUuid());
+        try {
+            long version = store.getVersion(contact.getUuid());
+
+            RunState run = start(org, fields, contact, flowUuid);
+            run.m_version = version;
+            store.save(run);
+            return run;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Loads the run of the given contact from the given store, resumes it with new input and saves it. The contact's
+     * lock is held throughout so this is atomic with respect to other starts and resumes for the same contact.
+     * @param store the run store
+     * @param contactUuid the contact UUID
+     * @param input the new input
+     * @return the updated run state or null if the contact has no stored run
+     */
+    public RunState resume(RunStore store, String contactUuid, Input input) throws FlowRunException {
+        Lock lock = store.lock(contactUuid);
+        try {
+            RunState run = store.load(contactUuid);
+            if (run == null) {
+                return null;
+            }
+
+            resume(run, input);
+            store.save(run);
+            return run;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Resumes an existing run with new input, passing performed actions to the given sink as they happen rather than
+     * the sink configured on this runner
+     * @param run the previous run state
+     * @param input the new input
+     * @param actionSink the action sink (may be null)
+     * @return the updated run state
+     */
+    public RunState resume(RunState run, Input input, ActionSink actionSink) throws FlowRunException {
+        if (actionSink == null) {
+            return resume(run, input);
+        }
+
+        ActionSink previous = run.m_actionSink;
+        run.m_actionSink = actionSink;
+        try {
+            return resume(run, input);
+        } finally {
+            run.m_actionSink = previous;
+        }
     }
 
     /**
@@ -69,37 +243,231 @@ public class Runner {
      * @return the updated run state
      */
     public RunState resume(RunState run, Input input) throws FlowRunException {
-        if (run.getState().equals(RunState.State.COMPLETED)) {
-            throw new FlowRunException("Cannot resume a completed run");
+        if (m_allocationProfiler == null) {
+            return doResume(run, input);
+        }
+
+        long mark = m_allocationProfiler.getAllocatedBytes();
+        try {
+            return doResume(run, input);
+        } finally {
+            m_allocationProfiler.recordResume(mark);
+        }
+    }
+
+    /**
+     * Resumes an existing run with new input without blocking the calling thread. If this runner has an executor, the
+     * run is resumed by a task on that executor which blocks on any webhook calls. Otherwise the run is visited on the
+     * calling thread until it pauses, completes or reaches a webhook, in which case it's continued on the thread which
+     * completes the webhook call.
+     * @param run the previous run state
+     * @param input the new input
+     * @return the future updated run state
+     */
+    public Future<RunState> resumeAsync(RunState run, Input input) {
+        RunFuture future = new RunFuture();
+        resumeAsync(run, input, future);
+        return future;
+    }
+
+    /**
+     * Resumes an existing run with new input without blocking the calling thread
+     * @param run the previous run state
+     * @param input the new input
+     * @param callback the callback to invoke with the updated run state
+     * @see #resumeAsync(RunState, Input)
+     */
+    public void resumeAsync(final RunState run, final Input input, final ResumeCallback callback) {
+        if (m_executor == null) {
+            continueAsync(run, input, true, callback);
+            return;
+        }
+
+        try {
+            m_executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        resume(run, input);
+                    } catch (Throwable e) {
+                        callback.onFailure(e);
+                        return;
+                    }
+                    callback.onResumed(run);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            callback.onFailure(e);
+        }
+    }
+
+    /**
+     * Resumes a batch of runs, each with its own input, without blocking the calling thread
+     * @param runs the previous run states
+     * @param inputs the new inputs, one per run
+     * @return the future updated run states, in the same order as the runs
+     * @see #resumeAsync(RunState, Input)
+     */
+    public List<Future<RunState>> resumeAll(List<RunState> runs, List<Input> inputs) {
+        if (runs.size() != inputs.size()) {
+            throw new IllegalArgumentException("Number of inputs (" + inputs.size() + ") doesn't match number of runs (" + runs.size() + ")");
+        }
+
+        List<Future<RunState>> futures = new ArrayList<>(runs.size());
+        for (int r = 0; r < runs.size(); r++) {
+            futures.add(resumeAsync(runs.get(r), inputs.get(r)));
+        }
+        return futures;
+    }
+
+    /**
+     * Visits the run and if it reaches a webhook, makes the call with a callback which continues the run. A client
+     * which calls back on the calling thread is continued by this loop rather than by recursion.
+     */
+    protected void continueAsync(final RunState run, final Input input, boolean resuming, final ResumeCallback callback) {
+        while (true) {
+            try {
+                visitNodes(run, input, resuming);
+            } catch (Throwable e) {
+                callback.onFailure(e);
+                return;
+            }
+
+            WebhookClient.Request request = run.getPendingWebhook();
+            if (request == null) {
+                callback.onResumed(run);
+                return;
+            }
+
+            // cleared by whichever of this thread or the callback gets there second, which is then the one to continue
+            final AtomicBoolean calling = new AtomicBoolean(true);
+
+            m_webhookClient.call(request, new WebhookClient.Callback() {
+                @Override
+                public void onResponse(WebhookClient.Response response) {
+                    run.m_webhookResponse = response;
+                    if (!calling.compareAndSet(true, false)) {
+                        continueAsync(run, input, false, callback);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable error) {
+                    onResponse(failedWebhookResponse(error));
+                }
+            });
+
+            if (calling.compareAndSet(true, false)) {
+                return; // callback will continue the run
+            }
+            resuming = false;
+        }
+    }
+
+    /**
+     * Resumes an existing run with new input, blocking on any webhook calls
+     * @param run the previous run state
+     * @param input the new input
+     * @return the updated run state
+     */
+    protected RunState doResume(RunState run, Input input) throws FlowRunException {
+        visitNodes(run, input, true);
+
+        while (run.getPendingWebhook() != null) {
+            run.m_webhookResponse = callWebhookAndWait(run.getPendingWebhook());
+            visitNodes(run, input, false);
         }
 
-        Step lastStep = run.getSteps().size() > 0 ? run.getSteps().get(run.getSteps().size() - 1) : null;
+        return run;
+    }
+
+    /**
+     * Makes a webhook call and waits for its response
+     * @param request the request
+     * @return the response
+     */
+    protected WebhookClient.Response callWebhookAndWait(WebhookClient.Request request) throws FlowRunException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final WebhookClient.Response[] response = new WebhookClient.Response[1];
+
+        m_webhookClient.call(request, new WebhookClient.Callback() {
+            @Override
+            public void onResponse(WebhookClient.Response r) {
+                response[0] = r;
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                response[0] = failedWebhookResponse(error);
+                done.countDown();
+            }
+        });
 
-        // reset steps list so that it doesn't grow forever in a never-ending flow
-        run.getSteps().clear();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FlowRunException("Interrupted whilst waiting for webhook call to " + request.getUrl());
+        }
+        return response[0];
+    }
 
+    /**
+     * Visits nodes of the run until it pauses, completes or reaches a webhook call which must be made first
+     * @param run the run state
+     * @param input the input
+     * @param resuming true if this is a new resume, false if we're continuing from a webhook call
+     */
+    protected void visitNodes(RunState run, Input input, boolean resuming) throws FlowRunException {
+        Step lastStep;
         Flow.Node currentNode;
-        if (lastStep != null) {
-            currentNode = lastStep.getNode(); // we're resuming an existing run
+
+        if (resuming) {
+            if (run.getState().equals(RunState.State.COMPLETED)) {
+                throw new FlowRunException("Cannot resume a completed run");
+            }
+
+            lastStep = run.getSteps().size() > 0 ? run.getSteps().get(run.getSteps().size() - 1) : null;
+
+            // reset steps list so that it doesn't grow forever in a never-ending flow
+            run.getSteps().clear();
+
+            if (lastStep != null) {
+                currentNode = lastStep.getNode(); // we're resuming an existing run
+            }
+            else {
+                currentNode = run.getActiveFlow().getEntry();  // we're starting a new run
+                if (currentNode == null) {
+                    throw new FlowRunException("Flow has no entry point");
+                }
+            }
         }
         else {
-            currentNode = run.getActiveFlow().getEntry();  // we're starting a new run
-            if (currentNode == null) {
-                throw new FlowRunException("Flow has no entry point");
-            }
+            // we're continuing from the step at the webhook rule set, which will be visited again
+            lastStep = run.getSteps().remove(run.getSteps().size() - 1);
+            currentNode = lastStep.getNode();
+            run.m_pendingWebhook = null;
+            run.setState(RunState.State.IN_PROGRESS);
         }
 
-        // tracks nodes visited so we can detect loops
-        Set<Flow.Node> nodesVisited = new LinkedHashSet<>();
+        // tracks nodes visited so we can detect loops, though only in flows which analysis couldn't prove loop safe. This
+        // is kept on the run for the whole resume so that loops through webhook rule sets are caught too.
+        if (resuming) {
+            run.m_nodesVisited = null;
+        }
+        boolean firstNode = true;
 
         Step resumeStep = null;
         while (currentNode != null) {
+            long allocationMark = m_allocationProfiler != null ? m_allocationProfiler.getAllocatedBytes() : 0;
+
             // if we're resuming a previously paused step, then use its arrived on value
             Instant arrivedOn;
-            if (lastStep != null && nodesVisited.size() == 0) {
+            if (lastStep != null && firstNode) {
                 arrivedOn = lastStep.getArrivedOn();
             } else {
-                arrivedOn = Instant.now();
+                arrivedOn = Instant.now(m_clock);
             }
 
             // create our step for the current node
@@ -113,18 +481,31 @@ public class Runner {
             // otherwise add our step to our step list
             else {
                 run.getSteps().add(step);
+
+                // the first node of a resume is the one we were waiting at, so isn't a new arrival
+                if (m_funnelAggregator != null && (lastStep == null || !firstNode)) {
+                    m_funnelAggregator.recordArrival(run.getActiveFlow(), currentNode);
+                }
             }
 
             // see if we need to dive into a subflow
             if (currentNode instanceof RuleSet) {
                 RuleSet ruleset = (RuleSet) currentNode;
                 if (resumeStep == null && ruleset.isSubflow() && (lastStep == null || !ruleset.getUuid().equals(lastStep.getNode().getUuid()))) {
+                    if (run.getLevel() >= m_maxSubflowDepth) {
+                        throw new SubflowDepthException(m_maxSubflowDepth, run.getFrames());
+                    }
+
                     run.enterSubflow(step, ruleset.getSubflowUuid());
                     currentNode = run.getActiveFlow().getEntry();
 
                     // create our new step accordingly
                     step = new Step(run.getActiveFlow(), currentNode, arrivedOn);
                     run.getSteps().add(step);
+
+                    if (m_funnelAggregator != null) {
+                        m_funnelAggregator.recordArrival(run.getActiveFlow(), currentNode);
+                    }
                 }
             }
 
@@ -148,29 +529,71 @@ public class Runner {
                     } else {
                         run.setState(RunState.State.WAIT_MESSAGE);
                     }
-                    return run;
+
+                    if (m_allocationProfiler != null) {
+                        m_allocationProfiler.recordNode(run.getActiveFlow(), currentNode, allocationMark);
+                    }
+                    run.m_nodesVisited = null;
+                    return;
+                }
+
+                if (ruleset.getRuleSetType() == RuleSet.Type.WEBHOOK && ruleset.getWebhook() != null && m_webhookClient != null) {
+                    // webhook hasn't been called yet so stop here until it has
+                    if (run.m_webhookResponse == null) {
+                        String url = m_templateEvaluator.evaluateTemplate(ruleset.getWebhook(), run.buildContext(this, input, ruleset), true).getOutput();
+                        run.m_pendingWebhook = new WebhookClient.Request(ruleset.getWebhookAction(), url, run);
+                        run.setState(RunState.State.WAIT_WEBHOOK);
+
+                        if (m_allocationProfiler != null) {
+                            m_allocationProfiler.recordNode(run.getActiveFlow(), currentNode, allocationMark);
+                        }
+                        return;
+                    }
+
+                    applyWebhookResponse(run, run.m_webhookResponse);
+                    run.m_webhookResponse = null;
                 }
             }
 
             // check for an non-pausing loop
-            if (nodesVisited.contains(currentNode)) {
-                throw new FlowLoopException(nodesVisited);
-            } else {
-                nodesVisited.add(currentNode);
+            if (!run.getActiveFlow().getAnalysis().isLoopSafe()) {
+                if (run.m_nodesVisited == null) {
+                    run.m_nodesVisited = new LinkedHashSet<>();
+                }
+                if (run.m_nodesVisited.contains(currentNode)) {
+                    throw new FlowLoopException(run.m_nodesVisited);
+                } else {
+                    run.m_nodesVisited.add(currentNode);
+                }
+            }
+            firstNode = false;
+
+            // contexts built whilst visiting only need the variables which this node references
+            Flow.Node nextNode;
+            run.m_visiting = currentNode;
+            try {
+                nextNode = currentNode.visit(this, run, step, input);
+            } finally {
+                run.m_visiting = null;
+            }
+
+            if (m_allocationProfiler != null) {
+                m_allocationProfiler.recordNode(step.getFlow(), currentNode, allocationMark);
             }
 
-            Flow.Node nextNode = currentNode.visit(this, run, step, input);
             if (nextNode != null) {
                 // if we have a next node, then record leaving this one
-                step.setLeftOn(Instant.now());
+                step.setLeftOn(Instant.now(m_clock));
+                completeStep(run, step);
             }
             // if not then we've completed this flow
             else {
 
                 step.setTerminal(true);
+                completeStep(run, step);
 
                 // if its at the lowest level, then we are done
-                if (run.m_level == 0) {
+                if (run.getLevel() == 0) {
                     run.setState(RunState.State.COMPLETED);
                 }
                 // otherwise, we are going up a level
@@ -183,7 +606,84 @@ public class Runner {
             currentNode = nextNode;
         }
 
-        return run;
+        run.m_nodesVisited = null;
+    }
+
+    /**
+     * Applies the response to a webhook call to the run. The status and body are added to @extra as webhook_status and
+     * webhook_response so that the rule set can route on them, and for a successful call, the top-level values of a
+     * JSON object response body are added too.
+     * @param run the run state
+     * @param response the response
+     */
+    protected void applyWebhookResponse(RunState run, WebhookClient.Response response) {
+        Map<String, String> values = new HashMap<>();
+
+        if (response.isSuccess() && StringUtils.isNotEmpty(response.getBody())) {
+            JsonElement body;
+            try {
+                body = JsonUtils.getGson().fromJson(response.getBody(), JsonElement.class);
+            } catch (JsonParseException e) {
+                body = null; // not JSON so nothing to add
+            }
+
+            if (body != null && body.isJsonObject()) {
+                for (Map.Entry<String, JsonElement> entry : body.getAsJsonObject().entrySet()) {
+                    JsonElement value = entry.getValue();
+                    if (!value.isJsonNull()) {
+                        values.put(entry.getKey(), value.isJsonPrimitive() ? value.getAsString() : value.toString());
+                    }
+                }
+            }
+        }
+
+        values.put(WEBHOOK_STATUS_KEY, String.valueOf(response.getStatus()));
+        values.put(WEBHOOK_RESPONSE_KEY, response.getBody() != null ? response.getBody() : "");
+        updateExtra(run, values);
+    }
+
+    /**
+     * Creates the response used in place of a real one when a webhook call fails
+     */
+    protected static WebhookClient.Response failedWebhookResponse(Throwable error) {
+        return new WebhookClient.Response(0, String.valueOf(error.getMessage()));
+    }
+
+    /**
+     * Records a step which has been completed in the run's journal (if kept) and funnel aggregator, and passes it to the
+     * step sink
+     * @param run the run state
+     * @param step the completed step
+     */
+    protected void completeStep(RunState run, Step step) {
+        if (m_stepJournal) {
+            if (run.m_journal == null) {
+                run.m_journal = new StepJournal();
+            }
+            run.m_journal.append(step);
+        }
+
+        if (m_funnelAggregator != null) {
+            m_funnelAggregator.recordLeft(step);
+        }
+
+        if (m_stepSink != null) {
+            m_stepSink.onStepCompleted(run, step);
+        }
+    }
+
+    /**
+     * Passes a performed action to the action sink of the current resume call, or if there isn't one, the action sink
+     * of this runner
+     * @param run the run state
+     * @param step the current step
+     * @param action the performed action
+     */
+    public void actionPerformed(RunState run, Step step, Action action) {
+        ActionSink sink = run.m_actionSink != null ? run.m_actionSink : m_actionSink;
+        if (sink != null) {
+            sink.onActionPerformed(run, step, action);
+        }
     }
 
     /**
@@ -328,4 +828,59 @@ public class Runner {
     public Instant getNow() {
         return m_now;
     }
+
+    /**
+     * Gets the clock used for the time of run starts and steps
+     */
+    public Clock getClock() {
+        return m_clock;
+    }
+
+    public AllocationProfiler getAllocationProfiler() {
+        return m_allocationProfiler;
+    }
+
+    public ActionSink getActionSink() {
+        return m_actionSink;
+    }
+
+    /**
+     * Gets whether runs keep a journal of their completed steps
+     */
+    public boolean isStepJournal() {
+        return m_stepJournal;
+    }
+
+    public StepSink getStepSink() {
+        return m_stepSink;
+    }
+
+    public WebhookClient getWebhookClient() {
+        return m_webhookClient;
+    }
+
+    /**
+     * Gets the funnel aggregator which counts the steps of runs (may be null)
+     */
+    public FunnelAggregator getFunnelAggregator() {
+        return m_funnelAggregator;
+    }
+
+    /**
+     * Gets the executor used for async resumes (may be null)
+     */
+    public Executor getExecutor() {
+        return m_executor;
+    }
+
+    public int getMaxSubflowDepth() {
+        return m_maxSubflowDepth;
+    }
+
+    /**
+     * Gets whether evaluation contexts only build the variables which are resolved
+     */
+    public boolean isLazyContext() {
+        return m_lazyContext;
+    }
 }
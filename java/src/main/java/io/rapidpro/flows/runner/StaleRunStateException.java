@@ -0,0 +1,30 @@
+package io.rapidpro.flows.runner;
+
+/**
+ * Exception thrown when saving a run state to a {@link RunStore} if the stored run state has changed since it was
+ * loaded, e.g. because it was resumed without holding the contact's lock
+ */
+public class StaleRunStateException extends FlowRunException {
+
+    protected String m_contactUuid;
+
+    protected long m_version;
+
+    public StaleRunStateException(String contactUuid, long version) {
+        super("Run state for contact " + contactUuid + " has changed since version " + version);
+
+        m_contactUuid = contactUuid;
+        m_version = version;
+    }
+
+    public String getContactUuid() {
+        return m_contactUuid;
+    }
+
+    /**
+     * Gets the version of the stale run state
+     */
+    public long getVersion() {
+        return m_version;
+    }
+}
@@ -11,6 +11,7 @@ import io.rapidpro.flows.utils.Jsonizable;
 import org.threeten.bp.Instant;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -28,6 +29,7 @@ public class Step implements Jsonizable {
 
     protected RuleSet.Result m_ruleResult;
 
+    // created lazily as most steps don't record any actions or errors
     protected List<Action> m_actions;
 
     protected List<String> m_errors;
@@ -37,8 +39,6 @@ public class Step implements Jsonizable {
     public Step(Flow flow, Flow.Node node, Instant arrivedOn) {
         m_node = node;
         m_arrivedOn = arrivedOn;
-        m_actions = new ArrayList<>();
-        m_errors = new ArrayList<>();
         m_flow = flow;
     }
 
@@ -47,8 +47,8 @@ public class Step implements Jsonizable {
         m_arrivedOn = arrivedOn;
         m_leftOn = leftOn;
         m_ruleResult = ruleResult;
-        m_actions = actions;
-        m_errors = errors;
+        m_actions = actions.isEmpty() ? null : actions;
+        m_errors = errors.isEmpty() ? null : errors;
         m_flow = flow;
     }
 
@@ -73,8 +73,8 @@ public class Step implements Jsonizable {
                 "arrived_on", ExpressionUtils.formatJsonDate(m_arrivedOn),
                 "left_on", ExpressionUtils.formatJsonDate(m_leftOn),
                 "rule", m_ruleResult != null ? m_ruleResult.toJson() : null,
-                "actions", JsonUtils.toJsonArray(m_actions),
-                "errors", JsonUtils.toJsonArray(m_errors),
+                "actions", JsonUtils.toJsonArray(getActions()),
+                "errors", JsonUtils.toJsonArray(getErrors()),
                 "flow_uuid", m_flow.getUuid()
         );
     }
@@ -103,15 +103,25 @@ public class Step implements Jsonizable {
         m_ruleResult = ruleResult;
     }
 
+    /**
+     * Gets the actions performed at this step
+     * @return the actions (an empty immutable list if there are none)
+     */
     public List<Action> getActions() {
-        return m_actions;
+        return m_actions != null ? m_actions : Collections.<Action>emptyList();
     }
 
     public void addActionResult(Action.Result actionResult) {
         if (actionResult.getPerformed() != null) {
+            if (m_actions == null) {
+                m_actions = new ArrayList<>(2);
+            }
             m_actions.add(actionResult.getPerformed());
         }
         if (actionResult.hasErrors()) {
+            if (m_errors == null) {
+                m_errors = new ArrayList<>(actionResult.getErrors().size());
+            }
             m_errors.addAll(actionResult.getErrors());
         }
     }
@@ -120,8 +130,12 @@ public class Step implements Jsonizable {
         return m_flow;
     }
 
+    /**
+     * Gets the errors which occurred at this step
+     * @return the errors (an empty immutable list if there are none)
+     */
     public List<String> getErrors() {
-        return m_errors;
+        return m_errors != null ? m_errors : Collections.<String>emptyList();
     }
 
     public boolean isCompleted() {
@@ -0,0 +1,111 @@
+package io.rapidpro.flows.runner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An append-only journal of the steps of a run in the order they were completed. Unlike the steps of the run state,
+ * which only cover the last resume, the journal keeps growing until steps are discarded, and callers can read the
+ * steps completed since a given position without copying them. Journals are not serialized with the run state.
+ */
+public class StepJournal {
+
+    protected static final Step[] EMPTY = new Step[0];
+
+    protected Step[] m_steps = EMPTY;
+
+    protected int m_size;
+
+    protected long m_offset;
+
+    /**
+     * Appends a completed step
+     * @param step the step
+     */
+    public synchronized void append(Step step) {
+        if (m_size == m_steps.length) {
+            // steps are never overwritten in place, so lists previously returned remain valid
+            m_steps = Arrays.copyOf(m_steps, Math.max(8, m_size * 2));
+        }
+        m_steps[m_size++] = step;
+    }
+
+    /**
+     * Gets the position after the last step, i.e. the total number of steps ever appended
+     */
+    public synchronized long getPosition() {
+        return m_offset + m_size;
+    }
+
+    /**
+     * Gets the position of the oldest step which hasn't been discarded
+     */
+    public synchronized long getStart() {
+        return m_offset;
+    }
+
+    /**
+     * Gets the steps appended since the given position. The returned list is an unmodifiable view which isn't
+     * affected by later appends or discards.
+     * @param position the position
+     * @return the steps
+     */
+    public synchronized List<Step> getStepsSince(long position) {
+        if (position < m_offset) {
+            throw new IllegalArgumentException("Steps before position " + m_offset + " have been discarded");
+        }
+        int from = (int) Math.min(position - m_offset, m_size);
+        return Collections.unmodifiableList(Arrays.asList(m_steps).subList(from, m_size));
+    }
+
+    /**
+     * Creates a new cursor at the current position
+     * @return the cursor
+     */
+    public synchronized Cursor newCursor() {
+        return new Cursor(getPosition());
+    }
+
+    /**
+     * Gets the steps appended since the given cursor's position and advances the cursor past them
+     * @param cursor the cursor
+     * @return the steps
+     */
+    public synchronized List<Step> drain(Cursor cursor) {
+        List<Step> steps = getStepsSince(cursor.m_position);
+        cursor.m_position = getPosition();
+        return steps;
+    }
+
+    /**
+     * Discards steps before the given position so that they can be garbage collected
+     * @param position the position
+     */
+    public synchronized void discardBefore(long position) {
+        int count = (int) Math.min(Math.max(position - m_offset, 0), m_size);
+        if (count == 0) {
+            return;
+        }
+
+        m_size -= count;
+        m_steps = m_size > 0 ? Arrays.copyOfRange(m_steps, count, count + Math.max(8, m_size)) : EMPTY;
+        m_offset += count;
+    }
+
+    /**
+     * A position in the journal which is advanced as steps are drained
+     */
+    public static class Cursor {
+
+        protected long m_position;
+
+        public Cursor(long position) {
+            m_position = position;
+        }
+
+        public long getPosition() {
+            return m_position;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package io.rapidpro.flows.runner;
+
+/**
+ * Receives steps as soon as the runner completes them, e.g. to record the path of a run whilst it's still being
+ * executed. Called on the thread of the runner, so implementations which do slow work should hand it off.
+ */
+public interface StepSink {
+
+    /**
+     * Called when a step is completed
+     * @param run the run state
+     * @param step the completed step
+     */
+    void onStepCompleted(RunState run, Step step);
+}
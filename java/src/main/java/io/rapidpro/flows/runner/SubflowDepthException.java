@@ -0,0 +1,49 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.flows.definition.Flow;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exception thrown when a run tries to enter more nested subflows than the runner allows, e.g. because a flow starts
+ * itself as a subflow
+ */
+public class SubflowDepthException extends FlowRunException {
+
+    protected int m_maxDepth;
+
+    protected List<Flow> m_flows;
+
+    public SubflowDepthException(int maxDepth, List<RunState.Frame> frames) {
+        super("Maximum subflow depth of " + maxDepth + " exceeded in flows:\n" + describeFlows(frames));
+
+        m_maxDepth = maxDepth;
+        m_flows = new ArrayList<>();
+        for (RunState.Frame frame : frames) {
+            m_flows.add(frame.getFlow());
+        }
+    }
+
+    protected static String describeFlows(List<RunState.Frame> frames) {
+        StringBuilder sb = new StringBuilder();
+        for (RunState.Frame frame : frames) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(frame.getFlow().getUuid());
+        }
+        return sb.toString();
+    }
+
+    public int getMaxDepth() {
+        return m_maxDepth;
+    }
+
+    /**
+     * Gets the active flows when the exception was thrown, from the flow which was started down to the deepest subflow
+     */
+    public List<Flow> getFlows() {
+        return m_flows;
+    }
+}
@@ -5,6 +5,7 @@ import com.google.gson.JsonObject;
 import io.rapidpro.expressions.EvaluationContext;
 import io.rapidpro.expressions.evaluator.Conversions;
 import io.rapidpro.expressions.utils.ExpressionUtils;
+import io.rapidpro.flows.definition.Flow;
 import io.rapidpro.flows.utils.JsonUtils;
 import io.rapidpro.flows.utils.Jsonizable;
 import org.threeten.bp.Instant;
@@ -28,16 +29,36 @@ public class Value implements Jsonizable {
     public Value(String value, String category, String text, Instant time) {
         m_value = value;
         m_category = category;
-        m_text = text;
         m_time = time;
+
+        // the text is usually the same as the value so only keep one copy
+        m_text = text != null && text.equals(value) ? value : text;
     }
 
     public static Value fromJson(JsonElement elm) {
+        return fromJson(elm, null);
+    }
+
+    /**
+     * Creates a value from JSON, sharing the strings of the flow which saved it where they match
+     * @param elm the JSON element
+     * @param flow the flow which saved the value, may be null
+     * @return the value
+     */
+    public static Value fromJson(JsonElement elm, Flow flow) {
         JsonObject obj = elm.getAsJsonObject();
+        if (flow == null) {
+            return new Value(
+                    JsonUtils.getAsInternedString(obj, "value"),
+                    JsonUtils.getAsInternedString(obj, "category"),
+                    JsonUtils.getAsInternedString(obj, "text"),
+                    ExpressionUtils.parseJsonDate(obj.get("time").getAsString())
+            );
+        }
         return new Value(
-                obj.get("value").getAsString(),
-                obj.get("category").getAsString(),
-                obj.get("text").getAsString(),
+                flow.intern(JsonUtils.getAsString(obj, "value")),
+                flow.intern(JsonUtils.getAsString(obj, "category")),
+                flow.intern(JsonUtils.getAsString(obj, "text")),
                 ExpressionUtils.parseJsonDate(obj.get("time").getAsString())
         );
     }
@@ -0,0 +1,95 @@
+package io.rapidpro.flows.runner;
+
+/**
+ * Makes the calls of webhook rulesets. Calls are asynchronous so that runs waiting on webhooks don't tie up a thread
+ * each, and the client must eventually invoke the callback exactly once for every call.
+ */
+public interface WebhookClient {
+
+    /**
+     * Calls a webhook
+     * @param request the request
+     * @param callback the callback to invoke with the response
+     */
+    void call(Request request, Callback callback);
+
+    /**
+     * Receives the outcome of a webhook call
+     */
+    interface Callback {
+
+        void onResponse(Response response);
+
+        void onFailure(Throwable error);
+    }
+
+    /**
+     * A webhook call to be made
+     */
+    class Request {
+
+        protected String m_method;
+
+        protected String m_url;
+
+        protected RunState m_run;
+
+        public Request(String method, String url, RunState run) {
+            m_method = method;
+            m_url = url;
+            m_run = run;
+        }
+
+        public String getMethod() {
+            return m_method;
+        }
+
+        public String getUrl() {
+            return m_url;
+        }
+
+        /**
+         * Gets the run state which clients may use to build the payload of the request
+         */
+        public RunState getRun() {
+            return m_run;
+        }
+
+        @Override
+        public String toString() {
+            return "WebhookClient.Request{method=" + m_method + ", url=\"" + m_url + "\"}";
+        }
+    }
+
+    /**
+     * The response to a webhook call
+     */
+    class Response {
+
+        protected int m_status;
+
+        protected String m_body;
+
+        public Response(int status, String body) {
+            m_status = status;
+            m_body = body;
+        }
+
+        public int getStatus() {
+            return m_status;
+        }
+
+        public String getBody() {
+            return m_body;
+        }
+
+        public boolean isSuccess() {
+            return m_status >= 200 && m_status < 300;
+        }
+
+        @Override
+        public String toString() {
+            return "WebhookClient.Response{status=" + m_status + ", body=\"" + m_body + "\"}";
+        }
+    }
+}
@@ -8,7 +8,9 @@ import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Miscellaneous utility methods
@@ -94,4 +96,120 @@ public class FlowUtils {
     public static String title(String str) {
         return WordUtils.capitalize(str, ' ');
     }
+
+    /**
+     * Finds the variables referenced by a template, e.g. "Hi @contact.name, it's @(date.today + 1)" references
+     * contact.name and date.today. Function names and string literals inside expressions are ignored.
+     * @param template the template
+     * @return the lowercase variable names in the order they occur
+     */
+    public static Set<String> getTemplateReferences(String template) {
+        Set<String> references = new LinkedHashSet<>();
+        int length = template.length();
+        int pos = 0;
+
+        while (pos < length) {
+            if (template.charAt(pos) != '@' || pos + 1 >= length) {
+                pos++;
+                continue;
+            }
+
+            char next = template.charAt(pos + 1);
+            if (next == '@') {
+                pos += 2; // escaped @
+            }
+            else if (next == '(') {
+                pos = scanExpressionReferences(template, pos + 2, references);
+            }
+            else if (isIdentifierStart(next)) {
+                int start = pos + 1;
+                pos = start;
+                while (pos < length && isIdentifierPart(template.charAt(pos))) {
+                    pos++;
+                }
+                addReference(template.substring(start, pos), references);
+            }
+            else {
+                pos++;
+            }
+        }
+        return references;
+    }
+
+    /**
+     * Scans the body of an @(...) expression for variable references
+     * @return the position after the end of the expression
+     */
+    private static int scanExpressionReferences(String template, int pos, Set<String> references) {
+        int length = template.length();
+        int depth = 1;
+
+        while (pos < length && depth > 0) {
+            char ch = template.charAt(pos);
+            if (ch == '"') {
+                // skip over string literal, where "" is an escaped quote
+                pos++;
+                while (pos < length) {
+                    if (template.charAt(pos) == '"') {
+                        if (pos + 1 < length && template.charAt(pos + 1) == '"') {
+                            pos += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    pos++;
+                }
+                pos++;
+            }
+            else if (isIdentifierStart(ch)) {
+                int start = pos;
+                while (pos < length && isIdentifierPart(template.charAt(pos))) {
+                    pos++;
+                }
+                // identifiers followed by an opening parenthesis are function calls
+                int after = pos;
+                while (after < length && Character.isWhitespace(template.charAt(after))) {
+                    after++;
+                }
+                if (after >= length || template.charAt(after) != '(') {
+                    addReference(template.substring(start, pos), references);
+                }
+            }
+            else if (Character.isDigit(ch)) {
+                // skip numbers so that decimals aren't treated as identifiers
+                while (pos < length && (Character.isDigit(template.charAt(pos)) || template.charAt(pos) == '.')) {
+                    pos++;
+                }
+            }
+            else {
+                if (ch == '(') {
+                    depth++;
+                } else if (ch == ')') {
+                    depth--;
+                }
+                pos++;
+            }
+        }
+        return pos;
+    }
+
+    private static void addReference(String identifier, Set<String> references) {
+        // a trailing period is punctuation rather than part of the reference
+        while (identifier.endsWith(".")) {
+            identifier = identifier.substring(0, identifier.length() - 1);
+        }
+
+        String lower = identifier.toLowerCase();
+        if (!lower.isEmpty() && !lower.equals("true") && !lower.equals("false")) {
+            references.add(lower);
+        }
+    }
+
+    private static boolean isIdentifierStart(char ch) {
+        return Character.isLetter(ch) || ch == '_';
+    }
+
+    private static boolean isIdentifierPart(char ch) {
+        return Character.isLetterOrDigit(ch) || ch == '_' || ch == '.';
+    }
 }
@@ -6,6 +6,7 @@ import io.rapidpro.flows.definition.Flow;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * JSON utility methods
@@ -14,6 +15,13 @@ public class JsonUtils {
 
     protected static Gson s_gson = new GsonBuilder().create();
 
+    /**
+     * Cache of fromJson methods by class, as looking them up is a large part of the cost of loading flows
+     */
+    protected static Map<Class<?>, Method> s_fromJsonMethods = new ConcurrentHashMap<>();
+
+    protected static Map<Class<?>, Method> s_fromJsonWithContextMethods = new ConcurrentHashMap<>();
+
     public static Gson getGson() {
         return s_gson;
     }
@@ -29,6 +37,17 @@ public class JsonUtils {
         return (member == null || member.isJsonNull()) ? null : member.getAsString();
     }
 
+    /**
+     * Gets the named member as a string from the shared {@link StringPool}, returning null if it's null of it doesn't
+     * exist
+     * @param obj the parsed JSON object
+     * @param memberName the object member name
+     * @return the string value or null
+     */
+    public static String getAsInternedString(JsonObject obj, String memberName) {
+        return StringPool.getShared().intern(getAsString(obj, memberName));
+    }
+
     /**
      * Gets the named member as an integer, returning null if it's null of it doesn't exist
      * @param obj the parsed JSON object
@@ -114,7 +133,8 @@ public class JsonUtils {
     }
 
     /**
-     * Loads an object from JSON. If object is not a primitive, it's class must declare a fromJson method.
+     * Loads an object from JSON. If object is not a primitive, it's class must declare a fromJson method. Strings are
+     * taken from the shared {@link StringPool}.
      * @param elm the JSON element
      * @param context the deserialization context (may be null)
      * @param clazz the class to instantiate
@@ -126,7 +146,7 @@ public class JsonUtils {
         }
 
         if (clazz.equals(String.class)) {
-            return (T) elm.getAsString();
+            return (T) StringPool.getShared().intern(elm.getAsString());
         } else if (clazz.equals(Boolean.class)) {
             return (T) (Boolean) elm.getAsBoolean();
         } else if (clazz.equals(Integer.class)) {
@@ -135,10 +155,18 @@ public class JsonUtils {
 
         try {
             if (context != null) {
-                Method method = clazz.getDeclaredMethod("fromJson", JsonElement.class, Flow.DeserializationContext.class);
+                Method method = s_fromJsonWithContextMethods.get(clazz);
+                if (method == null) {
+                    method = clazz.getDeclaredMethod("fromJson", JsonElement.class, Flow.DeserializationContext.class);
+                    s_fromJsonWithContextMethods.put(clazz, method);
+                }
                 return (T) method.invoke(null, elm, context);
             } else {
-                Method method = clazz.getDeclaredMethod("fromJson", JsonElement.class);
+                Method method = s_fromJsonMethods.get(clazz);
+                if (method == null) {
+                    method = clazz.getDeclaredMethod("fromJson", JsonElement.class);
+                    s_fromJsonMethods.put(clazz, method);
+                }
                 return (T) method.invoke(null, elm);
             }
         } catch (NoSuchMethodException | InvocationTargetException | IllegalAccessException e) {
@@ -157,7 +185,7 @@ public class JsonUtils {
     public static <V> Map<String, V> fromJsonObject(JsonObject obj, Flow.DeserializationContext context, Class<V> clazz) {
         Map<String, V> map = new HashMap<>();
         for (Map.Entry<String, JsonElement> entry : obj.entrySet()) {
-            map.put(entry.getKey(), fromJson(entry.getValue(), context, clazz));
+            map.put(StringPool.getShared().intern(entry.getKey()), fromJson(entry.getValue(), context, clazz));
         }
         return map;
     }
@@ -0,0 +1,63 @@
+package io.rapidpro.flows.utils;
+
+/**
+ * Bounded pool of canonical string instances, used when deserializing run states so that the many copies of the same
+ * keys and names share one instance. Strings are deduplicated by a fixed-size cache where a new string simply replaces
+ * whatever was in its slot. Long strings, e.g. message text, are unlikely to be duplicates so aren't pooled. Strings
+ * from flow definitions aren't kept here but by each flow, see {@link io.rapidpro.flows.definition.Flow#intern(String)}.
+ */
+public class StringPool {
+
+    /**
+     * The default number of cache slots
+     */
+    public static final int DEFAULT_SIZE = 16384;
+
+    /**
+     * The maximum length of strings which are pooled
+     */
+    public static final int MAX_LENGTH = 64;
+
+    protected static StringPool s_shared = new StringPool(DEFAULT_SIZE);
+
+    /**
+     * Cache slots, where races between threads can only lose a deduplication, never return the wrong string
+     */
+    protected String[] m_slots;
+
+    /**
+     * Creates a new pool
+     * @param size the number of cache slots, which is rounded up to a power of two
+     */
+    public StringPool(int size) {
+        m_slots = new String[Math.max(Integer.highestOneBit(Math.max(size, 1) - 1) << 1, 1)];
+    }
+
+    /**
+     * Gets the pool shared by all deserialization
+     */
+    public static StringPool getShared() {
+        return s_shared;
+    }
+
+    /**
+     * Gets the canonical instance of the given string
+     * @param text the string (may be null)
+     * @return the canonical instance, which may be the given string
+     */
+    public String intern(String text) {
+        if (text == null || text.length() > MAX_LENGTH) {
+            return text;
+        }
+
+        int hash = text.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & (m_slots.length - 1);
+        String cached = m_slots[slot];
+        if (cached != null && cached.equals(text)) {
+            return cached;
+        }
+
+        m_slots[slot] = text;
+        return text;
+    }
+}
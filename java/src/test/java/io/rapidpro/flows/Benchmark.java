@@ -0,0 +1,8 @@
+package io.rapidpro.flows;
+
+/**
+ * JUnit category for benchmarks, which only report timings and so are excluded from the default test run. Run them
+ * with mvn test -Pbenchmarks
+ */
+public interface Benchmark {
+}
@@ -32,14 +32,31 @@ public class InteractionTest extends BaseFlowsTest {
         runInteractionTests("test_flows/basic-form.json", "test_runs/basic-form.runs.json");
     }
 
+    @Test
+    public void interactionTests_withLazyContext() throws Exception {
+        runInteractionTests("test_flows/mushrooms.json", "test_runs/mushrooms.runs.json", true);
+        runInteractionTests("test_flows/registration.json", "test_runs/registration.runs.json", true);
+        runInteractionTests("test_flows/birthdate-check.json", "test_runs/birthdate-check.runs.json", true);
+        runInteractionTests("test_flows/basic-form.json", "test_runs/basic-form.runs.json", true);
+    }
+
     protected void runInteractionTests(String flowFile, String interactionsFile) throws Exception {
-        System.out.println("Running interaction tests from " + interactionsFile);
+        runInteractionTests(flowFile, interactionsFile, false);
+    }
+
+    protected void runInteractionTests(String flowFile, String interactionsFile, boolean lazyContext) throws Exception {
+        System.out.println("Running interaction tests from " + interactionsFile + (lazyContext ? " with lazy context" : ""));
 
         Flow flow = Flow.fromJson(readResource(flowFile));
 
         JsonArray interactionsJson = JsonUtils.getGson().fromJson(readResource(interactionsFile), JsonArray.class);
         List<TestDefinition> tests = JsonUtils.fromJsonArray(interactionsJson, null, TestDefinition.class);
-        Runner runner = new RunnerBuilder()
+        RunnerBuilder builder = new RunnerBuilder();
+        if (lazyContext) {
+            builder.withLazyContext();
+        }
+
+        Runner runner = builder
                 .withLocationResolver(new Location.Resolver() {
                     @Override
                     public Location resolve(String input, String country, Location.Level level, Location parent) {
@@ -0,0 +1,138 @@
+package io.rapidpro.flows.definition;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.utils.JsonUtils;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test for {@link FlowAnalysis}
+ */
+public class FlowAnalysisTest extends BaseFlowsTest {
+
+    /**
+     * A flow which waits for a message and then replies and splits on it, where "stop" goes back to the wait and anything
+     * else goes back to the reply, i.e. a loop without a wait
+     */
+    public static final String LOOP_FLOW = "{\"version\": 10, \"flow_type\": \"F\", \"base_language\": \"eng\", \"entry\": \"b2000000-0000-4000-8000-000000000000\", " +
+            "\"metadata\": {\"uuid\": \"f1000000-0000-4000-8000-000000000000\", \"name\": \"Loop\"}, \"action_sets\": [" +
+            "{\"uuid\": \"a1000000-0000-4000-8000-000000000000\", \"destination\": \"b1000000-0000-4000-8000-000000000000\", \"actions\": [" +
+            "{\"type\": \"reply\", \"msg\": {\"eng\": \"Hi\"}}]}, " +
+            "{\"uuid\": \"a2000000-0000-4000-8000-000000000000\", \"destination\": \"b2000000-0000-4000-8000-000000000000\", \"actions\": [" +
+            "{\"type\": \"reply\", \"msg\": {\"eng\": \"Again\"}}]}], \"rule_sets\": [" +
+            "{\"uuid\": \"b1000000-0000-4000-8000-000000000000\", \"ruleset_type\": \"expression\", \"label\": \"Split\", " +
+            "\"operand\": \"@step.value\", \"config\": {}, \"rules\": [{\"uuid\": \"c1000000-0000-4000-8000-000000000000\", " +
+            "\"test\": {\"type\": \"contains_any\", \"test\": {\"eng\": \"stop\"}}, \"category\": {\"eng\": \"Stop\"}, " +
+            "\"destination\": \"a2000000-0000-4000-8000-000000000000\"}, {\"uuid\": \"c2000000-0000-4000-8000-000000000000\", " +
+            "\"test\": {\"type\": \"true\"}, \"category\": {\"eng\": \"Other\"}, \"destination\": \"a1000000-0000-4000-8000-000000000000\"}]}, " +
+            "{\"uuid\": \"b2000000-0000-4000-8000-000000000000\", \"ruleset_type\": \"wait_message\", \"label\": \"Wait\", " +
+            "\"operand\": \"@step.value\", \"config\": {}, \"rules\": [{\"uuid\": \"c3000000-0000-4000-8000-000000000000\", " +
+            "\"test\": {\"type\": \"true\"}, \"category\": {\"eng\": \"All\"}, \"destination\": \"a1000000-0000-4000-8000-000000000000\"}]}]}";
+
+    @Test
+    public void analyze() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        FlowAnalysis analysis = flow.getAnalysis();
+
+        // node metadata isn't computed until it's first queried
+        assertThat(analysis.m_nodeInfos, nullValue());
+
+        // entry action set leads to the wait
+        FlowAnalysis.NodeInfo entry = analysis.getNodeInfo(flow.getEntry());
+        assertThat(entry.getUuid(), is("32cf414b-35e3-4c75-8a78-d5f4de925e13"));
+        assertThat(entry.canReachPause(), is(true));
+        assertThat(entry.getReferences(), contains("contact.first_name"));
+        assertThat(entry.getTopLevelReferences(), contains("contact"));
+        assertThat(entry.references("contact"), is(true));
+        assertThat(entry.references("flow"), is(false));
+        assertThat(entry.hasConstantTests(), is(true));
+        assertThat(entry.getSubflowUuids(), empty());
+        assertThat(entry.isInNonPausingLoop(), is(false));
+
+        // and is then cached
+        assertThat(analysis.getNodeInfo(flow.getEntry().getUuid()), sameInstance(entry));
+
+        FlowAnalysis.NodeInfo ruleSet = analysis.getNodeInfo("1e318293-4730-481c-b455-daaaf86b2e6c");
+        assertThat(ruleSet.canReachPause(), is(true));
+        assertThat(ruleSet.getReferences(), contains("step.value"));
+        assertThat(ruleSet.hasConstantTests(), is(true));
+
+        // the retry message loops back to the wait
+        assertThat(analysis.getNodeInfo("e277932e-d546-4e0c-a483-ce6cce06b929").canReachPause(), is(true));
+
+        // but the answers lead to the end of the flow
+        assertThat(analysis.getNodeInfo("6d12cde9-dbbf-4673-acd7-afa1776d382b").canReachPause(), is(false));
+        assertThat(analysis.getNodeInfo("4ef2b232-1484-4db7-b470-98af1a2349d3").canReachPause(), is(false));
+
+        FlowAnalysis.NodeInfo save = analysis.getNodeInfo("6891e592-1e29-426b-b227-e3ae466662ab");
+        assertThat(save.canReachPause(), is(false));
+        assertThat(save.getReferences(), contains("flow.response_1.category"));
+        assertThat(save.getTopLevelReferences(), contains("flow"));
+
+        assertThat(analysis.getNodeInfo("xxx"), nullValue());
+
+        // nodes of another copy of the flow aren't this flow's
+        Flow copy = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        assertThat(analysis.getNodeInfo(copy.getEntry()), nullValue());
+
+        assertThat(analysis.getSubflowUuids(), empty());
+
+        // the only loop goes through the wait
+        assertThat(analysis.getNonPausingLoops(), empty());
+        assertThat(analysis.isLoopSafe(), is(true));
+        assertThat(analysis.isInNonPausingLoop(flow.getEntry().getUuid()), is(false));
+    }
+
+    @Test
+    public void analyze_withNonPausingLoops() throws Exception {
+        Flow flow = Flow.fromJson(LOOP_FLOW);
+        FlowAnalysis analysis = flow.getAnalysis();
+
+        assertThat(analysis.isLoopSafe(), is(false));
+        assertThat(analysis.getNonPausingLoops(), hasSize(1));
+        assertThat(analysis.getNonPausingLoops().get(0), contains("a1000000-0000-4000-8000-000000000000", "b1000000-0000-4000-8000-000000000000"));
+
+        assertThat(analysis.isInNonPausingLoop("a1000000-0000-4000-8000-000000000000"), is(true));
+        assertThat(analysis.isInNonPausingLoop("b1000000-0000-4000-8000-000000000000"), is(true));
+        assertThat(analysis.getNodeInfo("a1000000-0000-4000-8000-000000000000").isInNonPausingLoop(), is(true));
+        assertThat(analysis.getNodeInfo("b2000000-0000-4000-8000-000000000000").isInNonPausingLoop(), is(false));
+
+        // the loop through the wait is fine
+        assertThat(analysis.isInNonPausingLoop("a2000000-0000-4000-8000-000000000000"), is(false));
+        assertThat(analysis.isInNonPausingLoop("b2000000-0000-4000-8000-000000000000"), is(false));
+    }
+
+    @Test
+    public void analyze_withTestFlows() throws Exception {
+        for (String name : new String[] { "basic-form", "birthdate-check", "greatwall", "media", "registration" }) {
+            assertThat(name, Flow.fromJson(readResource("test_flows/" + name + ".json")).getAnalysis().isLoopSafe(), is(true));
+        }
+    }
+
+    @Test
+    public void analyze_withExpressionTests() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/birthdate-check.json"));
+
+        FlowAnalysis.NodeInfo ruleSet = flow.getAnalysis().getNodeInfo("75172dfe-97a0-462d-a808-dd8fcd0ced97");
+        assertThat(ruleSet.hasConstantTests(), is(false));
+        assertThat(ruleSet.getReferences(), hasItem("date.today"));
+        assertThat(ruleSet.references("date"), is(true));
+    }
+
+    @Test
+    public void analyze_withSubflows() throws Exception {
+        JsonObject obj = JsonUtils.getGson().fromJson(readResource("test_flows/subflow.json"), JsonObject.class);
+        JsonArray flows = obj.getAsJsonArray("flows");
+
+        Flow parent = Flow.fromJson(flows.get(0).getAsJsonObject().toString());
+
+        FlowAnalysis.NodeInfo subflow = parent.getAnalysis().getNodeInfo("546c368a-90ef-4145-8da6-20b8bb198b31");
+        assertThat(subflow.canReachPause(), is(true));
+        assertThat(subflow.getSubflowUuids(), contains("8a2c48a7-0592-4863-85c1-6b32584d4a93"));
+        assertThat(parent.getAnalysis().getSubflowUuids(), contains("8a2c48a7-0592-4863-85c1-6b32584d4a93"));
+    }
+}
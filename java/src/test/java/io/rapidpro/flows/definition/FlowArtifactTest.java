@@ -0,0 +1,209 @@
+package io.rapidpro.flows.definition;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.Benchmark;
+import io.rapidpro.flows.RunnerBuilder;
+import io.rapidpro.flows.runner.Input;
+import io.rapidpro.flows.runner.RunState;
+import io.rapidpro.flows.runner.Runner;
+import io.rapidpro.flows.utils.JsonUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Test for {@link FlowArtifact}
+ */
+public class FlowArtifactTest extends BaseFlowsTest {
+
+    protected static final String PARENT_UUID = "7c1dee9b-af4c-407b-a269-5553e59149e1";
+
+    protected static final String CHILD_UUID = "8a2c48a7-0592-4863-85c1-6b32584d4a93";
+
+    @Rule
+    public TemporaryFolder m_folder = new TemporaryFolder();
+
+    @Test
+    public void compileAndOpen() throws Exception {
+        File file = m_folder.newFile("flows.rpfa");
+
+        assertThat(FlowArtifact.compileExport(new StringReader(readResource("test_flows/subflow.json")), file), is(2));
+
+        try (FlowArtifact artifact = FlowArtifact.open(file)) {
+            assertThat(artifact.getFlowUuids(), contains(PARENT_UUID, CHILD_UUID));
+            assertThat(artifact.getLoadedCount(), is(0));
+
+            Flow parent = artifact.getFlow(PARENT_UUID);
+            assertThat(parent.getName(), is("Parent Flow"));
+            assertThat(artifact.getFlow(PARENT_UUID), sameInstance(parent));
+            assertThat(artifact.getLoadedCount(), is(1));
+            assertThat(artifact.getFlow("xyz"), nullValue());
+
+            // flows are loaded as the runner needs them
+            Map<String, Flow> flows = artifact.asMap();
+            Runner runner = new RunnerBuilder(flows).withLocationResolver(new TestLocationResolver()).build();
+            RunState run = runner.start(m_org, m_fields, m_contact, PARENT_UUID);
+            assertThat(artifact.getLoadedCount(), is(1));
+
+            run = runner.resume(run, Input.of("color"));
+            assertThat(run.getActiveFlow().getName(), is("Child Flow"));
+            assertThat(artifact.getLoadedCount(), is(2));
+
+            assertThat(flows.containsKey(CHILD_UUID), is(true));
+            assertThat(flows.size(), is(2));
+        }
+    }
+
+    @Test
+    public void compile_removesUnusedFields() throws Exception {
+        JsonObject definition = JsonUtils.getGson().fromJson(readResource("test_flows/registration.json"), JsonObject.class);
+        JsonObject minimal = FlowArtifact.minimize(definition);
+
+        assertThat(minimal.getAsJsonObject("metadata").has("notes"), is(false));
+        assertThat(minimal.getAsJsonObject("metadata").get("revision").getAsInt(), is(76));
+        assertThat(minimal.getAsJsonArray("action_sets").get(0).getAsJsonObject().has("x"), is(false));
+        assertThat(minimal.getAsJsonArray("rule_sets").get(0).getAsJsonObject().has("y"), is(false));
+
+        // the original definition is left as it was
+        assertThat(definition.getAsJsonArray("action_sets").get(0).getAsJsonObject().has("x"), is(true));
+        assertThat(definition.getAsJsonArray("rule_sets").get(0).getAsJsonObject().has("y"), is(true));
+
+        Flow original = Flow.fromJson(readResource("test_flows/registration.json"));
+        Flow compiled = Flow.fromJson(minimal.toString());
+        assertThat(compiled.getMetadata(), is(original.getMetadata()));
+        assertThat(compiled.getValueKeys(), is(original.getValueKeys()));
+        assertThat(compiled.getLanguages(), is(original.getLanguages()));
+    }
+
+    @Test
+    public void open_withInvalidFiles() throws Exception {
+        File file = m_folder.newFile("flows.rpfa");
+        try (FlowArtifact.Writer writer = new FlowArtifact.Writer(file)) {
+            writer.add(readResource("test_flows/mushrooms.json"));
+
+            try {
+                writer.add(readResource("test_flows/mushrooms.json"));
+                fail("Should have thrown FlowParseException");
+            } catch (FlowParseException e) {
+                assertThat(e.getMessage(), is("Duplicate flow UUID: 73c40f19-007d-46bd-83ea-aef439de9f9c"));
+            }
+            writer.commit();
+        }
+
+        // corrupt the flow definition
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(30);
+            raf.write('X');
+        }
+        try (FlowArtifact artifact = FlowArtifact.open(file)) {
+            artifact.getFlow("73c40f19-007d-46bd-83ea-aef439de9f9c");
+            fail("Should have thrown FlowParseException");
+        } catch (FlowParseException e) {
+            assertThat(e.getMessage(), is("Corrupt flow artifact entry for flow 73c40f19-007d-46bd-83ea-aef439de9f9c"));
+        }
+
+        // change the format version
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(4);
+            raf.writeInt(99);
+        }
+        try {
+            FlowArtifact.open(file);
+            fail("Should have thrown FlowParseException");
+        } catch (FlowParseException e) {
+            assertThat(e.getMessage(), is("Unsupported flow artifact version: 99"));
+        }
+    }
+
+    @Test
+    public void compileExport_withInvalidFlow() throws Exception {
+        File file = m_folder.newFile("flows.rpfa");
+        assertThat(FlowArtifact.compileExport(new StringReader(readResource("test_flows/subflow.json")), file), is(2));
+        long length = file.length();
+
+        // an export where the second flow is invalid
+        JsonArray flows = new JsonArray();
+        flows.add(JsonUtils.getGson().fromJson(readResource("test_flows/mushrooms.json"), JsonObject.class));
+        flows.add(JsonUtils.object("version", 10, "flow_type", "F", "action_sets", "xxx"));
+        String export = JsonUtils.object("version", 10, "flows", flows).toString();
+
+        try {
+            FlowArtifact.compileExport(new StringReader(export), file);
+            fail("Should have thrown FlowParseException");
+        } catch (FlowParseException e) {
+            // expected
+        }
+
+        // the previous artifact is untouched and the temporary file is removed
+        assertThat(file.length(), is(length));
+        assertThat(new File(file.getPath() + ".tmp").exists(), is(false));
+        try (FlowArtifact artifact = FlowArtifact.open(file)) {
+            assertThat(artifact.getFlowUuids(), hasSize(2));
+        }
+
+        // and nothing is written at all if the writer is never committed
+        File other = new File(m_folder.getRoot(), "other.rpfa");
+        try (FlowArtifact.Writer writer = new FlowArtifact.Writer(other)) {
+            writer.add(readResource("test_flows/mushrooms.json"));
+        }
+        assertThat(other.exists(), is(false));
+        assertThat(new File(other.getPath() + ".tmp").exists(), is(false));
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkColdStart() throws Exception {
+        final int copies = 2000;
+        String definition = readResource("test_flows/registration.json");
+
+        // an export of many copies of the same flow
+        JsonArray flows = new JsonArray();
+        for (int f = 0; f < copies; f++) {
+            JsonObject flow = JsonUtils.getGson().fromJson(definition, JsonObject.class);
+            flow.getAsJsonObject("metadata").addProperty("uuid", "flow-" + f);
+            flows.add(flow);
+        }
+        String export = JsonUtils.object("version", 10, "flows", flows).toString();
+        File file = m_folder.newFile("flows.rpfa");
+        FlowArtifact.compileExport(new StringReader(export), file);
+
+        long start = System.nanoTime();
+        List<Flow> parsed = new ArrayList<>();
+        FlowExportReader reader = new FlowExportReader(new StringReader(export));
+        while (reader.hasNext()) {
+            parsed.add(reader.next());
+        }
+        long parseNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        try (FlowArtifact artifact = FlowArtifact.open(file)) {
+            artifact.getFlow("flow-0");
+            long openNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (String uuid : artifact.getFlowUuids()) {
+                artifact.getFlow(uuid);
+            }
+            long loadAllNanos = System.nanoTime() - start;
+
+            System.out.println(String.format("Cold start with %d flows: %d ms parsing export, %d ms opening artifact, %d ms loading all from artifact",
+                    copies, parseNanos / 1000000, openNanos / 1000000, loadAllNanos / 1000000));
+        }
+
+        assertThat(parsed, hasSize(copies));
+    }
+}
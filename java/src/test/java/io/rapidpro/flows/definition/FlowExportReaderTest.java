@@ -0,0 +1,57 @@
+package io.rapidpro.flows.definition;
+
+import io.rapidpro.flows.BaseFlowsTest;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test for {@link FlowExportReader}
+ */
+public class FlowExportReaderTest extends BaseFlowsTest {
+
+    @Test
+    public void readFlows() throws Exception {
+        List<String> names = new ArrayList<>();
+
+        try (FlowExportReader reader = new FlowExportReader(new StringReader(readResource("test_flows/subflow.json")))) {
+            while (reader.hasNext()) {
+                names.add(reader.next().getName());
+            }
+            assertThat(reader.hasNext(), is(false));
+        }
+
+        assertThat(names, contains("Parent Flow", "Child Flow"));
+    }
+
+    @Test
+    public void readFlows_withOtherSections() throws Exception {
+        String flow = readResource("test_flows/mushrooms.json");
+        String export = "{\"triggers\": [{\"keyword\": \"go\"}], \"flows\": [" + flow + ", " + flow + "], \"version\": 10, \"campaigns\": []}";
+
+        FlowExportReader reader = new FlowExportReader(new StringReader(export));
+
+        assertThat(reader.next().getName(), is("Mushrooms"));
+        assertThat(reader.hasNext(), is(true));
+        assertThat(reader.next().getName(), is("Mushrooms"));
+        assertThat(reader.hasNext(), is(false));
+
+        reader.close();
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void readFlows_withNoFlows() throws Exception {
+        new FlowExportReader(new StringReader("{\"version\": 10, \"triggers\": []}")).next();
+    }
+
+    @Test(expected = FlowParseException.class)
+    public void readFlows_withInvalidJson() throws Exception {
+        new FlowExportReader(new StringReader("[1, 2]")).hasNext();
+    }
+}
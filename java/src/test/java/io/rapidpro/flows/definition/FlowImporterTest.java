@@ -0,0 +1,192 @@
+package io.rapidpro.flows.definition;
+
+import com.google.gson.JsonObject;
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.Benchmark;
+import io.rapidpro.flows.RunnerBuilder;
+import io.rapidpro.flows.runner.Input;
+import io.rapidpro.flows.runner.RunState;
+import io.rapidpro.flows.runner.Runner;
+import io.rapidpro.flows.utils.JsonUtils;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Test for {@link FlowImporter}
+ */
+public class FlowImporterTest extends BaseFlowsTest {
+
+    protected static final String PARENT_UUID = "7c1dee9b-af4c-407b-a269-5553e59149e1";
+
+    protected static final String CHILD_UUID = "8a2c48a7-0592-4863-85c1-6b32584d4a93";
+
+    @Test
+    public void importExport() throws Exception {
+        FlowSet flows;
+        try (FlowImporter importer = new FlowImporter()) {
+            flows = importer.importExport(new StringReader(readResource("test_flows/subflow.json")));
+        }
+
+        assertThat(flows.size(), is(2));
+        assertThat(flows.getFlowsByUuid().keySet(), contains(PARENT_UUID, CHILD_UUID));
+        assertThat(flows.getFlow(CHILD_UUID).getName(), is("Child Flow"));
+        assertThat(flows.getFlow("xyz"), nullValue());
+        assertThat(flows.isComplete(), is(true));
+        assertThat(flows.getMissingSubflows().size(), is(0));
+        assertThat(flows.getSubflowCycles(), hasSize(0));
+
+        try {
+            flows.getFlowsByUuid().remove(PARENT_UUID);
+            fail("Should have thrown UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {}
+
+        Runner runner = new RunnerBuilder(flows).withLocationResolver(new TestLocationResolver()).build();
+        RunState run = runner.start(m_org, m_fields, m_contact, PARENT_UUID);
+        run = runner.resume(run, Input.of("color"));
+        assertThat(run.getActiveFlow().getName(), is("Child Flow"));
+
+        // runners can still be given flows which aren't in the set
+        runner.start(m_org, m_fields, m_contact, Flow.fromJson(readResource("test_flows/mushrooms.json")));
+        assertThat(flows.size(), is(2));
+    }
+
+    @Test
+    public void importFlows_withMissingAndCyclicSubflows() throws Exception {
+        FlowSet flows;
+        try (FlowImporter importer = new FlowImporter()) {
+            flows = importer.importFlows(Arrays.asList(
+                    subflowDefinition("flow-a", "flow-b"),
+                    subflowDefinition("flow-b", "flow-c"),
+                    subflowDefinition("flow-c", "flow-a"),
+                    subflowDefinition("flow-d", "flow-d"),
+                    subflowDefinition("flow-e", "flow-x"),
+                    subflowDefinition("flow-f", "flow-a")
+            ));
+        }
+
+        assertThat(flows.size(), is(6));
+        assertThat(flows.isComplete(), is(false));
+        assertThat(flows.getMissingSubflows().keySet(), contains("flow-e"));
+        assertThat(flows.getMissingSubflows().get("flow-e"), contains("flow-x"));
+        assertThat(flows.getSubflowCycles(), contains(
+                Arrays.asList("flow-a", "flow-b", "flow-c"),
+                Collections.singletonList("flow-d")
+        ));
+    }
+
+    @Test
+    public void importFlows_withInvalidDefinitions() throws Exception {
+        String mushrooms = readResource("test_flows/mushrooms.json");
+
+        try (FlowImporter importer = new FlowImporter()) {
+            importer.importFlows(Arrays.asList(mushrooms, "{}", mushrooms, readResource("test_flows/missing-version.json")));
+            fail("Should have thrown FlowImportException");
+        } catch (FlowImportException e) {
+            assertThat(e.getProblems(), contains(
+                    startsWith("Definition 1: "),
+                    is("Definition 2: duplicate flow UUID 73c40f19-007d-46bd-83ea-aef439de9f9c"),
+                    is("Definition 3: Missing flow spec version")
+            ));
+            assertThat(e.getMessage(), startsWith("Unable to import flows:\nDefinition 1: "));
+        }
+    }
+
+    @Test
+    public void importDefinitions() throws Exception {
+        JsonObject mushrooms = JsonUtils.getGson().fromJson(readResource("test_flows/mushrooms.json"), JsonObject.class);
+        JsonObject invalid = JsonUtils.getGson().fromJson(readResource("test_flows/missing-version.json"), JsonObject.class);
+        Flow expected = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+
+        try (FlowImporter importer = new FlowImporter()) {
+            FlowSet flows = importer.importDefinitions(Collections.singletonList(mushrooms));
+            Flow flow = flows.getFlow(expected.getUuid());
+
+            assertThat(flow.getMetadata(), is(expected.getMetadata()));
+            assertThat(flow.getLanguages(), is(expected.getLanguages()));
+            assertThat(flow.getValueKeys(), is(expected.getValueKeys()));
+            assertThat(flow.getEntry().getUuid(), is(expected.getEntry().getUuid()));
+
+            try {
+                importer.importDefinitions(Arrays.asList(mushrooms, invalid));
+                fail("Should have thrown FlowImportException");
+            } catch (FlowImportException e) {
+                assertThat(e.getProblems(), contains("Definition 1: Missing flow spec version"));
+            }
+        }
+    }
+
+    @Test
+    public void close() throws Exception {
+        // an importer shuts down the pool it created
+        FlowImporter importer = new FlowImporter();
+        importer.close();
+        assertThat(importer.getPool().isShutdown(), is(true));
+
+        // but not one it was given
+        ForkJoinPool pool = new ForkJoinPool(1);
+        try {
+            importer = new FlowImporter(pool);
+            importer.close();
+            assertThat(pool.isShutdown(), is(false));
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkImport() throws Exception {
+        final int copies = 2000;
+        List<String> definitions = new ArrayList<>();
+        String definition = readResource("test_flows/registration.json");
+        for (int f = 0; f < copies; f++) {
+            JsonObject flow = JsonUtils.getGson().fromJson(definition, JsonObject.class);
+            flow.getAsJsonObject("metadata").addProperty("uuid", "flow-" + f);
+            definitions.add(flow.toString());
+        }
+
+        ForkJoinPool single = new ForkJoinPool(1);
+        long start = System.nanoTime();
+        FlowSet sequential = new FlowImporter(single).importFlows(definitions);
+        long sequentialNanos = System.nanoTime() - start;
+        single.shutdown();
+
+        FlowSet parallel;
+        try (FlowImporter importer = new FlowImporter()) {
+            start = System.nanoTime();
+            parallel = importer.importFlows(definitions);
+            long parallelNanos = System.nanoTime() - start;
+
+            System.out.println(String.format("Imported %d flows: %d ms on 1 thread, %d ms on %d threads",
+                    copies, sequentialNanos / 1000000, parallelNanos / 1000000, importer.getPool().getParallelism()));
+        }
+
+        assertThat(sequential.size(), is(copies));
+        assertThat(parallel.getFlowsByUuid().keySet(), contains(sequential.getFlowsByUuid().keySet().toArray()));
+    }
+
+    /**
+     * Creates a copy of the parent flow from the subflow test export, with a new UUID and subflow
+     */
+    protected String subflowDefinition(String uuid, String subflowUuid) throws Exception {
+        JsonObject export = JsonUtils.getGson().fromJson(readResource("test_flows/subflow.json"), JsonObject.class);
+        JsonObject flow = export.getAsJsonArray("flows").get(0).getAsJsonObject();
+        flow.getAsJsonObject("metadata").addProperty("uuid", uuid);
+
+        JsonObject ruleSet = flow.getAsJsonArray("rule_sets").get(1).getAsJsonObject();
+        ruleSet.getAsJsonObject("config").getAsJsonObject("flow").addProperty("uuid", subflowUuid);
+        return flow.toString();
+    }
+}
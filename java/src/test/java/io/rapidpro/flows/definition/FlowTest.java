@@ -1,15 +1,25 @@
 package io.rapidpro.flows.definition;
 
+import com.google.gson.JsonObject;
 import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.Benchmark;
 import io.rapidpro.flows.definition.actions.group.AddToGroupsAction;
 import io.rapidpro.flows.definition.actions.group.RemoveFromGroupsAction;
 import io.rapidpro.flows.definition.actions.message.ReplyAction;
 import io.rapidpro.flows.definition.tests.logic.TrueTest;
 import io.rapidpro.flows.definition.tests.text.ContainsAnyTest;
+import io.rapidpro.flows.utils.JsonUtils;
 import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 /**
  * Test for {@link Flow}
@@ -42,6 +52,7 @@ public class FlowTest extends BaseFlowsTest {
 
         Rule rs1Rule1 = rs1.getRules().get(0);
 
+        assertThat(rs1Rule1.getIndex(), is(0));
         assertThat(rs1Rule1.getTest(), instanceOf(ContainsAnyTest.class));
         assertThat(rs1Rule1.getCategory(), is(new TranslatableText("base", "Yes", "eng", "Yes", "fre", "Oui")));
 
@@ -68,6 +79,7 @@ public class FlowTest extends BaseFlowsTest {
 
         Rule rs1Rule3 = rs1.getRules().get(2);
 
+        assertThat(rs1Rule3.getIndex(), is(2));
         assertThat(rs1Rule3.getTest(), instanceOf(TrueTest.class));
         assertThat(rs1Rule3.getCategory(), is(new TranslatableText("base", "Other", "eng", "Other", "fre", "Autre")));
 
@@ -97,4 +109,132 @@ public class FlowTest extends BaseFlowsTest {
     public void fromJson_withUnsupportedSpecVersion() throws Exception {
         Flow.fromJson(readResource("test_flows/unsupported-version.json"));
     }
+
+    @Test
+    public void fromJson_withStream() throws Exception {
+        Flow flow = Flow.fromJson(getClass().getClassLoader().getResourceAsStream("test_flows/registration.json"));
+        Flow expected = Flow.fromJson(readResource("test_flows/registration.json"));
+
+        assertThat(flow.getUuid(), is(expected.getUuid()));
+        assertThat(flow.getName(), is("U-Report Registration Flow"));
+        assertThat(flow.getRevision(), is(76));
+        assertThat(flow.getEntry(), is(expected.getEntry()));
+        assertThat(flow.getLanguages(), is(expected.getLanguages()));
+        assertThat(flow.getValueKeys(), is(expected.getValueKeys()));
+
+        // keys can be in any order
+        flow = Flow.fromJson(new StringReader("{\"entry\": null, \"action_sets\": [], \"rule_sets\": [], \"metadata\": {\"uuid\": \"1234\", " +
+                "\"notes\": [{\"body\": \"Hi\"}]}, \"base_language\": \"eng\", \"flow_type\": \"F\", \"version\": 10}"));
+        assertThat(flow.getUuid(), is("1234"));
+        assertThat(flow.getMetadata(), is(JsonUtils.object("uuid", "1234", "name", null, "revision", 0)));
+    }
+
+    @Test
+    public void fromJson_withObject() throws Exception {
+        JsonObject obj = JsonUtils.getGson().fromJson(readResource("test_flows/registration.json"), JsonObject.class);
+        Flow flow = Flow.fromJson(obj);
+        Flow expected = Flow.fromJson(readResource("test_flows/registration.json"));
+
+        assertThat(flow.getMetadata(), is(expected.getMetadata()));
+        assertThat(flow.getEntry().getUuid(), is(expected.getEntry().getUuid()));
+        assertThat(flow.getLanguages(), is(expected.getLanguages()));
+        assertThat(flow.getValueKeys(), is(expected.getValueKeys()));
+
+        try {
+            Flow.fromJson(JsonUtils.getGson().fromJson("{\"version\": 10, \"flow_type\": \"F\", \"action_sets\": {}}", JsonObject.class));
+            fail("Should have thrown FlowParseException");
+        } catch (FlowParseException e) {
+            assertThat(e.getMessage(), is("Unable to read flow JSON"));
+        }
+    }
+
+    @Test
+    public void fromJson_withFlowType() throws Exception {
+        // a type code we don't know of loads with no type
+        String unknown = "{\"version\": 10, \"flow_type\": \"Z\", \"action_sets\": [], \"rule_sets\": [], \"metadata\": {\"uuid\": \"1234\"}}";
+        assertThat(Flow.fromJson(unknown).getType(), nullValue());
+        assertThat(Flow.fromJson(JsonUtils.getGson().fromJson(unknown, JsonObject.class)).getType(), nullValue());
+
+        // but a missing type is an error
+        String missing = "{\"version\": 10, \"action_sets\": [], \"rule_sets\": [], \"metadata\": {\"uuid\": \"1234\"}}";
+        for (Object definition : Arrays.asList(missing, JsonUtils.getGson().fromJson(missing, JsonObject.class))) {
+            try {
+                parse(definition);
+                fail("Should have thrown FlowParseException");
+            } catch (FlowParseException e) {
+                assertThat(e.getMessage(), is("Missing flow type"));
+            }
+        }
+    }
+
+    @Test
+    public void fromJson_withMalformedProperties() throws Exception {
+        List<String> malformed = Arrays.asList(
+                "{\"version\": \"ten\", \"flow_type\": \"F\"}",
+                "{\"version\": 10, \"flow_type\": {}}",
+                "{\"version\": 10, \"flow_type\": [1, 2]}",
+                "{\"version\": 10, \"flow_type\": \"F\", \"action_sets\": {}}"
+        );
+
+        // the same input fails the same way whether it's read from a stream or already parsed
+        for (String json : malformed) {
+            for (Object definition : Arrays.asList(json, JsonUtils.getGson().fromJson(json, JsonObject.class))) {
+                try {
+                    parse(definition);
+                    fail("Should have thrown FlowParseException for " + json);
+                } catch (FlowParseException e) {
+                    assertThat(json, e.getMessage(), is("Unable to read flow JSON"));
+                }
+            }
+        }
+    }
+
+    protected static Flow parse(Object definition) throws FlowParseException {
+        return definition instanceof JsonObject ? Flow.fromJson((JsonObject) definition) : Flow.fromJson((String) definition);
+    }
+
+    @Test(expected = FlowParseException.class)
+    public void fromJson_withInvalidJson() throws Exception {
+        Flow.fromJson("{\"version\": 10, \"action_sets\": [");
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkFootprint() throws Exception {
+        List<String> names = Arrays.asList("basic-form", "birthdate-check", "empty", "greatwall", "media", "mushrooms", "registration");
+
+        for (String name : names) {
+            long bytes = measureRetainedBytes(readResource("test_flows/" + name + ".json"), 500);
+
+            System.out.println(String.format("Retained size of %s: %d bytes per flow", name, bytes));
+        }
+    }
+
+    /**
+     * Measures the heap retained by copies of the given flow as the difference in used memory before and after
+     */
+    protected long measureRetainedBytes(String json, int copies) throws Exception {
+        List<Flow> flows = new ArrayList<>(copies);
+
+        // warm up so that we don't measure shared things like pinned strings
+        Flow.fromJson(json);
+
+        long before = usedMemory();
+        for (int c = 0; c < copies; c++) {
+            flows.add(Flow.fromJson(json));
+        }
+        long after = usedMemory();
+
+        assertThat(flows, hasSize(copies));
+        return (after - before) / copies;
+    }
+
+    protected static long usedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
 }
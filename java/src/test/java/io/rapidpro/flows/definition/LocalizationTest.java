@@ -0,0 +1,47 @@
+package io.rapidpro.flows.definition;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test for {@link Localization}
+ */
+public class LocalizationTest {
+
+    @Test
+    public void getOrdinals() {
+        LanguageDictionary dictionary = new LanguageDictionary();
+        int eng = dictionary.register("eng");
+        int fra = dictionary.register("fra");
+
+        // empty and repeated languages are skipped, and unknown languages don't match anything
+        Localization localization = new Localization(dictionary, new String[] { "fra", null, "", "kin", "eng", "fra" });
+        assertThat(localization.getLanguages(), is(new String[] { "fra", "kin", "eng" }));
+        assertThat(localization.getOrdinals(), is(new int[] { fra, -1, eng }));
+        assertThat(localization.getDictionary(), sameInstance(dictionary));
+
+        // and aren't added to the dictionary
+        assertThat(dictionary.size(), is(2));
+        assertThat(dictionary.getOrdinal("kin"), is(-1));
+
+        assertThat(new Localization("fra", "eng").getOrdinals(), is(new int[] { -1, -1 }));
+        assertThat(new Localization().getOrdinals().length, is(0));
+    }
+
+    @Test
+    public void isFor() {
+        LanguageDictionary dictionary = new LanguageDictionary();
+        Localization localization = new Localization(dictionary, new String[] { "fra", null, "eng" });
+
+        assertThat(localization.isFor("fra", null, "eng"), is(true));
+        assertThat(localization.isFor(new String("fra"), null, "eng"), is(true));
+        assertThat(localization.isFor("fra", "", "eng"), is(false));
+        assertThat(localization.isFor("kin", null, "eng"), is(false));
+        assertThat(new Localization("fra", "eng").isFor("fra", "eng", null), is(false));
+
+        assertThat(localization.isFor(dictionary, "fra", null, "eng"), is(true));
+        assertThat(localization.isFor(new LanguageDictionary(), "fra", null, "eng"), is(false));
+    }
+}
@@ -22,12 +22,12 @@ public class TranslatableTextTest {
 
         TranslatableText text = TranslatableText.fromJson(parser.parse("\"test\""));
         assertThat(text.m_untranslated, is("test"));
-        assertThat(text.m_translations, nullValue());
+        assertThat(text.getTranslations(), nullValue());
 
         text = TranslatableText.fromJson(parser.parse("{\"eng\": \"Hello\", \"fra\": \"Bonjour\"}"));
         assertThat(text.m_untranslated, nullValue());
-        assertThat(text.m_translations, hasEntry("eng", "Hello"));
-        assertThat(text.m_translations, hasEntry("fra", "Bonjour"));
+        assertThat(text.getTranslations(), hasEntry("eng", "Hello"));
+        assertThat(text.getTranslations(), hasEntry("fra", "Bonjour"));
     }
 
     @Test
@@ -54,6 +54,42 @@ public class TranslatableTextTest {
         assertThat(text.getLocalized(Arrays.asList("fra", "eng"), "default"), is("Bonjour"));
     }
 
+    @Test
+    public void getLocalized_withLocalization() {
+        TranslatableText text = new TranslatableText("eng", "Hello", "fra", "Bonjour", "kin", "Muraho");
+
+        assertThat(text.getLocalized(new Localization("fra", "eng"), "default"), is("Bonjour"));
+        assertThat(text.getLocalized(new Localization(null, "", "kin"), "default"), is("Muraho"));
+        assertThat(text.getLocalized(new Localization("xyz", null, "eng"), "default"), is("Hello"));
+        assertThat(text.getLocalized(new Localization("xyz"), "default"), is("default"));
+        assertThat(text.getLocalized(new Localization(), "default"), is("default"));
+    }
+
+    @Test
+    public void getLocalized_withFlowDictionary() {
+        LanguageDictionary dictionary = new LanguageDictionary();
+        for (String language : Arrays.asList("eng", "fra", "kin", "swa", "ara", "spa", "por", "rus")) {
+            dictionary.register(language);
+        }
+
+        Map<String, String> translations = new HashMap<>();
+        translations.put("rus", "Privet");
+        translations.put("eng", "Hello");
+        TranslatableText text = new TranslatableText(translations, dictionary);
+
+        // storage is sized to the translations rather than the dictionary
+        assertThat(text.m_texts.length, is(2));
+        assertThat(text.m_ordinals.length, is(2));
+
+        assertThat(text.getLocalized(new Localization(dictionary, new String[] { "xyz", "rus", "eng" }), "default"), is("Privet"));
+        assertThat(text.getLocalized(new Localization(dictionary, new String[] { "fra", "eng" }), "default"), is("Hello"));
+        assertThat(text.getLocalized(new Localization(dictionary, new String[] { "fra" }), "default"), is("default"));
+
+        // localizations from other dictionaries are looked up by language
+        assertThat(text.getLocalized(new Localization(new LanguageDictionary(), new String[] { "rus" }), "default"), is("Privet"));
+        assertThat(text.getTranslations(), allOf(hasEntry("rus", "Privet"), hasEntry("eng", "Hello")));
+    }
+
     @Test
     public void _equals() {
         assertThat(new TranslatableText("abc").equals(new TranslatableText("abc")), is(true));
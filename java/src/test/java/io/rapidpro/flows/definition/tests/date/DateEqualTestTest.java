@@ -1,10 +1,15 @@
 package io.rapidpro.flows.definition.tests.date;
 
 import com.google.gson.JsonElement;
+import io.rapidpro.expressions.EvaluationContext;
+import io.rapidpro.flows.RunnerBuilder;
 import io.rapidpro.flows.definition.tests.BaseTestTest;
 import io.rapidpro.flows.definition.tests.Test;
+import io.rapidpro.flows.runner.Runner;
 import io.rapidpro.flows.utils.JsonUtils;
 import org.threeten.bp.LocalDate;
+import org.threeten.bp.ZoneId;
+import org.threeten.bp.ZonedDateTime;
 
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
@@ -39,4 +44,37 @@ public class DateEqualTestTest extends BaseTestTest {
         assertTest(test, "it was Aug 24, 2015", true, LocalDate.of(2015, 8, 24));
         assertTest(test, "25th Aug '15", false, null);
     }
+
+    @org.junit.Test
+    public void evaluate_withCachedTestValue() {
+        Runner runner1 = new RunnerBuilder().withNowAs(ZonedDateTime.of(2015, 8, 24, 23, 0, 0, 0, ZoneId.of("Africa/Kigali")).toInstant()).build();
+        Runner runner2 = new RunnerBuilder().withNowAs(ZonedDateTime.of(2015, 8, 25, 1, 0, 0, 0, ZoneId.of("Africa/Kigali")).toInstant()).build();
+        EvaluationContext context1 = m_run.buildContext(runner1, null);
+        EvaluationContext context2 = m_run.buildContext(runner2, null);
+
+        DateEqualTest test = new DateEqualTest("@date.today");
+        assertThat(DateComparisonTest.isDateOnlyTemplate(test.getTest()), is(true));
+
+        // same answer when re-using the cached value for the same day, new answer on a new day
+        assertThat(test.evaluate(runner1, m_run, context1, "24-8-2015").isMatched(), is(true));
+        assertThat(test.evaluate(runner1, m_run, context1, "24-8-2015").isMatched(), is(true));
+        assertThat(test.evaluate(runner2, m_run, context2, "24-8-2015").isMatched(), is(false));
+        assertThat(test.evaluate(runner2, m_run, context2, "25-8-2015").isMatched(), is(true));
+
+        // tests which depend on other variables aren't cached
+        assertThat(DateComparisonTest.isDateOnlyTemplate("@(date.today + contact.age)"), is(false));
+
+        context1.putVariable("dob", "24-08-2015");
+        context2.putVariable("dob", "25-08-2015");
+        test = new DateEqualTest("@(dob)");
+
+        assertThat(test.evaluate(runner1, m_run, context1, "24-8-2015").isMatched(), is(true));
+        assertThat(test.evaluate(runner1, m_run, context2, "24-8-2015").isMatched(), is(false));
+
+        // invalid test values never match
+        test = new DateEqualTest("not a date");
+
+        assertThat(test.evaluate(runner1, m_run, context1, "24-8-2015").isMatched(), is(false));
+        assertThat(test.evaluate(runner1, m_run, context1, "24-8-2015").isMatched(), is(false));
+    }
 }
@@ -34,9 +34,19 @@ public class BetweenTestTest extends BaseTestTest {
         assertTest(test, "31", false, null);
         assertTest(test, "42", false, null);
 
+        assertTest(test, "1,000 or 35.5", true, new BigDecimal("35.5"));
+        assertTest(test, "  40,", true, new BigDecimal(40));
+        assertTest(test, "12345678901234567890", false, null);
+
         // min and max can be expressions
         test = new BetweenTest("@contact.age", "@(contact.age + 3)");
 
         assertTest(test, "35", true, new BigDecimal(35));
+        assertTest(test, "33", false, null);
+
+        // invalid bounds never match
+        test = new BetweenTest("x", "41");
+
+        assertTest(test, "35", false, null);
     }
 }
@@ -5,6 +5,7 @@ import org.junit.Test;
 import java.math.BigDecimal;
 
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 
 /**
@@ -19,6 +20,41 @@ public class NumericTestTest {
         assertThat(NumericTest.extractDecimal("123C"), is(new BigDecimal(123)));
     }
 
+    @Test
+    public void tryExtractDecimal() {
+        assertThat(NumericTest.tryExtractDecimal("120"), is(new BigDecimal(120)));
+        assertThat(NumericTest.tryExtractDecimal("-1.5"), is(new BigDecimal("-1.5")));
+        assertThat(NumericTest.tryExtractDecimal("1e3"), is(new BigDecimal("1e3")));
+        assertThat(NumericTest.tryExtractDecimal(".5"), is(new BigDecimal("0.5")));
+        assertThat(NumericTest.tryExtractDecimal("12.5kg"), is(new BigDecimal(12)));
+        assertThat(NumericTest.tryExtractDecimal("12345678901234567890"), is(new BigDecimal("12345678901234567890")));
+        assertThat(NumericTest.tryExtractDecimal("abc"), is(nullValue()));
+        assertThat(NumericTest.tryExtractDecimal("."), is(nullValue()));
+        assertThat(NumericTest.tryExtractDecimal("1e"), is(new BigDecimal(1)));
+        assertThat(NumericTest.tryExtractDecimal("I23C"), is(nullValue()));
+        assertThat(NumericTest.tryExtractDecimal(""), is(nullValue()));
+    }
+
+    @Test
+    public void tryExtractLong() {
+        assertThat(NumericTest.tryExtractLong("120"), is(120L));
+        assertThat(NumericTest.tryExtractLong("-007"), is(-7L));
+        assertThat(NumericTest.tryExtractLong("+5"), is(5L));
+        assertThat(NumericTest.tryExtractLong("l2O"), is(120L));
+        assertThat(NumericTest.tryExtractLong("123C"), is(123L));
+        assertThat(NumericTest.tryExtractLong("12.5kg"), is(12L));
+        assertThat(NumericTest.tryExtractLong("999999999999999999"), is(999999999999999999L));
+
+        // these need to be handled as decimals
+        assertThat(NumericTest.tryExtractLong("12.5"), is(NumericTest.NOT_A_LONG));
+        assertThat(NumericTest.tryExtractLong("1e3"), is(NumericTest.NOT_A_LONG));
+        assertThat(NumericTest.tryExtractLong("1234567890123456789"), is(NumericTest.NOT_A_LONG));
+
+        // and these aren't numbers at all
+        assertThat(NumericTest.tryExtractLong("abc"), is(NumericTest.NOT_A_LONG));
+        assertThat(NumericTest.tryExtractLong("-"), is(NumericTest.NOT_A_LONG));
+    }
+
     @Test(expected = NumberFormatException.class)
     public void extractDecimal_whenTextIsNaN() {
         NumericTest.extractDecimal("abc");
@@ -0,0 +1,131 @@
+package io.rapidpro.flows.runner;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.Benchmark;
+import io.rapidpro.flows.RunnerBuilder;
+import io.rapidpro.flows.definition.Flow;
+import io.rapidpro.flows.utils.JsonUtils;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Test for {@link AllocationProfiler}
+ */
+public class AllocationProfilerTest extends BaseFlowsTest {
+
+    @Test
+    public void profileMushrooms() throws Exception {
+        AllocationProfiler profiler = new AllocationProfiler();
+        assumeTrue(profiler.isSupported());
+
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        Runner runner = new RunnerBuilder().withAllocationProfiler(profiler).build();
+
+        assertThat(runner.getAllocationProfiler(), is(profiler));
+
+        RunState run = runner.start(m_org, m_fields, m_contact, flow);
+        runner.resume(run, Input.of("YUCK!"));
+        runner.resume(run, Input.of("no way"));
+
+        assertThat(profiler.getResumeCount(), is(3L));
+        assertThat(profiler.getResumeBytes(), greaterThan(0L));
+        assertThat(profiler.getMeanBytesPerResume(), greaterThan(0.0));
+
+        // entry action set visited once
+        AllocationProfiler.NodeStats entryStats = profiler.getNodeStats("32cf414b-35e3-4c75-8a78-d5f4de925e13");
+        assertThat(entryStats.getFlowUuid(), is(flow.getUuid()));
+        assertThat(entryStats.getVisits(), is(1L));
+        assertThat(entryStats.getTotalBytes(), greaterThan(0L));
+
+        AllocationProfiler.NodeStats ruleSetStats = profiler.getNodeStats("1e318293-4730-481c-b455-daaaf86b2e6c");
+        assertThat(ruleSetStats.getVisits(), is(4L)); // two visits and the two pauses
+        assertThat(ruleSetStats.getMaxBytes(), lessThanOrEqualTo(ruleSetStats.getTotalBytes()));
+
+        assertThat(profiler.getNodeStats("xxx"), nullValue());
+
+        // stats are ordered by total bytes
+        AllocationProfiler.NodeStats previous = null;
+        for (AllocationProfiler.NodeStats stats : profiler.getAllNodeStats()) {
+            if (previous != null) {
+                assertThat(stats.getTotalBytes(), lessThanOrEqualTo(previous.getTotalBytes()));
+            }
+            previous = stats;
+        }
+
+        String report = profiler.toReport();
+        assertThat(report, startsWith("Benchmark"));
+        assertThat(report, containsString("Runner.resume:·gc.alloc.rate.norm"));
+        assertThat(report, containsString("Runner.visit[1e318293-4730-481c-b455-daaaf86b2e6c]:·gc.alloc.rate.norm"));
+        assertThat(report, containsString("B/op"));
+
+        profiler.reset();
+
+        assertThat(profiler.getResumeCount(), is(0L));
+        assertThat(profiler.getAllNodeStats(), hasSize(0));
+    }
+
+    /**
+     * Replays the inputs of the interaction tests many times and reports the mean allocations per resume
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkTestFlows() throws Exception {
+        AllocationProfiler profiler = new AllocationProfiler();
+        assumeTrue(profiler.isSupported());
+
+        Runner runner = new RunnerBuilder().withAllocationProfiler(profiler).build();
+        Runner lazyRunner = new RunnerBuilder().withAllocationProfiler(profiler).withLazyContext().build();
+
+        List<String> names = Arrays.asList("mushrooms", "registration", "birthdate-check", "basic-form");
+
+        for (String name : names) {
+            Flow flow = Flow.fromJson(readResource("test_flows/" + name + ".json"));
+            JsonArray tests = JsonUtils.getGson().fromJson(readResource("test_runs/" + name + ".runs.json"), JsonArray.class);
+
+            benchmark(profiler, runner, flow, tests, name);
+            benchmark(profiler, lazyRunner, flow, tests, name + " with lazy context");
+        }
+    }
+
+    protected void benchmark(AllocationProfiler profiler, Runner runner, Flow flow, JsonArray tests, String name) throws Exception {
+        // warm up and then measure
+        replayInputs(runner, flow, tests, 20);
+        profiler.reset();
+        replayInputs(runner, flow, tests, 20);
+
+        System.out.println("Allocations for " + name + " (" + String.format("%.0f", profiler.getMeanBytesPerResume()) + " B/resume)");
+        System.out.println(profiler.toReport());
+
+        assertThat(profiler.getResumeCount(), greaterThan(0L));
+    }
+
+    protected void replayInputs(Runner runner, Flow flow, JsonArray tests, int iterations) throws Exception {
+        for (int i = 0; i < iterations; i++) {
+            for (JsonElement testElem : tests) {
+                JsonObject test = testElem.getAsJsonObject();
+                Org org = Org.fromJson(test.get("org"));
+                List<Field> fields = JsonUtils.fromJsonArray(test.get("fields_initial").getAsJsonArray(), null, Field.class);
+                Contact contact = Contact.fromJson(test.get("contact_initial"));
+
+                RunState run = runner.start(org, fields, contact, flow);
+
+                for (JsonElement messageElem : test.get("messages").getAsJsonArray()) {
+                    JsonObject message = messageElem.getAsJsonObject();
+                    if (message.get("type").getAsString().equals("input")) {
+                        runner.resume(run, Input.of(message.get("msg").getAsString()));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package io.rapidpro.flows.runner;
+
+import org.junit.Test;
+import org.threeten.bp.Instant;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Test for {@link ColumnarResults}
+ */
+public class ColumnarResultsTest {
+
+    @Test
+    public void writeAndRead() throws Exception {
+        Map<String, ResultsExporter.ColumnType> columns = new LinkedHashMap<>();
+        columns.put("contact", ResultsExporter.ColumnType.TEXT);
+        columns.put("response.category", ResultsExporter.ColumnType.TEXT);
+        columns.put("response.time", ResultsExporter.ColumnType.TIME);
+
+        Instant time = Instant.parse("2015-10-19T12:30:45.123Z");
+        List<Object[]> rows = new ArrayList<>();
+        rows.add(new Object[] {"1234", "Yes", time});
+        rows.add(new Object[] {"5678", "No", null});
+        rows.add(new Object[] {"9012", "Yes", time.minusSeconds(3600)});
+        rows.add(new Object[] {"ünïcødé", null, Instant.ofEpochMilli(0)});
+        rows.add(new Object[] {null, "Yes", time});
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ColumnarResults.Writer writer = new ColumnarResults.Writer(out, 2)) {
+            writer.writeHeader(columns);
+            for (Object[] row : rows) {
+                writer.writeRow(row);
+            }
+        }
+
+        try (ColumnarResults.Reader reader = new ColumnarResults.Reader(new ByteArrayInputStream(out.toByteArray()))) {
+            assertThat(reader.getColumns(), is(columns));
+
+            List<Object[]> read = new ArrayList<>();
+            while (reader.hasNext()) {
+                read.add(reader.next());
+            }
+            assertThat(read, hasSize(5));
+            for (int r = 0; r < rows.size(); r++) {
+                assertThat(read.get(r), is(rows.get(r)));
+            }
+            assertThat(reader.hasNext(), is(false));
+        }
+    }
+
+    @Test
+    public void read_withInvalidFile() throws Exception {
+        try {
+            new ColumnarResults.Reader(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}));
+            fail("Should have thrown IOException");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("Not a results file"));
+        }
+    }
+}
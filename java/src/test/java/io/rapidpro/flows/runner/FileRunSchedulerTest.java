@@ -0,0 +1,141 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.flows.BaseFlowsTest;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.threeten.bp.Duration;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static io.rapidpro.flows.runner.RunSchedulerTest.START;
+import static io.rapidpro.flows.runner.RunSchedulerTest.collect;
+import static io.rapidpro.flows.runner.RunSchedulerTest.deadline;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test for {@link FileRunScheduler}
+ */
+public class FileRunSchedulerTest extends BaseFlowsTest {
+
+    @Rule
+    public TemporaryFolder m_folder = new TemporaryFolder();
+
+    @Test
+    public void recover() throws Exception {
+        File file = new File(m_folder.getRoot(), "deadlines");
+        RunSchedulerTest.MutableClock clock = new RunSchedulerTest.MutableClock(START);
+        List<RunScheduler.Deadline> fired = new ArrayList<>();
+
+        FileRunScheduler scheduler = open(file, clock, fired);
+        scheduler.schedule(deadline("c1", START.plusSeconds(10)));
+        scheduler.schedule(deadline("c2", START.plus(Duration.ofHours(1))));
+        scheduler.schedule(deadline("c3", START.plus(Duration.ofHours(2))));
+        scheduler.schedule(deadline("c3", START.plus(Duration.ofHours(3))));
+        scheduler.schedule(deadline("c4", START.plus(Duration.ofHours(4))));
+        scheduler.cancel("c4");
+
+        clock.set(START.plusSeconds(11));
+        assertThat(scheduler.advance(), is(1));
+        scheduler.close();
+
+        // reopening recovers the pending deadlines, as they were last scheduled
+        scheduler = open(file, clock, fired);
+        assertThat(scheduler.size(), is(2));
+        assertThat(scheduler.getDeadline("c1"), nullValue());
+        assertThat(scheduler.getDeadline("c2").getTime(), is(START.plus(Duration.ofHours(1))));
+        assertThat(scheduler.getDeadline("c2").getArrivedOn(), is(START));
+        assertThat(scheduler.getDeadline("c2").getKind(), is(RunScheduler.Kind.EXPIRY));
+        assertThat(scheduler.getDeadline("c3").getTime(), is(START.plus(Duration.ofHours(3))));
+
+        // and rewrites the journal with only those
+        assertThat(file.length(), lessThan(200L));
+
+        // deadlines which passed whilst closed fire on the first advance
+        scheduler.close();
+        clock.set(START.plus(Duration.ofHours(2)));
+        scheduler = open(file, clock, fired);
+        assertThat(scheduler.advance(), is(1));
+        assertThat(fired.get(1).getContactUuid(), is("c2"));
+
+        // new deadlines don't reuse the ids of recovered ones
+        scheduler.schedule(deadline("c5", START.plus(Duration.ofHours(5))));
+        scheduler.close();
+        scheduler = open(file, clock, fired);
+        assertThat(scheduler.size(), is(2));
+        scheduler.close();
+    }
+
+    @Test
+    public void recover_withPartialRecord() throws Exception {
+        File file = new File(m_folder.getRoot(), "deadlines");
+        RunSchedulerTest.MutableClock clock = new RunSchedulerTest.MutableClock(START);
+        List<RunScheduler.Deadline> fired = new ArrayList<>();
+
+        FileRunScheduler scheduler = open(file, clock, fired);
+        scheduler.schedule(deadline("c1", START.plusSeconds(10)));
+        scheduler.schedule(deadline("c2", START.plusSeconds(20)));
+        scheduler.close();
+
+        // simulate a crash part way through writing the second record
+        long length = file.length();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length - 5);
+        }
+
+        scheduler = open(file, clock, fired);
+        assertThat(scheduler.size(), is(1));
+        assertThat(scheduler.getDeadline("c1"), notNullValue());
+        scheduler.close();
+    }
+
+    @Test
+    public void compact() throws Exception {
+        File file = new File(m_folder.getRoot(), "deadlines");
+        RunSchedulerTest.MutableClock clock = new RunSchedulerTest.MutableClock(START);
+        FileRunScheduler scheduler = open(file, clock, new ArrayList<RunScheduler.Deadline>());
+
+        // repeatedly rescheduling the same runs keeps the journal from growing without limit
+        for (int r = 0; r < 5000; r++) {
+            scheduler.schedule(deadline("c" + (r % 10), START.plusSeconds(r)));
+        }
+        assertThat(scheduler.size(), is(10));
+        assertThat(file.length(), lessThan(2048L * 100));
+
+        scheduler.close();
+        scheduler = open(file, clock, new ArrayList<RunScheduler.Deadline>());
+        assertThat(scheduler.size(), is(10));
+        assertThat(scheduler.getDeadline("c9").getTime(), is(START.plusSeconds(4999)));
+        scheduler.close();
+    }
+
+    @Test
+    public void forceOnAppend() throws Exception {
+        File file = new File(m_folder.getRoot(), "deadlines");
+        RunSchedulerTest.MutableClock clock = new RunSchedulerTest.MutableClock(START);
+        FileRunScheduler scheduler = open(file, clock, new ArrayList<RunScheduler.Deadline>());
+        assertThat(scheduler.isForceOnAppend(), is(false));
+
+        scheduler.setForceOnAppend(true);
+        scheduler.schedule(deadline("c1", START.plusSeconds(10)));
+        scheduler.flush();
+
+        // a copy of the journal taken without closing the scheduler has the deadline
+        File copy = new File(m_folder.getRoot(), "deadlines-copy");
+        Files.copy(file.toPath(), copy.toPath());
+        FileRunScheduler recovered = open(copy, clock, new ArrayList<RunScheduler.Deadline>());
+        assertThat(recovered.getDeadline("c1").getTime(), is(START.plusSeconds(10)));
+
+        recovered.close();
+        scheduler.close();
+    }
+
+    protected FileRunScheduler open(File file, RunSchedulerTest.MutableClock clock, List<RunScheduler.Deadline> fired) throws Exception {
+        return new FileRunScheduler(file, new RunScheduler.Timeouts(), collect(fired), clock, Duration.ofSeconds(1));
+    }
+}
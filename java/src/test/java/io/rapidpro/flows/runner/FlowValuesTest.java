@@ -0,0 +1,139 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.definition.Flow;
+import io.rapidpro.flows.definition.RuleSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.threeten.bp.Instant;
+
+import java.util.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test for {@link FlowValues}
+ */
+public class FlowValuesTest extends BaseFlowsTest {
+
+    protected Flow m_flow;
+
+    protected Instant m_now = Instant.ofEpochSecond(1444000000);
+
+    @Before
+    public void setupFlow() throws Exception {
+        m_flow = Flow.fromJson(readResource("test_flows/registration.json"));
+    }
+
+    @Test
+    public void valueKeys() {
+        assertThat(m_flow.getValueKeys(), arrayContaining("name", "born", "state", "lga", "ward", "settlement", "gender", "occupation", "language"));
+        assertThat(m_flow.getValueOrdinal("gender"), is(6));
+        assertThat(m_flow.getValueOrdinal("xxx"), is(-1));
+
+        assertThat(((RuleSet) m_flow.getElementByUuid("b8aad8eb-6388-4fb7-91d1-4653c760420b")).getValueOrdinal(), is(6));
+
+        // rule sets with the same label share an ordinal
+        assertThat(((RuleSet) m_flow.getElementByUuid("944078e8-c226-416a-84cd-d4b390657360")).getValueOrdinal(), is(7));
+        assertThat(((RuleSet) m_flow.getElementByUuid("0dad8d42-0853-462b-bce7-7dfa46b35eef")).getValueOrdinal(), is(7));
+    }
+
+    @Test
+    public void putGetAndRemove() {
+        FlowValues values = new FlowValues(m_flow);
+        Value value1 = new Value("Yes", "Yes", "yes", m_now);
+        Value value2 = new Value("No", "No", "no", m_now);
+        Value value3 = new Value("1", "1", "1", m_now);
+
+        assertThat(values.size(), is(0));
+        assertThat(values.get("gender"), nullValue());
+        assertThat(values.isEmpty(), is(true));
+
+        assertThat(values.put("gender", value1), nullValue());
+        assertThat(values.put("gender", value2), sameInstance(value1));
+        assertThat(values.put("old_question", value3), nullValue());
+        assertThat(values.put((RuleSet) m_flow.getElementByUuid("b8aad8eb-6388-4fb7-91d1-4653c760420b"), value1), sameInstance(value2));
+
+        assertThat(values.size(), is(2));
+        assertThat(values.get("gender"), sameInstance(value1));
+        assertThat(values.get("old_question"), sameInstance(value3));
+        assertThat(values.containsKey("gender"), is(true));
+        assertThat(values.containsKey("name"), is(false));
+        assertThat(values.get(123), nullValue());
+
+        // behaves the same as a regular map
+        Map<String, Value> expected = new HashMap<>();
+        expected.put("gender", value1);
+        expected.put("old_question", value3);
+        assertThat(values, is(expected));
+        assertThat(new HashMap<>(values), is(expected));
+        assertThat(values.hashCode(), is(expected.hashCode()));
+
+        assertThat(values.remove("gender"), sameInstance(value1));
+        assertThat(values.remove("gender"), nullValue());
+        assertThat(values.remove("old_question"), sameInstance(value3));
+        assertThat(values.size(), is(0));
+
+        values.put("gender", value1);
+        values.clear();
+        assertThat(values.size(), is(0));
+        assertThat(values.get("gender"), nullValue());
+    }
+
+    @Test
+    public void iterate() {
+        FlowValues values = new FlowValues(m_flow);
+        Value value1 = new Value("Yes", "Yes", "yes", m_now);
+        Value value2 = new Value("1", "1", "1", m_now);
+        values.put("old_question", value2);
+        values.put("gender", value1);
+        values.put("name", value1);
+
+        // rule set values come first in definition order
+        assertThat(new ArrayList<>(values.keySet()), contains("name", "gender", "old_question"));
+
+        Iterator<Map.Entry<String, Value>> it = values.entrySet().iterator();
+        while (it.hasNext()) {
+            String key = it.next().getKey();
+            if (!key.equals("gender")) {
+                it.remove();
+            }
+        }
+
+        assertThat(values.size(), is(1));
+        assertThat(new ArrayList<>(values.keySet()), contains("gender"));
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void iterate_withModification() {
+        FlowValues values = new FlowValues(m_flow);
+        values.put("name", new Value("1", "1", "1", m_now));
+        values.put("gender", new Value("1", "1", "1", m_now));
+
+        for (String key : values.keySet()) {
+            values.remove("gender");
+        }
+    }
+
+    @Test
+    public void withoutFlow() {
+        FlowValues values = new FlowValues(null);
+        Value value = new Value("1", "1", "1", m_now);
+        values.put("gender", value);
+
+        assertThat(values.get("gender"), sameInstance(value));
+
+        // re-indexing against a flow moves known keys into the array
+        values = new FlowValues(m_flow, values);
+        assertThat(values.get("gender"), sameInstance(value));
+        assertThat(values.m_values[6], sameInstance(value));
+        assertThat(values.m_overflow, nullValue());
+    }
+
+    @Test
+    public void valueSharesText() {
+        Value value = new Value(new String("yes"), "Yes", new String("yes"), m_now);
+        assertThat(value.getText(), sameInstance(value.getValue()));
+    }
+}
@@ -0,0 +1,164 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.RunnerBuilder;
+import io.rapidpro.flows.definition.ActionSet;
+import io.rapidpro.flows.definition.Flow;
+import io.rapidpro.flows.definition.FlowImporter;
+import io.rapidpro.flows.definition.FlowSet;
+import io.rapidpro.flows.definition.Rule;
+import io.rapidpro.flows.definition.RuleSet;
+import io.rapidpro.flows.definition.actions.Action;
+import org.junit.Test;
+import org.threeten.bp.Instant;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test for {@link FunnelAggregator}
+ */
+public class FunnelAggregatorTest extends BaseFlowsTest {
+
+    protected static final String PARENT_UUID = "7c1dee9b-af4c-407b-a269-5553e59149e1";
+
+    protected static final String CHILD_UUID = "8a2c48a7-0592-4863-85c1-6b32584d4a93";
+
+    @Test
+    public void recordRuns() throws Exception {
+        FunnelAggregator funnel = new FunnelAggregator();
+        FlowSet flows = new FlowImporter().importExport(new StringReader(readResource("test_flows/subflow.json")));
+        Runner runner = new RunnerBuilder(flows).withFunnelAggregator(funnel).withLocationResolver(new TestLocationResolver()).build();
+
+        assertThat(runner.getFunnelAggregator(), sameInstance(funnel));
+
+        RunState run1 = runner.start(m_org, m_fields, m_contact, PARENT_UUID);
+        RunState run2 = runner.start(m_org, m_fields, m_contact, PARENT_UUID);
+
+        Map<String, FunnelAggregator.NodeCounts> parent = funnel.snapshot(PARENT_UUID);
+        assertCounts(parent.get("accd6da2-1c2c-4962-bd66-51f75c3d89d8"), 2, 2, 0);
+        assertCounts(parent.get("c89414cf-7c07-42ce-9135-86a5a036f651"), 2, 0, 2);
+        assertThat(funnel.snapshot(CHILD_UUID).size(), is(0));
+
+        run1 = runner.resume(run1, Input.of("color"));
+        runner.resume(run2, Input.of("nope"));
+
+        parent = funnel.snapshot(PARENT_UUID);
+        FunnelAggregator.NodeCounts kind = parent.get("c89414cf-7c07-42ce-9135-86a5a036f651");
+        assertCounts(kind, 3, 2, 1);
+        assertThat(kind.getRuleCounts().get("b8eddbd7-3c31-46bb-895c-543bcba447bc"), is(1L));
+        assertThat(kind.getCategoryCounts().get("Color"), is(1L));
+        assertThat(kind.getCategoryCounts().get("Other"), is(1L));
+        assertCounts(parent.get("546c368a-90ef-4145-8da6-20b8bb198b31"), 1, 0, 1); // inside the subflow
+
+        Map<String, FunnelAggregator.NodeCounts> child = funnel.snapshot(CHILD_UUID);
+        assertCounts(child.get("b7fe7de0-bb6f-4c11-8a4d-93ff2a1526eb"), 1, 1, 0);
+        assertCounts(child.get("fc561730-70f8-4426-b3c7-da237e88331e"), 1, 0, 1);
+
+        runner.resume(run1, Input.of("red"));
+
+        child = funnel.snapshot(CHILD_UUID);
+        FunnelAggregator.NodeCounts color = child.get("fc561730-70f8-4426-b3c7-da237e88331e");
+        assertCounts(color, 1, 1, 0);
+        assertThat(color.getCategoryCounts(), hasEntry("Red", 1L));
+        assertThat(color.getCategoryCounts(), hasEntry("Green", 0L));
+
+        parent = funnel.snapshot(PARENT_UUID);
+        FunnelAggregator.NodeCounts subflow = parent.get("546c368a-90ef-4145-8da6-20b8bb198b31");
+        assertCounts(subflow, 1, 1, 0);
+        assertThat(subflow.getCategoryCounts(), hasEntry("Complete", 1L));
+        assertCounts(parent.get("c89414cf-7c07-42ce-9135-86a5a036f651"), 4, 2, 2);
+
+        assertThat(funnel.snapshot(), hasSize(7));
+
+        // resetting clears the counts but not how many are waiting
+        List<FunnelAggregator.NodeCounts> drained = funnel.snapshotAndReset();
+        assertThat(drained, hasSize(7));
+        parent = funnel.snapshot(PARENT_UUID);
+        assertCounts(parent.get("c89414cf-7c07-42ce-9135-86a5a036f651"), 0, 0, 2);
+        assertThat(parent.get("546c368a-90ef-4145-8da6-20b8bb198b31").getCategoryCounts(), hasEntry("Complete", 0L));
+
+        runner.start(m_org, m_fields, m_contact, PARENT_UUID);
+        funnel.reset();
+        assertCounts(funnel.snapshot(PARENT_UUID).get("c89414cf-7c07-42ce-9135-86a5a036f651"), 0, 0, 3);
+    }
+
+    @Test
+    public void recordFromManyThreads() throws Exception {
+        final FunnelAggregator funnel = new FunnelAggregator(4);
+        final Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        final int threads = 8, arrivals = 10000;
+
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int a = 0; a < arrivals; a++) {
+                        funnel.recordArrival(flow, flow.getEntry());
+                    }
+                }
+            }));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        FunnelAggregator.NodeCounts counts = funnel.snapshot(flow.getUuid()).get(flow.getEntry().getUuid());
+        assertCounts(counts, threads * arrivals, 0, threads * arrivals);
+    }
+
+    @Test
+    public void recordAcrossReloads() throws Exception {
+        FunnelAggregator funnel = new FunnelAggregator();
+        Flow flow1 = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        Flow flow2 = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        RuleSet ruleSet1 = (RuleSet) ((ActionSet) flow1.getEntry()).getDestination();
+        RuleSet ruleSet2 = (RuleSet) ((ActionSet) flow2.getEntry()).getDestination();
+
+        // two contacts arrive before the flow is reloaded, and another after
+        funnel.recordArrival(flow1, ruleSet1);
+        funnel.recordArrival(flow1, ruleSet1);
+        funnel.recordArrival(flow2, ruleSet2);
+
+        Map<String, FunnelAggregator.NodeCounts> counts = funnel.snapshot(flow1.getUuid());
+        assertThat(counts.size(), is(1));
+        assertCounts(counts.get(ruleSet1.getUuid()), 3, 0, 3);
+
+        // contacts which arrived at the old instance can leave from the new one
+        funnel.recordLeft(leftStep(flow2, ruleSet2, ruleSet2.getRules().get(1)));
+        funnel.recordLeft(leftStep(flow2, ruleSet2, ruleSet2.getRules().get(1)));
+        funnel.recordLeft(leftStep(flow1, ruleSet1, ruleSet1.getRules().get(0)));
+
+        FunnelAggregator.NodeCounts ruleSet = funnel.snapshot(flow1.getUuid()).get(ruleSet1.getUuid());
+        assertCounts(ruleSet, 3, 3, 0);
+        assertThat(ruleSet.getRuleCounts().get(ruleSet1.getRules().get(0).getUuid()), is(1L));
+        assertThat(ruleSet.getRuleCounts().get(ruleSet1.getRules().get(1).getUuid()), is(2L));
+        assertThat(ruleSet.getCategoryCounts(), hasEntry("Yes", 1L));
+        assertThat(ruleSet.getCategoryCounts(), hasEntry("No", 2L));
+        assertThat(ruleSet.getCategoryCounts(), hasEntry("Other", 0L));
+
+        assertThat(funnel.snapshot(), hasSize(1));
+        assertThat(funnel.snapshotAndReset(), hasSize(1));
+        assertCounts(funnel.snapshot(flow1.getUuid()).get(ruleSet1.getUuid()), 0, 0, 0);
+    }
+
+    protected static Step leftStep(Flow flow, RuleSet ruleSet, Rule rule) {
+        RuleSet.Result result = new RuleSet.Result(rule, "x", null, "x", null, flow);
+        return new Step(flow, ruleSet, Instant.now(), Instant.now(), result, new ArrayList<Action>(), new ArrayList<String>());
+    }
+
+    protected static void assertCounts(FunnelAggregator.NodeCounts counts, long arrived, long left, long waiting) {
+        assertThat(counts.getArrived(), is(arrived));
+        assertThat(counts.getLeft(), is(left));
+        assertThat(counts.getWaiting(), is(waiting));
+    }
+}
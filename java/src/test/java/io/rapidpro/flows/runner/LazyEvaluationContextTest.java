@@ -0,0 +1,129 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.expressions.EvaluationError;
+import io.rapidpro.expressions.dates.DateStyle;
+import io.rapidpro.flows.BaseFlowsTest;
+import org.junit.Test;
+import org.threeten.bp.Instant;
+import org.threeten.bp.ZoneId;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Test for {@link LazyEvaluationContext}
+ */
+public class LazyEvaluationContextTest extends BaseFlowsTest {
+
+    @Test
+    public void resolveVariable() {
+        final int[] builds = new int[1];
+
+        LazyEvaluationContext context = new LazyEvaluationContext(ZoneId.of("Africa/Kigali"), DateStyle.DAY_FIRST, Instant.now());
+
+        final LazyEvaluationContext.LazyMap foo = new LazyEvaluationContext.LazyMap();
+        foo.put("*", "Foo");
+        foo.putDeferred("bar", new LazyEvaluationContext.Deferred() {
+            @Override
+            public Object build() {
+                builds[0]++;
+                return "Bar";
+            }
+        });
+        foo.putDeferred("Mixed", new LazyEvaluationContext.Deferred() {
+            @Override
+            public Object build() {
+                builds[0]++;
+                return "Case";
+            }
+        });
+
+        context.putDeferred("foo", new LazyEvaluationContext.Deferred() {
+            @Override
+            public Object build() {
+                builds[0]++;
+                return foo;
+            }
+        });
+        context.putDeferred("unused", new LazyEvaluationContext.Deferred() {
+            @Override
+            public Object build() {
+                throw new RuntimeException("Shouldn't be built");
+            }
+        });
+
+        Map<String, Object> plain = new HashMap<>();
+        plain.put("Key", "Value");
+        context.putVariable("plain", plain);
+
+        assertThat(context.resolveVariable("foo"), is((Object) "Foo"));
+        assertThat(builds[0], is(1));
+
+        assertThat(context.resolveVariable("FOO.BAR"), is((Object) "Bar"));
+        assertThat(context.resolveVariable("foo.bar"), is((Object) "Bar"));
+        assertThat(builds[0], is(2));
+        assertThat(foo.isBuilt("Mixed"), is(false));
+
+        assertThat(context.resolveVariable("foo.mixed"), is((Object) "Case"));
+        assertThat(builds[0], is(3));
+
+        assertThat(context.resolveVariable("plain.key"), is((Object) "Value"));
+
+        try {
+            context.resolveVariable("foo.xxx");
+            fail("Should have thrown EvaluationError");
+        } catch (EvaluationError e) {
+            assertThat(e.getMessage(), is("Undefined variable: foo.xxx"));
+        }
+        try {
+            context.resolveVariable("foo.bar.xxx");
+            fail("Should have thrown EvaluationError");
+        } catch (EvaluationError e) {
+            assertThat(e.getMessage(), is("Undefined variable: foo.bar.xxx"));
+        }
+    }
+
+    @Test
+    public void lazyMap() {
+        LazyEvaluationContext.LazyMap map = new LazyEvaluationContext.LazyMap();
+        map.put("a", "1");
+        map.putDeferred("b", new LazyEvaluationContext.Deferred() {
+            @Override
+            public Object build() {
+                return "2";
+            }
+        });
+
+        assertThat(map.size(), is(2));
+        assertThat(map.containsKey("b"), is(true));
+        assertThat(map.isBuilt("a"), is(true));
+        assertThat(map.isBuilt("b"), is(false));
+        assertThat(map.findKey("B"), nullValue());
+        assertThat(map.findKey("b"), is("b"));
+
+        // iterating builds everything
+        Map<String, Object> copy = new HashMap<>(map);
+        assertThat(copy, allOf(hasEntry("a", (Object) "1"), hasEntry("b", (Object) "2")));
+        assertThat(map.isBuilt("b"), is(true));
+
+        // explicit values replace deferred ones and vice versa
+        map.putDeferred("a", new LazyEvaluationContext.Deferred() {
+            @Override
+            public Object build() {
+                return "3";
+            }
+        });
+        assertThat(map.size(), is(2));
+        assertThat(map.get("a"), is((Object) "3"));
+
+        map.putDeferred("c", null);
+        map.put("c", "4");
+        assertThat(map.get("c"), is((Object) "4"));
+        assertThat(map.remove("c"), is((Object) "4"));
+        assertThat(map.size(), is(2));
+    }
+}
@@ -0,0 +1,251 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.RunnerBuilder;
+import io.rapidpro.flows.definition.Flow;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test for {@link MappedRunBackend}
+ */
+public class MappedRunBackendTest extends BaseFlowsTest {
+
+    @Rule
+    public TemporaryFolder m_folder = new TemporaryFolder();
+
+    @Test
+    public void compareAndSetAndRemove() throws Exception {
+        MappedRunBackend backend = new MappedRunBackend(m_folder.getRoot(), 4096);
+
+        assertThat(backend.load("c1"), nullValue());
+        assertThat(backend.size(), is(0));
+
+        assertThat(backend.compareAndSet("c1", 0, "{\"a\":1}"), is(1L));
+        assertThat(backend.compareAndSet("c1", 0, "{\"a\":2}"), is(0L));
+        assertThat(backend.compareAndSet("c1", 2, "{\"a\":2}"), is(0L));
+        assertThat(backend.compareAndSet("c1", 1, "{\"a\":\"é\"}"), is(2L));
+        assertThat(backend.compareAndSet("c2", 0, "{\"b\":1}"), is(3L));
+
+        assertThat(backend.load("c1").getVersion(), is(2L));
+        assertThat(backend.load("c1").getJson(), is("{\"a\":\"é\"}"));
+        assertThat(backend.load("c2").getVersion(), is(3L));
+        assertThat(backend.size(), is(2));
+
+        assertThat(backend.remove("c1", 1), is(false));
+        assertThat(backend.remove("c3", 1), is(false));
+        assertThat(backend.remove("c1", 2), is(true));
+
+        assertThat(backend.load("c1"), nullValue());
+        assertThat(backend.size(), is(1));
+        assertThat(backend.getDeadBytes(), greaterThan(0L));
+
+        // a new run after the remove can't be overwritten by a writer still holding a version from before it
+        assertThat(backend.compareAndSet("c1", 0, "{\"a\":3}"), is(4L));
+        assertThat(backend.compareAndSet("c1", 1, "{\"a\":4}"), is(0L));
+        assertThat(backend.compareAndSet("c1", 2, "{\"a\":4}"), is(0L));
+        backend.close();
+
+        // and versions carry on from the highest after recovery
+        backend = new MappedRunBackend(m_folder.getRoot(), 4096);
+        assertThat(backend.compareAndSet("c2", 3, "{\"b\":2}"), is(5L));
+        backend.close();
+    }
+
+    @Test
+    public void recover() throws Exception {
+        MappedRunBackend backend = new MappedRunBackend(m_folder.getRoot(), 4096);
+
+        // enough records to need several segments
+        long[] versions = populate(backend);
+
+        int segments = backend.getSegmentCount();
+        long liveBytes = backend.getLiveBytes();
+        long deadBytes = backend.getDeadBytes();
+        int size = backend.size();
+
+        assertThat(segments, greaterThan(1));
+        backend.close();
+
+        backend = new MappedRunBackend(m_folder.getRoot(), 4096);
+
+        assertThat(backend.getSegmentCount(), is(segments));
+        assertThat(backend.getLiveBytes(), is(liveBytes));
+        assertThat(backend.getDeadBytes(), is(deadBytes));
+        assertThat(backend.size(), is(size));
+        assertRecords(backend, versions);
+
+        // can keep appending after recovery
+        assertThat(backend.compareAndSet("contact-1", versions[1], "{}"), is(151L));
+        assertThat(backend.load("contact-1").getVersion(), is(151L));
+
+        backend.close();
+    }
+
+    @Test
+    public void recover_withPartiallyWrittenRecord() throws Exception {
+        MappedRunBackend backend = new MappedRunBackend(m_folder.getRoot(), 4096);
+        backend.compareAndSet("c1", 0, "{\"a\":1}");
+        backend.compareAndSet("c2", 0, "{\"b\":1}");
+        backend.close();
+
+        // corrupt the body of the last record as if we crashed whilst writing it
+        File segment = new File(m_folder.getRoot(), "segment-00000001.dat");
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(8 + 11 + 2 + 7 + 8 + 12);
+            raf.write(new byte[] { 'x', 'x' });
+        }
+
+        backend = new MappedRunBackend(m_folder.getRoot(), 4096);
+
+        assertThat(backend.load("c1").getJson(), is("{\"a\":1}"));
+        assertThat(backend.load("c2"), nullValue());
+        assertThat(backend.size(), is(1));
+
+        // and overwrite it with new records
+        assertThat(backend.compareAndSet("c2", 0, "{\"b\":2}"), is(2L));
+        backend.close();
+
+        backend = new MappedRunBackend(m_folder.getRoot(), 4096);
+        assertThat(backend.load("c2").getJson(), is("{\"b\":2}"));
+        backend.close();
+    }
+
+    @Test
+    public void compact() throws Exception {
+        MappedRunBackend backend = new MappedRunBackend(m_folder.getRoot(), 1024);
+
+        long[] versions = populate(backend);
+
+        int segmentsBefore = backend.getSegmentCount();
+        long liveBytes = backend.getLiveBytes();
+        long deadBytes = backend.getDeadBytes();
+
+        backend.setCompactionThreshold(0.1);
+        assertThat(backend.compact(), greaterThan(0));
+
+        assertThat(backend.getSegmentCount(), lessThan(segmentsBefore));
+        assertThat(backend.getDeadBytes(), lessThan(deadBytes));
+        assertThat(backend.getLiveBytes(), is(liveBytes));
+        assertRecords(backend, versions);
+
+        // nothing to do when there's no dead bytes
+        backend.setCompactionThreshold(1.0);
+        assertThat(backend.compact(), is(0));
+
+        backend.close();
+
+        // compaction doesn't resurrect removed runs
+        backend = new MappedRunBackend(m_folder.getRoot(), 1024);
+        assertRecords(backend, versions);
+        backend.close();
+    }
+
+    @Test
+    public void startCompaction() throws Exception {
+        MappedRunBackend backend = new MappedRunBackend(m_folder.getRoot(), 4096);
+        long version = 0;
+        for (int v = 0; v < 200; v++) {
+            version = backend.compareAndSet("c1", version, "{\"v\":" + v + "}");
+        }
+        assertThat(backend.getSegmentCount(), greaterThan(1));
+
+        backend.startCompaction(10, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 100 && backend.getSegmentCount() > 1; i++) {
+            Thread.sleep(10);
+        }
+
+        assertThat(backend.getSegmentCount(), is(1));
+        assertThat(backend.load("c1").getJson(), is("{\"v\":199}"));
+        backend.close();
+    }
+
+    @Test
+    public void withRunStore() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        Runner runner = new RunnerBuilder(Collections.singletonList(flow)).build();
+
+        MappedRunBackend backend = new MappedRunBackend(m_folder.getRoot());
+        RunStore store = new RunStore(backend, RunState.buildFlowMap(flow));
+
+        runner.start(store, m_org, m_fields, m_contact, flow.getUuid());
+        runner.resume(store, m_contact.getUuid(), Input.of("YUCK!"));
+        backend.close();
+
+        // runs survive a restart
+        backend = new MappedRunBackend(m_folder.getRoot());
+        store = new RunStore(backend, RunState.buildFlowMap(flow));
+
+        RunState run = store.load(m_contact.getUuid());
+        assertThat(run.getVersion(), is(2L));
+        assertThat(run.getState(), is(RunState.State.WAIT_MESSAGE));
+
+        run = runner.resume(store, m_contact.getUuid(), Input.of("no"));
+        assertThat(run.getState(), is(RunState.State.COMPLETED));
+        assertThat(store.size(), is(0));
+
+        backend.close();
+    }
+
+    @Test
+    public void indexResize() throws Exception {
+        MappedRunBackend backend = new MappedRunBackend(m_folder.getRoot(), 1024 * 1024);
+
+        for (int c = 0; c < 10000; c++) {
+            backend.compareAndSet("contact-" + c, 0, "{}");
+        }
+        for (int c = 0; c < 10000; c += 2) {
+            backend.remove("contact-" + c, c + 1);
+        }
+
+        assertThat(backend.size(), is(5000));
+        for (int c = 0; c < 10000; c++) {
+            assertThat(backend.load("contact-" + c), c % 2 == 0 ? nullValue() : notNullValue());
+        }
+        backend.close();
+    }
+
+    /**
+     * Adds 100 contacts, updates every second one and removes every third one
+     * @return the version of each contact, or zero if it was removed
+     */
+    protected long[] populate(MappedRunBackend backend) {
+        long[] versions = new long[100];
+        for (int c = 0; c < 100; c++) {
+            versions[c] = backend.compareAndSet("contact-" + c, 0, "{\"c\":" + c + "}");
+        }
+        for (int c = 0; c < 100; c += 2) {
+            versions[c] = backend.compareAndSet("contact-" + c, versions[c], "{\"c\":" + c + ",\"updated\":true}");
+        }
+        for (int c = 0; c < 100; c += 3) {
+            backend.remove("contact-" + c, versions[c]);
+            versions[c] = 0;
+        }
+        return versions;
+    }
+
+    protected void assertRecords(MappedRunBackend backend, long[] versions) {
+        for (int c = 0; c < 100; c++) {
+            RunStore.Entry entry = backend.load("contact-" + c);
+            if (c % 3 == 0) {
+                assertThat(entry, nullValue());
+            } else if (c % 2 == 0) {
+                assertThat(entry.getVersion(), is(versions[c]));
+                assertThat(entry.getJson(), is("{\"c\":" + c + ",\"updated\":true}"));
+            } else {
+                assertThat(entry.getVersion(), is(versions[c]));
+                assertThat(entry.getJson(), is("{\"c\":" + c + "}"));
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.expressions.utils.ExpressionUtils;
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.Benchmark;
+import io.rapidpro.flows.RunnerBuilder;
+import io.rapidpro.flows.definition.Flow;
+import io.rapidpro.flows.definition.FlowImporter;
+import io.rapidpro.flows.definition.FlowSet;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Test for {@link ResultsExporter}
+ */
+public class ResultsExporterTest extends BaseFlowsTest {
+
+    @Test
+    public void export_toCsv() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        Runner runner = new RunnerBuilder().withLocationResolver(new TestLocationResolver()).build();
+
+        RunState run1 = runner.start(m_org, m_fields, m_contact, flow);
+        RunState run2 = runner.start(m_org, m_fields, new Contact("5678-5678", "Bob", ContactUrn.fromString("tel:+260964153687"), "eng"), flow);
+        runner.resume(run2, Input.of("Hmm, \"maybe\""));
+        RunState run3 = runner.start(m_org, m_fields, new Contact("9012-9012", "Jim", ContactUrn.fromString("tel:+260964153688"), "eng"), flow);
+        runner.resume(run3, Input.of("yes!"));
+
+        ResultsExporter exporter = new ResultsExporter(flow, new ForkJoinPool(), 2);
+        assertThat(exporter.getColumns().keySet(), contains("contact", "started", "state", "response_1.value", "response_1.category", "response_1.text", "response_1.time"));
+        assertThat(exporter.getColumns().get("response_1.time"), is(ResultsExporter.ColumnType.TIME));
+
+        StringWriter csv = new StringWriter();
+        try (CsvResultsWriter writer = new CsvResultsWriter(csv)) {
+            List<String> runs = Arrays.asList(run1.toJsonString(), run2.toJsonString(), run3.toJsonString());
+            assertThat(exporter.export(runs.iterator(), writer), is(3L));
+        }
+
+        String[] lines = csv.toString().split("\r\n");
+        assertThat(lines, arrayWithSize(4));
+        assertThat(lines[0], is("contact,started,state,response_1.value,response_1.category,response_1.text,response_1.time"));
+        assertThat(lines[1], is("1234-1234," + ExpressionUtils.formatJsonDate(run1.getStarted()) + ",wait_message,,,,"));
+        assertThat(lines[2], is("5678-5678," + ExpressionUtils.formatJsonDate(run2.getStarted()) + ",wait_message,\"Hmm, \"\"maybe\"\"\",Other,\"Hmm, \"\"maybe\"\"\"," + ExpressionUtils.formatJsonDate(run2.getValues().get("response_1").getTime())));
+        assertThat(lines[3], startsWith("9012-9012," + ExpressionUtils.formatJsonDate(run3.getStarted()) + ",completed,yes,Yes,yes!,"));
+    }
+
+    @Test
+    public void export_withSubflows() throws Exception {
+        FlowSet flows = new FlowImporter().importExport(new StringReader(readResource("test_flows/subflow.json")));
+        Runner runner = new RunnerBuilder(flows).withLocationResolver(new TestLocationResolver()).build();
+        Flow child = flows.getFlow("8a2c48a7-0592-4863-85c1-6b32584d4a93");
+
+        // a run of the child flow started directly, and one which is in it as a subflow of the parent flow
+        RunState run1 = runner.start(m_org, m_fields, m_contact, child);
+        runner.resume(run1, Input.of("Green"));
+        RunState run2 = runner.start(m_org, m_fields, m_contact, "7c1dee9b-af4c-407b-a269-5553e59149e1");
+        runner.resume(run2, Input.of("color"));
+        runner.resume(run2, Input.of("Purple"));
+
+        // and one which never entered the child flow
+        RunState run3 = runner.start(m_org, m_fields, m_contact, "7c1dee9b-af4c-407b-a269-5553e59149e1");
+
+        final List<Object[]> rows = new ArrayList<>();
+        try (ResultsExporter exporter = new ResultsExporter(child)) {
+            exporter.export(Arrays.asList(run1.toJsonString(), run2.toJsonString(), run3.toJsonString()).iterator(), new ResultsExporter.Writer() {
+                @Override
+                public void writeHeader(java.util.Map<String, ResultsExporter.ColumnType> columns) {
+                    assertThat(columns.keySet(), hasItem("color.category"));
+                }
+
+                @Override
+                public void writeRow(Object[] row) {
+                    rows.add(row);
+                }
+
+                @Override
+                public void close() {}
+            });
+        }
+
+        assertThat(rows, hasSize(3));
+        assertThat(rows.get(0)[3], is((Object) "Green"));
+        assertThat(rows.get(0)[4], is((Object) "Green"));
+        assertThat(rows.get(0)[6], is((Object) run1.getValues().get("color").getTime()));
+        assertThat(rows.get(1)[2], is((Object) "wait_message"));
+        assertThat(rows.get(1)[3], is((Object) "Purple"));
+        assertThat(rows.get(1)[4], is((Object) "Other"));
+        assertThat(rows.get(2)[2], is((Object) "wait_message"));
+        assertThat(Arrays.asList(Arrays.copyOfRange(rows.get(2), 3, rows.get(2).length)), everyItem(nullValue()));
+    }
+
+    @Test
+    public void export_withOtherFlow() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+
+        // values of another flow which happen to have the same key as this flow's aren't exported
+        String runState = "{\"contact\": {\"uuid\": \"1234-1234\"}, \"state\": \"completed\", \"active_flows\": [\"5678\"], " +
+                "\"values\": [{\"response_1\": {\"value\": \"yes\", \"category\": \"Yes\", \"text\": \"yes\", \"time\": null}}]}";
+
+        final List<Object[]> rows = new ArrayList<>();
+        try (ResultsExporter exporter = new ResultsExporter(flow)) {
+            exporter.export(Arrays.asList(runState).iterator(), new ResultsExporter.Writer() {
+                @Override
+                public void writeHeader(java.util.Map<String, ResultsExporter.ColumnType> columns) {}
+
+                @Override
+                public void writeRow(Object[] row) {
+                    rows.add(row);
+                }
+
+                @Override
+                public void close() {}
+            });
+        }
+
+        assertThat(rows, hasSize(1));
+        assertThat(rows.get(0)[0], is((Object) "1234-1234"));
+        assertThat(rows.get(0)[2], is((Object) "completed"));
+        assertThat(rows.get(0)[3], nullValue());
+        assertThat(rows.get(0)[4], nullValue());
+    }
+
+    @Test
+    public void close() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+
+        ResultsExporter exporter = new ResultsExporter(flow);
+        exporter.close();
+        assertThat(exporter.getPool().isShutdown(), is(true));
+
+        // a pool which was passed in isn't ours to shut down
+        ForkJoinPool pool = new ForkJoinPool();
+        new ResultsExporter(flow, pool, 10).close();
+        assertThat(pool.isShutdown(), is(false));
+        pool.shutdown();
+    }
+
+    @Test
+    public void export_withInvalidRunState() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+
+        try (ResultsExporter exporter = new ResultsExporter(flow)) {
+            List<String> runStates = Arrays.asList("{\"state\": \"completed\"}", "{\"contact\": []}");
+            exporter.export(runStates.iterator(), new CsvResultsWriter(new StringWriter()));
+            fail("Should have thrown IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), is("Unable to decode run state 1"));
+        }
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkExport() throws Exception {
+        final int runs = 50000;
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        Runner runner = new RunnerBuilder().withLocationResolver(new TestLocationResolver()).build();
+        RunState run = runner.start(m_org, m_fields, m_contact, flow);
+        runner.resume(run, Input.of("no thanks"));
+        final String json = run.toJsonString();
+
+        Iterator<String> runStates = new Iterator<String>() {
+            int m_count = 0;
+
+            @Override
+            public boolean hasNext() {
+                return m_count < runs;
+            }
+
+            @Override
+            public String next() {
+                m_count++;
+                return json;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        ByteArrayOutputStream columnar = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+        try (ResultsExporter exporter = new ResultsExporter(flow);
+             ColumnarResults.Writer writer = new ColumnarResults.Writer(columnar)) {
+            assertThat(exporter.export(runStates, writer), is((long) runs));
+        }
+        long nanos = System.nanoTime() - start;
+
+        System.out.println(String.format("Exported %d runs in %d ms (%d bytes of run state each, %d bytes of results in total)",
+                runs, nanos / 1000000, json.length(), columnar.size()));
+    }
+}
@@ -0,0 +1,210 @@
+package io.rapidpro.flows.runner;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.Benchmark;
+import io.rapidpro.flows.RunnerBuilder;
+import io.rapidpro.flows.definition.Flow;
+import io.rapidpro.flows.utils.JsonUtils;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Test for {@link RunExecutors}
+ */
+public class RunExecutorsTest extends BaseFlowsTest {
+
+    @Test
+    public void newPerRunExecutor() throws Exception {
+        ExecutorService executor = RunExecutors.newPerRunExecutor();
+        try {
+            Future<Boolean> isVirtual = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    // Thread.isVirtual() only exists on JDK 21+
+                    try {
+                        return (Boolean) Thread.class.getMethod("isVirtual").invoke(Thread.currentThread());
+                    } catch (NoSuchMethodException e) {
+                        return false;
+                    }
+                }
+            });
+
+            assertThat(isVirtual.get(), is(RunExecutors.isVirtualThreadsSupported()));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void resumeAll() throws Exception {
+        ExecutorService executor = RunExecutors.newPlatformExecutor(2);
+        try {
+            Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+            Runner runner = new RunnerBuilder().withExecutor(executor).build();
+
+            assertThat(runner.getExecutor(), sameInstance((Object) executor));
+
+            RunState run1 = runner.start(m_org, m_fields, m_contact, flow);
+            RunState run2 = runner.start(m_org, m_fields, m_contact, flow);
+
+            List<Future<RunState>> futures = runner.resumeAll(Arrays.asList(run1, run2), Arrays.asList(Input.of("YUCK!"), Input.of("no way")));
+
+            assertThat(futures.get(0).get(10, TimeUnit.SECONDS), sameInstance(run1));
+            assertThat(futures.get(1).get(10, TimeUnit.SECONDS), sameInstance(run2));
+            assertThat(run1.getState(), is(RunState.State.WAIT_MESSAGE));
+            assertThat(run2.getState(), is(RunState.State.COMPLETED));
+
+            // errors are passed to the future
+            try {
+                runner.resumeAsync(run2, Input.of("no way")).get(10, TimeUnit.SECONDS);
+                fail("Should have thrown ExecutionException");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause().getMessage(), is("Cannot resume a completed run"));
+            }
+
+            try {
+                runner.resumeAll(Arrays.asList(run1, run2), Collections.singletonList(Input.of("YUCK!")));
+                fail("Should have thrown IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+                assertThat(e.getMessage(), is("Number of inputs (1) doesn't match number of runs (2)"));
+            }
+
+            // as are rejections by the executor
+            executor.shutdown();
+            try {
+                runner.resumeAsync(run1, Input.of("no way")).get();
+                fail("Should have thrown ExecutionException");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause(), instanceOf(RejectedExecutionException.class));
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Replays the inputs of the interaction tests as batches of resumes, with a step sink which blocks like a slow
+     * lookup would, and compares a per-run executor with a pool of platform threads
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkTestFlows() throws Exception {
+        List<String> names = Arrays.asList("mushrooms", "registration", "birthdate-check", "basic-form");
+
+        ExecutorService platform = RunExecutors.newPlatformExecutor(8);
+        ExecutorService perRun = RunExecutors.newPerRunExecutor();
+        try {
+            for (String name : names) {
+                Flow flow = Flow.fromJson(readResource("test_flows/" + name + ".json"));
+                JsonArray tests = JsonUtils.getGson().fromJson(readResource("test_runs/" + name + ".runs.json"), JsonArray.class);
+
+                long platformNanos = benchmark(platform, flow, tests);
+                long perRunNanos = benchmark(perRun, flow, tests);
+
+                System.out.println(String.format("Batch resumes for %s: %d ms with 8 platform threads, %d ms with %s",
+                        name, platformNanos / 1000000, perRunNanos / 1000000,
+                        RunExecutors.isVirtualThreadsSupported() ? "virtual threads" : "a cached thread pool"));
+            }
+        }
+        finally {
+            platform.shutdown();
+            perRun.shutdown();
+        }
+    }
+
+    protected long benchmark(ExecutorService executor, Flow flow, JsonArray tests) throws Exception {
+        final int copies = 25;
+
+        StepSink blockingSink = new StepSink() {
+            @Override
+            public void onStepCompleted(RunState run, Step step) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        Runner starter = new RunnerBuilder().build();
+        Runner runner = new RunnerBuilder().withStepSink(blockingSink).withExecutor(executor).build();
+
+        // start several copies of each test run, and collect their inputs and the state they should end in
+        List<RunState> runs = new ArrayList<>();
+        List<List<String>> inputs = new ArrayList<>();
+        List<RunState.State> expectedStates = new ArrayList<>();
+        int rounds = 0;
+
+        for (int c = 0; c < copies; c++) {
+            for (JsonElement testElem : tests) {
+                JsonObject test = testElem.getAsJsonObject();
+                Org org = Org.fromJson(test.get("org"));
+                List<Field> fields = JsonUtils.fromJsonArray(test.get("fields_initial").getAsJsonArray(), null, Field.class);
+                Contact contact = Contact.fromJson(test.get("contact_initial"));
+
+                List<String> runInputs = new ArrayList<>();
+                for (JsonElement messageElem : test.get("messages").getAsJsonArray()) {
+                    JsonObject message = messageElem.getAsJsonObject();
+                    if (message.get("type").getAsString().equals("input")) {
+                        runInputs.add(message.get("msg").getAsString());
+                    }
+                }
+
+                RunState expected = starter.start(org, fields, contact, flow);
+                for (String input : runInputs) {
+                    starter.resume(expected, Input.of(input));
+                }
+
+                runs.add(starter.start(org, fields, contact, flow));
+                inputs.add(runInputs);
+                expectedStates.add(expected.getState());
+                rounds = Math.max(rounds, runInputs.size());
+            }
+        }
+
+        // resume all runs which have an input for each round as a batch
+        long start = System.nanoTime();
+
+        for (int round = 0; round < rounds; round++) {
+            List<RunState> batchRuns = new ArrayList<>();
+            List<Input> batchInputs = new ArrayList<>();
+            for (int r = 0; r < runs.size(); r++) {
+                if (round < inputs.get(r).size()) {
+                    batchRuns.add(runs.get(r));
+                    batchInputs.add(Input.of(inputs.get(r).get(round)));
+                }
+            }
+
+            for (Future<RunState> future : runner.resumeAll(batchRuns, batchInputs)) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        for (int r = 0; r < runs.size(); r++) {
+            assertThat(runs.get(r).getState(), is(expectedStates.get(r)));
+        }
+        return elapsed;
+    }
+}
@@ -0,0 +1,82 @@
+package io.rapidpro.flows.runner;
+
+import com.google.gson.JsonElement;
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.RunnerBuilder;
+import io.rapidpro.flows.definition.Flow;
+import io.rapidpro.flows.utils.JsonUtils;
+import org.junit.Test;
+import org.threeten.bp.Instant;
+import org.threeten.bp.LocalDate;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Test for {@link RunRecorder}
+ */
+public class RunRecorderTest extends BaseFlowsTest {
+
+    @Test
+    public void record() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        RunRecorder recorder = new RunRecorder();
+        Runner runner = new RunnerBuilder(Collections.singletonList(flow)).withClock(recorder.getClock()).build();
+
+        int numFields = m_fields.size();
+        RunRecorder.Session session = recorder.start(runner, m_org, m_fields, m_contact, flow.getUuid());
+        assertThat(session.getRun().getState(), is(RunState.State.WAIT_MESSAGE));
+
+        Input input1 = Input.of(new BigDecimal("12.5"));
+        session.resume(input1);
+        session.resume(Input.of("image/jpeg", "http://example.com/test.jpg"));
+        session.resume(Input.of(LocalDate.of(2015, 10, 19)));
+        session.resume(Input.of("yes"));
+        assertThat(session.getRun().getState(), is(RunState.State.COMPLETED));
+
+        RunRecording recording = session.getRecording();
+        assertThat(recording.getFlowUuid(), is(flow.getUuid()));
+        assertThat(recording.getContact().getUuid(), is("1234-1234"));
+        assertThat(recording.getOrg().getPrimaryLanguage(), is("eng"));
+        assertThat(recording.getFields(), hasSize(numFields)); // as they were before the run created any
+        assertThat(recording.getEvents(), hasSize(5));
+        assertThat(recording.getFinalState(), is(session.getRun().toJsonString()));
+
+        // the start reads the clock for the run, the steps and the context of the reply
+        RunRecording.Event start = recording.getEvents().get(0);
+        assertThat(start.isStart(), is(true));
+        assertThat(start.toInput(), nullValue());
+        assertThat(start.getClockReadings(), hasSize(5));
+        assertThat(start.getClockReadings().get(0), is(session.getRun().getStarted()));
+
+        Input replayed1 = recording.getEvents().get(1).toInput();
+        assertThat(replayed1.m_value, is((Object) new BigDecimal("12.5")));
+        assertThat(replayed1.getTime(), is(input1.getTime()));
+        assertThat(recording.getEvents().get(2).toInput().getMedia(), is("image/jpeg:http://example.com/test.jpg"));
+        assertThat(recording.getEvents().get(3).toInput().m_value, is((Object) LocalDate.of(2015, 10, 19)));
+
+        // recordings can be saved and loaded
+        JsonElement json = recording.toJson();
+        RunRecording loaded = RunRecording.fromJson(JsonUtils.getGson().fromJson(json.toString(), JsonElement.class));
+        assertThat(loaded.toJson(), is(json));
+        assertThat(loaded.getEvents().get(4).getClockReadings(), is(recording.getEvents().get(4).getClockReadings()));
+        assertThat(loaded.getEvents().get(4).toInput().getTime(), isA(Instant.class));
+    }
+
+    @Test
+    public void start_withOtherClock() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        Runner runner = new RunnerBuilder(Collections.singletonList(flow)).build();
+
+        try {
+            new RunRecorder().start(runner, m_org, m_fields, m_contact, flow.getUuid());
+            fail("Should have thrown IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), is("Runner must be built with the recorder's clock"));
+        }
+    }
+}
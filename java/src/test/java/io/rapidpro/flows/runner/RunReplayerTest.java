@@ -0,0 +1,136 @@
+package io.rapidpro.flows.runner;
+
+import com.google.gson.JsonObject;
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.RunnerBuilder;
+import io.rapidpro.flows.definition.Flow;
+import org.junit.Test;
+import org.threeten.bp.Clock;
+import org.threeten.bp.Duration;
+import org.threeten.bp.Instant;
+import org.threeten.bp.ZoneId;
+import org.threeten.bp.ZoneOffset;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Test for {@link RunReplayer}
+ */
+public class RunReplayerTest extends BaseFlowsTest {
+
+    @Test
+    public void replay() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        RunRecording recording = record(flow, new TickingClock(Instant.parse("2015-10-19T12:30:45.123Z")), "EUGH!", "maybe", "yes");
+
+        RunReplayer replayer = new RunReplayer(new RunnerBuilder(Collections.singletonList(flow)));
+        RunState run = replayer.replay(recording);
+
+        assertThat(run.getState(), is(RunState.State.COMPLETED));
+        assertThat(run.getStarted(), is(Instant.parse("2015-10-19T12:30:45.123Z")));
+        assertThat(run.toJsonString(), is(recording.getFinalState()));
+        assertThat(replayer.verify(recording), is(true));
+
+        // a loaded recording replays the same
+        RunRecording loaded = RunRecording.fromJson(recording.toJson());
+        assertThat(replayer.verify(loaded), is(true));
+
+        // a changed final state is detected
+        JsonObject json = recording.toJson().getAsJsonObject();
+        json.addProperty("final_state", recording.getFinalState().replace("\"yes\"", "\"no\""));
+        assertThat(replayer.verify(RunRecording.fromJson(json)), is(false));
+
+        // as is a run which takes a different path, e.g. because the flow has changed
+        json = recording.toJson().getAsJsonObject();
+        json.getAsJsonArray("events").get(3).getAsJsonObject().addProperty("input_value", "maybe");
+        try {
+            replayer.verify(RunRecording.fromJson(json));
+            fail("Should have thrown IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), startsWith("Replay diverged from recording"));
+        }
+    }
+
+    @Test
+    public void replay_whenDiverged() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        RunRecording recording = record(flow, Clock.systemUTC(), "no");
+
+        // drop one of the clock readings of the resume
+        JsonObject json = recording.toJson().getAsJsonObject();
+        json.getAsJsonArray("events").get(1).getAsJsonObject().getAsJsonArray("clock").remove(0);
+
+        RunReplayer replayer = new RunReplayer(new RunnerBuilder(Collections.singletonList(flow)));
+        try {
+            replayer.replay(RunRecording.fromJson(json));
+            fail("Should have thrown IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), is("Replay diverged from recording: clock read more times than recorded"));
+        }
+    }
+
+    @Test
+    public void time() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        List<RunRecording> recordings = new ArrayList<>();
+        for (int r = 0; r < 20; r++) {
+            recordings.add(record(flow, Clock.systemUTC(), "EUGH!", "no"));
+        }
+
+        RunReplayer replayer = new RunReplayer(new RunnerBuilder(Collections.singletonList(flow)));
+        RunReplayer.Timings timings = replayer.time(recordings, 5, 10);
+
+        assertThat(timings.getCount(), is(600));
+        assertThat(timings.getPercentile(50), lessThanOrEqualTo(timings.getPercentile(99)));
+        assertThat(timings.getPercentile(99), lessThanOrEqualTo(timings.getPercentile(100)));
+        assertThat(timings.getMean(), greaterThan(0.0));
+
+        System.out.println("Replayed resume latency: " + timings);
+    }
+
+    protected RunRecording record(Flow flow, Clock clock, String... inputs) throws Exception {
+        RunRecorder recorder = new RunRecorder(clock);
+        Runner runner = new RunnerBuilder(Collections.singletonList(flow)).withClock(recorder.getClock()).build();
+
+        RunRecorder.Session session = recorder.start(runner, m_org, m_fields, m_contact, flow.getUuid());
+        for (String input : inputs) {
+            session.resume(Input.of(input));
+        }
+        return session.getRecording();
+    }
+
+    /**
+     * Clock which advances by a second each time it's read
+     */
+    protected static class TickingClock extends Clock {
+
+        protected Instant m_next;
+
+        public TickingClock(Instant start) {
+            m_next = start;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            Instant instant = m_next;
+            m_next = m_next.plus(Duration.ofSeconds(1));
+            return instant;
+        }
+    }
+}
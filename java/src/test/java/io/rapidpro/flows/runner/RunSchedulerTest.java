@@ -0,0 +1,276 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.RunnerBuilder;
+import io.rapidpro.flows.definition.Flow;
+import org.junit.Test;
+import org.threeten.bp.Clock;
+import org.threeten.bp.Duration;
+import org.threeten.bp.Instant;
+import org.threeten.bp.ZoneId;
+import org.threeten.bp.ZoneOffset;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test for {@link RunScheduler}
+ */
+public class RunSchedulerTest extends BaseFlowsTest {
+
+    protected static final Instant START = Instant.parse("2015-10-19T12:30:45.123Z");
+
+    protected static final String WAIT_RULESET_UUID = "1e318293-4730-481c-b455-daaaf86b2e6c";
+
+    @Test
+    public void scheduleAndCancel() throws Exception {
+        MutableClock clock = new MutableClock(START);
+        List<RunScheduler.Deadline> fired = new ArrayList<>();
+        RunScheduler scheduler = new RunScheduler(new RunScheduler.Timeouts(), collect(fired), clock, Duration.ofSeconds(1));
+
+        scheduler.schedule(deadline("c1", START.plusMillis(2500)));
+        scheduler.schedule(deadline("c2", START.plus(Duration.ofMinutes(10))));
+        scheduler.schedule(deadline("c3", START.plus(Duration.ofDays(3))));
+        assertThat(scheduler.size(), is(3));
+
+        // deadlines are rounded up to the next tick
+        clock.set(START.plusMillis(2876));
+        assertThat(scheduler.advance(), is(0));
+        clock.set(START.plusMillis(2877));
+        assertThat(scheduler.advance(), is(1));
+        assertThat(fired.get(0).getContactUuid(), is("c1"));
+        assertThat(scheduler.getDeadline("c1"), nullValue());
+
+        // rescheduling replaces the previous deadline
+        scheduler.schedule(deadline("c2", START.plus(Duration.ofMinutes(20))));
+        assertThat(scheduler.size(), is(2));
+        clock.set(START.plus(Duration.ofMinutes(15)));
+        assertThat(scheduler.advance(), is(0));
+
+        assertThat(scheduler.cancel("c2"), is(true));
+        assertThat(scheduler.cancel("c2"), is(false));
+        clock.set(START.plus(Duration.ofMinutes(30)));
+        assertThat(scheduler.advance(), is(0));
+
+        clock.set(START.plus(Duration.ofDays(3)).plusSeconds(1));
+        assertThat(scheduler.advance(), is(1));
+        assertThat(fired.get(1).getContactUuid(), is("c3"));
+        assertThat(scheduler.size(), is(0));
+
+        // deadlines already passed fire on the next advance
+        scheduler.schedule(deadline("c4", START));
+        assertThat(scheduler.advance(), is(1));
+
+        // as do those beyond the range of the wheel, eventually
+        scheduler.schedule(deadline("c5", clock.instant().plus(Duration.ofDays(365 * 200))));
+        clock.set(clock.instant().plus(Duration.ofDays(1)));
+        assertThat(scheduler.advance(), is(0));
+        assertThat(scheduler.size(), is(1));
+    }
+
+    @Test
+    public void advance_firesEachDeadlineOnce() throws Exception {
+        MutableClock clock = new MutableClock(START);
+        final Map<String, Instant> firedAt = new HashMap<>();
+        final MutableClock firingClock = clock;
+        RunScheduler scheduler = new RunScheduler(new RunScheduler.Timeouts(), new RunScheduler.Listener() {
+            @Override
+            public void onDeadline(RunScheduler.Deadline deadline) {
+                assertThat(firedAt.put(deadline.getContactUuid(), firingClock.instant()), nullValue());
+            }
+        }, clock, Duration.ofMillis(100));
+
+        // deadlines across every level of the wheel, fired by advancing the clock in uneven steps
+        Random random = new Random(123);
+        Map<String, Instant> deadlines = new HashMap<>();
+        for (int d = 0; d < 2000; d++) {
+            long millis = (long) (Math.pow(random.nextDouble(), 4) * Duration.ofDays(2).toMillis());
+            Instant time = START.plusMillis(millis);
+            deadlines.put("c" + d, time);
+            scheduler.schedule(deadline("c" + d, time));
+        }
+
+        Instant end = START.plus(Duration.ofDays(2)).plusSeconds(1);
+        while (clock.instant().isBefore(end)) {
+            clock.set(clock.instant().plusMillis(1 + random.nextInt(60000)));
+            scheduler.advance();
+        }
+
+        assertThat(firedAt.size(), is(2000));
+        assertThat(scheduler.size(), is(0));
+
+        for (Map.Entry<String, Instant> entry : deadlines.entrySet()) {
+            Instant fired = firedAt.get(entry.getKey());
+            assertThat(fired, greaterThanOrEqualTo(entry.getValue()));
+            assertThat(fired, lessThan(entry.getValue().plusSeconds(61)));
+        }
+    }
+
+    @Test
+    public void schedule_fromRun() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        MutableClock clock = new MutableClock(START);
+        Runner runner = new RunnerBuilder(Collections.singletonList(flow)).withClock(clock).build();
+        RunState run = runner.start(m_org, m_fields, m_contact, flow.getUuid());
+
+        // no timeouts configured
+        RunScheduler scheduler = new RunScheduler(new RunScheduler.Timeouts(), collect(new ArrayList<RunScheduler.Deadline>()), clock, RunScheduler.DEFAULT_TICK);
+        assertThat(scheduler.schedule(run), nullValue());
+
+        // ruleset timeout is sooner than the flow expiry
+        RunScheduler.Timeouts timeouts = new RunScheduler.Timeouts()
+                .withDefaultExpiry(Duration.ofDays(7))
+                .withRuleSetTimeout(WAIT_RULESET_UUID, Duration.ofMinutes(5));
+        scheduler = new RunScheduler(timeouts, collect(new ArrayList<RunScheduler.Deadline>()), clock, RunScheduler.DEFAULT_TICK);
+        RunScheduler.Deadline deadline = scheduler.schedule(run);
+
+        assertThat(deadline.getContactUuid(), is("1234-1234"));
+        assertThat(deadline.getFlowUuid(), is(flow.getUuid()));
+        assertThat(deadline.getNodeUuid(), is(WAIT_RULESET_UUID));
+        assertThat(deadline.getArrivedOn(), is(START));
+        assertThat(deadline.getKind(), is(RunScheduler.Kind.TIMEOUT));
+        assertThat(deadline.getTime(), is(START.plus(Duration.ofMinutes(5))));
+        assertThat(deadline.isCurrent(run), is(true));
+
+        // flow expiry is sooner than the ruleset timeout
+        timeouts.withFlowExpiry(flow.getUuid(), Duration.ofMinutes(1));
+        deadline = scheduler.schedule(run);
+        assertThat(deadline.getKind(), is(RunScheduler.Kind.EXPIRY));
+        assertThat(deadline.getTime(), is(START.plus(Duration.ofMinutes(1))));
+        assertThat(scheduler.size(), is(1));
+
+        // once the run moves on, the deadline is no longer current and rescheduling cancels it
+        runner.resume(run, Input.of("yes"));
+        assertThat(deadline.isCurrent(run), is(false));
+        assertThat(scheduler.schedule(run), nullValue());
+        assertThat(scheduler.size(), is(0));
+    }
+
+    @Test
+    public void schedule_fromRunWaitingOnWebhook() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        MutableClock clock = new MutableClock(START);
+        Runner runner = new RunnerBuilder(Collections.singletonList(flow)).withClock(clock).build();
+        RunState run = runner.start(m_org, m_fields, m_contact, flow.getUuid());
+
+        RunScheduler.Timeouts timeouts = new RunScheduler.Timeouts().withDefaultExpiry(Duration.ofDays(7));
+        RunScheduler scheduler = new RunScheduler(timeouts, collect(new ArrayList<RunScheduler.Deadline>()), clock, RunScheduler.DEFAULT_TICK);
+        assertThat(scheduler.schedule(run), notNullValue());
+
+        // a run in the middle of a webhook call isn't waiting on the contact so mustn't expire
+        run.setState(RunState.State.WAIT_WEBHOOK);
+        assertThat(scheduler.schedule(run), nullValue());
+        assertThat(scheduler.size(), is(0));
+    }
+
+    @Test
+    public void listener_resumesRun() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        MutableClock clock = new MutableClock(START);
+        final Runner runner = new RunnerBuilder(Collections.singletonList(flow)).withClock(clock).build();
+        final RunState run = runner.start(m_org, m_fields, m_contact, flow.getUuid());
+
+        // a listener which resumes timed out runs with a blank input, rescheduling them if they're still waiting
+        final List<RunScheduler> schedulers = new ArrayList<>();
+        RunScheduler.Listener listener = new RunScheduler.Listener() {
+            @Override
+            public void onDeadline(RunScheduler.Deadline deadline) {
+                if (!deadline.isCurrent(run)) {
+                    return;
+                }
+                try {
+                    runner.resume(run, Input.of(""));
+                } catch (FlowRunException e) {
+                    throw new RuntimeException(e);
+                }
+                schedulers.get(0).schedule(run);
+            }
+        };
+        RunScheduler.Timeouts timeouts = new RunScheduler.Timeouts().withRuleSetTimeout(WAIT_RULESET_UUID, Duration.ofMinutes(5));
+        RunScheduler scheduler = new RunScheduler(timeouts, listener, clock, RunScheduler.DEFAULT_TICK);
+        schedulers.add(scheduler);
+
+        scheduler.schedule(run);
+
+        // the deadline falls part way through a tick so fires at the end of it
+        clock.set(START.plus(Duration.ofMinutes(5)));
+        assertThat(scheduler.advance(), is(0));
+        clock.set(START.plus(Duration.ofMinutes(5)).plusMillis(77));
+        assertThat(scheduler.advance(), is(1));
+
+        // the blank input loops back to the wait, so the run is waiting again with a new deadline
+        assertThat(run.getState(), is(RunState.State.WAIT_MESSAGE));
+        assertThat(run.getSteps().get(run.getSteps().size() - 1).getArrivedOn(), is(START.plus(Duration.ofMinutes(5)).plusMillis(77)));
+        assertThat(scheduler.getDeadline("1234-1234").getTime(), is(START.plus(Duration.ofMinutes(10)).plusMillis(77)));
+
+        clock.set(START.plus(Duration.ofMinutes(10)).plusMillis(77));
+        assertThat(scheduler.advance(), is(1));
+        assertThat(scheduler.getDeadline("1234-1234").getTime(), is(START.plus(Duration.ofMinutes(15)).plusMillis(77)));
+    }
+
+    @Test
+    public void start() throws Exception {
+        final List<RunScheduler.Deadline> fired = Collections.synchronizedList(new ArrayList<RunScheduler.Deadline>());
+        RunScheduler scheduler = new RunScheduler(new RunScheduler.Timeouts(), collect(fired), Clock.systemUTC(), Duration.ofMillis(10));
+        scheduler.start();
+
+        scheduler.schedule(deadline("c1", Instant.now().plusMillis(50)));
+        for (int w = 0; w < 200 && fired.isEmpty(); w++) {
+            Thread.sleep(10);
+        }
+        scheduler.close();
+
+        assertThat(fired, hasSize(1));
+    }
+
+    protected static RunScheduler.Deadline deadline(String contactUuid, Instant time) {
+        return new RunScheduler.Deadline(contactUuid, "flow", "node", START, RunScheduler.Kind.EXPIRY, time);
+    }
+
+    protected static RunScheduler.Listener collect(final List<RunScheduler.Deadline> fired) {
+        return new RunScheduler.Listener() {
+            @Override
+            public void onDeadline(RunScheduler.Deadline deadline) {
+                fired.add(deadline);
+            }
+        };
+    }
+
+    /**
+     * Clock which only moves when it's set
+     */
+    protected static class MutableClock extends Clock {
+
+        protected Instant m_instant;
+
+        public MutableClock(Instant instant) {
+            m_instant = instant;
+        }
+
+        public void set(Instant instant) {
+            m_instant = instant;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return m_instant;
+        }
+    }
+}
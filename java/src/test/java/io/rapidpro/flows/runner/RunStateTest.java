@@ -5,16 +5,25 @@ import io.rapidpro.expressions.dates.DateStyle;
 import io.rapidpro.flows.BaseFlowsTest;
 import io.rapidpro.flows.RunnerBuilder;
 import io.rapidpro.flows.definition.Flow;
+import io.rapidpro.flows.definition.Localization;
+import io.rapidpro.flows.definition.RuleSet;
 import org.junit.Test;
 import org.threeten.bp.Instant;
 import org.threeten.bp.ZoneId;
 import org.threeten.bp.ZonedDateTime;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 
 /**
@@ -62,4 +71,128 @@ public class RunStateTest extends BaseFlowsTest {
         // json should be the same
         assertThat(restored.toJsonString(), is(json));
     }
+
+    @Test
+    public void fromJson_sharesStrings() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        Runner runner = new RunnerBuilder().build();
+        RunState run = runner.start(m_org, m_fields, m_contact, flow);
+        runner.resume(run, Input.of("Yes"));
+
+        String json = run.toJsonString();
+        RunState restored1 = RunState.fromJson(json, RunState.buildFlowMap(flow));
+        RunState restored2 = RunState.fromJson(json, RunState.buildFlowMap(flow));
+
+        // categories come from the flow definition
+        Value value1 = restored1.getValues().get("response_1");
+        Value value2 = restored2.getValues().get("response_1");
+        RuleSet.Result result = restored1.getSteps().get(0).getRuleResult();
+
+        assertThat(value1.getCategory(), sameInstance(result.getRule().getCategory().getLocalized(Collections.singletonList("eng"), null)));
+        assertThat(value2.getCategory(), sameInstance(value1.getCategory()));
+        assertThat(result.getCategory(), sameInstance(value1.getCategory()));
+
+        // keys and names are deduplicated across run states
+        assertThat(restored2.getValues().keySet().iterator().next(), sameInstance(restored1.getValues().keySet().iterator().next()));
+        assertThat(restored2.m_fields.get(0).getKey(), sameInstance(restored1.m_fields.get(0).getKey()));
+        assertThat(restored2.getContact().getGroups().iterator().next(), sameInstance(restored1.getContact().getGroups().iterator().next()));
+        assertThat(restored2.getContact().getLanguage(), sameInstance(restored1.getContact().getLanguage()));
+        assertThat(restored2.getOrg().getPrimaryLanguage(), sameInstance(restored1.getOrg().getPrimaryLanguage()));
+
+        // a reloaded copy of the flow supplies its own strings, and they're only held by that copy
+        Flow reloaded = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        RunState restored3 = RunState.fromJson(json, RunState.buildFlowMap(reloaded));
+        Value value3 = restored3.getValues().get("response_1");
+        assertThat(restored3.getSteps().get(0).getRuleResult().getRule(), sameInstance((Object) reloaded.getElementByUuid(result.getRule().getUuid())));
+
+        assertThat(value3.getCategory(), sameInstance(restored3.getSteps().get(0).getRuleResult().getRule().getCategory().getLocalized(Collections.singletonList("eng"), null)));
+        assertThat(value3.getCategory(), not(sameInstance(value1.getCategory())));
+        assertThat(restored3.getValues().keySet().iterator().next(), sameInstance(reloaded.getValueKeys()[0]));
+    }
+
+    @Test
+    public void getLocalization() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        RunState run = new RunnerBuilder().build().start(m_org, m_fields, m_contact, flow);
+
+        // cached until one of the languages changes
+        Localization localization = run.getLocalization();
+        assertThat(localization.isFor("eng", m_org.getPrimaryLanguage(), flow.getBaseLanguage()), is(true));
+        assertThat(run.getLocalization(), sameInstance(localization));
+
+        run.getContact().setLanguage("fra");
+        assertThat(run.getLocalization(), not(sameInstance(localization)));
+        assertThat(run.getLocalization().isFor("fra", m_org.getPrimaryLanguage(), flow.getBaseLanguage()), is(true));
+
+        // languages are resolved in the flow's dictionary, and ones it doesn't have aren't added to it
+        int dictionarySize = flow.getLanguageDictionary().size();
+        run.getContact().setLanguage("xyz");
+        localization = run.getLocalization();
+        assertThat(localization.getDictionary(), sameInstance(flow.getLanguageDictionary()));
+        assertThat(localization.getOrdinals()[0], is(-1));
+        assertThat(flow.getLanguageDictionary().size(), is(dictionarySize));
+    }
+
+    @Test
+    public void buildContext_lazy() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        Instant now = ZonedDateTime.of(2015, 8, 24, 9, 44, 5, 0, ZoneId.of("Africa/Kigali")).toInstant();
+        Runner eagerRunner = new RunnerBuilder().withNowAs(now).build();
+        Runner lazyRunner = new RunnerBuilder().withNowAs(now).withLazyContext().build();
+
+        RunState run = eagerRunner.start(m_org, m_fields, m_contact, flow);
+        eagerRunner.resume(run, Input.of("Yes"));
+        run.getExtra().put("Source", "webhook");
+
+        Input input = Input.of("Hello");
+        EvaluationContext eager = run.buildContext(eagerRunner, input);
+        EvaluationContext lazy = run.buildContext(lazyRunner, input);
+
+        assertThat(lazy, instanceOf(LazyEvaluationContext.class));
+
+        List<String> templates = Arrays.asList(
+                "@contact", "@contact.name", "@contact.first_name", "@contact.tel_e164", "@contact.tel",
+                "@contact.twitter", "@contact.groups", "@contact.joined", "@contact.gender", "@contact.xxx",
+                "@step", "@step.value", "@step.time", "@step.contact.name", "@date", "@date.now", "@date.today",
+                "@date.tomorrow", "@date.yesterday", "@extra", "@extra.source", "@flow", "@flow.response_1",
+                "@flow.response_1.category", "@flow.response_1.time", "@flow.response_1.xxx", "@flow.xxx", "@parent",
+                "@child", "@(UPPER(contact.name) & flow.response_1.text)"
+        );
+
+        for (String template : templates) {
+            assertThat(template, lazyRunner.substituteVariables(template, lazy).getOutput(), is(eagerRunner.substituteVariables(template, eager).getOutput()));
+            assertThat(template, lazyRunner.substituteVariables(template, lazy).getErrors(), is(eagerRunner.substituteVariables(template, eager).getErrors()));
+        }
+
+        // all variables are built if they are iterated over
+        assertThat(lazy.getVariables(), is(eager.getVariables()));
+    }
+
+    @Test
+    public void buildContext_forNode() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        Runner eagerRunner = new RunnerBuilder().build();
+        Runner lazyRunner = new RunnerBuilder().withLazyContext().build();
+
+        RunState run = eagerRunner.start(m_org, m_fields, m_contact, flow);
+        Input input = Input.of("Hello");
+
+        // the entry node only references @contact
+        for (Runner runner : Arrays.asList(eagerRunner, lazyRunner)) {
+            Map<String, Object> variables = run.buildContext(runner, input, flow.getEntry()).getVariables();
+            assertThat(variables.keySet(), containsInAnyOrder("contact", "date"));
+            assertThat(runner.substituteVariables("Hi @contact.first_name", run.buildContext(runner, input, flow.getEntry())).getOutput(), is("Hi Joe"));
+        }
+
+        // the wait references @step, which includes the contact
+        RuleSet ruleSet = flow.getElementByUuid("1e318293-4730-481c-b455-daaaf86b2e6c");
+        Map<String, Object> variables = run.buildContext(eagerRunner, input, ruleSet).getVariables();
+        assertThat(variables.keySet(), containsInAnyOrder("step", "date"));
+        assertThat(eagerRunner.substituteVariables("@step.contact.first_name", run.buildContext(eagerRunner, input, ruleSet)).getOutput(), is("Joe"));
+
+        // without a node, or with one from another flow, everything is included
+        assertThat(run.buildContext(eagerRunner, input).getVariables().keySet(), containsInAnyOrder("contact", "date", "step", "extra", "flow"));
+        Flow copy = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        assertThat(run.buildContext(eagerRunner, input, copy.getEntry()).getVariables().keySet(), containsInAnyOrder("contact", "date", "step", "extra", "flow"));
+    }
 }
@@ -0,0 +1,184 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.RunnerBuilder;
+import io.rapidpro.flows.definition.Flow;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Test for {@link RunStore}
+ */
+public class RunStoreTest extends BaseFlowsTest {
+
+    protected Flow m_flow;
+
+    protected Runner m_runner;
+
+    protected RunStore m_store;
+
+    @Before
+    public void setupStore() throws Exception {
+        // a flow which replies to every message and then waits for another
+        String json = "{\"version\": 10, \"flow_type\": \"F\", \"base_language\": \"eng\", \"entry\": \"4b8e2f1a-6c3d-4e5f-9a0b-1c2d3e4f5a6b\", " +
+                "\"metadata\": {\"uuid\": \"d5e6f7a8-9b0c-4d1e-8f2a-3b4c5d6e7f80\", \"name\": \"Echo\"}, \"action_sets\": [" +
+                "{\"uuid\": \"8f7e6d5c-4b3a-4291-8071-6f5e4d3c2b1a\", \"destination\": \"4b8e2f1a-6c3d-4e5f-9a0b-1c2d3e4f5a6b\", \"actions\": [" +
+                "{\"type\": \"reply\", \"msg\": {\"eng\": \"You said @step.value\"}}]}], \"rule_sets\": [" +
+                "{\"uuid\": \"4b8e2f1a-6c3d-4e5f-9a0b-1c2d3e4f5a6b\", \"ruleset_type\": \"wait_message\", \"label\": \"Message\", " +
+                "\"operand\": \"@step.value\", \"config\": {}, \"rules\": [{\"uuid\": \"1a2b3c4d-5e6f-4a7b-8c9d-0e1f2a3b4c5d\", " +
+                "\"test\": {\"type\": \"contains_any\", \"test\": {\"eng\": \"stop\"}}, \"category\": {\"eng\": \"Stop\"}, \"destination\": null}, " +
+                "{\"uuid\": \"6e5d4c3b-2a19-4f8e-8d7c-6b5a4f3e2d1c\", \"test\": {\"type\": \"true\"}, \"category\": {\"eng\": \"Other\"}, " +
+                "\"destination\": \"8f7e6d5c-4b3a-4291-8071-6f5e4d3c2b1a\"}]}]}";
+
+        m_flow = Flow.fromJson(json);
+        m_runner = new RunnerBuilder(Collections.singletonList(m_flow)).build();
+        m_store = new RunStore(new MemoryRunBackend(), RunState.buildFlowMap(m_flow));
+    }
+
+    @Test
+    public void startAndResume() throws Exception {
+        String contactUuid = m_contact.getUuid();
+
+        assertThat(m_store.load(contactUuid), nullValue());
+        assertThat(m_runner.resume(m_store, contactUuid, Input.of("Hi")), nullValue());
+
+        RunState run = m_runner.start(m_store, m_org, m_fields, m_contact, m_flow.getUuid());
+
+        assertThat(run.getVersion(), is(1L));
+        assertThat(m_store.getVersion(contactUuid), is(1L));
+        assertThat(m_store.size(), is(1));
+
+        run = m_runner.resume(m_store, contactUuid, Input.of("Hi"));
+
+        assertThat(run.getVersion(), is(2L));
+        assertThat(run.getState(), is(RunState.State.WAIT_MESSAGE));
+        assertThat(m_store.load(contactUuid).getVersion(), is(2L));
+        assertThat(m_store.load(contactUuid).getSteps(), hasSize(3));
+
+        // starting again replaces the existing run
+        run = m_runner.start(m_store, m_org, m_fields, m_contact, m_flow.getUuid());
+
+        assertThat(run.getVersion(), is(3L));
+        assertThat(m_store.size(), is(1));
+
+        // completed runs are removed
+        run = m_runner.resume(m_store, contactUuid, Input.of("stop"));
+
+        assertThat(run.getState(), is(RunState.State.COMPLETED));
+        assertThat(run.getVersion(), is(0L));
+        assertThat(m_store.load(contactUuid), nullValue());
+        assertThat(m_store.size(), is(0));
+    }
+
+    @Test
+    public void save_withStaleRunState() throws Exception {
+        String contactUuid = m_contact.getUuid();
+        m_runner.start(m_store, m_org, m_fields, m_contact, m_flow.getUuid());
+
+        RunState copy1 = m_store.load(contactUuid);
+        RunState copy2 = m_store.load(contactUuid);
+
+        m_runner.resume(copy1, Input.of("Hi"));
+        m_store.save(copy1);
+
+        m_runner.resume(copy2, Input.of("Hello"));
+        try {
+            m_store.save(copy2);
+            fail("Should have thrown StaleRunStateException");
+        } catch (StaleRunStateException e) {
+            assertThat(e.getContactUuid(), is(contactUuid));
+            assertThat(e.getVersion(), is(1L));
+            assertThat(e.getMessage(), is("Run state for contact " + contactUuid + " has changed since version 1"));
+        }
+
+        assertThat(m_store.getVersion(contactUuid), is(2L));
+    }
+
+    @Test
+    public void save_withStaleRunStateAfterRemove() throws Exception {
+        String contactUuid = m_contact.getUuid();
+        m_runner.start(m_store, m_org, m_fields, m_contact, m_flow.getUuid());
+
+        RunState stale = m_store.load(contactUuid);
+
+        // run completes and a new one is started
+        m_runner.resume(m_store, contactUuid, Input.of("stop"));
+        RunState run = m_runner.start(m_store, m_org, m_fields, m_contact, m_flow.getUuid());
+
+        assertThat(run.getVersion(), is(2L));
+
+        m_runner.resume(stale, Input.of("Hi"));
+        try {
+            m_store.save(stale);
+            fail("Should have thrown StaleRunStateException");
+        } catch (StaleRunStateException e) {
+            assertThat(e.getVersion(), is(1L));
+        }
+
+        assertThat(m_store.getVersion(contactUuid), is(2L));
+    }
+
+    @Test
+    public void getLock() {
+        assertThat(m_store.getStripes(), is(64));
+        assertThat(new RunStore(new MemoryRunBackend(), RunState.buildFlowMap(m_flow), 100).getStripes(), is(128));
+        assertThat(new RunStore(new MemoryRunBackend(), RunState.buildFlowMap(m_flow), 1).getStripes(), is(1));
+
+        assertThat(m_store.getLock("1234"), sameInstance(m_store.getLock("1234")));
+    }
+
+    @Test
+    public void concurrentResumes() throws Exception {
+        final int contacts = 16;
+        final int resumesPerContact = 48;
+        final List<Contact> contactList = new ArrayList<>();
+
+        for (int c = 0; c < contacts; c++) {
+            Contact contact = new Contact("contact-" + c, "Bob", m_contact.getUrns().get(0), "eng");
+            contactList.add(contact);
+            m_runner.start(m_store, m_org, m_fields, contact, m_flow.getUuid());
+        }
+
+        // several threads resuming the same contacts at once
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int r = 0; r < contacts * resumesPerContact / 8; r++) {
+                            m_runner.resume(m_store, contactList.get(r % contacts).getUuid(), Input.of("Hi"));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        // no resume should have been lost, i.e. every save took a version and the last was the highest
+        long lastVersion = 0;
+        for (Contact contact : contactList) {
+            lastVersion = Math.max(lastVersion, m_store.getVersion(contact.getUuid()));
+        }
+        assertThat(lastVersion, is((long) contacts * (1 + resumesPerContact)));
+    }
+}
@@ -5,14 +5,23 @@ import io.rapidpro.flows.BaseFlowsTest;
 import io.rapidpro.flows.RunnerBuilder;
 import io.rapidpro.flows.definition.ActionSet;
 import io.rapidpro.flows.definition.Flow;
+import io.rapidpro.flows.definition.FlowAnalysisTest;
 import io.rapidpro.flows.definition.RuleSet;
+import io.rapidpro.flows.definition.actions.Action;
+import io.rapidpro.flows.definition.actions.contact.SaveToContactAction;
+import io.rapidpro.flows.definition.actions.group.AddToGroupsAction;
 import org.junit.Test;
-import org.omg.PortableInterceptor.SYSTEM_EXCEPTION;
+import org.threeten.bp.Clock;
 import org.threeten.bp.Instant;
 import org.threeten.bp.ZoneId;
+import org.threeten.bp.ZoneOffset;
+
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 /**
  * Test for {@link Runner}
@@ -281,6 +290,25 @@ public class RunnerTest extends BaseFlowsTest {
         m_runner.start(m_org, m_fields, m_contact, flow);
     }
 
+    @Test
+    public void resume_withNonPausingLoop() throws Exception {
+        Flow flow = Flow.fromJson(FlowAnalysisTest.LOOP_FLOW);
+
+        RunState run = m_runner.start(m_org, m_fields, m_contact, flow);
+        try {
+            m_runner.resume(run, Input.of("Hi"));
+            fail("Should have thrown FlowLoopException");
+        } catch (FlowLoopException e) {
+            assertThat(e.getPath(), hasSize(3));
+        }
+
+        // an input which takes us out of the loop goes back to the wait
+        run = m_runner.start(m_org, m_fields, m_contact, flow);
+        run = m_runner.resume(run, Input.of("stop"));
+        assertThat(run.getState(), is(RunState.State.WAIT_MESSAGE));
+        assertThat(run.getSteps(), hasSize(5));
+    }
+
     @Test
     public void updateContactField() throws Exception {
         m_fields.add(new Field("district", "District", Field.ValueType.DISTRICT));
@@ -324,4 +352,124 @@ public class RunnerTest extends BaseFlowsTest {
 
         assertThat(run.getContact().getFields().get("ward"), is("Jali"));
     }
+
+    @Test
+    public void startAndResume_withJournalAndStepSink() throws Exception {
+        final List<Step> sunk = new ArrayList<>();
+        Runner runner = new RunnerBuilder().withStepJournal().withStepSink(new StepSink() {
+            @Override
+            public void onStepCompleted(RunState run, Step step) {
+                assertThat(step.isCompleted(), is(true));
+                sunk.add(step);
+            }
+        }).build();
+
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        RunState run = runner.start(m_org, m_fields, m_contact, flow);
+
+        StepJournal journal = run.getJournal();
+        StepJournal.Cursor cursor = new StepJournal.Cursor(0);
+
+        List<Step> steps = journal.drain(cursor);
+        assertThat(steps, hasSize(1));
+        assertThat(steps.get(0).getNode().getUuid(), is("32cf414b-35e3-4c75-8a78-d5f4de925e13"));
+        assertThat(cursor.getPosition(), is(1L));
+
+        // nothing new until we resume
+        assertThat(journal.drain(cursor), hasSize(0));
+
+        runner.resume(run, Input.of("YUCK!"));
+
+        List<Step> steps2 = journal.drain(cursor);
+        assertThat(steps2, hasSize(2));
+        assertThat(steps2.get(0).getNode().getUuid(), is("1e318293-4730-481c-b455-daaaf86b2e6c"));
+        assertThat(steps2.get(1).getNode().getUuid(), is("e277932e-d546-4e0c-a483-ce6cce06b929"));
+
+        runner.resume(run, Input.of("no"));
+
+        assertThat(run.getState(), is(RunState.State.COMPLETED));
+
+        List<Step> steps3 = journal.drain(cursor);
+        assertThat(steps3, hasSize(3));
+        assertThat(steps3.get(2).getNode().getUuid(), is("6891e592-1e29-426b-b227-e3ae466662ab"));
+        assertThat(steps3.get(2).getLeftOn(), nullValue()); // terminal
+
+        // earlier lists are unaffected by later steps
+        assertThat(steps, hasSize(1));
+        assertThat(journal.getPosition(), is(6L));
+
+        // the sink received the same steps in the same order
+        assertThat(sunk, hasSize(6));
+        assertThat(journal.getStepsSince(0), is(sunk));
+    }
+
+    @Test
+    public void startAndResume_withoutJournal() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        RunState run = m_runner.start(m_org, m_fields, m_contact, flow);
+        m_runner.resume(run, Input.of("YUCK!"));
+
+        // runs only retain the steps of the last resume
+        assertThat(m_runner.isStepJournal(), is(false));
+        assertThat(run.getJournal(), nullValue());
+        assertThat(run.getSteps(), hasSize(3));
+    }
+
+    @Test
+    public void startAndResume_withActionSink() throws Exception {
+        final List<Action> configured = new ArrayList<>();
+        final List<Action> passed = new ArrayList<>();
+
+        Runner runner = new RunnerBuilder().withActionSink(new ActionSink() {
+            @Override
+            public void onActionPerformed(RunState run, Step step, Action action) {
+                // actions are received before the step is completed
+                assertThat(step.isCompleted(), is(false));
+                configured.add(action);
+            }
+        }).build();
+
+        ActionSink sink = new ActionSink() {
+            @Override
+            public void onActionPerformed(RunState run, Step step, Action action) {
+                passed.add(action);
+            }
+        };
+
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        RunState run = runner.start(m_org, m_fields, m_contact, flow);
+
+        assertThat(configured, hasSize(1));
+        assertReply(configured.get(0), "Hi Joe. Do you like mushrooms?");
+
+        // a sink passed to resume takes precedence
+        runner.resume(run, Input.of("no"), sink);
+
+        assertThat(configured, hasSize(1));
+        assertThat(passed, hasSize(3));
+        assertReply(passed.get(0), "That was the right answer.");
+        assertThat(passed.get(1), instanceOf(AddToGroupsAction.class));
+        assertThat(passed.get(2), instanceOf(SaveToContactAction.class));
+
+        // the performed actions are still recorded on the steps
+        assertThat(run.getSteps().get(1).getActions(), contains(passed.get(0), passed.get(1)));
+    }
+
+    @Test
+    public void startAndResume_withClock() throws Exception {
+        Instant now = Instant.parse("2015-10-19T12:30:45.123Z");
+        Runner runner = new RunnerBuilder().withClock(Clock.fixed(now, ZoneOffset.UTC)).build();
+        assertThat(runner.getNow(), nullValue());
+
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        RunState run = runner.start(m_org, m_fields, m_contact, flow);
+        runner.resume(run, Input.of("no"));
+
+        assertThat(run.getStarted(), is(now));
+        for (Step step : run.getSteps()) {
+            assertThat(step.getArrivedOn(), is(now));
+            assertThat(step.getLeftOn(), anyOf(nullValue(), is(now)));
+        }
+        assertThat(run.buildContext(runner, null).getNow(), is(now));
+    }
 }
@@ -0,0 +1,75 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.definition.Flow;
+import org.junit.Test;
+import org.threeten.bp.Instant;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Test for {@link StepJournal}
+ */
+public class StepJournalTest extends BaseFlowsTest {
+
+    @Test
+    public void appendAndDrain() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+
+        List<Step> steps = new ArrayList<>();
+        for (int s = 0; s < 20; s++) {
+            steps.add(new Step(flow, flow.getEntry(), Instant.now()));
+        }
+
+        StepJournal journal = new StepJournal();
+        assertThat(journal.getPosition(), is(0L));
+        assertThat(journal.getStepsSince(0), hasSize(0));
+
+        StepJournal.Cursor cursor = journal.newCursor();
+
+        for (int s = 0; s < 10; s++) {
+            journal.append(steps.get(s));
+        }
+
+        List<Step> drained = journal.drain(cursor);
+        assertThat(drained, is(steps.subList(0, 10)));
+        assertThat(cursor.getPosition(), is(10L));
+
+        // appending past the initial capacity doesn't affect drained lists
+        for (int s = 10; s < 20; s++) {
+            journal.append(steps.get(s));
+        }
+        assertThat(drained, is(steps.subList(0, 10)));
+        assertThat(journal.drain(cursor), is(steps.subList(10, 20)));
+        assertThat(journal.drain(cursor), hasSize(0));
+
+        // discard the first 15 steps
+        List<Step> all = journal.getStepsSince(0);
+        journal.discardBefore(15);
+
+        assertThat(journal.getStart(), is(15L));
+        assertThat(journal.getPosition(), is(20L));
+        assertThat(journal.getStepsSince(15), is(steps.subList(15, 20)));
+        assertThat(journal.getStepsSince(18), is(steps.subList(18, 20)));
+        assertThat(all, is(steps));
+
+        try {
+            journal.getStepsSince(14);
+            fail("Should have thrown IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), is("Steps before position 15 have been discarded"));
+        }
+
+        journal.append(steps.get(0));
+        assertThat(journal.getStepsSince(20), contains(steps.get(0)));
+
+        journal.discardBefore(100);
+        assertThat(journal.getStart(), is(21L));
+        assertThat(journal.getStepsSince(21), hasSize(0));
+    }
+}
@@ -16,6 +16,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -29,6 +30,8 @@ public class SubflowTest extends BaseFlowsTest {
 
     protected Runner m_runner;
 
+    protected Map<String, Flow> m_flows;
+
     @Before
     public void setupRunState() throws Exception {
 
@@ -42,6 +45,11 @@ public class SubflowTest extends BaseFlowsTest {
             flows.add(Flow.fromJson(ele.getAsJsonObject().toString()));
         }
 
+        m_flows = new HashMap<>();
+        for (Flow flow : flows) {
+            m_flows.put(flow.getUuid(), flow);
+        }
+
         m_runner = new RunnerBuilder(flows).withLocationResolver(new TestLocationResolver()).build();
     }
 
@@ -85,6 +93,19 @@ public class SubflowTest extends BaseFlowsTest {
         assertThat(getMessages(run).get(0).msg, is("What color do you like?"));
         assertThat(getMessages(run).get(0).flow.getMetadata().get("name").getAsString(), is("Child Flow"));
 
+        assertThat(run.getLevel(), is(1));
+        assertThat(run.getFrames(), hasSize(2));
+        assertThat(run.getFrames().get(0).getFlow().getMetadata().get("name").getAsString(), is("Parent Flow"));
+        assertThat(run.getFrames().get(0).getSuspendedStep().getNode().getUuid(), is("546c368a-90ef-4145-8da6-20b8bb198b31"));
+        assertThat(run.getFrames().get(1).getSuspendedStep(), nullValue());
+        assertThat(run.getActiveFlow(), is(run.getFrames().get(1).getFlow()));
+
+        // check we can serialize and restore a run inside a subflow
+        String json = run.toJsonString();
+        run = RunState.fromJson(json, m_flows);
+        assertThat(run.toJsonString(), is(json));
+        assertThat(run.getLevel(), is(1));
+
         // submit in our subflow which should complete it and take us to the parent
         run = m_runner.resume(run, Input.of("red"));
 
@@ -99,10 +120,58 @@ public class SubflowTest extends BaseFlowsTest {
         assertThat(getMessages(run).get(0).msg, is("Complete: You picked Red."));
         assertThat(getMessages(run).get(1).msg, is("This is a parent flow. What would you like to do?"));
 
+        // we're back in the parent, but the child's values are still there
+        assertThat(run.getLevel(), is(0));
+        assertThat(run.getFrames(), hasSize(1));
+        assertThat(run.getFrames().get(0).getSuspendedStep(), nullValue());
+
+        JsonObject obj = run.toJson().getAsJsonObject();
+        assertThat(obj.get("level").getAsInt(), is(0));
+        assertThat(obj.get("active_flows").getAsJsonArray().size(), is(1));
+        assertThat(obj.get("suspended_steps").getAsJsonArray().size(), is(0));
+        assertThat(obj.get("values").getAsJsonArray().size(), is(2));
+
         // run our subflow a second time in the same parent
         run = m_runner.resume(run, Input.of("color"));
         run = m_runner.resume(run, Input.of("green"));
         assertThat(getMessages(run).get(0).msg, is("Complete: You picked Green."));
 
     }
+
+    @Test
+    public void testRecursiveSubflow() throws Exception {
+        // a flow which waits for a message and then starts itself as a subflow
+        String json = "{\"version\": 10, \"flow_type\": \"F\", \"base_language\": \"eng\", \"entry\": \"6f38f2e4-1fbc-4d8c-9b53-0c8fb2f8f3a1\", " +
+                "\"metadata\": {\"uuid\": \"0ef6b3a2-7e0e-4d5b-8a36-39b0a9c1cb38\", \"name\": \"Recursive\"}, \"action_sets\": [], \"rule_sets\": [" +
+                "{\"uuid\": \"6f38f2e4-1fbc-4d8c-9b53-0c8fb2f8f3a1\", \"ruleset_type\": \"wait_message\", \"label\": \"Message\", " +
+                "\"operand\": \"@step.value\", \"config\": {}, \"rules\": [{\"uuid\": \"2d3c4b5a-6978-4a1b-8c2d-3e4f5a6b7c8d\", " +
+                "\"test\": {\"type\": \"true\"}, \"category\": {\"eng\": \"All Responses\"}, \"destination\": \"9b1aa7a5-8c3a-4f6e-9a5c-2f4d8fbbbe44\"}]}, " +
+                "{\"uuid\": \"9b1aa7a5-8c3a-4f6e-9a5c-2f4d8fbbbe44\", \"ruleset_type\": \"subflow\", \"label\": \"Again\", " +
+                "\"operand\": \"@step.value\", \"config\": {\"flow\": {\"uuid\": \"0ef6b3a2-7e0e-4d5b-8a36-39b0a9c1cb38\", \"name\": \"Recursive\"}}, " +
+                "\"rules\": [{\"uuid\": \"c1f9f2a1-4f0e-4b8e-9b7a-2e6d1c7d8a90\", \"test\": {\"type\": \"subflow\", \"exit_type\": \"completed\"}, " +
+                "\"category\": {\"eng\": \"Completed\"}, \"destination\": null}]}]}";
+
+        Flow flow = Flow.fromJson(json);
+        Runner runner = new RunnerBuilder().withMaxSubflowDepth(3).build();
+
+        assertThat(runner.getMaxSubflowDepth(), is(3));
+
+        RunState run = runner.start(m_org, m_fields, m_contact, flow);
+
+        // each message takes us one subflow deeper
+        for (int level = 1; level <= 3; level++) {
+            runner.resume(run, Input.of("Hi"));
+            assertThat(run.getLevel(), is(level));
+            assertThat(run.getFrames(), hasSize(level + 1));
+        }
+
+        try {
+            runner.resume(run, Input.of("Hi"));
+            fail("Should have thrown SubflowDepthException");
+        } catch (SubflowDepthException e) {
+            assertThat(e.getMaxDepth(), is(3));
+            assertThat(e.getFlows(), hasSize(4));
+            assertThat(e.getMessage(), startsWith("Maximum subflow depth of 3 exceeded in flows:\n0ef6b3a2-7e0e-4d5b-8a36-39b0a9c1cb38"));
+        }
+    }
 }
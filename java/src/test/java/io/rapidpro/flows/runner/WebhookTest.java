@@ -0,0 +1,282 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.RunnerBuilder;
+import io.rapidpro.flows.definition.Flow;
+import io.rapidpro.flows.definition.actions.Action;
+import io.rapidpro.flows.definition.actions.message.ReplyAction;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for running flows with webhook rule sets
+ */
+public class WebhookTest extends BaseFlowsTest {
+
+    protected Flow m_flow;
+
+    @Before
+    public void setupFlow() throws Exception {
+        // a flow which asks for a name, looks it up with a webhook and replies using the response
+        String json = "{\"version\": 10, \"flow_type\": \"F\", \"base_language\": \"eng\", \"entry\": \"2a5d0e36-2d5f-4f47-9b7c-3a8f1c8c1f10\", " +
+                "\"metadata\": {\"uuid\": \"a3c4e1d2-8f6b-4b7a-9e2d-5c1f0b3a6d48\", \"name\": \"Webhook\"}, \"action_sets\": [" +
+                "{\"uuid\": \"e7b2c9d4-1a3f-4c5e-8d6b-9f0a2b4c6d8e\", \"destination\": null, \"actions\": [" +
+                "{\"type\": \"reply\", \"msg\": {\"eng\": \"@extra.greeting, you are @extra.age\"}}]}], \"rule_sets\": [" +
+                "{\"uuid\": \"2a5d0e36-2d5f-4f47-9b7c-3a8f1c8c1f10\", \"ruleset_type\": \"wait_message\", \"label\": \"Name\", " +
+                "\"operand\": \"@step.value\", \"config\": {}, \"rules\": [{\"uuid\": \"5e4d3c2b-1a09-4f8e-9d7c-6b5a4f3e2d1c\", " +
+                "\"test\": {\"type\": \"true\"}, \"category\": {\"eng\": \"All Responses\"}, \"destination\": \"7c1e9a5b-3d2f-4e6a-8b0c-1d2e3f4a5b6c\"}]}, " +
+                "{\"uuid\": \"7c1e9a5b-3d2f-4e6a-8b0c-1d2e3f4a5b6c\", \"ruleset_type\": \"webhook\", \"label\": \"Lookup\", " +
+                "\"webhook\": \"http://example.com/lookup?name=@step.value\", \"webhook_action\": \"GET\", " +
+                "\"operand\": \"@step.value\", \"config\": {}, \"rules\": [{\"uuid\": \"9d8c7b6a-5f4e-4d3c-2b1a-0f9e8d7c6b5a\", " +
+                "\"test\": {\"type\": \"true\"}, \"category\": {\"eng\": \"All Responses\"}, \"destination\": \"e7b2c9d4-1a3f-4c5e-8d6b-9f0a2b4c6d8e\"}]}]}";
+
+        m_flow = Flow.fromJson(json);
+    }
+
+    @Test
+    public void resume() throws Exception {
+        LocalWebhookClient client = new LocalWebhookClient()
+                .withResponse("http://example.com/lookup?name=Bob", 200, "{\"greeting\": \"Hi Bob\", \"age\": 32, \"tags\": [\"a\"], \"other\": null}");
+
+        Runner runner = new RunnerBuilder().withWebhookClient(client).withStepJournal().build();
+
+        assertThat(runner.getWebhookClient(), sameInstance((WebhookClient) client));
+
+        RunState run = runner.start(m_org, m_fields, m_contact, m_flow);
+        runner.resume(run, Input.of("Bob"));
+
+        assertThat(client.getRequests(), hasSize(1));
+        assertThat(client.getRequests().get(0).getMethod(), is("GET"));
+        assertThat(client.getRequests().get(0).getUrl(), is("http://example.com/lookup?name=Bob"));
+        assertThat(client.getRequests().get(0).getRun(), sameInstance(run));
+
+        assertThat(run.getState(), is(RunState.State.COMPLETED));
+        assertThat(run.getPendingWebhook(), nullValue());
+        assertThat(run.getExtra(), hasEntry("greeting", "Hi Bob"));
+        assertThat(run.getExtra(), hasEntry("age", "32"));
+        assertThat(run.getExtra(), hasEntry("tags", "[\"a\"]"));
+        assertThat(run.getExtra(), not(hasKey("other")));
+        assertThat(getReplies(run), contains("Hi Bob, you are 32"));
+
+        // webhook step should only appear once in the steps and journal
+        assertThat(run.getSteps(), hasSize(3));
+        assertThat(run.getSteps().get(1).getNode().getUuid(), is("7c1e9a5b-3d2f-4e6a-8b0c-1d2e3f4a5b6c"));
+        assertThat(run.getJournal().getPosition(), is(3L));
+    }
+
+    @Test
+    public void resume_withFailedWebhook() throws Exception {
+        LocalWebhookClient client = new LocalWebhookClient()
+                .withHandler("http://example.com/lookup?name=Bob", new LocalWebhookClient.Handler() {
+                    @Override
+                    public WebhookClient.Response handle(WebhookClient.Request request) throws Exception {
+                        throw new RuntimeException("Connection refused");
+                    }
+                });
+
+        Runner runner = new RunnerBuilder().withWebhookClient(client).build();
+
+        // run continues with only the failure added to @extra
+        RunState run = runner.start(m_org, m_fields, m_contact, m_flow);
+        runner.resume(run, Input.of("Bob"));
+
+        assertThat(run.getState(), is(RunState.State.COMPLETED));
+        assertThat(run.getExtra().size(), is(2));
+        assertThat(run.getExtra(), hasEntry("webhook_status", "0"));
+        assertThat(run.getExtra(), hasEntry("webhook_response", "Connection refused"));
+
+        // as does one with an error response, whose body isn't added to @extra
+        client.withResponse("http://example.com/lookup?name=Bob", 500, "{\"greeting\": \"Hi Bob\"}");
+
+        run = runner.start(m_org, m_fields, m_contact, m_flow);
+        runner.resume(run, Input.of("Bob"));
+
+        assertThat(run.getState(), is(RunState.State.COMPLETED));
+        assertThat(run.getExtra().size(), is(2));
+        assertThat(run.getExtra(), hasEntry("webhook_status", "500"));
+        assertThat(run.getExtra(), hasEntry("webhook_response", "{\"greeting\": \"Hi Bob\"}"));
+    }
+
+    @Test
+    public void resume_routingOnStatus() throws Exception {
+        Flow flow = createRoutingFlow("2b3c4d5e-6f70-4819-a2b3-c4d5e6f70819");
+        LocalWebhookClient client = new LocalWebhookClient()
+                .withResponse("http://example.com/lookup?name=Bob", 201, "{\"greeting\": \"Hi Bob\"}")
+                .withResponse("http://example.com/lookup?name=Jim", 404, "Not found")
+                .withHandler("http://example.com/lookup?name=Ann", new LocalWebhookClient.Handler() {
+                    @Override
+                    public WebhookClient.Response handle(WebhookClient.Request request) throws Exception {
+                        throw new RuntimeException("Connection refused");
+                    }
+                });
+
+        Runner runner = new RunnerBuilder().withWebhookClient(client).build();
+
+        RunState run = runner.start(m_org, m_fields, m_contact, flow);
+        runner.resume(run, Input.of("Bob"));
+        assertThat(getReplies(run), contains("Success 201: Hi Bob"));
+        assertThat(run.getValues().get("lookup").getCategory(), is("Success"));
+
+        run = runner.start(m_org, m_fields, m_contact, flow);
+        runner.resume(run, Input.of("Jim"));
+        assertThat(getReplies(run), contains("Failure 404: Not found"));
+        assertThat(run.getValues().get("lookup").getCategory(), is("Failure"));
+
+        run = runner.start(m_org, m_fields, m_contact, flow);
+        runner.resume(run, Input.of("Ann"));
+        assertThat(getReplies(run), contains("Failure 0: Connection refused"));
+    }
+
+    @Test
+    public void resume_withRetryLoop() throws Exception {
+        // a flow whose webhook rule set routes failures back to itself
+        Flow flow = createRoutingFlow("7c1e9a5b-3d2f-4e6a-8b0c-1d2e3f4a5b6c");
+        LocalWebhookClient client = new LocalWebhookClient()
+                .withResponse("http://example.com/lookup?name=Bob", 500, "Server error");
+
+        Runner runner = new RunnerBuilder().withWebhookClient(client).build();
+
+        RunState run = runner.start(m_org, m_fields, m_contact, flow);
+        try {
+            runner.resume(run, Input.of("Bob"));
+            fail("Should have thrown FlowLoopException");
+        } catch (FlowLoopException e) {
+            assertThat(client.getRequests(), hasSize(2));
+        }
+
+        // as does an async resume with a client which calls back on the same thread
+        run = runner.start(m_org, m_fields, m_contact, flow);
+        Future<RunState> future = runner.resumeAsync(run, Input.of("Bob"));
+        assertThat(future.isDone(), is(true));
+
+        try {
+            future.get();
+            fail("Should have thrown ExecutionException");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(FlowLoopException.class));
+        }
+
+        // a successful call leaves the loop
+        client.withResponse("http://example.com/lookup?name=Bob", 200, "{}");
+        run = runner.start(m_org, m_fields, m_contact, flow);
+        runner.resume(run, Input.of("Bob"));
+        assertThat(getReplies(run), contains("Success 200: @extra.greeting"));
+    }
+
+    @Test
+    public void resume_withoutWebhookClient() throws Exception {
+        Runner runner = new RunnerBuilder().build();
+
+        // webhook rule sets are visited like any other non-pausing rule set
+        RunState run = runner.start(m_org, m_fields, m_contact, m_flow);
+        runner.resume(run, Input.of("Bob"));
+
+        assertThat(run.getState(), is(RunState.State.COMPLETED));
+        assertThat(getReplies(run), contains("@extra.greeting, you are @extra.age"));
+    }
+
+    @Test
+    public void resumeAsync() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            LocalWebhookClient client = new LocalWebhookClient(executor).withHandler("http://example.com/lookup?name=Bob", new LocalWebhookClient.Handler() {
+                @Override
+                public WebhookClient.Response handle(WebhookClient.Request request) throws Exception {
+                    return new WebhookClient.Response(200, "{\"greeting\": \"Hi " + request.getRun().getContact().getName() + "\", \"age\": 32}");
+                }
+            });
+
+            Runner runner = new RunnerBuilder().withWebhookClient(client).build();
+
+            // many runs waiting on webhooks at once, none of which hold a thread whilst waiting
+            List<Future<RunState>> futures = new ArrayList<>();
+            for (int r = 0; r < 200; r++) {
+                Contact contact = new Contact(m_contact.getUuid(), "Bob " + r, m_contact.getUrns(), m_contact.getGroups(), m_contact.getFields(), m_contact.getLanguage());
+                RunState run = runner.start(m_org, m_fields, contact, m_flow);
+                futures.add(runner.resumeAsync(run, Input.of("Bob")));
+            }
+
+            for (int r = 0; r < 200; r++) {
+                RunState run = futures.get(r).get(10, TimeUnit.SECONDS);
+
+                assertThat(futures.get(r).isDone(), is(true));
+                assertThat(run.getState(), is(RunState.State.COMPLETED));
+                assertThat(getReplies(run), contains("Hi Bob " + r + ", you are 32"));
+            }
+
+            assertThat(client.getRequests(), hasSize(200));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void resumeAsync_withError() throws Exception {
+        Runner runner = new RunnerBuilder().withWebhookClient(new LocalWebhookClient()).build();
+
+        RunState run = runner.start(m_org, m_fields, m_contact, m_flow);
+        runner.resume(run, Input.of("Bob"));
+
+        // run is completed so resuming again fails
+        Future<RunState> future = runner.resumeAsync(run, Input.of("Bob"));
+        assertThat(future.isDone(), is(true));
+
+        try {
+            future.get();
+            fail("Should have thrown ExecutionException");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(FlowRunException.class));
+            assertThat(e.getCause().getMessage(), is("Cannot resume a completed run"));
+        }
+    }
+
+    /**
+     * Creates a flow which asks for a name, looks it up with a webhook and routes on the status of the call
+     * @param failureDestination the destination of failed calls
+     */
+    protected static Flow createRoutingFlow(String failureDestination) throws Exception {
+        String json = "{\"version\": 10, \"flow_type\": \"F\", \"base_language\": \"eng\", \"entry\": \"2a5d0e36-2d5f-4f47-9b7c-3a8f1c8c1f10\", " +
+                "\"metadata\": {\"uuid\": \"b4d5e6f7-0819-4a2b-8c3d-4e5f60718293\", \"name\": \"Webhook Routing\"}, \"action_sets\": [" +
+                "{\"uuid\": \"e7b2c9d4-1a3f-4c5e-8d6b-9f0a2b4c6d8e\", \"destination\": null, \"actions\": [" +
+                "{\"type\": \"reply\", \"msg\": {\"eng\": \"Success @extra.webhook_status: @extra.greeting\"}}]}, " +
+                "{\"uuid\": \"2b3c4d5e-6f70-4819-a2b3-c4d5e6f70819\", \"destination\": null, \"actions\": [" +
+                "{\"type\": \"reply\", \"msg\": {\"eng\": \"Failure @extra.webhook_status: @extra.webhook_response\"}}]}], \"rule_sets\": [" +
+                "{\"uuid\": \"2a5d0e36-2d5f-4f47-9b7c-3a8f1c8c1f10\", \"ruleset_type\": \"wait_message\", \"label\": \"Name\", " +
+                "\"operand\": \"@step.value\", \"config\": {}, \"rules\": [{\"uuid\": \"5e4d3c2b-1a09-4f8e-9d7c-6b5a4f3e2d1c\", " +
+                "\"test\": {\"type\": \"true\"}, \"category\": {\"eng\": \"All Responses\"}, \"destination\": \"7c1e9a5b-3d2f-4e6a-8b0c-1d2e3f4a5b6c\"}]}, " +
+                "{\"uuid\": \"7c1e9a5b-3d2f-4e6a-8b0c-1d2e3f4a5b6c\", \"ruleset_type\": \"webhook\", \"label\": \"Lookup\", " +
+                "\"webhook\": \"http://example.com/lookup?name=@step.value\", \"webhook_action\": \"GET\", " +
+                "\"operand\": \"@extra.webhook_status\", \"config\": {}, \"rules\": [" +
+                "{\"uuid\": \"9d8c7b6a-5f4e-4d3c-2b1a-0f9e8d7c6b5a\", \"test\": {\"type\": \"between\", \"min\": \"200\", \"max\": \"299\"}, " +
+                "\"category\": {\"eng\": \"Success\"}, \"destination\": \"e7b2c9d4-1a3f-4c5e-8d6b-9f0a2b4c6d8e\"}, " +
+                "{\"uuid\": \"3c4d5e6f-7081-492a-b3c4-d5e6f7081920\", \"test\": {\"type\": \"true\"}, " +
+                "\"category\": {\"eng\": \"Failure\"}, \"destination\": \"" + failureDestination + "\"}]}]}";
+
+        return Flow.fromJson(json);
+    }
+
+    protected static List<String> getReplies(RunState run) {
+        List<String> replies = new ArrayList<>();
+        for (Step step : run.getCompletedSteps()) {
+            for (Action action : step.getActions()) {
+                if (action instanceof ReplyAction) {
+                    replies.add(((ReplyAction) action).getMsg().getLocalized(run));
+                }
+            }
+        }
+        return replies;
+    }
+}
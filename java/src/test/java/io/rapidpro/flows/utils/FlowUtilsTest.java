@@ -5,6 +5,8 @@ import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.junit.Test;
 
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
 
@@ -44,4 +46,17 @@ public class FlowUtilsTest extends BaseFlowsTest {
         assertThat(FlowUtils.normalizeNumber("0788383383", "ZZ"), is((Pair) new ImmutablePair<>("0788383383", false)));
         assertThat(FlowUtils.normalizeNumber("MTN", "RW"), is((Pair) new ImmutablePair<>("mtn", false)));
     }
+
+    @Test
+    public void getTemplateReferences() {
+        assertThat(FlowUtils.getTemplateReferences("Hello"), is(empty()));
+        assertThat(FlowUtils.getTemplateReferences("Hi @contact.name."), contains("contact.name"));
+        assertThat(FlowUtils.getTemplateReferences("@Contact.Name @contact.name"), contains("contact.name"));
+        assertThat(FlowUtils.getTemplateReferences("Email me@@example.com"), is(empty()));
+        assertThat(FlowUtils.getTemplateReferences("Costs $5 @ the shop"), is(empty()));
+        assertThat(FlowUtils.getTemplateReferences("@(date.today + 1) and @flow.age.category"), contains("date.today", "flow.age.category"));
+        assertThat(FlowUtils.getTemplateReferences("@(IF(step.value = \"yes\", extra.a, 1.5))"), contains("step.value", "extra.a"));
+        assertThat(FlowUtils.getTemplateReferences("@(UPPER(\"contact.name\"\"\") & TRUE)"), is(empty()));
+        assertThat(FlowUtils.getTemplateReferences("@((parent.x))@child"), contains("parent.x", "child"));
+    }
 }
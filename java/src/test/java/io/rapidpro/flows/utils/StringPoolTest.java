@@ -0,0 +1,39 @@
+package io.rapidpro.flows.utils;
+
+import io.rapidpro.flows.BaseFlowsTest;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test for {@link StringPool}
+ */
+public class StringPoolTest extends BaseFlowsTest {
+
+    @Test
+    public void intern() {
+        StringPool pool = new StringPool(16);
+
+        String yes1 = new String("Yes");
+        String yes2 = new String("Yes");
+
+        assertThat(pool.intern(null), nullValue());
+        assertThat(pool.intern(yes1), sameInstance(yes1));
+        assertThat(pool.intern(yes2), sameInstance(yes1));
+
+        // long strings aren't pooled
+        String long1 = StringUtils.repeat('x', 65);
+        String long2 = StringUtils.repeat('x', 65);
+        assertThat(pool.intern(long1), sameInstance(long1));
+        assertThat(pool.intern(long2), sameInstance(long2));
+
+        // with only one slot, strings replace each other
+        pool = new StringPool(1);
+        pool.intern(yes1);
+        pool.intern("No");
+        assertThat(pool.intern(yes2), sameInstance(yes2));
+    }
+}